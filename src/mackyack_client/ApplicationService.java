@@ -12,16 +12,13 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
-import mackyack_messages.GetRequest;
 import mackyack_messages.GetResponse;
 import mackyack_messages.Message;
-import mackyack_messages.PutRequest;
-import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.types.JSONObject;
 
 public class ApplicationService {
 
-    private static final String COMMAND_MSG = "Please enter a command [GET, PUT, EXIT]: ";
+    private static final String COMMAND_MSG = "Please enter a command [GET, PUT, STATS, EXIT]: ";
 
     private OnionProxy proxy;
     private ClientConfig conf;
@@ -48,24 +45,48 @@ public class ApplicationService {
     public static void handle(JSONObject obj) throws InvalidObjectException {
         switch(obj.getString("messagetype")) {
             case "getresponse": {
-                clearConsole();  // Clear the console
-                
-                // Print out all of the messages.
-                GetResponse resp = new GetResponse(obj);
-                for(Message n : resp.getMessages()) {
-                    System.out.println(n);
-                }
-                System.out.println(COMMAND_MSG);
-
+                display(new GetResponse(obj));
             }; return;
 
             case "putresponse": {
-                System.out.println("Message added to board.");
-                System.out.println(COMMAND_MSG);
+                displayPut();
             }; return;
         }
     }
 
+    /**
+     * Prints out every message on the board.
+     * @param resp response containing the board.
+     */
+    private static void display(GetResponse resp) {
+        clearConsole();  // Clear the console
+
+        // Print out all of the messages.
+        for(Message n : resp.getMessages()) {
+            System.out.println(n);
+        }
+        System.out.println(COMMAND_MSG);
+    }
+
+    /**
+     * Confirms a put to the user.
+     */
+    private static void displayPut() {
+        System.out.println("Message added to board.");
+        System.out.println(COMMAND_MSG);
+    }
+
+    /**
+     * Reports a request that failed or timed out.
+     * @param ex cause of the failure.
+     * @return null, so it can be used with {@code exceptionally}.
+     */
+    private static Void displayFailure(Throwable ex) {
+        System.out.println("Request failed: " + ex);
+        System.out.println(COMMAND_MSG);
+        return null;
+    }
+
     /**
      * Clears the console depending on machine
      */
@@ -112,14 +133,16 @@ public class ApplicationService {
 
             switch(command.toUpperCase()) {
                 case "GET": {
-                    GetRequest req = new GetRequest();
-                    sendMessage(req);
+                    proxy.get().thenAccept(ApplicationService::display).exceptionally(ApplicationService::displayFailure);
                 }; break;
                 case "PUT": {
                     System.out.println("Please enter the message: ");
                     String putMsg = scanner.nextLine();
-                    PutRequest req = new PutRequest(putMsg);
-                    sendMessage(req);
+                    proxy.put(putMsg).thenAccept(n -> displayPut()).exceptionally(ApplicationService::displayFailure);
+                }; break;
+                case "STATS": {
+                    System.out.println((proxy.isHealthy() ? "Healthy" : "Rebuilding") + " circuit " + proxy.getCircuit());
+                    System.out.println(proxy.getMetrics());
                 }; break;
                 case "EXIT": {
                     proxy.destroy(); // break down the OR circuit.
@@ -129,9 +152,4 @@ public class ApplicationService {
         }
     }
 
-    private void sendMessage(JSONSerializable msg) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException, UnknownHostException, IOException {
-        JSONSerializable message = proxy.constructOperation(msg, conf.getServerAddr(), conf.getServerPort());
-        proxy.send(message.serialize());
-    }
-
 }
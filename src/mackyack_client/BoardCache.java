@@ -0,0 +1,96 @@
+package mackyack_client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.Message;
+
+/**
+ * The client's copy of one server's board. Polls only ask for the messages
+ * after the cursor of the last response, which are merged in here. They also send
+ * its ETag, so an unchanged board is answered as not modified.
+ */
+public class BoardCache {
+
+    private List<Message> messages = new ArrayList<>();
+    private int cursor;
+    private String etag;     // ETag of the newest response merged, null if the server sent none.
+    private String encoding; // Encoding requests accept the messages in, null for plain JSON.
+    private String board;    // Board of the server this is a copy of, null for its default board.
+
+    public BoardCache() {
+        this(null);
+    }
+
+    /**
+     * @param encoding encoding requests accept the messages in, e.g. GetResponse.DEFLATE, null for plain JSON.
+     */
+    public BoardCache(String encoding) {
+        this(encoding, null);
+    }
+
+    /**
+     * @param encoding encoding requests accept the messages in, e.g. GetResponse.DEFLATE, null for plain JSON.
+     * @param board board of the server to copy, null for its default board.
+     */
+    public BoardCache(String encoding, String board) {
+        this.encoding = encoding;
+        this.board = board;
+    }
+
+    /**
+     * @return a GetRequest for the messages this cache does not have yet.
+     */
+    public synchronized GetRequest request() {
+        return new GetRequest(cursor, 0, null, null, encoding, etag, board);
+    }
+
+    /**
+     * Merges a response into the cache.
+     * Responses may arrive out of order, the board is append-only so overlaps are dropped,
+     * and a whole board no newer than the cache is ignored unless it is from another epoch.
+     * @param resp response from the server.
+     * @return the whole cached board.
+     */
+    public synchronized GetResponse merge(GetResponse resp) {
+        List<Message> received = resp.getMessages();
+
+        if(resp.isNotModified()) {
+            // Nothing to merge, the cache is current.
+        } else if(resp.getSince() == 0 && (resp.getCursor() > cursor || otherEpoch(resp.getETag()))) {
+            // The whole board, which also replaces a board the server no longer has.
+            messages = new ArrayList<>(received);
+            cursor = resp.getCursor();
+            etag = resp.getETag();
+        } else if(resp.getSince() <= cursor && resp.getCursor() >= cursor) {
+            messages.addAll(received.subList(cursor - resp.getSince(), received.size()));
+            cursor = resp.getCursor();
+            // Subscriptions carry no ETag, the last one still names the board for the server.
+            if(resp.getETag() != null)
+                etag = resp.getETag();
+        }
+        // Otherwise it is older than the cache, or follows messages the cache never got.
+
+        return new GetResponse(Collections.unmodifiableList(new ArrayList<>(messages)), 0, cursor);
+    }
+
+    /**
+     * @return true if an ETag names another epoch of the board than the cache's ETag.
+     * Without both ETags the epochs cannot be told apart, and are taken to be the same.
+     */
+    private boolean otherEpoch(String other) {
+        if(etag == null || other == null)
+            return false;
+        return !etag.substring(0, etag.indexOf(':') + 1).equals(other.substring(0, other.indexOf(':') + 1));
+    }
+
+    /**
+     * @return cursor of the newest message in the cache.
+     */
+    public synchronized int getCursor() {
+        return cursor;
+    }
+}
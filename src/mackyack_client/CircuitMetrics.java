@@ -0,0 +1,84 @@
+package mackyack_client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the health of one circuit and how often it had to be rebuilt.
+ */
+public class CircuitMetrics {
+
+    private AtomicLong probes = new AtomicLong();           // Health probes sent.
+    private AtomicLong failedProbes = new AtomicLong();     // Health probes that found a failed hop.
+    private AtomicLong timeouts = new AtomicLong();         // Requests that missed their deadline.
+    private AtomicLong rebuilds = new AtomicLong();         // Circuits rebuilt successfully.
+    private AtomicLong repairs = new AtomicLong();          // Rebuilds that kept the healthy hops in front of the failed one.
+    private AtomicLong failedRebuilds = new AtomicLong();   // Rebuilds that could not build a new circuit.
+    private AtomicLong lastRebuildMillis = new AtomicLong();
+    private AtomicLong totalRebuildMillis = new AtomicLong();
+
+    public void recordProbe(boolean failed) {
+        probes.incrementAndGet();
+        if(failed)
+            failedProbes.incrementAndGet();
+    }
+
+    public void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    public void recordRebuild(long millis, boolean repaired) {
+        rebuilds.incrementAndGet();
+        if(repaired)
+            repairs.incrementAndGet();
+        lastRebuildMillis.set(millis);
+        totalRebuildMillis.addAndGet(millis);
+    }
+
+    public void recordFailedRebuild() {
+        failedRebuilds.incrementAndGet();
+    }
+
+    /**
+     * Accessors
+     */
+
+    public long getProbes() {
+        return probes.get();
+    }
+
+    public long getFailedProbes() {
+        return failedProbes.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getRebuilds() {
+        return rebuilds.get();
+    }
+
+    public long getRepairs() {
+        return repairs.get();
+    }
+
+    public long getFailedRebuilds() {
+        return failedRebuilds.get();
+    }
+
+    public long getLastRebuildMillis() {
+        return lastRebuildMillis.get();
+    }
+
+    public long getAverageRebuildMillis() {
+        long count = rebuilds.get();
+        return count == 0 ? 0 : totalRebuildMillis.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "probes=" + getProbes() + " failedProbes=" + getFailedProbes() + " timeouts=" + getTimeouts()
+            + " rebuilds=" + getRebuilds() + " repairs=" + getRepairs() + " failedRebuilds=" + getFailedRebuilds()
+            + " lastRebuildMs=" + getLastRebuildMillis() + " avgRebuildMs=" + getAverageRebuildMillis();
+    }
+}
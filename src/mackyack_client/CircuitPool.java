@@ -0,0 +1,75 @@
+package mackyack_client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of circuits shared by every application of the proxy daemon.
+ * Each circuit is its own OnionProxy returning cells on {@code ClientConfig.port + i}.
+ */
+public class CircuitPool {
+
+    private List<OnionProxy> circuits = new ArrayList<>();
+    private AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Builds {@code conf.getCircuitPoolSize()} circuits.
+     * @param routersConfig routers circuits are chosen from.
+     * @param conf client configuration.
+     * @throws Exception if a circuit could not be built, the circuits built before it are torn down.
+     */
+    public CircuitPool(RoutersConfig routersConfig, ClientConfig conf) throws Exception {
+        try {
+            for(int i = 0; i < conf.getCircuitPoolSize(); i++) {
+                OnionProxy proxy = new OnionProxy(routersConfig, conf, conf.getPort() + i);
+                circuits.add(proxy);
+
+                if(conf.isVerbose()) {
+                    System.out.println("Built circuit " + i + ": " + proxy.getCircuit());
+                }
+            }
+        } catch (Exception e) {
+            // Their poll threads would keep the process alive with no pool to use them.
+            destroy();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the next circuit to put a stream on, round robin, skipping circuits being rebuilt.
+     */
+    public OnionProxy next() {
+        int start = next.getAndIncrement();
+        for(int i = 0; i < circuits.size(); i++) {
+            OnionProxy proxy = circuits.get(Math.floorMod(start + i, circuits.size()));
+            if(proxy.isHealthy())
+                return proxy;
+        }
+
+        // Every circuit is being rebuilt, fall back to plain round robin.
+        return circuits.get(Math.floorMod(start, circuits.size()));
+    }
+
+    /**
+     * Tears down every circuit in the pool.
+     */
+    public void destroy() {
+        for(OnionProxy proxy : circuits) {
+            try {
+                proxy.destroy();
+            } catch (IOException e) {
+                System.err.println("Could not destroy circuit: " + e);
+            }
+        }
+    }
+
+    /**
+     * @return the circuits in this pool.
+     */
+    public List<OnionProxy> getCircuits() {
+        return Collections.unmodifiableList(circuits);
+    }
+}
@@ -2,6 +2,8 @@ package mackyack_client;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InvalidObjectException;
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.JsonIO;
 import merrimackutil.json.types.JSONObject;
@@ -23,6 +25,14 @@ public class ClientConfig implements JSONSerializable {
     private String serverPubKey;
     private String routersPath;
     private boolean verbose;
+    private int daemonPort = 9050;      // Loopback port the proxy daemon accepts applications on.
+    private int circuitPoolSize = 3;    // Circuits the proxy daemon keeps for its applications.
+    private int healthCheckInterval = 30; // Seconds between circuit probes, 0 disables them.
+    private String responseEncoding = "none"; // Encoding board reads are accepted in, "none" or "deflate".
+    private String codec = "json";            // Form gets and puts are sent in, "json" or "binary".
+    private String board;                     // Board of the server to read and post to, null for its default board.
+    private int putBatchWindowMs = 5;   // Milliseconds puts wait to be sent together, 0 sends each put on its own.
+    private int putRetries = 2;         // Times a failed put is sent again with the same idempotency key.
 
     public ClientConfig(String path) throws FileNotFoundException, InvalidObjectException {
         this.path = path;
@@ -95,6 +105,53 @@ public class ClientConfig implements JSONSerializable {
         } else {
             throw new InvalidObjectException("Expected a Config object -- routersPath expected.");
         }
+
+        // Daemon settings are optional, they only matter when running with --daemon.
+        if (obj.containsKey("daemonPort")) {
+            this.daemonPort = obj.getInt("daemonPort");
+        }
+
+        if (obj.containsKey("circuitPoolSize")) {
+            this.circuitPoolSize = obj.getInt("circuitPoolSize");
+            if (this.circuitPoolSize < 1)
+                throw new InvalidObjectException("Expected a Config object -- circuitPoolSize must be at least 1.");
+        }
+
+        if (obj.containsKey("healthCheckInterval")) {
+            this.healthCheckInterval = obj.getInt("healthCheckInterval");
+            if (this.healthCheckInterval < 0)
+                throw new InvalidObjectException("Expected a Config object -- healthCheckInterval must not be negative.");
+        }
+
+        if (obj.containsKey("responseEncoding")) {
+            this.responseEncoding = obj.getString("responseEncoding");
+            if (!this.responseEncoding.equals("none") && !GetResponse.isSupported(this.responseEncoding))
+                throw new InvalidObjectException("Expected a Config object -- responseEncoding must be \"none\" or \"deflate\".");
+        }
+
+        if (obj.containsKey("codec")) {
+            this.codec = obj.getString("codec");
+            if (!this.codec.equals("json") && !this.codec.equals("binary"))
+                throw new InvalidObjectException("Expected a Config object -- codec must be \"json\" or \"binary\".");
+        }
+
+        if (obj.containsKey("board")) {
+            this.board = obj.getString("board");
+            if (!GetRequest.isBoardName(this.board))
+                throw new InvalidObjectException("Expected a Config object -- board must be 1 to " + GetRequest.MAX_BOARD_LENGTH + " letters, digits, '-' or '_'.");
+        }
+
+        if (obj.containsKey("putBatchWindowMs")) {
+            this.putBatchWindowMs = obj.getInt("putBatchWindowMs");
+            if (this.putBatchWindowMs < 0)
+                throw new InvalidObjectException("Expected a Config object -- putBatchWindowMs must not be negative.");
+        }
+
+        if (obj.containsKey("putRetries")) {
+            this.putRetries = obj.getInt("putRetries");
+            if (this.putRetries < 0)
+                throw new InvalidObjectException("Expected a Config object -- putRetries must not be negative.");
+        }
         
     }
 
@@ -108,6 +165,15 @@ public class ClientConfig implements JSONSerializable {
         obj.put("serverPubKey", this.serverPubKey);
         obj.put("routersPath", this.routersPath);
         obj.put("verbose", verbose);
+        obj.put("daemonPort", daemonPort);
+        obj.put("circuitPoolSize", circuitPoolSize);
+        obj.put("healthCheckInterval", healthCheckInterval);
+        obj.put("responseEncoding", responseEncoding);
+        obj.put("codec", codec);
+        if (board != null)
+            obj.put("board", board);
+        obj.put("putBatchWindowMs", putBatchWindowMs);
+        obj.put("putRetries", putRetries);
         return obj; // We are never reading this file to JSON.
     }
 
@@ -142,5 +208,46 @@ public class ClientConfig implements JSONSerializable {
     public boolean isVerbose() {
         return verbose;
     }
-    
-}
\ No newline at end of file
+
+    public int getDaemonPort() {
+        return daemonPort;
+    }
+
+    public int getCircuitPoolSize() {
+        return circuitPoolSize;
+    }
+
+    public int getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    /**
+     * @return encoding board reads ask the server for, null for plain JSON.
+     */
+    public String getResponseEncoding() {
+        return responseEncoding.equals("none") ? null : responseEncoding;
+    }
+
+    /**
+     * @return true to send gets and puts, and have them answered, as binary frames.
+     * Binary board reads are not deflated, whatever the responseEncoding.
+     */
+    public boolean isBinaryCodec() {
+        return codec.equals("binary");
+    }
+
+    /**
+     * @return board of the server to read and post to, null for its default board.
+     */
+    public String getBoard() {
+        return board;
+    }
+
+    public int getPutBatchWindowMs() {
+        return putBatchWindowMs;
+    }
+
+    public int getPutRetries() {
+        return putRetries;
+    }
+}
@@ -14,6 +14,7 @@ import merrimackutil.util.Tuple;
 public class MackYackClient
 {
     public static boolean doHelp = false;                       // True if help option present.
+    private static boolean doDaemon = false;                    // True if the proxy should run as a daemon.
     private static ClientConfig conf = null;                    // The configuration information.
     private static String configFile = "./configs/client-config.json";    // Default configuration file.
     private static RoutersConfig routersConfig;
@@ -27,9 +28,11 @@ public class MackYackClient
     public static void usage() {
         System.out.println("usage:");
         System.out.println("  mackyack_client --config <config>");
+        System.out.println("  mackyack_client --daemon --config <config>");
         System.out.println("  mackyack_client --help");
         System.out.println("options:");
         System.out.println("  -c, --config\t\tConfig file to use.");
+        System.out.println("  -d, --daemon\t\tRun a local onion proxy shared by many applications.");
         System.out.println("  -h, --help\t\tDisplay the help.");
         System.exit(1);
     }
@@ -44,15 +47,16 @@ public class MackYackClient
         boolean doHelp = false;
         boolean doConfig = false;
 
-        LongOption[] opts = new LongOption[2];
+        LongOption[] opts = new LongOption[3];
         opts[0] = new LongOption("help", false, 'h');
         opts[1] = new LongOption("config", true, 'c');
+        opts[2] = new LongOption("daemon", false, 'd');
         
         Tuple<Character, String> currOpt;
 
         parser = new OptionParser(args);
         parser.setLongOpts(opts);
-        parser.setOptString("hc:");
+        parser.setOptString("hc:d");
 
 
         while (parser.getOptIdx() != args.length)
@@ -68,6 +72,9 @@ public class MackYackClient
                     doConfig = true;
                     configFile = currOpt.getSecond();
                 break;
+                case 'd':
+                    doDaemon = true;
+                break;
                 case '?':
                     System.out.println("Unknown option: " + currOpt.getSecond());
                     usage();
@@ -125,13 +132,18 @@ public class MackYackClient
         // Append bouncy castle Provider
         Security.addProvider(new BouncyCastleProvider());
 
-        if (args.length > 2)
+        if (args.length > 3)
             usage();
 
         processArgs(args); 
 
         routersConfig = new RoutersConfig(conf.getRoutersPath());
 
+        if (doDaemon) {
+            new ProxyDaemon(routersConfig, conf).run();
+            return;
+        }
+
         proxy = new OnionProxy(routersConfig, conf);
 
         // TODO: Client implementation
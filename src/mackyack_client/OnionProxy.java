@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.InvalidObjectException;
 import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -22,9 +23,21 @@ import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.Set;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -35,26 +48,62 @@ import javax.crypto.spec.SecretKeySpec;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.PutRequest;
+import mackyack_messages.PutResponse;
+import mackyack_messages.SubscribeRequest;
+import mackyack_messages.SubscribeResponse;
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.JsonIO;
 import merrimackutil.json.types.JSONObject;
 import merrimackutil.util.Pair;
+import onionrouting.onionrouter_cells.BeginCell;
+import onionrouting.onionrouter_cells.ConnectedCell;
 import onionrouting.onionrouter_cells.CreateCell;
 import onionrouting.onionrouter_cells.CreatedCell;
 import onionrouting.onionrouter_cells.DataCell;
 import onionrouting.onionrouter_cells.DestroyCell;
+import onionrouting.onionrouter_cells.PingCell;
+import onionrouting.onionrouter_cells.PongCell;
+import onionrouting.onionrouter_cells.TruncateCell;
+import onionrouting.onionrouter_cells.TruncatedCell;
 import onionrouting.onionrouter_cells.RelayCell;
 import onionrouting.onionrouter_cells.RelaySecret;
+import onionrouting.onionrouter_cells.StreamDataCell;
 
 public class OnionProxy {
 
     private final Random rand = new Random();
 
     private final static int ROUTER_COUNT = 3;
+    public final static long DEFAULT_TIMEOUT_MS = 10000; // Default deadline for a request sent through the circuit.
+    public final static long CONNECT_TIMEOUT_MS = 3000;  // Deadline for reaching a router, handshaking with it or probing it.
     private RoutersConfig routersConfig;
     private ClientConfig conf;
 
-    private List<Router> circuit = new ArrayList<>();
+    private volatile List<Router> circuit = new ArrayList<>();
+    private volatile boolean healthy = false; // False while the circuit is being (re)built.
+    private int port; // Port the circuit returns cells on.
+    private ServerSocket listener; // Socket the circuit returns cells on, kept open for the life of the proxy.
+    private Thread poller;         // Thread accepting on the listener, null if polled on the caller's thread.
+
+    private PendingResponses pending;   // Requests sent outside of a stream.
+    private BoardCache board;                                  // Board of the server requests outside of a stream go to.
+    private PutBatcher batcher;                                // Coalesces puts, null to send each put on its own.
+    private ConcurrentHashMap<String, OnionStream> streams = new ConcurrentHashMap<>(); // streamID -> open stream.
+    private ConcurrentHashMap<String, CompletableFuture<OnionStream>> opening = new ConcurrentHashMap<>(); // streamID -> stream waiting on CONNECTED.
+    private ConcurrentHashMap<String, CompletableFuture<Void>> created = new ConcurrentHashMap<>(); // circID -> handshake waiting on CREATED.
+    private ConcurrentHashMap<String, CompletableFuture<Void>> probes = new ConcurrentHashMap<>(); // circID -> probe waiting on PONG.
+    private ConcurrentHashMap<String, CompletableFuture<Void>> truncating = new ConcurrentHashMap<>(); // circID -> repair waiting on TRUNCATED.
+
+    private CircuitMetrics metrics = new CircuitMetrics();
+    private AtomicBoolean checking = new AtomicBoolean(); // True while a health check or rebuild is running.
+    private ScheduledExecutorService healthChecker = Executors.newSingleThreadScheduledExecutor(n -> {
+        Thread thread = new Thread(n);
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private KeyPairGenerator generator;
     private KeyAgreement ecdhKex;
@@ -68,8 +117,22 @@ public class OnionProxy {
      * @throws Exception 
      */
     public OnionProxy(RoutersConfig routersConfig, ClientConfig conf) throws Exception {
+        this(routersConfig, conf, conf.getPort());
+    }
+
+    /**
+     * Constructor to initialize the Onion Routing System with the circuit returning cells on {@code port}
+     * instead of the configured port, so several circuits can run in one process.
+     * @throws Exception 
+     */
+    public OnionProxy(RoutersConfig routersConfig, ClientConfig conf, int port) throws Exception {
         this.routersConfig = routersConfig;
         this.conf = conf;
+        this.pending = new PendingResponses(conf.isBinaryCodec());
+        this.port = port;
+        this.board = new BoardCache(conf.getResponseEncoding(), conf.getBoard());
+        if(conf.getPutBatchWindowMs() > 0)
+            this.batcher = new PutBatcher(this, conf.getPutBatchWindowMs(), conf.getBoard());
 
         // Initialize the BCProvider
         Security.addProvider(new BouncyCastleProvider());
@@ -78,17 +141,45 @@ public class OnionProxy {
         this.generator = KeyPairGenerator.getInstance("EC"); // Generator for elliptic curves (this is our group)    
         this.generator.initialize(256);
 
+        // Open the listener and poll it before the handshake so no returning cell is refused.
+        this.listener = new ServerSocket(port);
+        pollProxy(true);
+
+        try {
+            buildCircuit(new HashSet<>());
+        } catch (Exception e) {
+            // Hops that already handshook forget the circuit, and the poll thread ends with the listener.
+            try {
+                destroy();
+            } catch (IOException f) {
+                e.addSuppressed(f);
+            }
+            throw e;
+        }
+        healthy = true;
+
+        // Probe the circuit periodically, a failed hop causes a rebuild.
+        if(conf.getHealthCheckInterval() > 0) {
+            healthChecker.scheduleWithFixedDelay(this::checkAndRepair, conf.getHealthCheckInterval(), conf.getHealthCheckInterval(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Picks routers, then handshakes with each of them.
+     * @param exclude addr:port of routers that should not be picked if there are enough others.
+     * @throws Exception if a router could not be reached or did not complete the handshake.
+     */
+    private void buildCircuit(Set<String> exclude) throws Exception {
+        circuit = new ArrayList<>();
+
         // build the circuit
-        constructCircuit();
+        constructCircuit(exclude);
 
         // Construct create cells for each OR
-        List<CreateCell> createCells = constructCreateCells();
+        List<CreateCell> createCells = constructCreateCells(0);
 
         // Construct a list of messages (Relays) to initiate the circuit keys
-        sendCreateCells(createCells);
-
-        // Poll proxy async
-        pollProxy(true);
+        sendCreateCells(createCells, 0);
     }
 
     /**
@@ -104,7 +195,8 @@ public class OnionProxy {
         // We can only send to the entrance node in a OR scheme.
         // So that's what we'll do
         Router en_Router = getEntryRouter();
-        Socket sock = new Socket(en_Router.getAddr(), en_Router.getPort());
+        Socket sock = new Socket();
+        sock.connect(new InetSocketAddress(en_Router.getAddr(), en_Router.getPort()), (int) CONNECT_TIMEOUT_MS);
         
         BufferedReader reader = new BufferedReader(new InputStreamReader(sock.getInputStream()));
         BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream()));
@@ -115,19 +207,509 @@ public class OnionProxy {
         sock.close();
     }
 
+    /**
+     * Asynchronously requests the current board from the server. Only messages newer
+     * than the cached board are sent back, they are merged into the cache.
+     * @return future completed with the whole cached board, or exceptionally on timeout.
+     */
+    public CompletableFuture<GetResponse> get() {
+        return get(DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Asynchronously requests the current board from the server.
+     * @param timeout how long to wait for the response before failing the future.
+     * @param unit unit of {@code timeout}.
+     * @return future completed with the whole cached board, or exceptionally on timeout.
+     */
+    public CompletableFuture<GetResponse> get(long timeout, TimeUnit unit) {
+        return request(board.request(), "getresponse", timeout, unit).thenApply(obj -> {
+            try {
+                return board.merge(new GetResponse(obj));
+            } catch (InvalidObjectException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously reads a page or time range of the board from the server.
+     * The response is not merged into the cached board; its cursor starts the next page.
+     * @param request the part of the board to read.
+     * @param timeout how long to wait for the response before failing the future.
+     * @param unit unit of {@code timeout}.
+     * @return future completed with the server's GetResponse, or exceptionally on timeout.
+     */
+    public CompletableFuture<GetResponse> get(GetRequest request, long timeout, TimeUnit unit) {
+        return request(request, "getresponse", timeout, unit).thenApply(obj -> {
+            try {
+                return new GetResponse(obj);
+            } catch (InvalidObjectException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Waits for new messages on the server instead of polling with GETs. The server holds
+     * the request until messages newer than the cached board are posted, they are merged into the cache.
+     * @return future completed with the whole cached board, or exceptionally on timeout.
+     */
+    public CompletableFuture<GetResponse> subscribe() {
+        return subscribe(SubscribeRequest.DEFAULT_WAIT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for new messages on the server instead of polling with GETs.
+     * @param wait how long the server may hold the request, at most SubscribeRequest.MAX_WAIT_MS.
+     * @param unit unit of {@code wait}.
+     * @return future completed with the whole cached board, unchanged if the wait ran out,
+     * or exceptionally if no response arrives in time.
+     */
+    public CompletableFuture<GetResponse> subscribe(long wait, TimeUnit unit) {
+        SubscribeRequest req = new SubscribeRequest(board.getCursor(), (int) unit.toMillis(wait), conf.getBoard());
+        return request(req, "subscriberesponse", unit.toMillis(wait) + DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS).thenApply(obj -> {
+            try {
+                return board.merge(new SubscribeResponse(obj));
+            } catch (InvalidObjectException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously posts a message to the board.
+     * @param data message to post.
+     * @return future completed with the server's PutResponse, or exceptionally on timeout.
+     */
+    public CompletableFuture<PutResponse> put(String data) {
+        return put(data, DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Asynchronously posts a message to the board. Puts made within putBatchWindowMs
+     * of each other are sent together in one PutBatchRequest.
+     * A put that fails is sent again with the same idempotency key, up to putRetries times,
+     * so the server adds it once however many of the attempts reach it.
+     * @param data message to post.
+     * @param timeout how long to wait for the response to each attempt before failing it.
+     * @param unit unit of {@code timeout}.
+     * @return future completed with the server's PutResponse, or exceptionally once every attempt failed.
+     */
+    public CompletableFuture<PutResponse> put(String data, long timeout, TimeUnit unit) {
+        if(batcher != null)
+            return batcher.put(data, timeout, unit);
+
+        PutRequest req = new PutRequest(data, UUID.randomUUID().toString(), conf.getBoard());
+        return retry(() -> request(req, "putresponse", timeout, unit)).thenApply(obj -> {
+            try {
+                return new PutResponse(obj);
+            } catch (InvalidObjectException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Sends an application message through the circuit and returns a future for its response.
+     * The request is sent with an id the server echoes back, which the response is matched by.
+     * Cancelling the returned future, or letting it time out, stops it from waiting on a response.
+     * @param message application message to send to the server.
+     * @param responseType messagetype of the expected response.
+     * @param timeout how long to wait for the response before failing the future.
+     * @param unit unit of {@code timeout}.
+     * @return future completed with the response JSON.
+     */
+    public CompletableFuture<JSONObject> request(JSONSerializable message, String responseType, long timeout, TimeUnit unit) {
+        JSONObject obj = (JSONObject) message.toJSONType();
+        CompletableFuture<JSONObject> future = pending.expect(obj, responseType);
+
+        try {
+            if(!healthy)
+                throw new IOException("Circuit is being rebuilt.");
+
+            send(constructRelay(new DataCell(conf.getServerAddr(), conf.getServerPort(), pending.encode(obj))).serialize());
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            checkHealthAsync();
+            return future;
+        }
+
+        return watch(future.orTimeout(timeout, unit));
+    }
+
+    /**
+     * Sends a request again each time it fails, up to putRetries times. A retry waits
+     * for a health check of the circuit, so it goes out over the repaired circuit.
+     * Only for requests the server applies once however often they arrive. A request the
+     * server answered with an error is not sent again.
+     * @param send sends the request and returns its response.
+     * @return future completed with the first response, or exceptionally once every attempt failed.
+     */
+    <T> CompletableFuture<T> retry(Supplier<CompletableFuture<T>> send) {
+        CompletableFuture<T> ret = new CompletableFuture<>();
+        attempt(send, conf.getPutRetries(), ret);
+        return ret;
+    }
+
+    private <T> void attempt(Supplier<CompletableFuture<T>> send, int retries, CompletableFuture<T> ret) {
+        send.get().whenComplete((res, ex) -> {
+            if(ex == null) {
+                ret.complete(res);
+                return;
+            }
+
+            try {
+                if(retries <= 0)
+                    throw new IllegalStateException("Out of retries.");
+                // The server answered, the circuit is fine and sending again gets the same answer.
+                if((ex instanceof CompletionException ? ex.getCause() : ex) instanceof ServerErrorException)
+                    throw new IllegalStateException("Refused by the server.");
+
+                // The health checker runs one task at a time, the retry follows the repair.
+                healthChecker.execute(() -> {
+                    checkAndRepair();
+                    attempt(send, retries - 1, ret);
+                });
+            } catch (RuntimeException e) {
+                // Out of retries, or the proxy was destroyed.
+                ret.completeExceptionally(ex);
+            }
+        });
+    }
+
+    /**
+     * Counts a request that misses its deadline and checks the circuit, since a
+     * missing response is usually the first sign of a failed hop.
+     * @param future request with a deadline.
+     * @return {@code future}
+     */
+    <T> CompletableFuture<T> watch(CompletableFuture<T> future) {
+        future.whenComplete((res, ex) -> {
+            if(ex instanceof TimeoutException) {
+                metrics.recordTimeout();
+                checkHealthAsync();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Sends a Ping cell to one hop of the circuit.
+     * @param hop index of the router in the circuit, 0 being the entrance OR.
+     * @return future completed when the hop answers, or exceptionally if it does not answer in time.
+     */
+    public CompletableFuture<Void> probe(int hop) {
+        Router router = circuit.get(hop);
+        CompletableFuture<Void> future = probes.computeIfAbsent(router.getCircuitId(), n -> new CompletableFuture<>());
+        future.whenComplete((res, ex) -> probes.remove(router.getCircuitId(), future));
+
+        try {
+            send(wrapForHop(new PingCell(router.getCircuitId(), router.getB64_IV()), hop).serialize());
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        return future.orTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Probes every hop of the circuit at once.
+     * @return index of the first hop that did not answer, or -1 if the circuit is healthy.
+     */
+    public int checkHealth() {
+        List<CompletableFuture<Void>> pings = new ArrayList<>();
+        for(int i = 0; i < circuit.size(); i++)
+            pings.add(probe(i));
+
+        // Hops past a failed hop cannot answer either, so the first failure is the broken one.
+        for(int i = 0; i < pings.size(); i++) {
+            try {
+                pings.get(i).get();
+            } catch (Exception e) {
+                metrics.recordProbe(true);
+                return i;
+            }
+        }
+
+        metrics.recordProbe(false);
+        return -1;
+    }
+
+    /**
+     * Checks the circuit and rebuilds it if a hop failed. Does nothing if a check is already running.
+     */
+    public void checkAndRepair() {
+        if(listener.isClosed() || !checking.compareAndSet(false, true))
+            return;
+
+        try {
+            // A previous rebuild failed, try again.
+            if(!healthy) {
+                rebuild(-1);
+                return;
+            }
+
+            int failed = checkHealth();
+            if(failed >= 0) {
+                if(conf.isVerbose()) {
+                    System.out.println("Hop " + failed + " " + circuit.get(failed) + " failed, rebuilding circuit.");
+                }
+                rebuild(failed);
+            }
+        } catch (Exception e) {
+            System.err.println("Could not rebuild circuit: " + e);
+        } finally {
+            checking.set(false);
+        }
+    }
+
+    /**
+     * Runs {@link #checkAndRepair()} on the health checker thread.
+     */
+    void checkHealthAsync() {
+        if(!healthChecker.isShutdown())
+            healthChecker.execute(this::checkAndRepair);
+    }
+
+    /**
+     * Replaces the failed part of the circuit, avoiding the router that failed.
+     * If the entrance OR is still up the circuit is truncated after the last healthy hop
+     * and extended again, otherwise a whole new circuit is built.
+     * Requests waiting on the old circuit fail, open streams are opened again on the new one.
+     * @param failedHop index of the hop that failed, or -1 if unknown.
+     * @throws Exception if the new circuit could not be built.
+     */
+    public void rebuild(int failedHop) throws Exception {
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<OnionStream>> begun = new ArrayList<>();
+        boolean repaired;
+        try {
+            repaired = replaceHops(failedHop, begun);
+
+            // Waited on without the lock, a slow exit OR holds up no other rebuild or destroy.
+            try {
+                CompletableFuture.allOf(begun.toArray(new CompletableFuture<?>[0])).get(DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new IOException("The exit OR did not answer the BEGIN cells of " + begun.size() + " streams.");
+            }
+        } catch (Exception e) {
+            metrics.recordFailedRebuild();
+            throw e;
+        }
+
+        healthy = true;
+        metrics.recordRebuild(System.currentTimeMillis() - start, repaired);
+
+        if(conf.isVerbose()) {
+            System.out.println((repaired ? "Repaired" : "Rebuilt") + " circuit: " + circuit + " (" + metrics + ")");
+        }
+    }
+
+    /**
+     * The part of {@link #rebuild(int)} that changes the circuit.
+     * @param failedHop index of the hop that failed, or -1 if unknown.
+     * @param begun collects the BEGIN of every open stream sent over the new circuit.
+     * @return true if the circuit was extended from its healthy hops, false if a new one was built.
+     * @throws Exception if the new circuit could not be built.
+     */
+    private synchronized boolean replaceHops(int failedHop, List<CompletableFuture<OnionStream>> begun) throws Exception {
+        healthy = false;
+
+        Set<String> exclude = new HashSet<>();
+        if(failedHop >= 0 && failedHop < circuit.size()) {
+            Router failed = circuit.get(failedHop);
+            exclude.add(failed.getAddr() + ":" + failed.getPort());
+        }
+
+        IOException reason = new IOException("Circuit was rebuilt.");
+        pending.failAll(reason);
+        streams.values().forEach(n -> n.failPending(reason));
+
+        boolean repaired = false;
+        if(failedHop > 0 && failedHop < circuit.size()) {
+            try {
+                extend(failedHop, exclude);
+                repaired = true;
+            } catch (Exception e) {
+                if(conf.isVerbose()) {
+                    System.out.println("Could not repair circuit, building a new one: " + e);
+                }
+            }
+        }
+
+        if(!repaired) {
+            // Tear down what is left of the old circuit, the entrance OR may be the one that failed.
+            try {
+                if(!circuit.isEmpty())
+                    send(new DestroyCell(getEntryRouter().getCircuitId()).serialize());
+            } catch (IOException e) { }
+
+            buildCircuit(exclude);
+        }
+
+        // Streams only live at the exit OR, so they are opened again on the new circuit.
+        for(OnionStream stream : streams.values())
+            begun.add(begin(stream));
+        return repaired;
+    }
+
+    /**
+     * Truncates the circuit after the last healthy hop and extends it with fresh routers,
+     * keeping the keys already negotiated with the healthy hops.
+     * Hops after the failed hop can only be reached through it, so they are replaced too.
+     * @param failedHop index of the hop that failed, at least 1.
+     * @param exclude addr:port of routers that should not be picked if there are enough others.
+     * @throws Exception if the last healthy hop did not truncate or a new hop did not handshake.
+     */
+    private void extend(int failedHop, Set<String> exclude) throws Exception {
+        Router last = circuit.get(failedHop - 1);
+
+        CompletableFuture<Void> truncate = new CompletableFuture<>();
+        truncating.put(last.getCircuitId(), truncate);
+        try {
+            send(wrapForHop(new TruncateCell(last.getCircuitId(), last.getB64_IV()), failedHop - 1).serialize());
+            truncate.get(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("Router " + last + " did not answer its TRUNCATE cell.");
+        } finally {
+            truncating.remove(last.getCircuitId());
+        }
+
+        circuit = new ArrayList<>(circuit.subList(0, failedHop));
+        constructCircuit(exclude);
+        sendCreateCells(constructCreateCells(failedHop), failedHop);
+    }
+
+    /**
+     * Hands an application level message to the request it answers,
+     * or to the ApplicationService if it carries no request id.
+     * @param obj application message received from the circuit.
+     * @throws InvalidObjectException
+     */
+    private void handleApplication(JSONObject obj) throws InvalidObjectException {
+        if(!pending.complete(obj))
+            ApplicationService.handle(obj);
+    }
+
+    /**
+     * Opens a new stream to the configured server over this circuit.
+     * @return future completed with the stream once the exit OR has opened it.
+     */
+    public CompletableFuture<OnionStream> openStream() {
+        return openStream(conf.getServerAddr(), conf.getServerPort());
+    }
+
+    /**
+     * Opens a new stream over this circuit. Many streams share the circuit; only the
+     * exit OR keeps state for them.
+     * @param serverAddr address of the server the stream talks to.
+     * @param serverPort port of the server the stream talks to.
+     * @return future completed with the stream once the exit OR has opened it.
+     */
+    public CompletableFuture<OnionStream> openStream(String serverAddr, int serverPort) {
+        String streamID = UUID.randomUUID().toString();
+        OnionStream stream = new OnionStream(this, streamID, serverAddr, serverPort, conf);
+
+        // The stream is registered before BEGIN goes out so CONNECTED can find it.
+        streams.put(streamID, stream);
+        CompletableFuture<OnionStream> future = begin(stream);
+        future.whenComplete((n, ex) -> {
+            if(ex != null)
+                streams.remove(streamID);
+        });
+
+        return watch(future);
+    }
+
+    /**
+     * Sends a Begin cell for a stream to the exit OR.
+     * @param stream stream to open at the exit OR.
+     * @return future completed once the exit OR answers with CONNECTED.
+     */
+    private CompletableFuture<OnionStream> begin(OnionStream stream) {
+        String streamID = stream.getStreamID();
+        CompletableFuture<OnionStream> future = new CompletableFuture<>();
+        opening.put(streamID, future);
+        future.whenComplete((n, ex) -> opening.remove(streamID, future));
+
+        try {
+            send(constructRelay(new BeginCell(streamID, stream.getServerAddr(), stream.getServerPort())).serialize());
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        return future.orTimeout(DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forgets a stream, called when the stream is closed.
+     * @param streamID id of the stream.
+     */
+    void removeStream(String streamID) {
+        streams.remove(streamID);
+    }
+
+    /**
+     * Handles a CONNECTED cell by finishing the matching openStream call.
+     * @param cell cell from the exit OR.
+     */
+    private void handleConnected(ConnectedCell cell) {
+        CompletableFuture<OnionStream> future = opening.get(cell.getStreamID());
+        OnionStream stream = streams.get(cell.getStreamID());
+
+        if(future != null && stream != null)
+            future.complete(stream);
+    }
+
+    /**
+     * Hands a response returned on a stream to that stream.
+     * @param cell cell from the exit OR.
+     * @throws InvalidObjectException
+     */
+    private void handleStreamData(StreamDataCell cell) throws InvalidObjectException {
+        OnionStream stream = streams.get(cell.getStreamID());
+
+        if(stream != null)
+            stream.handle(cell.getChild());
+        else
+            handleApplication(cell.getChild());
+    }
+
     /**
      * Removes circuit from the Onion Router network
      * @throws IOException 
      * @throws UnknownHostException 
      */
     public void destroy() throws UnknownHostException, IOException {
-        // Construct a new DestroyCell from associating ORentry's circuitID
-        String entryRouterCircId = getEntryRouter().getCircuitId();
-        DestroyCell destroyCell = new DestroyCell(entryRouterCircId);
-        send(destroyCell.serialize());
+        healthy = false;
+        healthChecker.shutdownNow();
+        if(batcher != null)
+            batcher.close();
+        streams.values().forEach(OnionStream::stopBatching);
 
-        // Empty the circuit
-        this.circuit.clear();
+        try {
+            // Construct a new DestroyCell from associating ORentry's circuitID
+            if(!circuit.isEmpty()) {
+                String entryRouterCircId = getEntryRouter().getCircuitId();
+                DestroyCell destroyCell = new DestroyCell(entryRouterCircId);
+                send(destroyCell.serialize());
+            }
+        } finally {
+            // Empty the circuit, closing the listener ends the poll thread even if the entrance OR is gone.
+            this.circuit.clear();
+            this.listener.close();
+            // A thread blocked in accept can still take a connection until it returns, wait for it.
+            if(poller != null && poller != Thread.currentThread()) {
+                try {
+                    poller.join(CONNECT_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
     }
 
     /**
@@ -136,12 +718,12 @@ public class OnionProxy {
     */
     public void pollProxy(boolean async) {
         if(async) {
-            Thread thread = new Thread(() -> {
-                while(true) {
+            poller = new Thread(() -> {
+                while(!listener.isClosed()) {
                     poll();
                 }
             });
-            thread.start();
+            poller.start();
         } else {
             poll();
         }
@@ -149,21 +731,24 @@ public class OnionProxy {
 
     private void poll() {
             try {
-                ServerSocket server = new ServerSocket(conf.getPort());
-                Socket sock = server.accept();
+                Socket sock = listener.accept();
+                // A router that stalls mid-cell must not hold up every other cell.
+                sock.setSoTimeout((int) CONNECT_TIMEOUT_MS);
 
                 BufferedReader reader = new BufferedReader(new InputStreamReader(sock.getInputStream()));
                 BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream()));
 
                 // Determine if the packet is handled at the Proxy Layer or at the ApplicationService Layer
-                JSONObject obj = JsonIO.readObject(reader.readLine());
-                handJSONObject(obj);
+                String line = reader.readLine();
+                if(line != null)
+                    handJSONObject(JsonIO.readObject(line));
                 // Protocol is to close the socket after a message has been handled.
                 sock.close();
-                server.close();
                 return;
             } catch (IOException e) {
-                e.printStackTrace();
+                // Closing the listener on destroy unblocks accept, that is not an error.
+                if(!listener.isClosed())
+                    e.printStackTrace();
             }
     }
 
@@ -181,13 +766,14 @@ public class OnionProxy {
                         handleRelay(new RelayCell(obj));
                     }; return;
 
-                    case "DATA": {
-                        ApplicationService.handle(obj);
+                    case "DATA":
+                    case "BINARY_FRAME": {
+                        handleApplication(obj);
                     }; return;
                 }
                 // ?
             } else {
-                ApplicationService.handle(obj);
+                handleApplication(obj);
             }
         } catch(Exception e) {
             e.printStackTrace();
@@ -231,13 +817,34 @@ public class OnionProxy {
                         message = new RelayCell(obj);
                     }; break;
 
-                    case "DATA": {
-                        ApplicationService.handle(obj);
+                    case "DATA":
+                    case "BINARY_FRAME": {
+                        handleApplication(obj);
+                    }; return;
+
+                    case "CONNECTED": {
+                        handleConnected(new ConnectedCell(obj));
+                    }; return;
+
+                    case "STREAM_DATA": {
+                        handleStreamData(new StreamDataCell(obj));
+                    }; return;
+
+                    case "PONG": {
+                        CompletableFuture<Void> probe = probes.get(new PongCell(obj).getCircID());
+                        if(probe != null)
+                            probe.complete(null);
+                    }; return;
+
+                    case "TRUNCATED": {
+                        CompletableFuture<Void> truncate = truncating.get(new TruncatedCell(obj).getCircID());
+                        if(truncate != null)
+                            truncate.complete(null);
                     }; return;
                 }
                 // ?
             } else {
-                ApplicationService.handle(obj);
+                handleApplication(obj);
                 return;
             }
         }
@@ -253,6 +860,8 @@ public class OnionProxy {
     private void handleCreated(CreatedCell createdCell) throws InvalidKeyException, NoSuchAlgorithmException, InvalidKeySpecException {
         // First, find the associating router with the createdCell ID
         Router router = findRouterWithCircId(createdCell.getCircID());
+        if(router == null)
+            return;
         
         // 1. Generate the first half of the DH KEX.
         PublicKey gYPubKey = OnionProxyUtil.getPublicKey("EC", createdCell.getgY());
@@ -279,6 +888,11 @@ public class OnionProxy {
         // Update the router with the correct information
         router.setSymmetricKey(secretKeySpec);
         router.setB64_IV(Base64.getEncoder().encodeToString(rawIV));
+
+        // Let the handshake waiting on this router continue.
+        CompletableFuture<Void> handshake = created.get(createdCell.getCircID());
+        if(handshake != null)
+            handshake.complete(null);
     }
 
     /**
@@ -300,13 +914,44 @@ public class OnionProxy {
         // 1. Take the message and wrap it in a datacell
         DataCell cell = new DataCell(conf.getServerAddr(), conf.getServerPort(), (JSONObject) message.toJSONType());
 
+        return constructRelay(cell);
+    }
+
+    /**
+     * Wraps a cell destined for the exit OR in Relays from the exit back to the entrance OR.
+     * @param cell cell the exit OR should act on (DATA, BEGIN, STREAM_DATA, END).
+     * @return the onion to send to the entrance OR.
+     * @throws NoSuchPaddingException 
+     * @throws NoSuchAlgorithmException 
+     * @throws InvalidAlgorithmParameterException 
+     * @throws BadPaddingException 
+     * @throws IllegalBlockSizeException 
+     * @throws InvalidKeyException 
+     */
+    public JSONSerializable constructRelay(JSONSerializable cell) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
+        return wrapForHop(cell, circuit.size() - 1);
+    }
+
+    /**
+     * Wraps a cell in Relays so that it is delivered to the router at {@code hop}.
+     * @param cell cell for the router at {@code hop}.
+     * @param hop index of the router in the circuit, 0 being the entrance OR.
+     * @return the onion to send to the entrance OR.
+     * @throws NoSuchPaddingException 
+     * @throws NoSuchAlgorithmException 
+     * @throws InvalidAlgorithmParameterException 
+     * @throws BadPaddingException 
+     * @throws IllegalBlockSizeException 
+     * @throws InvalidKeyException 
+     */
+    private JSONSerializable wrapForHop(JSONSerializable cell, int hop) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
         // Message to be returned
         JSONSerializable ret = cell;
         // Last Router in the message
-        Router lastRouter = circuit.get(circuit.size()-1);
+        Router lastRouter = circuit.get(hop);
 
-        // Wrap the DataCell in Relays from circuit[circuit.len - 1] -> circuit[0]
-        for(int i = circuit.size() - 2 ; i >= 0; i--) {
+        // Wrap the cell in Relays from circuit[hop] -> circuit[0]
+        for(int i = hop - 1 ; i >= 0; i--) {
             // Get the current router for the current relay
             Router router = circuit.get(i); 
 
@@ -330,42 +975,29 @@ public class OnionProxy {
     /**
      * Send each of the Create Cells out to the associating OR while polling for a response from an OR 
      * @param createCells
+     * @param from index of the router the first create cell is for.
      */
-    private void sendCreateCells(List<CreateCell> createCells) throws UnknownHostException, IOException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException, InterruptedException {
+    private void sendCreateCells(List<CreateCell> createCells, int from) throws UnknownHostException, IOException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException, InterruptedException {
 
         // Loop through every element in the circuit
-        for(int i = 0; i < circuit.size(); i++) {
-
-            // Get the create cell destined for this router (NOT ENCRYPTED)
-            JSONSerializable message = createCells.get(i);
-            Router lastRouter = circuit.get(i);
-
-            // If there needs to be a relay
-            if( i > 0 ) {
-                // Loop through all of the Routers from 0 -> (i-2), and append them to the RelayCell
-                // This should only be ran if there are 2+ Relays to be made
-                for(int j = i - 1; j >= 0; j--) {
-                    // Get the current router for the current relay
-                    Router router = circuit.get(j); 
+        for(int i = from; i < circuit.size(); i++) {
 
-                    // Create the RelaySecret
-                    RelaySecret secret = new RelaySecret(lastRouter.getAddr(), lastRouter.getPort(), (JSONObject) message.toJSONType());
+            // Get the create cell destined for this router, wrapped in Relays for the routers before it
+            JSONSerializable message = wrapForHop(createCells.get(i - from), i);
 
-                    // Encrypt the relay secret with this routers symmetric key
-                    String ciphertext = OnionProxyUtil.encryptSymmetric(secret.serialize(), router.getSymmetricKey(), Base64.getDecoder().decode(router.getB64_IV()));
+            CompletableFuture<Void> handshake = new CompletableFuture<>();
+            created.put(circuit.get(i).getCircuitId(), handshake);
 
-                    // Create a new RelayCell wrapping 
-                    // - DEBUG - RelayCell newRelayCell = new RelayCell(router.getCircuitId(), router.getB64_IV(), (JSONObject) secret.toJSONType());
-                    RelayCell newRelayCell = new RelayCell(router.getCircuitId(), router.getB64_IV(), ciphertext);
+            send(message.serialize());
 
-                    // Update the message and lastRouter
-                    message = newRelayCell;
-                    lastRouter = router;
-                }
+            // The poll thread completes the handshake when the CREATED cell comes back.
+            try {
+                handshake.get(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException | InterruptedException e) {
+                throw new IOException("Router " + circuit.get(i) + " did not answer its CREATE cell.");
+            } finally {
+                created.remove(circuit.get(i).getCircuitId());
             }
-
-            send(message.serialize());
-            pollProxy(false);
         }
 
 
@@ -373,12 +1005,13 @@ public class OnionProxy {
 
     /**
      * Constructs a list of CreateCells
+     * @param from index of the first router that needs a create cell, routers before it keep their keys.
      * @return
      */
-    private List<CreateCell> constructCreateCells() throws InvalidKeyException, NoSuchAlgorithmException, InvalidKeySpecException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+    private List<CreateCell> constructCreateCells(int from) throws InvalidKeyException, NoSuchAlgorithmException, InvalidKeySpecException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
         List<CreateCell> ret = new ArrayList<>();
 
-        for(Router n : circuit) {
+        for(Router n : circuit.subList(from, circuit.size())) {
             // 1. Generate the first half of the DH KEX.
             
             // Generate the OR's contribution of the symmetric key.
@@ -405,7 +1038,7 @@ public class OnionProxy {
             n.setCircuitId(circID);
 
             // 2. Send a CreateCell 
-            CreateCell cell = new CreateCell(symmetricKey_CipherText.getSecond(), circID, B64_encrypted_sym_key, conf.getAddr(), conf.getPort());
+            CreateCell cell = new CreateCell(symmetricKey_CipherText.getSecond(), circID, B64_encrypted_sym_key, conf.getAddr(), port);
             ret.add(cell);
         }
 
@@ -413,23 +1046,60 @@ public class OnionProxy {
     } 
 
     /**
-     * Constructs the circuit from the routers config.
+     * Fills the circuit up to {@code ROUTER_COUNT} routers from the routers config.
+     * Routers already in the circuit are kept and not picked again.
+     * @param exclude addr:port of routers that should not be picked if there are enough others.
      * @throws Exception 
      */
-    private void constructCircuit() throws Exception {
+    private void constructCircuit(Set<String> exclude) throws Exception {
 
         if(routersConfig.getRouters() == null || routersConfig.getRouters().size() < ROUTER_COUNT)
             throw new Exception("Invalid count of unique routers in routers.json");
 
+        Set<String> inCircuit = new HashSet<>();
+        for(Router n : circuit)
+            inCircuit.add(n.getAddr() + ":" + n.getPort());
+
         // Create a copy of getRouters
         List<Router> copy = new ArrayList<Router>();
-        copy.addAll(routersConfig.getRouters());
+        List<Router> excluded = new ArrayList<Router>();
+        for(Router n : routersConfig.getRouters()) {
+            String addrPort = n.getAddr() + ":" + n.getPort();
+            if(inCircuit.contains(addrPort))
+                continue;
+
+            if(exclude.contains(addrPort))
+                excluded.add(n);
+            else
+                copy.add(n);
+        }
+
         //Shuffle
         Collections.shuffle(copy);
-        // Select the top {ROUTER_COUNT} Routers as OR.
-        
-        for(int i = 0; i < ROUTER_COUNT; i++)
-            circuit.add(copy.get(i));
+        // Not enough routers left, fall back to the excluded ones.
+        Collections.shuffle(excluded);
+        copy.addAll(excluded);
+
+        // Select the top Routers as OR until there are {ROUTER_COUNT}.
+        // Routers hold per-circuit keys, so every circuit gets its own Router objects.
+        for(int i = 0; circuit.size() < ROUTER_COUNT; i++) {
+            Router n = copy.get(i);
+            circuit.add(new Router(n.getAddr(), n.getPort(), n.getPublicKey()));
+        }
+    }
+
+    /**
+     * @return true unless the circuit is being rebuilt or has been destroyed.
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return health and rebuild counters for this circuit.
+     */
+    public CircuitMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -0,0 +1,262 @@
+package mackyack_client;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.PutRequest;
+import mackyack_messages.PutResponse;
+import mackyack_messages.SubscribeRequest;
+import mackyack_messages.SubscribeResponse;
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import onionrouting.onionrouter_cells.EndCell;
+import onionrouting.onionrouter_cells.StreamDataCell;
+
+/**
+ * A logical stream to one server, multiplexed with other streams over the
+ * circuit of an OnionProxy. Only the exit OR knows which server a stream talks to.
+ * Streams are opened with {@link OnionProxy#openStream(String, int)}.
+ */
+public class OnionStream {
+
+    private OnionProxy proxy;
+    private String streamID;
+    private String serverAddr;
+    private int serverPort;
+
+    private PendingResponses pending;
+    private BoardCache board;       // Board of the stream's server.
+    private String boardName;       // Board requests go to, null for the server's default board.
+    private long putBatchWindowMs;  // Window puts are batched in, 0 to send each put on its own.
+    private PutBatcher batcher;     // Made by the first put, so streams that only read start no timer thread.
+
+    /**
+     * @param proxy circuit the stream is multiplexed over.
+     * @param streamID id the exit OR knows the stream by.
+     * @param serverAddr address of the stream's server.
+     * @param serverPort port of the stream's server.
+     * @param conf the client's configuration: response encoding, codec, board and put batching.
+     */
+    OnionStream(OnionProxy proxy, String streamID, String serverAddr, int serverPort, ClientConfig conf) {
+        this.proxy = proxy;
+        this.streamID = streamID;
+        this.serverAddr = serverAddr;
+        this.serverPort = serverPort;
+        this.boardName = conf.getBoard();
+        this.putBatchWindowMs = conf.getPutBatchWindowMs();
+        this.board = new BoardCache(conf.getResponseEncoding(), boardName);
+        this.pending = new PendingResponses(conf.isBinaryCodec());
+    }
+
+    /**
+     * Asynchronously requests the current board from the stream's server. Only messages
+     * newer than the cached board are sent back, they are merged into the cache.
+     * @return future completed with the whole cached board, or exceptionally on timeout.
+     */
+    public CompletableFuture<GetResponse> get() {
+        return get(OnionProxy.DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Asynchronously requests the current board from the stream's server.
+     * @param timeout how long to wait for the response before failing the future.
+     * @param unit unit of {@code timeout}.
+     * @return future completed with the whole cached board, or exceptionally on timeout.
+     */
+    public CompletableFuture<GetResponse> get(long timeout, TimeUnit unit) {
+        return request(board.request(), "getresponse", timeout, unit).thenApply(obj -> {
+            try {
+                return board.merge(new GetResponse(obj));
+            } catch (InvalidObjectException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously reads a page or time range of the board from the stream's server.
+     * The response is not merged into the cached board; its cursor starts the next page.
+     * @param request the part of the board to read.
+     * @param timeout how long to wait for the response before failing the future.
+     * @param unit unit of {@code timeout}.
+     * @return future completed with the server's GetResponse, or exceptionally on timeout.
+     */
+    public CompletableFuture<GetResponse> get(GetRequest request, long timeout, TimeUnit unit) {
+        return request(request, "getresponse", timeout, unit).thenApply(obj -> {
+            try {
+                return new GetResponse(obj);
+            } catch (InvalidObjectException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Waits for new messages on the stream's server instead of polling with GETs. The server holds
+     * the request until messages newer than the cached board are posted, they are merged into the cache.
+     * @return future completed with the whole cached board, or exceptionally on timeout.
+     */
+    public CompletableFuture<GetResponse> subscribe() {
+        return subscribe(SubscribeRequest.DEFAULT_WAIT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for new messages on the stream's server instead of polling with GETs.
+     * @param wait how long the server may hold the request, at most SubscribeRequest.MAX_WAIT_MS.
+     * @param unit unit of {@code wait}.
+     * @return future completed with the whole cached board, unchanged if the wait ran out,
+     * or exceptionally if no response arrives in time.
+     */
+    public CompletableFuture<GetResponse> subscribe(long wait, TimeUnit unit) {
+        SubscribeRequest req = new SubscribeRequest(board.getCursor(), (int) unit.toMillis(wait), boardName);
+        return request(req, "subscriberesponse", unit.toMillis(wait) + OnionProxy.DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS).thenApply(obj -> {
+            try {
+                return board.merge(new SubscribeResponse(obj));
+            } catch (InvalidObjectException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously posts a message to the stream's server.
+     * @param data message to post.
+     * @return future completed with the server's PutResponse, or exceptionally on timeout.
+     */
+    public CompletableFuture<PutResponse> put(String data) {
+        return put(data, OnionProxy.DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Asynchronously posts a message to the stream's server, batched and retried with the
+     * same idempotency key like the puts of {@link OnionProxy#put(String, long, TimeUnit)}.
+     * @param data message to post.
+     * @param timeout how long to wait for the response to each attempt before failing it.
+     * @param unit unit of {@code timeout}.
+     * @return future completed with the server's PutResponse, or exceptionally once every attempt failed.
+     */
+    public CompletableFuture<PutResponse> put(String data, long timeout, TimeUnit unit) {
+        if(putBatchWindowMs > 0)
+            return batcher().put(data, timeout, unit);
+
+        PutRequest req = new PutRequest(data, UUID.randomUUID().toString(), boardName);
+        return proxy.retry(() -> request(req, "putresponse", timeout, unit)).thenApply(obj -> {
+            try {
+                return new PutResponse(obj);
+            } catch (InvalidObjectException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private synchronized PutBatcher batcher() {
+        if(batcher == null)
+            batcher = new PutBatcher(proxy, this::request, putBatchWindowMs, boardName);
+        return batcher;
+    }
+
+    /**
+     * Sends an application message on this stream and returns a future for its response.
+     * The response is matched to it by the id the server echoes back.
+     * @param message application message to send to the server.
+     * @param responseType messagetype of the expected response.
+     * @param timeout how long to wait for the response before failing the future.
+     * @param unit unit of {@code timeout}.
+     * @return future completed with the response JSON.
+     */
+    public CompletableFuture<JSONObject> request(JSONSerializable message, String responseType, long timeout, TimeUnit unit) {
+        return request((JSONObject) message.toJSONType(), responseType, timeout, unit);
+    }
+
+    /**
+     * Sends an already marshalled application message on this stream and returns a future for its response.
+     * @param message application message to send to the server.
+     * @param responseType messagetype of the expected response.
+     * @param timeout how long to wait for the response before failing the future.
+     * @param unit unit of {@code timeout}.
+     * @return future completed with the response JSON.
+     */
+    public CompletableFuture<JSONObject> request(JSONObject message, String responseType, long timeout, TimeUnit unit) {
+        // Copied, so the caller's message can be sent again or on other streams.
+        JSONObject obj = new JSONObject(message);
+        CompletableFuture<JSONObject> future = pending.expect(obj, responseType);
+
+        try {
+            if(!proxy.isHealthy())
+                throw new IOException("Circuit is being rebuilt.");
+
+            StreamDataCell cell = new StreamDataCell(streamID, pending.encode(obj));
+            proxy.send(proxy.constructRelay(cell).serialize());
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            proxy.checkHealthAsync();
+            return future;
+        }
+
+        return proxy.watch(future.orTimeout(timeout, unit));
+    }
+
+    /**
+     * Closes the stream at the exit OR. The circuit is left up for other streams.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        proxy.removeStream(streamID);
+        stopBatching();
+        pending.failAll(new IOException("Stream closed."));
+
+        try {
+            proxy.send(proxy.constructRelay(new EndCell(streamID)).serialize());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Stops sending batches of puts, puts still queued fail.
+     */
+    synchronized void stopBatching() {
+        if(batcher != null)
+            batcher.close();
+    }
+
+    /**
+     * Fails every request waiting on this stream, the stream itself stays open.
+     * @param ex cause of the failure.
+     */
+    void failPending(Throwable ex) {
+        pending.failAll(ex);
+    }
+
+    /**
+     * Handles a response the exit OR returned on this stream.
+     * @param obj application response.
+     */
+    void handle(JSONObject obj) throws InvalidObjectException {
+        if(!pending.complete(obj))
+            ApplicationService.handle(obj);
+    }
+
+    /**
+     * Accessors
+     */
+
+    public String getStreamID() {
+        return streamID;
+    }
+
+    public String getServerAddr() {
+        return serverAddr;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+}
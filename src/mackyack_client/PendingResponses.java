@@ -0,0 +1,123 @@
+package mackyack_client;
+
+import java.io.InvalidObjectException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mackyack_messages.ErrorResponse;
+import mackyack_messages.MessageCodec;
+import merrimackutil.json.types.JSONObject;
+import onionrouting.onionrouter_cells.BinaryFrame;
+
+/**
+ * Requests waiting on a response from the server.
+ * Every request is sent with an "id" the server echoes back in its response, so a
+ * response only ever completes the request it answers, however late or out of order
+ * it arrives.
+ *
+ * With the binary codec, requests that have a binary form are sent as BinaryFrames and
+ * their responses decoded before they are matched, see MessageCodec.
+ */
+class PendingResponses {
+
+    /**
+     * A request waiting on its response.
+     */
+    private static class Waiting {
+        final String responseType;
+        final CompletableFuture<JSONObject> future = new CompletableFuture<>();
+
+        Waiting(String responseType) {
+            this.responseType = responseType;
+        }
+    }
+
+    private AtomicLong nextId = new AtomicLong();
+    private ConcurrentHashMap<String, Waiting> pending = new ConcurrentHashMap<>(); // Request id -> request waiting on its response.
+    private boolean binary; // Requests with a binary form are sent as BinaryFrames.
+
+    /**
+     * @param binary true to send requests that have a binary form as BinaryFrames.
+     */
+    PendingResponses(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Registers a new request waiting on a response of {@code responseType} and gives it an id.
+     * Once the returned future finishes in any way (response, timeout, cancel) it stops waiting.
+     * @param request application message about to be sent, its "id" is set.
+     * @param responseType messagetype of the expected response.
+     * @return future completed with the response.
+     */
+    public CompletableFuture<JSONObject> expect(JSONObject request, String responseType) {
+        String id = Long.toString(nextId.incrementAndGet());
+        Waiting waiting = new Waiting(responseType);
+        pending.put(id, waiting);
+        request.put("id", id);
+
+        waiting.future.whenComplete((obj, ex) -> pending.remove(id, waiting));
+        return waiting.future;
+    }
+
+    /**
+     * @param request a request given its id by expect.
+     * @return the request as it is sent to the server, in a BinaryFrame if it goes out in binary.
+     * @throws InvalidObjectException if the request is not valid.
+     */
+    public JSONObject encode(JSONObject request) throws InvalidObjectException {
+        if(!binary || !MessageCodec.isEncodable(request))
+            return request;
+
+        // The id goes outside the frame, where the exit OR can echo it without decoding the frame.
+        JSONObject message = new JSONObject(request);
+        Object id = message.remove("id");
+        return (JSONObject) new BinaryFrame(MessageCodec.encode(message), id == null ? null : id.toString()).toJSONType();
+    }
+
+    /**
+     * Completes the request this response answers. The "id" is taken off the response.
+     * A response to a request that stopped waiting is dropped, an ErrorResponse fails the request.
+     * A response in a BinaryFrame is decoded first.
+     * @param obj application response.
+     * @return false if the response carries no id.
+     * @throws InvalidObjectException if the response is a malformed ErrorResponse or BinaryFrame.
+     */
+    public boolean complete(JSONObject obj) throws InvalidObjectException {
+        if(BinaryFrame.isFrame(obj)) {
+            BinaryFrame frame = new BinaryFrame(obj);
+            obj = MessageCodec.decode(frame.getFrame());
+            if(frame.getId() != null)
+                obj.put("id", frame.getId());
+        }
+
+        Object id = obj.remove("id");
+        if(id == null)
+            return false;
+
+        Waiting waiting = pending.remove(id.toString());
+        if(waiting == null)
+            return true;
+
+        if(waiting.responseType.equals(obj.getString("messagetype")))
+            waiting.future.complete(obj);
+        else if("errorresponse".equals(obj.getString("messagetype")))
+            waiting.future.completeExceptionally(new ServerErrorException(new ErrorResponse(obj)));
+        else
+            waiting.future.completeExceptionally(new InvalidObjectException("Expected a " + waiting.responseType + " but got a " + obj.getString("messagetype") + "."));
+        return true;
+    }
+
+    /**
+     * Fails every waiting request.
+     * @param ex reason the requests failed.
+     */
+    public void failAll(Throwable ex) {
+        for(String id : pending.keySet()) {
+            Waiting waiting = pending.remove(id);
+            if(waiting != null)
+                waiting.future.completeExceptionally(ex);
+        }
+    }
+}
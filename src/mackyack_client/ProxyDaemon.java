@@ -0,0 +1,108 @@
+package mackyack_client;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import mackyack_messages.SubscribeRequest;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Long running onion proxy shared by many local applications.
+ * Applications connect on the loopback {@code daemonPort} and exchange one JSON
+ * message per line, exactly as they would with the server. Each connection gets
+ * its own stream on a circuit from the pool, so the cost of building circuits is
+ * spread across every application on the machine.
+ * 
+ * A request with messagetype {@code xrequest} is answered with the next
+ * {@code xresponse} on the connection's stream.
+ */
+public class ProxyDaemon {
+
+    private ClientConfig conf;
+    private CircuitPool pool;
+    private ExecutorService applications = Executors.newCachedThreadPool();
+
+    /**
+     * Builds the circuit pool.
+     * @param routersConfig routers circuits are chosen from.
+     * @param conf client configuration.
+     * @throws Exception if a circuit could not be built.
+     */
+    public ProxyDaemon(RoutersConfig routersConfig, ClientConfig conf) throws Exception {
+        this.conf = conf;
+        this.pool = new CircuitPool(routersConfig, conf);
+    }
+
+    /**
+     * Accepts local applications until the process is stopped.
+     * @throws IOException if the daemon port could not be bound.
+     */
+    public void run() throws IOException {
+        ServerSocket server = new ServerSocket(conf.getDaemonPort(), 50, InetAddress.getLoopbackAddress());
+        Runtime.getRuntime().addShutdownHook(new Thread(pool::destroy));
+
+        System.out.println("Onion proxy daemon listening on " + server.getInetAddress().getHostAddress() + ":" + conf.getDaemonPort() + ".");
+
+        while(true) {
+            Socket sock = server.accept();
+            applications.execute(() -> serve(sock));
+        }
+    }
+
+    /**
+     * Relays an application's requests over a new stream until it disconnects.
+     * @param sock connection from the application.
+     */
+    private void serve(Socket sock) {
+        OnionStream stream = null;
+        try {
+            BufferedReader input = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            BufferedWriter output = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream()));
+
+            stream = pool.next().openStream().get(OnionProxy.DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+            String msg;
+            while((msg = input.readLine()) != null) {
+                JSONObject obj = JsonIO.readObject(msg);
+                // The stream matches responses by its own ids, the application gets its own back.
+                Object id = obj.remove("id");
+                String responseType = obj.getString("messagetype").replace("request", "response");
+
+                // A subscription may be held by the server for up to its wait.
+                long timeout = OnionProxy.DEFAULT_TIMEOUT_MS;
+                if(responseType.equals("subscriberesponse"))
+                    timeout += SubscribeRequest.MAX_WAIT_MS;
+
+                JSONObject res = stream.request(obj, responseType, timeout, TimeUnit.MILLISECONDS).get();
+                if(id != null)
+                    res.put("id", id);
+                output.write(res.toJSON());
+                output.newLine();
+                output.flush();
+            }
+        } catch (Exception e) {
+            // The application sees its connection close, there is nobody else to tell.
+            if(conf.isVerbose()) {
+                System.err.println("Application connection failed: " + e);
+            }
+        } finally {
+            try {
+                if(stream != null)
+                    stream.close();
+                sock.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package mackyack_client;
+
+import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import mackyack_messages.PutBatchRequest;
+import mackyack_messages.PutBatchResponse;
+import mackyack_messages.PutRequest;
+import mackyack_messages.PutResponse;
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Coalesces the puts made within a short window into one PutBatchRequest, so a burst of
+ * puts pays for one onion, one trip along the circuit and one server write.
+ * A put that is alone in its window is sent as a plain PutRequest.
+ * Each batch has its own idempotency key, so it is retried as a whole.
+ */
+class PutBatcher {
+
+    /**
+     * Sends a request and returns a future for its response, e.g. OnionProxy.request or OnionStream.request.
+     */
+    interface Requests {
+        CompletableFuture<JSONObject> request(JSONSerializable message, String responseType, long timeout, TimeUnit unit);
+    }
+
+    private OnionProxy proxy;
+    private Requests requests;
+    private long windowMs;
+    private String board;  // Board the puts go to, null for the server's default board.
+
+    /**
+     * Puts sent together.
+     */
+    private static class Batch {
+        final List<String> data = new ArrayList<>();                              // Messages, in put order.
+        final List<CompletableFuture<PutResponse>> waiting = new ArrayList<>();   // Their puts, in the same order.
+        long timeoutMs;                                                           // Longest deadline of those puts.
+    }
+
+    private Batch next = new Batch();    // Batch the next puts join.
+    private ScheduledFuture<?> scheduled; // Sends the next batch once its window ends.
+
+    private ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(n -> {
+        Thread thread = new Thread(n, "put-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param proxy circuit the batches are sent through.
+     * @param windowMs how long the first put of a batch waits for others.
+     * @param board board the puts go to, null for the server's default board.
+     */
+    PutBatcher(OnionProxy proxy, long windowMs, String board) {
+        this(proxy, proxy::request, windowMs, board);
+    }
+
+    /**
+     * @param proxy circuit the batches are sent through, which retries them.
+     * @param requests sends a batch, e.g. on a stream of the circuit.
+     * @param windowMs how long the first put of a batch waits for others.
+     * @param board board the puts go to, null for the server's default board.
+     */
+    PutBatcher(OnionProxy proxy, Requests requests, long windowMs, String board) {
+        this.proxy = proxy;
+        this.requests = requests;
+        this.windowMs = windowMs;
+        this.board = board;
+    }
+
+    /**
+     * Queues a message for the next batch.
+     * @param message message to post.
+     * @param timeout how long to wait for the response before failing the future.
+     * @param unit unit of {@code timeout}.
+     * @return future completed once the batch holding the message is on the board.
+     */
+    synchronized CompletableFuture<PutResponse> put(String message, long timeout, TimeUnit unit) {
+        CompletableFuture<PutResponse> future = new CompletableFuture<>();
+        next.data.add(message);
+        next.waiting.add(future);
+        next.timeoutMs = Math.max(next.timeoutMs, unit.toMillis(timeout));
+
+        if(next.data.size() == PutBatchRequest.MAX_MESSAGES) {
+            // Taken out here, so the puts after it start a new batch instead of growing this one past the limit.
+            scheduled.cancel(false);
+            Batch full = take();
+            timer.execute(() -> send(full));
+        } else if(next.data.size() == 1) {
+            scheduled = timer.schedule(() -> send(take()), windowMs, TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    /**
+     * @return the batch the puts so far joined, the next puts start a new one.
+     */
+    private synchronized Batch take() {
+        Batch batch = next;
+        next = new Batch();
+        return batch;
+    }
+
+    /**
+     * Sends a batch and completes its puts with the server's response.
+     */
+    private void send(Batch batch) {
+        List<String> data = batch.data;
+        if(data.isEmpty())
+            return;
+
+        String key = UUID.randomUUID().toString();
+        CompletableFuture<JSONObject> sent = data.size() == 1
+            ? proxy.retry(() -> requests.request(new PutRequest(data.get(0), key, board), "putresponse", batch.timeoutMs, TimeUnit.MILLISECONDS))
+            : proxy.retry(() -> requests.request(new PutBatchRequest(data, key, board), "putbatchresponse", batch.timeoutMs, TimeUnit.MILLISECONDS));
+
+        sent.whenComplete((obj, ex) -> {
+            Throwable failure = ex;
+            try {
+                if(ex == null && data.size() > 1 && new PutBatchResponse(obj).getCount() != data.size())
+                    failure = new InvalidObjectException("Server added a different number of messages than were put.");
+                else if(ex == null && data.size() == 1)
+                    new PutResponse(obj);
+            } catch (InvalidObjectException e) {
+                failure = e;
+            }
+
+            for(CompletableFuture<PutResponse> n : batch.waiting) {
+                if(failure != null)
+                    n.completeExceptionally(failure);
+                else
+                    n.complete(new PutResponse());
+            }
+        });
+    }
+
+    /**
+     * Stops sending batches, puts still queued fail.
+     */
+    void close() {
+        timer.shutdownNow();
+        for(CompletableFuture<PutResponse> n : take().waiting)
+            n.completeExceptionally(new IllegalStateException("Proxy is closed."));
+    }
+}
@@ -0,0 +1,31 @@
+package mackyack_client;
+
+import java.io.IOException;
+
+import mackyack_messages.ErrorResponse;
+
+/**
+ * A request the server answered with an ErrorResponse: it reached the server, which
+ * refused it or failed while performing it. Unlike a timeout, the outcome is known.
+ */
+public class ServerErrorException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean notStored;
+
+    /**
+     * @param response the server's answer.
+     */
+    public ServerErrorException(ErrorResponse response) {
+        super("Server error: " + response.getError());
+        this.notStored = response.isNotStored();
+    }
+
+    /**
+     * @return true if nothing of the request was stored, false if a put may have been.
+     */
+    public boolean isNotStored() {
+        return notStored;
+    }
+}
@@ -0,0 +1,101 @@
+package mackyack_messages;
+
+import java.io.InvalidObjectException;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Server -> Client
+ * Sent instead of the response to a request the Server could not perform: one it refused
+ * (unsupported, malformed, a put to a replica) or one that failed while it was performed.
+ * It tells the Client whether a put may still have been stored, so a refused put is told
+ * apart from one whose outcome is unknown.
+ */
+public class ErrorResponse implements JSONSerializable {
+
+    private String error;       // What went wrong, for people.
+    private boolean notStored;  // True if nothing of the request was stored, false if a put may have been.
+
+    /**
+     * @param error what went wrong. Quotes, backslashes and control characters are replaced,
+     * merrimackutil writes strings as they are.
+     * @param notStored true if nothing of the request was stored.
+     */
+    public ErrorResponse(String error, boolean notStored) {
+        this.error = error == null ? "" : error.replaceAll("[\"\\\\\\p{Cntrl}]", "'");
+        this.notStored = notStored;
+    }
+
+    /**
+     * Construct an ErrorResponse from the corresponding JSON object.
+     *
+     * @param obj a JSON object representing an ErrorResponse.
+     */
+    public ErrorResponse(JSONObject obj) throws InvalidObjectException {
+        deserialize(obj);
+    }
+
+    /**
+     * Coverts json data to an object of this type.
+     *
+     * @param obj a JSON type to deserialize.
+     * @throws InvalidObjectException the type does not match this object.
+     */
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        JSONObject message;
+        if (obj instanceof JSONObject) {
+            message = (JSONObject) obj;
+
+            if (!message.containsKey("error"))
+                throw new InvalidObjectException("Error response needs an error.");
+            else
+                error = message.getString("error");
+
+            notStored = message.containsKey("notstored") && message.getBoolean("notstored");
+
+            if (message.size() > 3)
+                throw new InvalidObjectException("Superflous fields");
+        }
+    }
+
+    /**
+     * Serializes the object into a JSON encoded string.
+     *
+     * @return a string representing the JSON form of the object.
+     */
+    @Override
+    public String serialize() {
+        return toJSONType().toJSON();
+    }
+
+    /**
+     * Converts the object to a JSON type.
+     *
+     * @return a JSON type of JSONObject
+     */
+    @Override
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+
+        obj.put("messagetype", "errorresponse");
+        obj.put("error", error);
+        obj.put("notstored", notStored);
+
+        return obj;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return true if nothing of the request was stored, so a put can be sent again as new.
+     * False if a put may have been stored.
+     */
+    public boolean isNotStored() {
+        return notStored;
+    }
+}
@@ -1,6 +1,8 @@
 package mackyack_messages;
 
 import java.io.InvalidObjectException;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Pattern;
 
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.types.JSONObject;
@@ -10,13 +12,87 @@ import merrimackutil.json.types.JSONType;
  * Client -> Server
  * Sent from the Client through the circuit to the Server asking to receive
  * information regarding the board at the current instant.
+ * With a cursor, only the messages posted after it are asked for. A page size and
+ * a time range narrow the read further. An encoding the client accepts lets the
+ * server compress the response. With the ETag of the last GetResponse, the server
+ * answers "not modified" if the board has not changed since. A board name picks one of
+ * the server's boards, the default board if there is none.
  */
 public class GetRequest implements JSONSerializable {
 
-    // Should the methods just be left unimplemented? -Brandon
+    public final static int MAX_BOARD_LENGTH = 32; // Longest board name.
+    private final static Pattern BOARD_NAME = Pattern.compile("[A-Za-z0-9_-]{1," + MAX_BOARD_LENGTH + "}");
+
+    private int since;    // Cursor of the last GetResponse the client has, 0 for the whole board.
+    private int limit;    // Most messages to return, 0 for no limit.
+    private String from;  // Earliest timestamp to return (inclusive), null for no bound.
+    private String until; // Timestamp to stop at (exclusive), null for no bound.
+    private String encoding; // Encoding the client accepts the messages in, e.g. GetResponse.DEFLATE, null for plain JSON only.
+    private String ifNoneMatch; // ETag of the last GetResponse the client has, null for none.
+    private String board; // Board to read, null for the server's default board.
 
     public GetRequest() {
+        this(0);
+    }
+
+    /**
+     * @param since cursor of a previous GetResponse, only newer messages are returned.
+     */
+    public GetRequest(int since) {
+        this(since, 0, null, null);
+    }
+
+    /**
+     * A page of the board. The cursor of the response starts the next page.
+     * @param since cursor to start at.
+     * @param limit most messages to return, 0 for no limit.
+     * @param from earliest timestamp to return (inclusive), null for no bound.
+     * @param until timestamp to stop at (exclusive), null for no bound.
+     */
+    public GetRequest(int since, int limit, String from, String until) {
+        this(since, limit, from, until, null);
+    }
+
+    /**
+     * @param since cursor to start at.
+     * @param limit most messages to return, 0 for no limit.
+     * @param from earliest timestamp to return (inclusive), null for no bound.
+     * @param until timestamp to stop at (exclusive), null for no bound.
+     * @param encoding encoding the response may use, e.g. GetResponse.DEFLATE, null for plain JSON only.
+     */
+    public GetRequest(int since, int limit, String from, String until, String encoding) {
+        this(since, limit, from, until, encoding, null);
+    }
+
+    /**
+     * @param since cursor to start at.
+     * @param limit most messages to return, 0 for no limit.
+     * @param from earliest timestamp to return (inclusive), null for no bound.
+     * @param until timestamp to stop at (exclusive), null for no bound.
+     * @param encoding encoding the response may use, e.g. GetResponse.DEFLATE, null for plain JSON only.
+     * @param ifNoneMatch ETag of the GetResponse {@code since} came from, null for none.
+     */
+    public GetRequest(int since, int limit, String from, String until, String encoding, String ifNoneMatch) {
+        this(since, limit, from, until, encoding, ifNoneMatch, null);
+    }
 
+    /**
+     * @param since cursor to start at.
+     * @param limit most messages to return, 0 for no limit.
+     * @param from earliest timestamp to return (inclusive), null for no bound.
+     * @param until timestamp to stop at (exclusive), null for no bound.
+     * @param encoding encoding the response may use, e.g. GetResponse.DEFLATE, null for plain JSON only.
+     * @param ifNoneMatch ETag of the GetResponse {@code since} came from, null for none.
+     * @param board board to read, null for the server's default board.
+     */
+    public GetRequest(int since, int limit, String from, String until, String encoding, String ifNoneMatch, String board) {
+        this.since = since;
+        this.limit = limit;
+        this.from = from;
+        this.until = until;
+        this.encoding = encoding;
+        this.ifNoneMatch = ifNoneMatch;
+        this.board = board;
     }
 
     /**
@@ -40,11 +116,70 @@ public class GetRequest implements JSONSerializable {
         if (obj instanceof JSONObject) {
             message = (JSONObject) obj;
 
-            if (message.size() > 1)
+            int fields = 1;
+            since = 0;
+            if (message.containsKey("since")) {
+                since = message.getInt("since");
+                if (since < 0)
+                    throw new InvalidObjectException("Cursor must not be negative.");
+                fields++;
+            }
+
+            limit = 0;
+            if (message.containsKey("limit")) {
+                limit = message.getInt("limit");
+                if (limit < 0)
+                    throw new InvalidObjectException("Limit must not be negative.");
+                fields++;
+            }
+
+            from = readTimestamp(message, "from");
+            if (from != null)
+                fields++;
+
+            until = readTimestamp(message, "until");
+            if (until != null)
+                fields++;
+
+            encoding = null;
+            if (message.containsKey("encoding")) {
+                encoding = message.getString("encoding");
+                fields++;
+            }
+
+            ifNoneMatch = null;
+            if (message.containsKey("ifnonematch")) {
+                ifNoneMatch = message.getString("ifnonematch");
+                fields++;
+            }
+
+            board = readBoard(message);
+            if (board != null)
+                fields++;
+
+            if (message.size() > fields)
                 throw new InvalidObjectException("Superflous fields");
         }
     }
 
+    /**
+     * Reads a bound of the time range, which must be in Message.TIMESTAMP_FORMAT.
+     * @return the timestamp, null if the request has no such bound.
+     * @throws InvalidObjectException if the timestamp cannot be parsed.
+     */
+    private static String readTimestamp(JSONObject message, String key) throws InvalidObjectException {
+        if (!message.containsKey(key))
+            return null;
+
+        String timestamp = message.getString(key);
+        try {
+            Message.TIMESTAMP_FORMAT.parse(timestamp);
+        } catch (DateTimeParseException e) {
+            throw new InvalidObjectException("Time range bound " + key + " must look like 2024/01/31 23:59:59.");
+        }
+        return timestamp;
+    }
+
     /**
      * Serializes the object into a JSON encoded string.
      * 
@@ -65,7 +200,79 @@ public class GetRequest implements JSONSerializable {
         JSONObject obj = new JSONObject();
 
         obj.put("messagetype", "getrequest");
+        if (since > 0)
+            obj.put("since", since);
+        if (limit > 0)
+            obj.put("limit", limit);
+        if (from != null)
+            obj.put("from", from);
+        if (until != null)
+            obj.put("until", until);
+        if (encoding != null)
+            obj.put("encoding", encoding);
+        if (ifNoneMatch != null)
+            obj.put("ifnonematch", ifNoneMatch);
+        if (board != null)
+            obj.put("board", board);
 
         return obj;
     }
+
+    /**
+     * Reads the board a request is addressed to.
+     * @param message a request.
+     * @return the board name, null for the server's default board.
+     * @throws InvalidObjectException if the name is not 1 to MAX_BOARD_LENGTH letters, digits, '-' or '_'.
+     */
+    static String readBoard(JSONObject message) throws InvalidObjectException {
+        if (!message.containsKey("board"))
+            return null;
+
+        String board = message.getString("board");
+        if (!isBoardName(board))
+            throw new InvalidObjectException("Board name must be 1 to " + MAX_BOARD_LENGTH + " letters, digits, '-' or '_'.");
+        return board;
+    }
+
+    /**
+     * @return true if a board may be called this, 1 to MAX_BOARD_LENGTH letters, digits, '-' or '_'.
+     */
+    public static boolean isBoardName(String name) {
+        return name != null && BOARD_NAME.matcher(name).matches();
+    }
+
+    /**
+     * @return true if this asks for a page or time range rather than everything after the cursor.
+     */
+    public boolean isRanged() {
+        return limit > 0 || from != null || until != null;
+    }
+
+    public int getSince() {
+        return since;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getUntil() {
+        return until;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public String getIfNoneMatch() {
+        return ifNoneMatch;
+    }
+
+    public String getBoard() {
+        return board;
+    }
 }
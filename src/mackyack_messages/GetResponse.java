@@ -1,10 +1,19 @@
 package mackyack_messages;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.JsonIO;
 import merrimackutil.json.types.JSONArray;
 import merrimackutil.json.types.JSONObject;
 import merrimackutil.json.types.JSONType;
@@ -12,14 +21,70 @@ import merrimackutil.json.types.JSONType;
 /**
  * Server -> Client
  * Sent from the Server through the circuit to the Client responding with all of
- * the Messages on the Board.
+ * the Messages on the Board, or only those posted after the cursor of the request.
+ * If the request accepts it, the messages may be sent deflated instead.
+ * A request whose ETag still matches the board is answered with no messages, as not modified.
  */
 public class GetResponse implements JSONSerializable {
 
+    public final static String DEFLATE = "deflate"; // Messages sent as a deflated, Base64 encoded JSON array.
+
+    private final static int PAYLOAD_CHUNK = 256;   // Base64 characters per payload string, merrimackutil parses long strings slowly.
+
     private List<Message> messages;
+    private int since;  // Cursor the messages follow, 0 if they are the whole board.
+    private int cursor; // Cursor after the messages, sent in the next GetRequest.
+    private String encoding; // How the messages are sent, null for a plain JSON array.
+    private String etag;     // Board epoch and version the response was read at, null from servers without ETags.
+    private boolean notModified; // True if the board still matches the request's ETag, no messages are sent.
 
     public GetResponse(List<Message> messages) {
+        this(messages, 0, messages.size());
+    }
+
+    /**
+     * @param messages messages posted after {@code since}.
+     * @param since cursor the messages follow, 0 for the whole board.
+     * @param cursor cursor after the messages.
+     */
+    public GetResponse(List<Message> messages, int since, int cursor) {
+        this(messages, since, cursor, null);
+    }
+
+    /**
+     * @param messages messages posted after {@code since}.
+     * @param since cursor the messages follow, 0 for the whole board.
+     * @param cursor cursor after the messages.
+     * @param encoding DEFLATE to send the messages deflated, null to send them as they are.
+     */
+    public GetResponse(List<Message> messages, int since, int cursor, String encoding) {
+        this(messages, since, cursor, encoding, null);
+    }
+
+    /**
+     * @param messages messages posted after {@code since}.
+     * @param since cursor the messages follow, 0 for the whole board.
+     * @param cursor cursor after the messages.
+     * @param encoding DEFLATE to send the messages deflated, null to send them as they are.
+     * @param etag ETag of the board the messages were read from, null for none.
+     */
+    public GetResponse(List<Message> messages, int since, int cursor, String encoding, String etag) {
         this.messages = messages;
+        this.since = since;
+        this.cursor = cursor;
+        this.encoding = encoding;
+        this.etag = etag;
+    }
+
+    /**
+     * @param cursor cursor of the board, the one the client already has.
+     * @param etag ETag the request sent, still the board's.
+     * @return a response telling the client its copy of the board is current.
+     */
+    public static GetResponse notModified(int cursor, String etag) {
+        GetResponse ret = new GetResponse(new ArrayList<>(), cursor, cursor, null, etag);
+        ret.notModified = true;
+        return ret;
     }
 
     /**
@@ -44,15 +109,32 @@ public class GetResponse implements JSONSerializable {
             message = (JSONObject) obj;
 
             messages = new ArrayList<>();
-            if(message.containsKey("messages")) {
-                JSONArray arr = (JSONArray) message.getArray("messages");
-                for(Object n : arr) {
-                    JSONObject o = (JSONObject) n;
-                    messages.add(new Message(o.getString("data"), o.getString("timestamp")));
-                }
+            encoding = null;
+            etag = message.containsKey("etag") ? message.getString("etag") : null;
+            notModified = message.containsKey("notmodified") && message.getBoolean("notmodified");
+            if(notModified) {
+                if(etag == null || !message.containsKey("cursor"))
+                    throw new InvalidObjectException("Not modified response must contain an etag and a cursor.");
+                since = cursor = message.getInt("cursor");
+                return;
+            }
+
+            if(message.containsKey("encoding")) {
+                encoding = message.getString("encoding");
+                if(!isSupported(encoding))
+                    throw new InvalidObjectException("Unsupported encoding " + encoding + ".");
+                if(!message.containsKey("payload"))
+                    throw new InvalidObjectException("Message must contain a payload field.");
+
+                addAll(JsonIO.readArray(inflate(payload(message.getArray("payload")))));
+            } else if(message.containsKey("messages")) {
+                addAll(message.getArray("messages"));
             } else 
                 throw new InvalidObjectException("Message must contain a messages field.");
-            
+
+            // Servers without cursors always send the whole board.
+            since = message.containsKey("since") ? message.getInt("since") : 0;
+            cursor = message.containsKey("cursor") ? message.getInt("cursor") : since + messages.size();
         }
     }
 
@@ -75,17 +157,153 @@ public class GetResponse implements JSONSerializable {
     public JSONType toJSONType() {
         JSONObject obj = new JSONObject();
 
+        obj.put("messagetype", "getresponse");
+        if (notModified) {
+            obj.put("notmodified", true);
+            obj.put("cursor", cursor);
+            obj.put("etag", etag);
+            return obj;
+        }
+
         JSONArray array = new JSONArray();
         for (int i = 0; i < messages.size(); i++)
             array.add(messages.get(i).toJSONType());
 
-        obj.put("messagetype", "getresponse");
-        obj.put("messages", array);
+        if (DEFLATE.equals(encoding)) {
+            obj.put("encoding", encoding);
+            obj.put("payload", payload(deflate(array.toJSON())));
+        } else
+            obj.put("messages", array);
+        if (since > 0)
+            obj.put("since", since);
+        obj.put("cursor", cursor);
+        if (etag != null)
+            obj.put("etag", etag);
 
         return obj;
     }
 
+    /**
+     * @return true if the encoding is one GetResponses can be sent in.
+     */
+    public static boolean isSupported(String encoding) {
+        return DEFLATE.equals(encoding);
+    }
+
+    /**
+     * Writes a payload as it is sent: a JSON array of Base64 strings of at most PAYLOAD_CHUNK
+     * characters each.
+     * @param out stream the JSON array is written to.
+     * @return stream taking the payload's bytes, closing it ends the array and leaves {@code out} open.
+     * @throws IOException
+     */
+    public static OutputStream payloadStream(OutputStream out) throws IOException {
+        out.write('[');
+        out.write('"');
+        OutputStream chunks = new OutputStream() {
+            private int written; // Characters in the current string.
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                if(written == PAYLOAD_CHUNK) {
+                    out.write('"');
+                    out.write(',');
+                    out.write('"');
+                    written = 0;
+                }
+                out.write(b);
+                written++;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(!closed) {
+                    closed = true;
+                    out.write('"');
+                    out.write(']');
+                }
+            }
+        };
+        return Base64.getEncoder().wrap(chunks);
+    }
+
+    /**
+     * @return the bytes as a payload array, see payloadStream.
+     */
+    private static JSONArray payload(byte[] bytes) {
+        String b64 = Base64.getEncoder().encodeToString(bytes);
+        JSONArray ret = new JSONArray();
+        for(int i = 0; i < b64.length() || i == 0; i += PAYLOAD_CHUNK)
+            ret.add(b64.substring(i, Math.min(i + PAYLOAD_CHUNK, b64.length())));
+        return ret;
+    }
+
+    /**
+     * @return the bytes of a payload array.
+     * @throws InvalidObjectException if it is not one.
+     */
+    private static byte[] payload(JSONArray arr) throws InvalidObjectException {
+        StringBuilder b64 = new StringBuilder();
+        for(Object n : arr) {
+            if(!(n instanceof String))
+                throw new InvalidObjectException("Payload must be an array of strings.");
+            b64.append((String) n);
+        }
+
+        try {
+            return Base64.getDecoder().decode(b64.toString());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidObjectException("Corrupt payload: " + e.getMessage());
+        }
+    }
+
+    private static byte[] deflate(String json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+            deflater.write(json.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Nothing to fail in memory.
+        }
+        return out.toByteArray();
+    }
+
+    private static String inflate(byte[] payload) throws InvalidObjectException {
+        try (InflaterInputStream inflater = new InflaterInputStream(new ByteArrayInputStream(payload))) {
+            return new String(inflater.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new InvalidObjectException("Corrupt payload: " + e.getMessage());
+        }
+    }
+
+    private void addAll(JSONArray arr) {
+        for(Object n : arr) {
+            JSONObject o = (JSONObject) n;
+            messages.add(new Message(o.getString("data"), o.getString("timestamp")));
+        }
+    }
+
     public List<Message> getMessages() {
         return messages;
     }
+
+    public int getSince() {
+        return since;
+    }
+
+    public int getCursor() {
+        return cursor;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    public boolean isNotModified() {
+        return notModified;
+    }
 }
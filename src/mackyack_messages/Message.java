@@ -1,6 +1,7 @@
 package mackyack_messages;
 
 import java.io.InvalidObjectException;
+import java.time.format.DateTimeFormatter;
 
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.types.JSONObject;
@@ -8,6 +9,9 @@ import merrimackutil.json.types.JSONType;
 
 public class Message implements JSONSerializable {
 
+    // Format of the timestamp the server gives a message, also used for time ranges in a GetRequest.
+    public static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("uuuu/MM/dd HH:mm:ss");
+
     private String data;
     private String timestamp;
 
@@ -0,0 +1,453 @@
+package mackyack_messages;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Compact binary form of GetRequest, GetResponse, PutRequest and PutResponse, sent instead
+ * of their JSON line when the client asks for it. A server answers a request in the form it
+ * came in if the response has a binary form, so the codec is picked per request. A JSON frame
+ * starts with '{', a binary frame with MAGIC.
+ *
+ * Frame: [MAGIC][varint length][type][id?][fields], length counting the bytes after it.
+ *  - Integers are unsigned varints, 7 bits a byte, low bits first. Signed ones are zigzag encoded.
+ *  - Strings are a varint length and UTF-8 bytes. An optional one is its length + 1, 0 for none.
+ *  - Timestamps are zigzag encoded epoch milliseconds, read as UTC so they come back as they were.
+ *  - id is the optional request id, echoed back like the "id" of a JSON frame.
+ *
+ * Fields by type:
+ *  - GET_REQUEST: [since][limit][flags: 1 from, 2 until][from head][until head][ifnonematch?][board?]
+ *  - GET_RESPONSE: [flags: 1 not modified][since][cursor][etag?] then, unless not modified,
+ *    [count] and count messages.
+ *  - PUT_REQUEST: [data][key?][board?]
+ *  - PUT_RESPONSE: nothing.
+ * A message is [head][data]. With the low bit of head clear, head >> 1 is the zigzag encoded
+ * difference in milliseconds from the previous message's timestamp (0 before the first one,
+ * and for the bounds of a GetRequest). With it set, head >> 1 is the length of a timestamp
+ * kept as text, which follows. Only timestamps in Message.TIMESTAMP_FORMAT become milliseconds.
+ *
+ * A GetResponse is never deflated in binary form, the encoding of a GetRequest is not sent.
+ */
+public class MessageCodec {
+
+    public final static int MAGIC = 0xB1;   // First byte of a binary frame, never the first byte of a JSON line.
+
+    public final static int GET_REQUEST = 1;
+    public final static int GET_RESPONSE = 2;
+    public final static int PUT_REQUEST = 3;
+    public final static int PUT_RESPONSE = 4;
+
+    private final static int FROM = 1;           // GET_REQUEST flags.
+    private final static int UNTIL = 2;
+    private final static int NOT_MODIFIED = 1;   // GET_RESPONSE flags.
+
+    private final static String[] TYPES = { null, "getrequest", "getresponse", "putrequest", "putresponse" };
+
+    /**
+     * @param message an application message.
+     * @return its type, 0 if it has no binary form.
+     */
+    public static int type(JSONSerializable message) {
+        if(message instanceof SubscribeResponse)
+            return 0; // A GetResponse under another messagetype.
+        if(message instanceof GetRequest)
+            return GET_REQUEST;
+        if(message instanceof GetResponse)
+            return GET_RESPONSE;
+        if(message instanceof PutRequest)
+            return PUT_REQUEST;
+        if(message instanceof PutResponse)
+            return PUT_RESPONSE;
+        return 0;
+    }
+
+    /**
+     * @param bytes a request or response as it came off a socket.
+     * @return true if it is a binary frame rather than a JSON line.
+     */
+    public static boolean isFrame(byte[] bytes) {
+        return bytes.length > 0 && (bytes[0] & 0xFF) == MAGIC;
+    }
+
+    /**
+     * @param message an application message in JSON form.
+     * @return true if it has a binary form.
+     */
+    public static boolean isEncodable(JSONObject message) {
+        return type(message.getString("messagetype")) > 0;
+    }
+
+    /**
+     * @param message an application message in JSON form, with its "id" if it has one.
+     * @return the message as a binary frame.
+     * @throws InvalidObjectException if it is not a valid message with a binary form.
+     */
+    public static byte[] encode(JSONObject message) throws InvalidObjectException {
+        JSONObject obj = parsed(message);
+        Object id = obj.remove("id");
+        int type = type(obj.getString("messagetype"));
+
+        JSONSerializable typed;
+        switch(type) {
+            case GET_REQUEST: typed = new GetRequest(obj); break;
+            case GET_RESPONSE: typed = new GetResponse(obj); break;
+            case PUT_REQUEST: typed = new PutRequest(obj); break;
+            case PUT_RESPONSE: typed = new PutResponse(obj); break;
+            default: throw new InvalidObjectException("No binary form for " + obj.getString("messagetype") + ".");
+        }
+
+        byte[] fields = fields(typed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(fields.length + 16);
+        out.writeBytes(head(type, id == null ? null : id.toString(), fields.length));
+        out.writeBytes(fields);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param message an application message with a binary form.
+     * @return the fields of its binary form, see head for the rest of the frame.
+     * @throws InvalidObjectException if it has no binary form.
+     */
+    public static byte[] fields(JSONSerializable message) throws InvalidObjectException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            switch(type(message)) {
+                case GET_REQUEST: {
+                    GetRequest req = (GetRequest) message;
+                    writeVarint(out, req.getSince());
+                    writeVarint(out, req.getLimit());
+                    writeVarint(out, (req.getFrom() != null ? FROM : 0) | (req.getUntil() != null ? UNTIL : 0));
+                    if(req.getFrom() != null)
+                        writeTimestamp(out, req.getFrom(), 0);
+                    if(req.getUntil() != null)
+                        writeTimestamp(out, req.getUntil(), 0);
+                    writeOptional(out, req.getIfNoneMatch());
+                    writeOptional(out, req.getBoard());
+                }; break;
+                case GET_RESPONSE: {
+                    GetResponse res = (GetResponse) message;
+                    writeVarint(out, res.isNotModified() ? NOT_MODIFIED : 0);
+                    writeVarint(out, res.getSince());
+                    writeVarint(out, res.getCursor());
+                    writeOptional(out, res.getETag());
+                    if(!res.isNotModified()) {
+                        writeVarint(out, res.getMessages().size());
+                        long previous = 0;
+                        for(Message n : res.getMessages()) {
+                            previous = writeTimestamp(out, n.getTimestamp(), previous);
+                            writeString(out, n.getData());
+                        }
+                    }
+                }; break;
+                case PUT_REQUEST: {
+                    PutRequest req = (PutRequest) message;
+                    writeString(out, req.getData());
+                    writeOptional(out, req.getKey());
+                    writeOptional(out, req.getBoard());
+                }; break;
+                case PUT_RESPONSE:
+                    break;
+                default:
+                    throw new InvalidObjectException("No binary form for " + message.getClass().getSimpleName() + ".");
+            }
+        } catch (InvalidObjectException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Nothing to fail in memory.
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param type type of the message.
+     * @param id request id, null for none.
+     * @param fieldsLength length of the message's fields.
+     * @return the start of the frame, the fields follow it.
+     */
+    public static byte[] head(int type, String id, long fieldsLength) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            body.write(type);
+            writeOptional(body, id);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Nothing to fail in memory.
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.size() + 11);
+        out.write(MAGIC);
+        try {
+            writeVarint(out, body.size() + fieldsLength);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        out.writeBytes(body.toByteArray());
+        return out.toByteArray();
+    }
+
+    /**
+     * @param frame a binary frame.
+     * @return the message in JSON form, with its "id" if it has one.
+     * @throws InvalidObjectException if the frame is not a valid message.
+     */
+    public static JSONObject decode(byte[] frame) throws InvalidObjectException {
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        try {
+            if((buf.get() & 0xFF) != MAGIC)
+                throw new InvalidObjectException("Not a binary frame.");
+            if(readVarint(buf) != buf.remaining())
+                throw new InvalidObjectException("Frame length does not match its bytes.");
+
+            int type = buf.get();
+            String id = readOptional(buf);
+            JSONObject ret;
+            switch(type) {
+                case GET_REQUEST: {
+                    int since = readInt(buf);
+                    int limit = readInt(buf);
+                    long flags = readVarint(buf);
+                    String from = (flags & FROM) != 0 ? readTimestamp(buf, new long[1]) : null;
+                    String until = (flags & UNTIL) != 0 ? readTimestamp(buf, new long[1]) : null;
+                    String ifNoneMatch = readOptional(buf);
+                    String board = readOptional(buf);
+                    ret = (JSONObject) new GetRequest(since, limit, from, until, null, ifNoneMatch, board).toJSONType();
+                }; break;
+                case GET_RESPONSE: {
+                    long flags = readVarint(buf);
+                    int since = readInt(buf);
+                    int cursor = readInt(buf);
+                    String etag = readOptional(buf);
+                    if((flags & NOT_MODIFIED) != 0)
+                        ret = (JSONObject) GetResponse.notModified(cursor, etag).toJSONType();
+                    else
+                        ret = (JSONObject) new GetResponse(readMessages(buf), since, cursor, null, etag).toJSONType();
+                }; break;
+                case PUT_REQUEST: {
+                    String data = readString(buf);
+                    String key = readOptional(buf);
+                    String board = readOptional(buf);
+                    ret = (JSONObject) new PutRequest(data, key, board).toJSONType();
+                }; break;
+                case PUT_RESPONSE:
+                    ret = (JSONObject) new PutResponse().toJSONType();
+                    break;
+                default:
+                    throw new InvalidObjectException("Unknown binary message type " + type + ".");
+            }
+
+            if(buf.hasRemaining())
+                throw new InvalidObjectException("Trailing bytes after a " + TYPES[type] + ".");
+            if(id != null)
+                ret.put("id", id);
+            return parsed(ret);
+        } catch (RuntimeException e) {
+            throw new InvalidObjectException("Truncated frame: " + e);
+        }
+    }
+
+    /**
+     * Reads one binary frame, the next byte of the stream being its MAGIC.
+     * @param in stream to read from.
+     * @param maxBytes longest frame accepted.
+     * @return the whole frame.
+     * @throws IOException if the stream ends first or the frame is too long.
+     */
+    public static byte[] readFrame(InputStream in, int maxBytes) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int b = in.read();
+        if(b != MAGIC)
+            throw new InvalidObjectException("Not a binary frame.");
+        head.write(b);
+
+        long length = 0;
+        for(int shift = 0; ; shift += 7) {
+            b = in.read();
+            if(b < 0)
+                throw new EOFException("Frame ends in its length.");
+            if(shift > 56)
+                throw new InvalidObjectException("Varint too long.");
+            head.write(b);
+            length |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                break;
+        }
+        if(length > maxBytes - head.size())
+            throw new InvalidObjectException("Frame longer than " + maxBytes + " bytes.");
+
+        byte[] ret = new byte[head.size() + (int) length];
+        System.arraycopy(head.toByteArray(), 0, ret, 0, head.size());
+        int read = head.size();
+        while(read < ret.length) {
+            int n = in.read(ret, read, ret.length - read);
+            if(n < 0)
+                throw new EOFException("Frame ends after " + read + " of " + ret.length + " bytes.");
+            read += n;
+        }
+        return ret;
+    }
+
+    /**
+     * merrimackutil reads every number as a Double and only gives those back as ints, so
+     * messages built in memory carry their numbers as a parsed one would.
+     * @return a copy of the message, its numbers as Doubles.
+     */
+    private static JSONObject parsed(JSONObject message) {
+        JSONObject ret = new JSONObject(message);
+        for(String key : message.keySet())
+            if(message.get(key) instanceof Number && !(message.get(key) instanceof Double))
+                ret.put(key, ((Number) message.get(key)).doubleValue());
+        return ret;
+    }
+
+    /**
+     * @return type of a messagetype, 0 if it has no binary form.
+     */
+    private static int type(String messagetype) {
+        for(int i = 1; i < TYPES.length; i++)
+            if(TYPES[i].equals(messagetype))
+                return i;
+        return 0;
+    }
+
+    private static List<Message> readMessages(ByteBuffer buf) throws InvalidObjectException {
+        int count = readInt(buf);
+        if(count > buf.remaining())
+            throw new InvalidObjectException("Bad message count " + count + ".");
+
+        List<Message> ret = new ArrayList<>(count);
+        long[] previous = new long[1];
+        for(int i = 0; i < count; i++) {
+            String timestamp = readTimestamp(buf, previous);
+            ret.add(new Message(readString(buf), timestamp));
+        }
+        return ret;
+    }
+
+    /**
+     * Writes a timestamp as a head, see the class comment.
+     * @param previous milliseconds the difference is taken from.
+     * @return milliseconds the next difference is taken from.
+     */
+    private static long writeTimestamp(OutputStream out, String timestamp, long previous) throws IOException {
+        Long millis = millis(timestamp);
+        if(millis == null) {
+            byte[] text = timestamp.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, ((long) text.length << 1) | 1);
+            out.write(text);
+            return previous;
+        }
+        writeVarint(out, zigzag(millis - previous) << 1);
+        return millis;
+    }
+
+    /**
+     * Reads a timestamp written by writeTimestamp.
+     * @param previous milliseconds the difference is taken from, updated for the next one.
+     */
+    private static String readTimestamp(ByteBuffer buf, long[] previous) throws InvalidObjectException {
+        long head = readVarint(buf);
+        if((head & 1) != 0)
+            return readText(buf, head >>> 1);
+        previous[0] += unzigzag(head >>> 1);
+        return timestamp(previous[0]);
+    }
+
+    /**
+     * @return epoch milliseconds of a timestamp in Message.TIMESTAMP_FORMAT, null if it
+     * is not in that format or would not be formatted back the same.
+     */
+    private static Long millis(String timestamp) {
+        try {
+            LocalDateTime time = LocalDateTime.parse(timestamp, Message.TIMESTAMP_FORMAT);
+            if(!Message.TIMESTAMP_FORMAT.format(time).equals(timestamp))
+                return null;
+            return time.toEpochSecond(ZoneOffset.UTC) * 1000;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static String timestamp(long millis) {
+        return Message.TIMESTAMP_FORMAT.format(LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), 0, ZoneOffset.UTC));
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeString(OutputStream out, String s) throws IOException {
+        byte[] text = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, text.length);
+        out.write(text);
+    }
+
+    private static void writeOptional(OutputStream out, String s) throws IOException {
+        if(s == null) {
+            out.write(0);
+            return;
+        }
+        byte[] text = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, text.length + 1L);
+        out.write(text);
+    }
+
+    private static String readString(ByteBuffer buf) throws InvalidObjectException {
+        return readText(buf, readVarint(buf));
+    }
+
+    private static String readOptional(ByteBuffer buf) throws InvalidObjectException {
+        long length = readVarint(buf);
+        return length == 0 ? null : readText(buf, length - 1);
+    }
+
+    private static String readText(ByteBuffer buf, long length) throws InvalidObjectException {
+        if(length < 0 || length > buf.remaining())
+            throw new InvalidObjectException("Bad length " + length + ".");
+        String ret = new String(buf.array(), buf.position(), (int) length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + (int) length);
+        return ret;
+    }
+
+    private static int readInt(ByteBuffer buf) throws InvalidObjectException {
+        long ret = readVarint(buf);
+        if(ret > Integer.MAX_VALUE)
+            throw new InvalidObjectException("Integer too large.");
+        return (int) ret;
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer buf) throws InvalidObjectException {
+        long ret = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            ret |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return ret;
+        }
+        throw new InvalidObjectException("Varint too long.");
+    }
+}
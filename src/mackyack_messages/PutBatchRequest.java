@@ -0,0 +1,151 @@
+package mackyack_messages;
+
+import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Client -> Server
+ * Sent from Client through the circuit to the Server containing several messages.
+ * They are appended to the board together: a GET sees all of them or none.
+ * Like a PutRequest, it may carry an idempotency key for the whole batch.
+ */
+public class PutBatchRequest implements JSONSerializable {
+
+    public final static int MAX_MESSAGES = 512; // Most messages the server takes in one batch.
+
+    private List<String> data;
+    private String key; // Idempotency key, null if retries may add the messages again.
+    private String board; // Board to post to, null for the server's default board.
+
+    /**
+     * Construct a Put Batch Request to send several messages at once
+     * @param data messages in the order they are put, at most MAX_MESSAGES.
+     */
+    public PutBatchRequest(List<String> data) {
+        this(data, null);
+    }
+
+    /**
+     * Construct a Put Batch Request that can be retried
+     * @param data messages in the order they are put, at most MAX_MESSAGES.
+     * @param key idempotency key, unique to this batch, at most PutRequest.MAX_KEY_LENGTH characters. null for none.
+     */
+    public PutBatchRequest(List<String> data, String key) {
+        this(data, key, null);
+    }
+
+    /**
+     * Construct a Put Batch Request for one of the server's boards
+     * @param data messages in the order they are put, at most MAX_MESSAGES.
+     * @param key idempotency key, unique to this batch, at most PutRequest.MAX_KEY_LENGTH characters. null for none.
+     * @param board board to post to, null for the server's default board.
+     */
+    public PutBatchRequest(List<String> data, String key, String board) {
+        this.data = new ArrayList<>(data);
+        this.key = key;
+        this.board = board;
+    }
+
+    /**
+     * Construct a Put Batch cell from the corresponding JSON object.
+     * 
+     * @param obj a JSON object representing a Put Batch cell.
+     */
+    public PutBatchRequest(JSONObject obj) throws InvalidObjectException {
+        deserialize(obj);
+    }
+
+    /**
+     * Coverts json data to an object of this type.
+     * 
+     * @param obj a JSON type to deserialize.
+     * @throws InvalidObjectException the type does not match this object.
+     */
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        JSONObject message;
+        if (obj instanceof JSONObject) {
+            message = (JSONObject) obj;
+
+            if (!message.containsKey("data"))
+                throw new InvalidObjectException("Put batch needs data.");
+
+            data = new ArrayList<>();
+            for (Object n : message.getArray("data")) {
+                if (!(n instanceof String))
+                    throw new InvalidObjectException("Put batch data is not a string.");
+                data.add((String) n);
+            }
+
+            if (data.isEmpty() || data.size() > MAX_MESSAGES)
+                throw new InvalidObjectException("Put batch needs 1 to " + MAX_MESSAGES + " messages.");
+
+            int fields = 2;
+            key = null;
+            if (message.containsKey("key")) {
+                key = message.getString("key");
+                if (key.length() > PutRequest.MAX_KEY_LENGTH)
+                    throw new InvalidObjectException("Put key is longer than " + PutRequest.MAX_KEY_LENGTH + " characters.");
+                fields++;
+            }
+
+            board = GetRequest.readBoard(message);
+            if (board != null)
+                fields++;
+
+            if (message.size() > fields)
+                throw new InvalidObjectException("Superflous fields");
+        }
+    }
+
+    /**
+     * Serializes the object into a JSON encoded string.
+     * 
+     * @return a string representing the JSON form of the object.
+     */
+    @Override
+    public String serialize() {
+        return toJSONType().toJSON();
+    }
+
+    /**
+     * Converts the object to a JSON type.
+     * 
+     * @return a JSON type of JSONObject
+     */
+    @Override
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+
+        obj.put("messagetype", "putbatchrequest");
+
+        JSONArray arr = new JSONArray();
+        arr.addAll(data);
+        obj.put("data", arr);
+        if (key != null)
+            obj.put("key", key);
+        if (board != null)
+            obj.put("board", board);
+
+        return obj;
+    }
+
+    public List<String> getData() {
+        return Collections.unmodifiableList(data);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getBoard() {
+        return board;
+    }
+}
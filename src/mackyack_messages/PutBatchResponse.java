@@ -0,0 +1,83 @@
+package mackyack_messages;
+
+import java.io.InvalidObjectException;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Server -> Client
+ * Acknowledges a PutBatchRequest once every message of it is on the board.
+ */
+public class PutBatchResponse implements JSONSerializable {
+
+    private int count; // Messages added by the batch.
+
+    /**
+     * @param count messages added by the batch.
+     */
+    public PutBatchResponse(int count) {
+        this.count = count;
+    }
+
+    /**
+     * Construct a PutBatchResponse from the corresponding JSON object.
+     * 
+     * @param obj a JSON object representing a PutBatchResponse.
+     */
+    public PutBatchResponse(JSONObject obj) throws InvalidObjectException {
+        deserialize(obj);
+    }
+
+    /**
+     * Coverts json data to an object of this type.
+     * 
+     * @param obj a JSON type to deserialize.
+     * @throws InvalidObjectException the type does not match this object.
+     */
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        JSONObject message;
+        if (obj instanceof JSONObject) {
+            message = (JSONObject) obj;
+
+            if (!message.containsKey("count"))
+                throw new InvalidObjectException("Put batch response needs a count.");
+            else
+                count = message.getInt("count");
+
+            if (message.size() > 2)
+                throw new InvalidObjectException("Superflous fields");
+        }
+    }
+
+    /**
+     * Serializes the object into a JSON encoded string.
+     * 
+     * @return a string representing the JSON form of the object.
+     */
+    @Override
+    public String serialize() {
+        return toJSONType().toJSON();
+    }
+
+    /**
+     * Converts the object to a JSON type.
+     * 
+     * @return a JSON type of JSONObject
+     */
+    @Override
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+
+        obj.put("messagetype", "putbatchresponse");
+        obj.put("count", count);
+
+        return obj;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
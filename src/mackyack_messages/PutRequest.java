@@ -10,17 +10,45 @@ import merrimackutil.json.types.JSONType;
  * Client -> Server
  * Sent from Client through the circuit to the Server containing a message. This
  * message will be appended to the board.
+ * With an idempotency key, sending the same request again is answered without
+ * appending the message twice, so a put can be retried when its response is lost.
+ * A board name picks one of the server's boards, the default board if there is none.
  */
 public class PutRequest implements JSONSerializable {
 
+    public final static int MAX_KEY_LENGTH = 64; // Longest idempotency key the server remembers.
+
     private String data;
+    private String key; // Idempotency key, null if retries may add the message again.
+    private String board; // Board to post to, null for the server's default board.
 
     /**
      * Construct a Put Request to send data
      * @param data
      */
     public PutRequest(String data) {
+        this(data, null);
+    }
+
+    /**
+     * Construct a Put Request that can be retried
+     * @param data
+     * @param key idempotency key, unique to this put, at most MAX_KEY_LENGTH characters. null for none.
+     */
+    public PutRequest(String data, String key) {
+        this(data, key, null);
+    }
+
+    /**
+     * Construct a Put Request for one of the server's boards
+     * @param data
+     * @param key idempotency key, unique to this put, at most MAX_KEY_LENGTH characters. null for none.
+     * @param board board to post to, null for the server's default board.
+     */
+    public PutRequest(String data, String key, String board) {
         this.data = data;
+        this.key = key;
+        this.board = board;
     }
 
     /**
@@ -49,7 +77,20 @@ public class PutRequest implements JSONSerializable {
             else
                 data = message.getString("data");
 
-            if (message.size() > 2)
+            int fields = 2;
+            key = null;
+            if (message.containsKey("key")) {
+                key = message.getString("key");
+                if (key.length() > MAX_KEY_LENGTH)
+                    throw new InvalidObjectException("Put key is longer than " + MAX_KEY_LENGTH + " characters.");
+                fields++;
+            }
+
+            board = GetRequest.readBoard(message);
+            if (board != null)
+                fields++;
+
+            if (message.size() > fields)
                 throw new InvalidObjectException("Superflous fields");
         }
     }
@@ -75,6 +116,10 @@ public class PutRequest implements JSONSerializable {
 
         obj.put("messagetype", "putrequest");
         obj.put("data", data);
+        if (key != null)
+            obj.put("key", key);
+        if (board != null)
+            obj.put("board", board);
 
         return obj;
     }
@@ -82,4 +127,12 @@ public class PutRequest implements JSONSerializable {
     public String getData() {
         return data;
     }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getBoard() {
+        return board;
+    }
 }
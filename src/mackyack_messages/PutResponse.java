@@ -40,7 +40,7 @@ public class PutResponse implements JSONSerializable {
         if (obj instanceof JSONObject) {
             message = (JSONObject) obj;
 
-            if (message.size() > 0)
+            if (message.size() > 1)
                 throw new InvalidObjectException("Superflous fields");
         }
     }
@@ -0,0 +1,126 @@
+package mackyack_messages;
+
+import java.io.InvalidObjectException;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Client -> Server
+ * Sent from the Client through the circuit to the Server asking for the messages
+ * posted after a cursor. The Server holds the request until there are some, or
+ * until the wait runs out, instead of the Client polling with GetRequests.
+ */
+public class SubscribeRequest implements JSONSerializable {
+
+    public final static int DEFAULT_WAIT_MS = 30000; // Wait asked for when none is given.
+    public final static int MAX_WAIT_MS = 60000;     // Longest the Server holds a request.
+
+    private int since; // Cursor of the last response the client has, 0 for the whole board.
+    private int wait;  // How long the Server may hold the request, in milliseconds.
+    private String board; // Board to wait on, null for the server's default board.
+
+    /**
+     * @param since cursor of a previous response, only newer messages are returned.
+     * @param wait how long the Server may hold the request, in milliseconds.
+     */
+    public SubscribeRequest(int since, int wait) {
+        this(since, wait, null);
+    }
+
+    /**
+     * @param since cursor of a previous response, only newer messages are returned.
+     * @param wait how long the Server may hold the request, in milliseconds.
+     * @param board board to wait on, null for the server's default board.
+     */
+    public SubscribeRequest(int since, int wait, String board) {
+        this.since = since;
+        this.wait = wait;
+        this.board = board;
+    }
+
+    /**
+     * Construct a SubscribeRequest from the corresponding JSON object.
+     * 
+     * @param obj a JSON object representing a SubscribeRequest.
+     */
+    public SubscribeRequest(JSONObject obj) throws InvalidObjectException {
+        deserialize(obj);
+    }
+
+    /**
+     * Coverts json data to an object of this type.
+     * 
+     * @param obj a JSON type to deserialize.
+     * @throws InvalidObjectException the type does not match this object.
+     */
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        JSONObject message;
+        if (obj instanceof JSONObject) {
+            message = (JSONObject) obj;
+
+            int fields = 1;
+            since = 0;
+            if (message.containsKey("since")) {
+                since = message.getInt("since");
+                fields++;
+            }
+
+            wait = DEFAULT_WAIT_MS;
+            if (message.containsKey("wait")) {
+                wait = message.getInt("wait");
+                fields++;
+            }
+
+            board = GetRequest.readBoard(message);
+            if (board != null)
+                fields++;
+
+            if (message.size() > fields)
+                throw new InvalidObjectException("Superflous fields");
+        }
+    }
+
+    /**
+     * Serializes the object into a JSON encoded string.
+     * 
+     * @return a string representing the JSON form of the object.
+     */
+    @Override
+    public String serialize() {
+        return toJSONType().toJSON();
+    }
+
+    /**
+     * Converts the object to a JSON type.
+     * 
+     * @return a JSON type of JSONObject
+     */
+    @Override
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+
+        obj.put("messagetype", "subscriberequest");
+        if (since > 0)
+            obj.put("since", since);
+        obj.put("wait", wait);
+        if (board != null)
+            obj.put("board", board);
+
+        return obj;
+    }
+
+    public int getSince() {
+        return since;
+    }
+
+    public int getWait() {
+        return wait;
+    }
+
+    public String getBoard() {
+        return board;
+    }
+}
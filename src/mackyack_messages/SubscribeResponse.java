@@ -0,0 +1,48 @@
+package mackyack_messages;
+
+import java.io.InvalidObjectException;
+import java.util.List;
+
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Server -> Client
+ * Answers a SubscribeRequest with the messages posted after its cursor, as a
+ * GetResponse does. Empty if the wait ran out before anything was posted, or before
+ * a replica caught up with the cursor.
+ */
+public class SubscribeResponse extends GetResponse {
+
+    /**
+     * @param messages messages posted after {@code since}.
+     * @param since cursor the messages follow, 0 for the whole board.
+     * @param cursor cursor after the messages.
+     */
+    public SubscribeResponse(List<Message> messages, int since, int cursor) {
+        super(messages, since, cursor);
+    }
+
+    /**
+     * Construct a SubscribeResponse from the corresponding JSON object.
+     * 
+     * @param obj a JSON object representing a SubscribeResponse.
+     */
+    public SubscribeResponse(JSONObject obj) throws InvalidObjectException {
+        super(obj);
+    }
+
+    /**
+     * Converts the object to a JSON type.
+     * 
+     * @return a JSON type of JSONObject
+     */
+    @Override
+    public JSONType toJSONType() {
+        JSONObject obj = (JSONObject) super.toJSONType();
+
+        obj.put("messagetype", "subscriberesponse");
+
+        return obj;
+    }
+}
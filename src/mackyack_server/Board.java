@@ -0,0 +1,95 @@
+package mackyack_server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import mackyack_messages.Message;
+
+/**
+ * The messages on the board by sequence number. Append-only: a message never changes once
+ * it is on the board, so a snapshot can read the first messages while puts go on.
+ */
+public interface Board {
+
+    /**
+     * @return messages on the board.
+     */
+    int size();
+
+    /**
+     * @param seq sequence number below size().
+     * @return the message with that sequence number.
+     */
+    Message get(int seq);
+
+    /**
+     * @param seq sequence number below size().
+     * @return time index key of the message, see BoardSnapshot.timeKey.
+     */
+    long time(int seq);
+
+    /**
+     * @param version messages to include, at most size().
+     * @return JSON of the first {@code version} messages, comma separated.
+     */
+    String serialize(int version);
+
+    /**
+     * Writes the same JSON as serialize(version) without building it on the heap first.
+     * @param version messages to include, at most size().
+     * @param out channel to write to.
+     * @throws IOException
+     */
+    default void writeTo(int version, WritableByteChannel out) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(serialize(version).getBytes(StandardCharsets.UTF_8));
+        while(buf.hasRemaining())
+            out.write(buf);
+    }
+
+    /**
+     * Adds a message with sequence number size(). Only called with the board's Messages locked.
+     * @param message message being added.
+     */
+    void add(Message message);
+
+    /**
+     * Adds messages with sequence numbers from size() on. size() goes past all of them at once,
+     * so a snapshot has either every one of them or none. Only called with the board's Messages locked.
+     * @param messages messages being added, in order.
+     */
+    void addAll(List<Message> messages);
+
+    /**
+     * @param from first sequence number.
+     * @param to sequence number after the last one, at most size().
+     * @return the messages from {@code from} to {@code to}, read from the board on access.
+     */
+    default List<Message> view(int from, int to) {
+        class View extends AbstractList<Message> implements RandomAccess {
+            @Override
+            public Message get(int index) {
+                if(index < 0 || index >= to - from)
+                    throw new IndexOutOfBoundsException(index);
+                return Board.this.get(from + index);
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+
+            @Override
+            public List<Message> subList(int fromIndex, int toIndex) {
+                if(fromIndex < 0 || toIndex > to - from || fromIndex > toIndex)
+                    throw new IndexOutOfBoundsException(fromIndex + ".." + toIndex);
+                return view(from + fromIndex, from + toIndex);
+            }
+        }
+        return new View();
+    }
+}
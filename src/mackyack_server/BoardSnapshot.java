@@ -0,0 +1,315 @@
+package mackyack_server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DeflaterOutputStream;
+
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.Message;
+import mackyack_messages.MessageCodec;
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Immutable view of the board at one version. The GetResponse for the whole board is
+ * serialized on first use, then every GET until the next put is answered with the same bytes.
+ *
+ * A message's sequence number is its position on the board, so a read from a cursor is a
+ * sublist. Time ranges are looked up in the board's time index, sorted by sequence number.
+ *
+ * The ETag of a snapshot is the board's epoch and the version. A poll that sends back the
+ * current ETag is answered with a few bytes built once per version.
+ */
+public class BoardSnapshot implements JSONSerializable {
+
+    private final static String PREFIX = "{\"messagetype\":\"getresponse\",\"messages\":[";
+
+    private final int version;              // Messages on the board when the snapshot was taken.
+    private final Board board;
+    private final String epoch;             // Epoch of the board, see Messages.
+    private volatile String json;           // The GetResponse for this version, built on first use.
+    private volatile byte[] frame;          // json as a UTF-8 line, encoded on first use.
+    private volatile byte[] binary;         // Fields of the GetResponse's binary frame, encoded on first use.
+    private Map<String, Encoded> encoded = new ConcurrentHashMap<>(); // Encoding -> the GetResponse in it, built on first use.
+    private volatile Encoded notModified;   // The not modified GetResponse for this version, built on first use.
+
+    /**
+     * A GetResponse for this version as fixed bytes: the whole board with its messages encoded,
+     * see GetResponse.isSupported, or not modified.
+     */
+    public static class Encoded implements JSONSerializable {
+        private final byte[] frame;
+
+        private Encoded(byte[] frame) {
+            this.frame = frame;
+        }
+
+        /**
+         * @return the GetResponse as one UTF-8 line, ready to be written to a socket.
+         */
+        public byte[] getFrame() {
+            return frame;
+        }
+
+        @Override
+        public String serialize() {
+            return new String(frame, 0, frame.length - 1, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public JSONType toJSONType() {
+            return JsonIO.readObject(serialize());
+        }
+
+        @Override
+        public void deserialize(JSONType obj) throws InvalidObjectException {
+            throw new InvalidObjectException("Board snapshots are immutable.");
+        }
+    }
+
+    /**
+     * @param version messages on the board.
+     * @param board the board, only its first version messages are read.
+     * @param epoch epoch of the board.
+     */
+    BoardSnapshot(int version, Board board, String epoch) {
+        this.version = version;
+        this.board = board;
+        this.epoch = epoch;
+    }
+
+    /**
+     * Reads the part of the board a request asks for in O(log n + k).
+     * @param req request received.
+     * @return not modified if the request has the current ETag, this snapshot if the whole board
+     * is asked for, otherwise the messages asked for, in the encoding the request accepts.
+     */
+    public JSONSerializable read(GetRequest req) {
+        // Encodings the server does not know are answered with plain JSON.
+        String encoding = GetResponse.isSupported(req.getEncoding()) ? req.getEncoding() : null;
+
+        String etag = getETag();
+        if(!req.isRanged() && etag.equals(req.getIfNoneMatch()))
+            return notModified();
+
+        // A cursor of another board or one the board never reached (e.g. from before a restart) reads from the start.
+        boolean otherBoard = req.getIfNoneMatch() != null && !req.getIfNoneMatch().startsWith(epoch + ":");
+
+        // A replica behind the copy the client got from the primary has nothing newer to send.
+        if(!req.isRanged() && req.getIfNoneMatch() != null && !otherBoard && req.getSince() > version)
+            return notModified();
+        int start = otherBoard || req.getSince() > version ? 0 : Math.max(req.getSince(), 0);
+        if(start == 0 && !req.isRanged())
+            return encoding != null ? encoded(encoding) : this;
+
+        int end = version;
+        if(req.getFrom() != null)
+            start = Math.max(start, seek(time(req.getFrom())));
+        if(req.getUntil() != null)
+            end = Math.min(end, seek(time(req.getUntil())));
+        if(req.getLimit() > 0 && end - start > req.getLimit())
+            end = start + req.getLimit();
+        if(end < start)
+            end = start;
+
+        // A page does not reach the version, its cursor must not be taken for the ETag's.
+        return new GetResponse(board.view(start, end), start, end, encoding, req.isRanged() ? null : etag);
+    }
+
+    /**
+     * @return the not modified GetResponse for this version, built on first use.
+     */
+    private Encoded notModified() {
+        // Racing threads may both build it, they build the same bytes.
+        Encoded ret = notModified;
+        if(ret == null) {
+            ret = new Encoded((GetResponse.notModified(version, getETag()).serialize() + "\n").getBytes(StandardCharsets.UTF_8));
+            notModified = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * @return sequence number of the first message at or after a time, version if there is none.
+     */
+    private int seek(long time) {
+        int low = 0;
+        int high = version;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(board.time(mid) < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @param timestamp timestamp in Message.TIMESTAMP_FORMAT.
+     * @return seconds since the epoch, in the server's local time.
+     * @throws DateTimeParseException if the timestamp is not in that format.
+     */
+    static long time(String timestamp) {
+        return LocalDateTime.parse(timestamp, Message.TIMESTAMP_FORMAT).toEpochSecond(ZoneOffset.UTC);
+    }
+
+    /**
+     * @param message message being indexed.
+     * @param previous key of the message before it, Long.MIN_VALUE for the first one.
+     * @return the key of the message in the time index.
+     */
+    static long timeKey(Message message, long previous) {
+        // Requests are timestamped before they reach the board, so two puts racing across a second
+        // can land out of order. Keys never decrease so the index stays sorted, such a message is
+        // indexed at the time of the one before it.
+        try {
+            return Math.max(time(message.getTimestamp()), previous);
+        } catch (DateTimeParseException e) {
+            return previous;
+        }
+    }
+
+    /**
+     * @return the GetResponse as one UTF-8 line, ready to be written to a socket.
+     */
+    public byte[] getFrame() {
+        byte[] ret = frame;
+        if(ret == null) {
+            ret = (serialize() + "\n").getBytes(StandardCharsets.UTF_8);
+            frame = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * @return the fields of the GetResponse's binary frame, see MessageCodec.
+     * @throws InvalidObjectException
+     */
+    public byte[] getBinary() throws InvalidObjectException {
+        // Racing threads may both build it, they build the same bytes.
+        byte[] ret = binary;
+        if(ret == null) {
+            ret = MessageCodec.fields(new GetResponse(getMessages(), 0, version, null, getETag()));
+            binary = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * @param encoding one of the encodings of GetResponse.
+     * @return the GetResponse with its messages encoded, built on first use. The board is
+     * written through the encoder without being serialized on the heap first.
+     */
+    public Encoded encoded(String encoding) {
+        // Racing threads may both build it, they build the same bytes.
+        Encoded ret = encoded.get(encoding);
+        if(ret == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                out.write(("{\"messagetype\":\"getresponse\",\"encoding\":\"" + encoding + "\",\"payload\":").getBytes(StandardCharsets.UTF_8));
+                try (OutputStream payload = GetResponse.payloadStream(out)) {
+                    try (DeflaterOutputStream deflater = new DeflaterOutputStream(payload)) {
+                        deflater.write('[');
+                        board.writeTo(version, Channels.newChannel(deflater));
+                        deflater.write(']');
+                    }
+                }
+                out.write((suffix() + "\n").getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            ret = new Encoded(out.toByteArray());
+            encoded.put(encoding, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Writes the GetResponse as one UTF-8 line without building it on the heap.
+     * @param out channel to write to.
+     * @throws IOException
+     */
+    public void writeTo(WritableByteChannel out) throws IOException {
+        write(out, PREFIX);
+        board.writeTo(version, out);
+        write(out, "]" + suffix() + "\n");
+    }
+
+    /**
+     * @return the end of a GetResponse after its messages.
+     */
+    private String suffix() {
+        return ",\"cursor\":" + version + ",\"etag\":\"" + getETag() + "\"}";
+    }
+
+    private static void write(WritableByteChannel out, String s) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+        while(buf.hasRemaining())
+            out.write(buf);
+    }
+
+    @Override
+    public String serialize() {
+        // Racing threads may both build it, they build the same string.
+        String ret = json;
+        if(ret == null) {
+            ret = PREFIX + board.serialize(version) + "]" + suffix();
+            json = ret;
+        }
+        return ret;
+    }
+
+    @Override
+    public JSONType toJSONType() {
+        return new GetResponse(getMessages(), 0, version, null, getETag()).toJSONType();
+    }
+
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        throw new InvalidObjectException("Board snapshots are immutable.");
+    }
+
+    /**
+     * Accessors
+     */
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the board's epoch and this version, changed by every put and by loading another board.
+     */
+    public String getETag() {
+        return epoch + ":" + version;
+    }
+
+    Board getBoard() {
+        return board;
+    }
+
+    String getEpoch() {
+        return epoch;
+    }
+
+    public List<Message> getMessages() {
+        return board.view(0, version);
+    }
+}
@@ -0,0 +1,125 @@
+package mackyack_server;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The boards a server serves: a default board for requests that name none, and named boards.
+ *
+ * Every board has its own Messages, so its own store, writer thread, snapshots, subscribers
+ * and locks, and its own spool. Puts to one board never wait on another, a busy board does
+ * not slow reads of the others, and each board can be stored on a different disk.
+ */
+public class Boards {
+
+    /**
+     * A board and the spool its full-board GETs are sent from.
+     */
+    public static class Entry {
+        private final Messages messages;
+        private final SnapshotSpool spool;
+
+        Entry(Messages messages, SnapshotSpool spool) {
+            this.messages = messages;
+            this.spool = spool;
+        }
+
+        public Messages getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return spool for full-board GETs, null to send them from memory.
+         */
+        public SnapshotSpool getSpool() {
+            return spool;
+        }
+    }
+
+    private final Entry main;
+    private final Map<String, Entry> named = new ConcurrentHashMap<>();
+    private volatile boolean readOnly;
+
+    /**
+     * @param messages the default board.
+     * @param spool spool for full-board GETs of the default board, null to send them from memory.
+     */
+    public Boards(Messages messages, SnapshotSpool spool) {
+        this.main = new Entry(messages, spool);
+    }
+
+    /**
+     * Serves another board under a name.
+     * @param name board name, see GetRequest.isBoardName.
+     * @param messages the board.
+     * @param spool spool for its full-board GETs, null to send them from memory.
+     */
+    public void add(String name, Messages messages, SnapshotSpool spool) {
+        if(named.putIfAbsent(name, new Entry(messages, spool)) != null)
+            throw new IllegalArgumentException("Board " + name + " is already served.");
+    }
+
+    /**
+     * @param name board name, null for the default board.
+     * @return the board.
+     * @throws InvalidObjectException if no board has that name.
+     */
+    public Entry get(String name) throws InvalidObjectException {
+        if(name == null)
+            return main;
+
+        Entry ret = named.get(name);
+        if(ret == null)
+            throw new InvalidObjectException("No board named " + name + ".");
+        return ret;
+    }
+
+    /**
+     * @return the default board.
+     */
+    public Messages getMessages() {
+        return main.messages;
+    }
+
+    /**
+     * @param readOnly true to refuse puts, as on a replica that copies its boards from a primary.
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * @return true if puts are refused.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return the named boards by name.
+     */
+    public Map<String, Entry> named() {
+        return Collections.unmodifiableMap(named);
+    }
+
+    /**
+     * Closes every board.
+     * @throws IOException if a board could not be closed, after trying the others.
+     */
+    public void close() throws IOException {
+        IOException failed = null;
+        for(Entry n : named.values()) {
+            try {
+                n.messages.close();
+            } catch (IOException e) {
+                failed = e;
+            }
+        }
+        main.messages.close();
+        if(failed != null)
+            throw failed;
+    }
+}
@@ -0,0 +1,188 @@
+package mackyack_server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import mackyack_messages.Message;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Streams the puts of a primary server's boards to its replicas, see Replicator.
+ * Listens on the loopback interface only.
+ *
+ * A replica opens one connection per board and sends one line:
+ *   {"board":"news","since":N,"last":{message}}
+ * with the messages it has and the last of them ("board" absent for the default board,
+ * "last" absent with none). If they are not the primary's first N messages it gets
+ *   {"error":"..."}
+ * Otherwise it gets {"epoch":"...","since":N}, then the messages after N as they are put:
+ *   {"messages":[...],"more":true}
+ * "more" is set on every line but the last of a version, so a replica adds a batch at once.
+ * An idle stream carries {"messages":[]} every HEARTBEAT_MS.
+ */
+public class ChangeStream {
+
+    public final static int HEARTBEAT_MS = 10000;     // Longest a stream stays silent.
+    private final static int MESSAGES_PER_LINE = 512; // Keeps lines short when a replica catches up.
+
+    private ServerSocket server;
+    private Boards boards;
+
+    // A stream waits on its board between puts, so every replica connection gets a thread.
+    private ExecutorService streams = Executors.newCachedThreadPool(n -> {
+        Thread thread = new Thread(n, "change-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Binds the stream without accepting replicas yet, see {@link #poll()}.
+     * @param port loopback port to accept replicas on, 0 for any free port.
+     * @param boards boards to stream.
+     * @throws IOException
+     */
+    public ChangeStream(int port, Boards boards) throws IOException {
+        this.server = new ServerSocket();
+        this.server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.boards = boards;
+    }
+
+    /**
+     * Accepts replicas and streams to each one until closed.
+     * @throws IOException
+     */
+    public void poll() throws IOException {
+        while(!server.isClosed()) {
+            Socket sock;
+            try {
+                sock = server.accept();
+            } catch (IOException e) {
+                // Closing the stream unblocks accept, that is not an error.
+                if(server.isClosed())
+                    return;
+                throw e;
+            }
+
+            streams.execute(() -> stream(sock));
+        }
+    }
+
+    /**
+     * Checks that a replica has a prefix of the board, then sends it every message put after it.
+     * @param sock connection from a replica.
+     */
+    private void stream(Socket sock) {
+        String name = null;
+        try (sock) {
+            BufferedReader input = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter output = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream(), StandardCharsets.UTF_8));
+
+            String line = input.readLine();
+            if(line == null)
+                return;
+            JSONObject hello = JsonIO.readObject(line);
+            name = hello.containsKey("board") ? hello.getString("board") : null;
+            int since = hello.getInt("since");
+            Messages messages = boards.get(name).getMessages();
+
+            BoardSnapshot snapshot = messages.getSnapshot();
+            String diverged = null;
+            if(since < 0 || since > snapshot.getVersion())
+                diverged = "The replica has " + since + " messages, the primary " + snapshot.getVersion() + ".";
+            else if(since > 0 && !same(snapshot.getMessages().get(since - 1), hello.getObject("last")))
+                diverged = "Message " + (since - 1) + " of the replica is not the primary's.";
+            if(diverged != null) {
+                JSONObject error = new JSONObject();
+                error.put("error", diverged);
+                write(output, error);
+                return;
+            }
+
+            String epoch = snapshot.getEpoch();
+            JSONObject header = new JSONObject();
+            header.put("epoch", epoch);
+            header.put("since", since);
+            write(output, header);
+
+            int sent = since;
+            while(!server.isClosed()) {
+                snapshot = messages.getSnapshot();
+                if(!snapshot.getEpoch().equals(epoch))
+                    return; // Another board was loaded, the replica checks its copy again.
+
+                if(snapshot.getVersion() > sent) {
+                    List<Message> added = snapshot.getMessages().subList(sent, snapshot.getVersion());
+                    for(int i = 0; i < added.size(); i += MESSAGES_PER_LINE)
+                        write(output, lineOf(added.subList(i, Math.min(i + MESSAGES_PER_LINE, added.size())), i + MESSAGES_PER_LINE < added.size()));
+                    sent = snapshot.getVersion();
+                    continue;
+                }
+
+                CompletableFuture<Void> changed = messages.changedAfter(sent);
+                try {
+                    changed.get(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    changed.cancel(false);
+                    write(output, lineOf(List.of(), false));
+                }
+            }
+        } catch (Exception e) {
+            if(!server.isClosed())
+                System.err.println("Stopped streaming board " + (name == null ? "(default)" : name) + " to a replica: " + e);
+        }
+    }
+
+    private static boolean same(Message message, JSONObject last) {
+        return last != null && message.getData().equals(last.getString("data")) && message.getTimestamp().equals(last.getString("timestamp"));
+    }
+
+    private static JSONObject lineOf(List<Message> messages, boolean more) {
+        JSONArray arr = new JSONArray();
+        for(Message n : messages)
+            arr.add(n.toJSONType());
+
+        JSONObject obj = new JSONObject();
+        obj.put("messages", arr);
+        if(more)
+            obj.put("more", true);
+        return obj;
+    }
+
+    private static void write(BufferedWriter output, JSONObject obj) throws IOException {
+        output.write(obj.toJSON());
+        output.newLine();
+        output.flush();
+    }
+
+    /**
+     * Stops accepting replicas and ends every stream.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        server.close();
+        streams.shutdownNow();
+    }
+
+    /**
+     * @return the loopback port replicas connect to.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+}
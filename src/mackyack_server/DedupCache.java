@@ -0,0 +1,135 @@
+package mackyack_server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import merrimackutil.json.JSONSerializable;
+
+/**
+ * Responses to puts by their idempotency key. A put retried after its response was lost
+ * is answered with the first response instead of being applied again.
+ *
+ * A put that failed is only forgotten if it left nothing on the board (NotStoredException),
+ * so it can be retried. After any other failure it may still be on the board or get there
+ * later, so its retries get the same error instead of being applied again.
+ *
+ * Keys are kept in the order they were first seen, which is also the order they expire in,
+ * so dropping expired keys and keys over the limit only ever looks at the oldest ones.
+ */
+public class DedupCache {
+
+    public final static int DEFAULT_KEYS = 100000;
+    public final static int DEFAULT_TTL_SECONDS = 600;
+
+    /**
+     * The response to the first put with a key, done once that put is on the board or failed.
+     */
+    private static class Entry {
+        final CompletableFuture<JSONSerializable> response = new CompletableFuture<>();
+        final long expires;
+
+        Entry(long expires) {
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Applies a put, see {@link DedupCache#apply(String, Put)}.
+     */
+    @FunctionalInterface
+    public interface Put {
+        JSONSerializable apply() throws IOException;
+    }
+
+    private int maxKeys;
+    private long ttlNanos;
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * @param maxKeys most keys remembered, the oldest are forgotten first. 0 remembers none.
+     * @param ttlSeconds how long a key is remembered.
+     */
+    public DedupCache(int maxKeys, int ttlSeconds) {
+        this.maxKeys = maxKeys;
+        this.ttlNanos = ttlSeconds * 1000000000L;
+    }
+
+    /**
+     * Applies a put unless a put with the same key was applied within the TTL. A retry that
+     * arrives while the first put is still being applied waits for it.
+     * @param key idempotency key of the put, null to always apply it.
+     * @param put applies the put and returns its response.
+     * @return the response of the first put with the key.
+     * @throws NotStoredException if the put left nothing on the board. The key is forgotten, so it can be retried.
+     * @throws IOException if the put, or the first put with the key, failed otherwise.
+     */
+    public JSONSerializable apply(String key, Put put) throws IOException {
+        if(key == null || maxKeys == 0)
+            return put.apply();
+
+        Entry entry;
+        Entry first;
+        synchronized(this) {
+            long now = System.nanoTime();
+            expire(now);
+
+            first = entries.get(key);
+            entry = first != null ? first : new Entry(now + ttlNanos);
+            if(first == null)
+                entries.put(key, entry);
+        }
+
+        if(first != null)
+            return await(first);
+
+        try {
+            JSONSerializable ret = put.apply();
+            entry.response.complete(ret);
+            return ret;
+        } catch (IOException | RuntimeException e) {
+            if(e instanceof NotStoredException) {
+                synchronized(this) {
+                    entries.remove(key, entry);
+                }
+            }
+            entry.response.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Drops the keys past their TTL and the oldest keys over the limit.
+     */
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while(it.hasNext()) {
+            Entry oldest = it.next().getValue();
+            if(entries.size() < maxKeys && oldest.expires - now > 0)
+                break;
+            it.remove();
+        }
+    }
+
+    private static JSONSerializable await(Entry entry) throws IOException {
+        try {
+            return entry.response.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on the first put.");
+        }
+    }
+
+    /**
+     * @return keys remembered.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,227 @@
+package mackyack_server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import mackyack_messages.Message;
+
+/**
+ * Single writer in front of a MessageStore. Puts waiting at the same time are written
+ * as one batch, so many concurrent writers share one write and one fsync. A batch is
+ * published (put on the board) once it is as durable as the mode promises, then its
+ * puts are acknowledged, so GETs never see a message the store does not have.
+ *
+ * Durability modes:
+ *  - fsync-per-batch: a put is published and acknowledged once its batch is written and synced.
+ *  - fsync-interval: a put is published and acknowledged once its batch is written, the
+ *    store is synced at most fsyncIntervalMs later.
+ *  - async: a put is acknowledged as soon as it is queued and published once its batch
+ *    is written, so a GET right after the put may not see it yet.
+ * With fsync-interval and async, GETs can see messages that are not synced yet and
+ * would be lost in a crash.
+ *
+ * A batch the store could not write is dropped. If the store may hold part of it, or
+ * could not sync, later puts would not line up with the board any more: every later
+ * put is refused until the server is restarted.
+ */
+public class GroupCommitter implements Closeable {
+
+    public final static String FSYNC_PER_BATCH = "fsync-per-batch";
+    public final static String FSYNC_INTERVAL = "fsync-interval";
+    public final static String ASYNC = "async";
+
+    private final static int MAX_BATCH = 1024; // Most messages written in one batch.
+
+    /**
+     * Messages of one put waiting on the writer, always written in the same batch.
+     */
+    private static class Pending {
+        List<Message> messages;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(List<Message> messages) {
+            this.messages = messages;
+        }
+    }
+
+    private MessageStore store;
+    private String durability;
+    private long fsyncIntervalMs;
+    private Consumer<List<Message>> published;
+    private volatile IOException failed; // Why the store can no longer be written to, null while it can.
+
+    private final static Pending STOP = new Pending(null); // Queued last by close.
+
+    private BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private Thread writer;
+    private boolean closed;
+
+    /**
+     * Starts the writer thread.
+     * @param store store the batches are written to.
+     * @param durability one of FSYNC_PER_BATCH, FSYNC_INTERVAL or ASYNC.
+     * @param fsyncIntervalMs longest time written messages stay unsynced with FSYNC_INTERVAL.
+     * @param published puts each batch on the board, called on the writer thread in store order.
+     */
+    public GroupCommitter(MessageStore store, String durability, long fsyncIntervalMs, Consumer<List<Message>> published) {
+        if(!durability.equals(FSYNC_PER_BATCH) && !durability.equals(FSYNC_INTERVAL) && !durability.equals(ASYNC))
+            throw new IllegalArgumentException("Unknown durability mode: " + durability);
+
+        this.store = store;
+        this.durability = durability;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.published = published;
+
+        this.writer = new Thread(this::run, "group-commit");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a message for the writer. Callers must queue messages in board order.
+     * @param message message to store.
+     * @return future completed once the message is published, see appendAll.
+     */
+    public CompletableFuture<Void> append(Message message) {
+        return appendAll(List.of(message));
+    }
+
+    /**
+     * Queues messages for the writer, they are handed to the store in one appendAll.
+     * Callers must queue messages in board order.
+     * @param messages messages to store.
+     * @return future completed once the messages are published, or as soon as they are
+     * queued with ASYNC. Failed with NotStoredException if they were dropped without being stored.
+     */
+    public synchronized CompletableFuture<Void> appendAll(List<Message> messages) {
+        Pending pending = new Pending(messages);
+        if(closed) {
+            pending.done.completeExceptionally(new NotStoredException("Store is closed."));
+            return pending.done;
+        }
+        if(failed != null) {
+            pending.done.completeExceptionally(refused());
+            return pending.done;
+        }
+
+        queue.add(pending);
+        if(durability.equals(ASYNC))
+            pending.done.complete(null);
+        return pending.done;
+    }
+
+    /**
+     * @return future completed once every put queued before it is published or dropped,
+     * in every durability mode.
+     */
+    public synchronized CompletableFuture<Void> flush() {
+        Pending pending = new Pending(List.of());
+        if(closed || failed != null)
+            pending.done.complete(null);
+        else
+            queue.add(pending);
+        return pending.done.exceptionally(e -> null);
+    }
+
+    private NotStoredException refused() {
+        return new NotStoredException("Puts are refused since the store failed: " + failed.getMessage(), failed);
+    }
+
+    /**
+     * Writes batches until close queues STOP.
+     */
+    private void run() {
+        long lastSync = System.currentTimeMillis();
+        boolean unsynced = false;
+        boolean stopping = false;
+
+        while(!stopping) {
+            List<Pending> batch = new ArrayList<>();
+            try {
+                // Wake up now and then to honor the sync interval even without puts.
+                Pending first = queue.poll(durability.equals(FSYNC_PER_BATCH) ? 1000 : Math.max(1, fsyncIntervalMs), TimeUnit.MILLISECONDS);
+                if(first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            // Nothing is queued after STOP, so it is always the last of its batch.
+            if(!batch.isEmpty() && batch.get(batch.size() - 1) == STOP) {
+                batch.remove(batch.size() - 1);
+                stopping = true;
+            }
+
+            List<Message> messages = new ArrayList<>(batch.size());
+            for(Pending n : batch)
+                messages.addAll(n.messages);
+
+            try {
+                if(failed != null)
+                    throw refused();
+
+                if(!messages.isEmpty()) {
+                    store.appendAll(messages);
+                    unsynced = true;
+                }
+
+                long now = System.currentTimeMillis();
+                if(unsynced && (durability.equals(FSYNC_PER_BATCH) || now - lastSync >= fsyncIntervalMs)) {
+                    store.sync();
+                    unsynced = false;
+                    lastSync = now;
+                }
+
+                if(!messages.isEmpty())
+                    published.accept(messages);
+                for(Pending n : batch)
+                    n.done.complete(null);
+            } catch (NotStoredException e) {
+                // The store is as it was, so the next batch goes where this one would have.
+                for(Pending n : batch)
+                    n.done.completeExceptionally(e);
+            } catch (IOException e) {
+                System.err.println("Could not write messages, refusing puts from now on: " + e);
+                failed = e;
+                for(Pending n : batch)
+                    n.done.completeExceptionally(e);
+            }
+        }
+
+        // Whatever was acknowledged early is synced before the store closes.
+        try {
+            if(unsynced)
+                store.sync();
+        } catch (IOException e) {
+            System.err.println("Could not sync messages: " + e);
+        }
+    }
+
+    /**
+     * Writes what is queued, syncs and stops the writer. The store stays open.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized(this) {
+            if(closed)
+                return;
+            closed = true;
+            queue.add(STOP);
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
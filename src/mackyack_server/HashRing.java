@@ -0,0 +1,63 @@
+package mackyack_server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A consistent-hash ring of shards. Each shard is placed on the ring at VNODES points,
+ * and a key belongs to the shard of the first point at or after the key's hash.
+ *
+ * When a shard joins it takes over only the keys just before its points, and when one
+ * leaves only its keys move, each to the next shard on the ring: about 1/n of the keys
+ * move either way. Lookups do not lock.
+ */
+public class HashRing {
+
+    public final static int VNODES = 128; // Points per shard, spreads keys evenly across few shards.
+
+    private final ConcurrentSkipListMap<Long, String> ring = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param shard shard to place on the ring, e.g. "host:port".
+     */
+    public synchronized void add(String shard) {
+        for(int i = 0; i < VNODES; i++)
+            ring.put(hash(shard + "#" + i), shard);
+    }
+
+    /**
+     * @param key key to place, e.g. a board name.
+     * @return the shard the key belongs to, null if the ring is empty.
+     */
+    public String get(String key) {
+        Map.Entry<Long, String> n = ring.ceilingEntry(hash(key));
+        if(n == null)
+            n = ring.firstEntry(); // Past the last point, the ring wraps around.
+        return n == null ? null : n.getValue();
+    }
+
+    /**
+     * @return the shards on the ring.
+     */
+    public Set<String> shards() {
+        return new TreeSet<>(ring.values());
+    }
+
+    /**
+     * @return the first 8 bytes of the SHA-256 of a string.
+     */
+    static long hash(String str) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(str.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has SHA-256.
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package mackyack_server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import mackyack_messages.Message;
+
+/**
+ * A board kept on the heap, for stores that only persist messages.
+ * Each message is serialized once, when it is added.
+ *
+ * Messages are kept in buckets that double in size and are never copied or moved, so
+ * adding a message costs the same however large the board is. A message is written to
+ * its slot before size is raised past it; a reader that reads size first sees every
+ * message below it without locking.
+ */
+public class HeapBoard implements Board {
+
+    private final static int FIRST_BUCKET_BITS = 4;  // Bucket k holds 16 << k messages.
+    private final static int BUCKETS = 32 - FIRST_BUCKET_BITS;
+
+    /**
+     * A message with everything read from it, fixed once added.
+     */
+    private static class Entry {
+        final Message message;
+        final String json;
+        final long time;
+
+        Entry(Message message, long time) {
+            this.message = message;
+            this.json = message.serialize();
+            this.time = time;
+        }
+    }
+
+    private final Entry[][] buckets = new Entry[BUCKETS][];
+    private volatile int size;
+
+    /**
+     * @param loaded messages read back from the store, oldest first.
+     */
+    public HeapBoard(List<Message> loaded) {
+        addAll(loaded);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the entry of a message below size().
+     */
+    private Entry entry(int seq) {
+        if(seq < 0 || seq >= size)
+            throw new IndexOutOfBoundsException(seq);
+
+        int pos = seq + (1 << FIRST_BUCKET_BITS);
+        int high = 31 - Integer.numberOfLeadingZeros(pos);
+        return buckets[high - FIRST_BUCKET_BITS][pos ^ (1 << high)];
+    }
+
+    @Override
+    public Message get(int seq) {
+        return entry(seq).message;
+    }
+
+    @Override
+    public long time(int seq) {
+        return entry(seq).time;
+    }
+
+    @Override
+    public String serialize(int version) {
+        StringBuilder ret = new StringBuilder();
+        for(int i = 0; i < version; i++) {
+            if(i > 0)
+                ret.append(',');
+            ret.append(entry(i).json);
+        }
+        return ret.toString();
+    }
+
+    @Override
+    public void writeTo(int version, WritableByteChannel out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        for(int i = 0; i < version; i++) {
+            byte[] bytes = ((i > 0 ? "," : "") + entry(i).json).getBytes(StandardCharsets.UTF_8);
+            if(bytes.length > buf.remaining()) {
+                drain(buf.flip(), out);
+                buf.clear();
+
+                // Messages bigger than the buffer go out on their own.
+                if(bytes.length > buf.capacity()) {
+                    drain(ByteBuffer.wrap(bytes), out);
+                    continue;
+                }
+            }
+            buf.put(bytes);
+        }
+        drain(buf.flip(), out);
+    }
+
+    private static void drain(ByteBuffer buf, WritableByteChannel out) throws IOException {
+        while(buf.hasRemaining())
+            out.write(buf);
+    }
+
+    @Override
+    public void add(Message message) {
+        addAll(List.of(message));
+    }
+
+    @Override
+    public void addAll(List<Message> messages) {
+        int seq = size;
+        long previous = seq > 0 ? entry(seq - 1).time : Long.MIN_VALUE;
+        for(Message n : messages) {
+            int pos = seq + (1 << FIRST_BUCKET_BITS);
+            int high = 31 - Integer.numberOfLeadingZeros(pos);
+            int bucket = high - FIRST_BUCKET_BITS;
+            if(buckets[bucket] == null)
+                buckets[bucket] = new Entry[1 << high];
+
+            Entry entry = new Entry(n, BoardSnapshot.timeKey(n, previous));
+            buckets[bucket][pos ^ (1 << high)] = entry;
+            previous = entry.time;
+            seq++;
+        }
+        size = seq;
+    }
+}
@@ -0,0 +1,389 @@
+package mackyack_server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mackyack_messages.Message;
+import merrimackutil.json.JsonIO;
+
+/**
+ * Stores the board as a single messages.json file that is rewritten on every put.
+ *
+ * Loading does not parse the file. One pass over its bytes finds where each message object
+ * starts and ends, then the board reads messages from the loaded file on access. A background
+ * thread parses the loaded messages one at a time to build the time index; a ranged read that
+ * gets ahead of it parses the messages it needs itself.
+ *
+ * A put writes a new file and renames it over messages.json. The loaded file stays open, so
+ * its messages keep being read from it.
+ */
+public class JsonMessageStore implements MessageStore {
+
+    private final static int BUFFER_BYTES = 64 * 1024;
+    private final static int INDEX_CHUNK = 4096;  // Messages the indexer parses per turn.
+
+    private final static String PREFIX = "{\"messages\":[";
+    private final static String SUFFIX = "]}";
+
+    private String path;
+
+    private FileChannel loaded;                  // messages.json as it was loaded.
+    private long[] offsets = new long[16];       // Where each loaded message object starts.
+    private int[] lengths = new int[16];
+    private int count;                           // Messages in the loaded file.
+    private boolean singleLine = true;           // No line breaks between the loaded messages, so they are sent as they are.
+
+    private JsonBoard board;
+
+    /**
+     * The board read from the loaded file, with the messages put since on the heap.
+     */
+    private class JsonBoard implements Board {
+        private HeapBoard added = new HeapBoard(new ArrayList<>());
+        private volatile int size = count;
+
+        private long[] times = new long[count];  // Time index keys of the loaded messages.
+        private volatile int timed;              // Loaded messages whose time index key is known.
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Message get(int seq) {
+            return seq < count ? decode(seq) : added.get(seq - count);
+        }
+
+        @Override
+        public long time(int seq) {
+            if(seq < count)
+                return loadedTime(seq);
+
+            // The running maximum carries on from the loaded messages.
+            long time = added.time(seq - count);
+            return count > 0 ? Math.max(time, loadedTime(count - 1)) : time;
+        }
+
+        /**
+         * @return time index key of a loaded message, parsing the messages up to it that are not indexed yet.
+         */
+        private long loadedTime(int seq) {
+            if(seq < timed)
+                return times[seq];
+
+            synchronized(this) {
+                for(int i = timed; i <= seq; i++)
+                    times[i] = BoardSnapshot.timeKey(decode(i), i > 0 ? times[i - 1] : Long.MIN_VALUE);
+                timed = Math.max(timed, seq + 1);
+                return times[seq];
+            }
+        }
+
+        /**
+         * Builds the time index of the loaded messages, run once on the indexer thread.
+         */
+        private void index() {
+            try {
+                for(int i = 0; i < count; i += INDEX_CHUNK)
+                    loadedTime(Math.min(i + INDEX_CHUNK, count) - 1);
+            } catch (UncheckedIOException e) {
+                if(loaded.isOpen())
+                    System.err.println("Could not index " + path + ": " + e.getCause());
+            }
+        }
+
+        @Override
+        public String serialize(int version) {
+            StringBuilder ret = new StringBuilder();
+            for(int i = 0; i < Math.min(version, count); i++) {
+                if(i > 0)
+                    ret.append(',');
+                ret.append(singleLine ? new String(read(i), StandardCharsets.UTF_8) : decode(i).serialize());
+            }
+
+            if(version > count) {
+                if(count > 0)
+                    ret.append(',');
+                ret.append(added.serialize(version - count));
+            }
+            return ret.toString();
+        }
+
+        @Override
+        public void writeTo(int version, WritableByteChannel out) throws IOException {
+            int stored = Math.min(version, count);
+            if(stored > 0 && singleLine) {
+                // The loaded messages and the commas between them are copied straight from the file.
+                long from = offsets[0];
+                long length = offsets[stored - 1] + lengths[stored - 1] - from;
+                long sent = 0;
+                while(sent < length)
+                    sent += loaded.transferTo(from + sent, length - sent, out);
+            } else if(stored > 0) {
+                Board.super.writeTo(stored, out);
+            }
+
+            if(version > count) {
+                if(count > 0)
+                    write(out, ",");
+                added.writeTo(version - count, out);
+            }
+        }
+
+        @Override
+        public void add(Message message) {
+            added.add(message);
+            size++;
+        }
+
+        @Override
+        public void addAll(List<Message> messages) {
+            added.addAll(messages);
+            size += messages.size();
+        }
+    }
+
+    public JsonMessageStore(String path) throws FileNotFoundException {
+        this.path = path;
+
+        // Construct file
+        File file = new File(path);
+
+        if (file == null || !file.exists()) {
+            throw new FileNotFoundException(
+                    "File from path for Config does not point to a valid configuration json file.");
+        }
+    }
+
+    /**
+     * Finds the messages in messages.json and starts indexing them in the background.
+     * @return the stored board, read from the file on access.
+     */
+    @Override
+    public synchronized List<Message> load() throws IOException {
+        loaded = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        scan();
+
+        board = new JsonBoard();
+        Thread indexer = new Thread(board::index, "board-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+        return board.view(0, count);
+    }
+
+    @Override
+    public Board board() {
+        return board;
+    }
+
+    /**
+     * Records where each object of the "messages" array starts and ends, without parsing it.
+     * @throws InvalidObjectException if the file is not a messages.json file.
+     */
+    private void scan() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES);
+        ByteArrayOutputStream key = new ByteArrayOutputStream(); // Last string read in the top object.
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        boolean inMessages = false;
+        boolean found = false;
+        long start = 0;
+
+        long pos = 0;
+        while(loaded.read(buf) >= 0) {
+            byte[] bytes = buf.array();
+            for(int i = 0; i < buf.position(); i++, pos++) {
+                byte b = bytes[i];
+                if(inMessages && (b == '\n' || b == '\r'))
+                    singleLine = false;
+
+                if(inString) {
+                    if(escaped)
+                        escaped = false;
+                    else if(b == '\\')
+                        escaped = true;
+                    else if(b == '"')
+                        inString = false;
+                    else if(depth == 1)
+                        key.write(b);
+                    continue;
+                }
+
+                switch(b) {
+                    case '"':
+                        if(inMessages && depth == 2)
+                            throw new InvalidObjectException("Array element is not an instance of JSONObject");
+                        inString = true;
+                        key.reset();
+                        break;
+                    case '{':
+                    case '[':
+                        if(depth == 0 && b != '{')
+                            throw new InvalidObjectException("Messages is not an instance of JSONObject");
+                        if(inMessages && depth == 2) {
+                            if(b != '{')
+                                throw new InvalidObjectException("Array element is not an instance of JSONObject");
+                            start = pos;
+                        }
+                        if(depth == 1 && b == '[' && key.toString(StandardCharsets.UTF_8).equals("messages")) {
+                            inMessages = true;
+                            found = true;
+                        }
+                        depth++;
+                        break;
+                    case '}':
+                    case ']':
+                        depth--;
+                        if(inMessages && depth == 2)
+                            record(start, pos + 1 - start);
+                        if(depth == 1)
+                            inMessages = false;
+                        break;
+                    case ',':
+                    case ':':
+                    case ' ':
+                    case '\t':
+                    case '\n':
+                    case '\r':
+                        break;
+                    default:
+                        if(inMessages && depth == 2)
+                            throw new InvalidObjectException("Array element is not an instance of JSONObject");
+                }
+            }
+            buf.clear();
+        }
+
+        if(depth != 0 || inString)
+            throw new InvalidObjectException(path + " ends in the middle of an object.");
+        if(!found)
+            throw new InvalidObjectException("Messages array not present");
+    }
+
+    private void record(long start, long length) {
+        if(count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        offsets[count] = start;
+        lengths[count] = (int) length;
+        count++;
+    }
+
+    /**
+     * @return the JSON of a loaded message as it is in the file.
+     */
+    private byte[] read(int seq) {
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(lengths[seq]);
+            while(buf.hasRemaining()) {
+                if(loaded.read(buf, offsets[seq] + buf.position()) < 0)
+                    throw new IOException(path + " was truncated.");
+            }
+            return buf.array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Message decode(int seq) {
+        try {
+            return new Message(JsonIO.readObject(new String(read(seq), StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            // The parser fails with whatever it ran into.
+            throw new UncheckedIOException(new InvalidObjectException("Message " + seq + " in " + path + " is not valid JSON."));
+        }
+    }
+
+    /**
+     * Adds a message to the stored list, then rewrites the messages.json file.
+     * @param message
+     * @throws IOException
+     */
+    @Override
+    public synchronized void append(Message message) throws IOException {
+        appendAll(List.of(message));
+    }
+
+    /**
+     * Rewrites the messages.json file once with the board and the new messages after it.
+     * messages.json is only replaced by a complete file, so if that fails it is as it was.
+     * @param messages
+     * @throws NotStoredException if messages.json is as it was.
+     * @throws IOException if messages.json was replaced but the rename could not be synced.
+     */
+    @Override
+    public synchronized void appendAll(List<Message> messages) throws IOException {
+        Path tmp = Paths.get(path + ".tmp");
+        try {
+            write(tmp, messages);
+            Files.move(tmp, Paths.get(path), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new NotStoredException("Could not rewrite " + path + ".", e);
+        }
+
+        Path dir = Paths.get(path).toAbsolutePath().getParent();
+        if(dir != null)
+            MessageStore.syncDirectory(dir);
+    }
+
+    /**
+     * Writes the board, whose loaded messages are copied from the loaded file, and the new
+     * messages to a file and forces it to disk, so a crash after the rename cannot leave
+     * messages.json empty. Messages put before are already on the board, the writer thread
+     * publishes each batch before it stores the next, so their JSON is not kept here.
+     */
+    private void write(Path tmp, List<Message> messages) throws IOException {
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int stored = board.size();
+            write(out, PREFIX);
+            board.writeTo(stored, out);
+            for(int i = 0; i < messages.size(); i++)
+                write(out, (stored > 0 || i > 0 ? "," : "") + messages.get(i).serialize());
+            write(out, SUFFIX);
+            out.force(true);
+        }
+    }
+
+    private static void write(WritableByteChannel out, String str) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8));
+        while(buf.hasRemaining())
+            out.write(buf);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Closes the loaded file, the board cannot be read afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(loaded != null)
+            loaded.close();
+    }
+}
@@ -0,0 +1,74 @@
+package mackyack_server;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples and reports percentiles over them.
+ */
+public class LatencyRecorder {
+
+    private long[] samples;     // Ring of samples in microseconds.
+    private int next;           // Where the next sample goes.
+    private int count;          // Samples in the ring, at most samples.length.
+    private long total;         // Samples ever recorded.
+
+    /**
+     * @param capacity number of recent samples percentiles are computed over.
+     */
+    public LatencyRecorder(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    /**
+     * @param nanos latency of one operation.
+     */
+    public synchronized void record(long nanos) {
+        samples[next] = nanos / 1000;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        total++;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return latency in microseconds at that percentile of the recent samples, 0 if there are none.
+     */
+    public long percentile(double percentile) {
+        return percentiles(percentile)[0];
+    }
+
+    /**
+     * @param percentiles each between 0 and 100.
+     * @return latency in microseconds at each percentile of the recent samples, computed on one copy.
+     */
+    public long[] percentiles(double... percentiles) {
+        long[] sorted;
+        synchronized(this) {
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+
+        long[] ret = new long[percentiles.length];
+        if(sorted.length == 0)
+            return ret;
+
+        for(int i = 0; i < percentiles.length; i++) {
+            int index = (int) Math.ceil(percentiles[i] / 100.0 * sorted.length) - 1;
+            ret[i] = sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+        return ret;
+    }
+
+    /**
+     * @return samples ever recorded.
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        long[] p = percentiles(50, 95, 99, 100);
+        return "n=" + getTotal() + " p50=" + p[0] + "us p95=" + p[1] + "us p99=" + p[2] + "us max=" + p[3] + "us";
+    }
+}
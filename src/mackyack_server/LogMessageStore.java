@@ -0,0 +1,373 @@
+package mackyack_server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import mackyack_messages.Message;
+import merrimackutil.json.JsonIO;
+
+/**
+ * Stores the board as an append-only log split into segments.
+ *
+ * Every message is one record: [int length][int CRC32 of payload][payload], the payload
+ * being the message's JSON in UTF-8. A put appends one record to the active segment, so
+ * it costs the size of the message rather than the size of the board. Once a segment
+ * reaches segmentBytes it is sealed and a new one is started.
+ *
+ * When enough sealed segments pile up, a background thread folds the newest snapshot and
+ * the sealed segments into a new snapshot (same record format) and deletes what it folded.
+ *
+ * On startup the newest snapshot is read, then every newer segment is replayed. A torn
+ * record at the end of the last segment is what a crash mid-put leaves behind; it is cut
+ * off. A bad record anywhere else is corruption and fails the load.
+ */
+public class LogMessageStore implements MessageStore {
+
+    public final static int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+    private final static int COMPACT_AFTER_SEGMENTS = 4; // Sealed segments that trigger a compaction.
+    private final static int HEADER_BYTES = 8;
+    private final static int BUFFER_BYTES = 64 * 1024;   // Read buffer when replaying a segment or snapshot.
+
+    private final static String SEGMENT_PREFIX = "segment-";
+    private final static String SNAPSHOT_PREFIX = "snapshot-";
+    private final static String SEGMENT_SUFFIX = ".log";
+    private final static String SNAPSHOT_SUFFIX = ".snap";
+    private final static String TMP_SUFFIX = ".tmp";
+
+    private File dir;
+    private int segmentBytes;
+
+    private TreeMap<Long, File> sealed = new TreeMap<>(); // Segment index -> sealed segment not yet compacted.
+    private long activeIndex;
+    private FileChannel active;
+
+    private ExecutorService compactor = Executors.newSingleThreadExecutor(n -> {
+        Thread thread = new Thread(n);
+        thread.setDaemon(true);
+        return thread;
+    });
+    private AtomicBoolean compacting = new AtomicBoolean();
+
+    /**
+     * @param dir directory holding the segments and snapshots, created if missing.
+     * @param segmentBytes size at which a segment is sealed.
+     * @throws IOException if the directory could not be created.
+     */
+    public LogMessageStore(String dir, int segmentBytes) throws IOException {
+        this.dir = new File(dir);
+        this.segmentBytes = segmentBytes;
+
+        Files.createDirectories(this.dir.toPath());
+    }
+
+    @Override
+    public synchronized List<Message> load() throws IOException {
+        List<Message> messages = new ArrayList<>();
+
+        // Snapshots a compaction was writing when it crashed, never renamed into place.
+        File[] partial = dir.listFiles((d, n) -> n.startsWith(SNAPSHOT_PREFIX) && n.endsWith(TMP_SUFFIX));
+        for(File n : partial == null ? new File[0] : partial)
+            Files.deleteIfExists(n.toPath());
+
+        // Newest snapshot, older ones are leftovers of a compaction that crashed before cleaning up.
+        TreeMap<Long, File> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        long snapshotIndex = -1;
+        if(!snapshots.isEmpty()) {
+            snapshotIndex = snapshots.lastKey();
+            readRecords(snapshots.lastEntry().getValue(), messages, false);
+        }
+
+        // Replay every segment the snapshot does not cover.
+        TreeMap<Long, File> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        for(File n : segments.headMap(snapshotIndex, true).values())
+            Files.deleteIfExists(n.toPath());
+
+        segments = new TreeMap<>(segments.tailMap(snapshotIndex, false));
+        activeIndex = snapshotIndex + 1;
+        if(!segments.isEmpty()) {
+            activeIndex = segments.lastKey();
+            for(File n : segments.values())
+                readRecords(n, messages, n.equals(segments.lastEntry().getValue()));
+            segments.remove(activeIndex);
+        }
+        sealed = segments;
+
+        active = FileChannel.open(segment(activeIndex).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return messages;
+    }
+
+    /**
+     * Appends one record to the active segment, sealing it if it is full.
+     * @param message message to store.
+     */
+    @Override
+    public synchronized void append(Message message) throws IOException {
+        appendAll(List.of(message));
+    }
+
+    /**
+     * Appends the records of a batch with one write, sealing the active segment if it is full.
+     * A write that fails is cut off again, so the segment ends where it did.
+     * @param messages messages to store.
+     */
+    @Override
+    public synchronized void appendAll(List<Message> messages) throws IOException {
+        ByteBuffer[] records = new ByteBuffer[messages.size()];
+        long remaining = 0;
+        for(int i = 0; i < records.length; i++) {
+            records[i] = encode(messages.get(i));
+            remaining += records[i].remaining();
+        }
+
+        long start = active.size();
+        try {
+            while(remaining > 0)
+                remaining -= active.write(records);
+        } catch (IOException e) {
+            try {
+                active.truncate(start);
+            } catch (IOException f) {
+                e.addSuppressed(f);
+                throw e;
+            }
+            throw new NotStoredException("Could not append to " + segment(activeIndex) + ".", e);
+        }
+
+        // The batch is stored either way, a segment that could not be sealed is sealed on a later append.
+        try {
+            if(active.size() >= segmentBytes)
+                roll();
+        } catch (IOException e) {
+            System.err.println("Could not seal " + segment(activeIndex) + ": " + e);
+        }
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        active.force(false);
+    }
+
+    /**
+     * Seals the active segment and starts the next one. The active segment stays as it
+     * is until the next one is open.
+     */
+    private void roll() throws IOException {
+        active.force(false);
+        FileChannel next = FileChannel.open(segment(activeIndex + 1).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        FileChannel previous = active;
+        sealed.put(activeIndex, segment(activeIndex));
+
+        activeIndex++;
+        active = next;
+        previous.close();
+
+        if(sealed.size() >= COMPACT_AFTER_SEGMENTS && !compactor.isShutdown() && compacting.compareAndSet(false, true))
+            compactor.execute(this::compact);
+    }
+
+    /**
+     * Folds the newest snapshot and every sealed segment into a new snapshot.
+     * A snapshot has the same records as the segments, so their bytes are copied as they
+     * are with transferTo; the board is never read onto the heap.
+     * Runs on the compactor thread; appends keep going to the active segment meanwhile.
+     */
+    private void compact() {
+        try {
+            TreeMap<Long, File> toFold;
+            synchronized(this) {
+                toFold = new TreeMap<>(sealed);
+            }
+            if(toFold.isEmpty())
+                return;
+            long upTo = toFold.lastKey();
+
+            TreeMap<Long, File> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+
+            // Written aside and renamed, so a crash never leaves a partial snapshot behind.
+            Path tmp = new File(dir, SNAPSHOT_PREFIX + name(upTo) + TMP_SUFFIX).toPath();
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                if(!snapshots.isEmpty())
+                    copy(snapshots.lastEntry().getValue(), out);
+                for(File n : toFold.values())
+                    copy(n, out);
+                out.force(true);
+            }
+            Files.move(tmp, snapshot(upTo).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            MessageStore.syncDirectory(dir.toPath());
+
+            synchronized(this) {
+                sealed.headMap(upTo, true).clear();
+            }
+            for(File n : toFold.values())
+                Files.deleteIfExists(n.toPath());
+            for(File n : snapshots.values())
+                Files.deleteIfExists(n.toPath());
+        } catch (IOException e) {
+            System.err.println("Could not compact message log: " + e);
+        } finally {
+            compacting.set(false);
+        }
+
+        // Segments sealed while this compaction ran may already call for the next one.
+        synchronized(this) {
+            if(sealed.size() >= COMPACT_AFTER_SEGMENTS && !compactor.isShutdown() && compacting.compareAndSet(false, true))
+                compactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Appends the whole of a sealed segment or snapshot to a file.
+     */
+    private static void copy(File file, FileChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            long sent = 0;
+            while(sent < size)
+                sent += in.transferTo(sent, size - sent, out);
+        }
+    }
+
+    /**
+     * Reads every record of a segment or snapshot, one record at a time.
+     * @param file file to read.
+     * @param messages list the messages are appended to.
+     * @param last true if this is the segment that was being appended to, a torn record at its end is cut off.
+     */
+    private void readRecords(File file, List<Message> messages, boolean last) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            // Not closed, that would close the channel before a torn tail is cut off.
+            DataInputStream records = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in), BUFFER_BYTES));
+
+            long start = 0;
+            while(start < size) {
+                byte[] payload = read(records, size - start);
+                Message message = payload == null ? null : decode(payload);
+
+                if(message == null) {
+                    if(!last)
+                        throw new IOException("Corrupt record in " + file + " at offset " + start + ".");
+
+                    System.err.println("Dropping torn record at the end of " + file + " (offset " + start + ").");
+                    in.truncate(start);
+                    in.force(true);
+                    return;
+                }
+                messages.add(message);
+                start += HEADER_BYTES + payload.length;
+            }
+        }
+    }
+
+    /**
+     * @return the record for a message.
+     */
+    private static ByteBuffer encode(Message message) {
+        byte[] payload = message.serialize().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Reads the next record.
+     * @param in the records, positioned at the start of one.
+     * @param remaining bytes left in the file.
+     * @return the record's payload, or null if the record is incomplete or fails its checksum.
+     */
+    private static byte[] read(DataInputStream in, long remaining) throws IOException {
+        if(remaining < HEADER_BYTES)
+            return null;
+
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if(length < 0 || length > remaining - HEADER_BYTES)
+            return null;
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if((int) crc.getValue() != checksum)
+            return null;
+        return payload;
+    }
+
+    /**
+     * @return the message in a record's payload, or null if it is not one.
+     */
+    private static Message decode(byte[] payload) {
+        try {
+            return new Message(JsonIO.readObject(new String(payload, StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lists files of one kind by their index.
+     */
+    private TreeMap<Long, File> list(String prefix, String suffix) {
+        TreeMap<Long, File> ret = new TreeMap<>();
+        File[] files = dir.listFiles((d, n) -> n.startsWith(prefix) && n.endsWith(suffix));
+        if(files == null)
+            return ret;
+
+        for(File n : files) {
+            String index = n.getName().substring(prefix.length(), n.getName().length() - suffix.length());
+            try {
+                ret.put(Long.parseLong(index), n);
+            } catch (NumberFormatException e) {
+                // Not one of ours.
+            }
+        }
+        return ret;
+    }
+
+    private static String name(long index) {
+        return String.format("%020d", index);
+    }
+
+    private File segment(long index) {
+        return new File(dir, SEGMENT_PREFIX + name(index) + SEGMENT_SUFFIX);
+    }
+
+    private File snapshot(long index) {
+        return new File(dir, SNAPSHOT_PREFIX + name(index) + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * Flushes the active segment and stops compacting.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        compactor.shutdown();
+        if(active != null) {
+            active.force(false);
+            active.close();
+        }
+    }
+}
@@ -5,6 +5,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import merrimackutil.cli.LongOption;
 import merrimackutil.cli.OptionParser;
 import merrimackutil.json.JsonIO;
@@ -20,7 +24,11 @@ public class MackYackServer
     public static boolean doHelp = false;               // True if help option present.
     private static ServerConfig conf = null;            // The configuration information.
     private static Messages messages;                   // Data for reading / writing messages
+    private static SnapshotSpool spool;                 // Full-board GETs sent with transferTo, null to send them from memory.
+    private static Boards boards;                       // The default board and the named boards, each with its own store and spool.
+    private static DedupCache dedup;                    // Responses of puts by idempotency key.
     private static String configFile = "./configs/server-config.json";   // Default configuration file.
+    private final static int SHARD_RELOAD_MS = 5000;    // How often a shard router checks its configuration for shards joining or leaving.
 
     private static ServerService serverService;         // Service for managing the servers receiving information
     
@@ -104,7 +112,22 @@ public class MackYackServer
         try
         { 
             conf = new ServerConfig(configFile);
-            messages = new Messages(conf.getMessagesPath());
+
+            // A shard router passes requests on and has no boards of its own.
+            if(!conf.getShards().isEmpty())
+                return;
+
+            messages = new Messages(openStore(conf), conf.getDurability(), conf.getFsyncIntervalMs());
+            if(conf.getResponseMode().equals("transfer"))
+                spool = new SnapshotSpool(conf.getSpoolPath());
+
+            // Every named board gets its own store, writer and spool.
+            boards = new Boards(messages, spool);
+            for(Map.Entry<String, String> n : conf.getBoards().entrySet()) {
+                Messages board = new Messages(openStore(conf, n.getValue()), conf.getDurability(), conf.getFsyncIntervalMs());
+                boards.add(n.getKey(), board, spool == null ? null : new SnapshotSpool(conf.getSpoolPath()));
+            }
+            dedup = new DedupCache(conf.getDedupKeys(), conf.getDedupTtlSeconds());
         }
         catch(InvalidObjectException ex)
         {
@@ -112,13 +135,39 @@ public class MackYackServer
             System.out.println(ex);
             System.exit(1);
         }
-        catch(FileNotFoundException ex)
+        catch(IOException ex)
         {
             System.out.println(ex);
             System.exit(1);
         }
     }
 
+    /**
+     * Opens the store named in the configuration.
+     * @param conf server configuration.
+     * @return store for the board.
+     * @throws IOException if the store could not be opened.
+     */
+    public static MessageStore openStore(ServerConfig conf) throws IOException {
+        return openStore(conf, conf.getMessagesPath());
+    }
+
+    /**
+     * Opens a store of the kind named in the configuration.
+     * @param conf server configuration.
+     * @param path where the board is stored.
+     * @return store for the board.
+     * @throws IOException if the store could not be opened.
+     */
+    public static MessageStore openStore(ServerConfig conf, String path) throws IOException {
+        if(conf.getStore().equals("log"))
+            return new LogMessageStore(path, conf.getSegmentBytes());
+        if(conf.getStore().equals("mapped"))
+            return new MappedMessageStore(path);
+
+        return new JsonMessageStore(path);
+    }
+
         /**
      * Saves the configuration file.
      */
@@ -174,9 +223,128 @@ public class MackYackServer
             System.exit(0);
         }
 
+        if(!conf.getShards().isEmpty()) {
+            ShardRouter router = new ShardRouter(conf.getPort(), conf.getShards());
+            for(Map.Entry<String, List<String>> n : conf.getReplicas().entrySet())
+                router.setReplicas(n.getKey(), n.getValue());
+            System.out.println("Mack Yack shard router built successfully on port: " + conf.getPort() + " for " + router.getShards() + ".");
+            watchShards(router);
+            router.poll();
+            return;
+        }
+
         System.out.println("Mack Yack Server built successfully on port: " + conf.getPort() + ".");
 
-        serverService = new ServerService();
+        reportPutLatency();
+        startReplication();
+
+        if(conf.getTransport().equals("nio"))
+            new NioServerService();
+        else
+            serverService = new ServerService();
+    }
+
+    /**
+     * Prints put latency percentiles every minute there were puts.
+     */
+    private static void reportPutLatency() {
+        Thread reporter = new Thread(() -> {
+            Map<String, Long> reported = new HashMap<>();
+            while(true) {
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                reportPutLatency("", messages, reported);
+                for(Map.Entry<String, Boards.Entry> n : boards.named().entrySet())
+                    reportPutLatency(" on " + n.getKey(), n.getValue().getMessages(), reported);
+            }
+        });
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Streams puts to replicas if this server has a replication port, and copies the
+     * boards from the primary if this server is a replica.
+     * @throws IOException if the replication port could not be bound.
+     */
+    private static void startReplication() throws IOException {
+        if(conf.getReplicationPort() > 0) {
+            ChangeStream stream = new ChangeStream(conf.getReplicationPort(), boards);
+            Thread streamer = new Thread(() -> {
+                try {
+                    stream.poll();
+                } catch (IOException e) {
+                    System.err.println("Stopped streaming puts to replicas: " + e);
+                }
+            }, "change-stream");
+            streamer.setDaemon(true);
+            streamer.start();
+            System.out.println("Streaming puts to replicas on port: " + stream.getPort() + ".");
+        }
+
+        if(conf.getPrimary() != null) {
+            // Every board is copied from the primary, so puts here would be lost.
+            boards.setReadOnly(true);
+            new Replicator(conf.getPrimary(), null, messages).start();
+            for(Map.Entry<String, Boards.Entry> n : boards.named().entrySet())
+                new Replicator(conf.getPrimary(), n.getKey(), n.getValue().getMessages()).start();
+            System.out.println("Replicating the boards of: " + conf.getPrimary() + ".");
+        }
+    }
+
+    /**
+     * Rereads the configuration file whenever it changes and hands its shards to the router,
+     * which keeps the old ones if a board with messages would move. Replicas are updated too.
+     * @param router the shard router.
+     */
+    private static void watchShards(ShardRouter router) {
+        Thread watcher = new Thread(() -> {
+            File file = new File(configFile);
+            long modified = file.lastModified();
+            while(true) {
+                try {
+                    Thread.sleep(SHARD_RELOAD_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if(file.lastModified() == modified)
+                    continue;
+                modified = file.lastModified();
+
+                try {
+                    ServerConfig reloaded = new ServerConfig(configFile);
+                    List<String> shards = reloaded.getShards();
+                    if(!router.getShards().equals(Set.copyOf(shards))) {
+                        Set<String> before = router.getShards();
+                        router.setShards(shards, reloaded.getBoards().keySet());
+                        for(String n : before) {
+                            if(!shards.contains(n))
+                                router.setReplicas(n, List.of());
+                        }
+                        System.out.println("Shards changed to: " + router.getShards());
+                    }
+                    for(String n : shards)
+                        router.setReplicas(n, reloaded.getReplicas().getOrDefault(n, List.of()));
+                } catch (IOException e) {
+                    System.err.println("Kept the shards " + router.getShards() + ": " + e);
+                }
+            }
+        });
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private static void reportPutLatency(String board, Messages messages, Map<String, Long> reported) {
+        LatencyRecorder latency = messages.getPutLatency();
+        if(latency.getTotal() != reported.getOrDefault(board, 0L)) {
+            reported.put(board, latency.getTotal());
+            System.out.println("Put latency" + board + " (" + conf.getDurability() + "): " + latency);
+        }
     }
 
     public static ServerConfig getConf() {
@@ -187,6 +355,18 @@ public class MackYackServer
         return messages;
     }
 
+    public static SnapshotSpool getSpool() {
+        return spool;
+    }
+
+    public static Boards getBoards() {
+        return boards;
+    }
+
+    public static DedupCache getDedup() {
+        return dedup;
+    }
+
     public static ServerService getServerService() {
         return serverService;
     }
@@ -0,0 +1,384 @@
+package mackyack_server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import mackyack_messages.Message;
+import merrimackutil.json.JsonIO;
+
+/**
+ * Stores the board in memory-mapped files and reads it in place, so the heap does not
+ * grow with the board.
+ *
+ * board.dat holds one record per message: [int length][int CRC32 of payload][payload], the
+ * payload being the message's JSON in UTF-8. board.idx starts with the number of records,
+ * then holds a fixed size entry per message: [long offset of its record][long time index key].
+ * Both files are mapped in regions of REGION_BYTES as they grow. Reading message n costs
+ * one index entry and one record, only those pages are touched.
+ *
+ * Pages reach disk in any order, so after a crash any record written since the last sync
+ * may be torn, not only the last one. board.synced holds how many records the last sync
+ * forced. On load every record after those is checked in order, and the board ends
+ * before the first one that does not check out.
+ */
+public class MappedMessageStore implements MessageStore {
+
+    private final static int REGION_BYTES = 64 << 20;
+    private final static int HEADER_BYTES = 8;        // Record header, length and checksum.
+    private final static int INDEX_HEADER_BYTES = 8;  // Number of records.
+    private final static int ENTRY_BYTES = 16;        // Record offset and time index key.
+
+    private final static String DATA_FILE = "board.dat";
+    private final static String INDEX_FILE = "board.idx";
+    private final static String SYNCED_FILE = "board.synced";
+
+    private File dir;
+    private MappedFile data;
+    private MappedFile index;
+    private FileChannel synced;            // Records forced by the last sync, written after they are.
+
+    private int count;                     // Records in the files.
+    private long end;                      // Offset after the last record.
+    private long lastTime = Long.MIN_VALUE; // Time index key of the last record.
+
+    private MappedBoard board;
+
+    /**
+     * A file mapped in regions of REGION_BYTES. Regions are mapped on first use and
+     * grow the file; reads and writes may cross region boundaries.
+     */
+    private static class MappedFile {
+        private FileChannel channel;
+        private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+        private volatile long size;                // Length of the file, nothing is read past it.
+        private int dirtyFrom = Integer.MAX_VALUE; // First region written since the last force.
+
+        MappedFile(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        private MappedByteBuffer region(int i) throws IOException {
+            MappedByteBuffer[] regions = this.regions;
+            if(i < regions.length)
+                return regions[i];
+
+            synchronized(this) {
+                regions = this.regions;
+                if(i >= regions.length) {
+                    regions = Arrays.copyOf(regions, i + 1);
+                    for(int j = this.regions.length; j <= i; j++)
+                        regions[j] = channel.map(FileChannel.MapMode.READ_WRITE, (long) j * REGION_BYTES, REGION_BYTES);
+                    this.regions = regions;
+                    size = Math.max(size, (long) regions.length * REGION_BYTES);
+                }
+                return regions[i];
+            }
+        }
+
+        void read(long pos, byte[] dst) throws IOException {
+            int done = 0;
+            while(done < dst.length) {
+                long at = pos + done;
+                int offset = (int) (at % REGION_BYTES);
+                int n = Math.min(dst.length - done, REGION_BYTES - offset);
+                region((int) (at / REGION_BYTES)).get(offset, dst, done, n);
+                done += n;
+            }
+        }
+
+        void write(long pos, byte[] src) throws IOException {
+            int done = 0;
+            while(done < src.length) {
+                long at = pos + done;
+                int offset = (int) (at % REGION_BYTES);
+                int n = Math.min(src.length - done, REGION_BYTES - offset);
+                dirtyFrom = Math.min(dirtyFrom, (int) (at / REGION_BYTES));
+                region((int) (at / REGION_BYTES)).put(offset, src, done, n);
+                done += n;
+            }
+        }
+
+        // Longs are 8-byte aligned, so they never cross a region.
+        long getLong(long pos) throws IOException {
+            return region((int) (pos / REGION_BYTES)).getLong((int) (pos % REGION_BYTES));
+        }
+
+        void putLong(long pos, long value) throws IOException {
+            dirtyFrom = Math.min(dirtyFrom, (int) (pos / REGION_BYTES));
+            region((int) (pos / REGION_BYTES)).putLong((int) (pos % REGION_BYTES), value);
+        }
+
+        void force() {
+            MappedByteBuffer[] regions = this.regions;
+            for(int i = dirtyFrom; i < regions.length; i++)
+                regions[i].force();
+            dirtyFrom = Integer.MAX_VALUE;
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * The board read from the mapped files. Messages are only put on it once the writer
+     * has stored them, so every message on it is read from the files.
+     */
+    private class MappedBoard implements Board {
+        private volatile int size;
+
+        MappedBoard(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Message get(int seq) {
+            return decode(seq);
+        }
+
+        @Override
+        public long time(int seq) {
+            try {
+                return index.getLong(entry(seq) + 8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public String serialize(int version) {
+            StringBuilder ret = new StringBuilder();
+            for(int i = 0; i < version; i++) {
+                if(i > 0)
+                    ret.append(',');
+                ret.append(new String(payload(i), StandardCharsets.UTF_8));
+            }
+            return ret.toString();
+        }
+
+        @Override
+        public void writeTo(int version, WritableByteChannel out) throws IOException {
+            ByteBuffer comma = ByteBuffer.wrap(new byte[] { ',' });
+            for(int i = 0; i < version; i++) {
+                if(i > 0) {
+                    comma.rewind();
+                    while(comma.hasRemaining())
+                        out.write(comma);
+                }
+
+                // Records are copied file to file, without passing through the heap.
+                long offset = index.getLong(entry(i));
+                long length = length(i);
+                long sent = 0;
+                while(sent < length)
+                    sent += data.channel.transferTo(offset + HEADER_BYTES + sent, length - sent, out);
+            }
+        }
+
+        @Override
+        public void add(Message message) {
+            addAll(List.of(message));
+        }
+
+        @Override
+        public void addAll(List<Message> messages) {
+            size += messages.size();
+        }
+    }
+
+    /**
+     * @param dir directory holding board.dat and board.idx, created if missing.
+     * @throws IOException if the directory could not be created.
+     */
+    public MappedMessageStore(String dir) throws IOException {
+        this.dir = new File(dir);
+
+        Files.createDirectories(this.dir.toPath());
+    }
+
+    /**
+     * Maps the files and checks the records written since the last sync. Nothing else is read.
+     * @return the stored board, read from the files on access.
+     */
+    @Override
+    public synchronized List<Message> load() throws IOException {
+        data = new MappedFile(new File(dir, DATA_FILE));
+        index = new MappedFile(new File(dir, INDEX_FILE));
+        synced = FileChannel.open(new File(dir, SYNCED_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        int stored = (int) index.getLong(0);
+        ByteBuffer watermark = ByteBuffer.allocate(8);
+        synced.read(watermark, 0);
+        int checked = watermark.position() == 8 ? (int) Math.min(watermark.getLong(0), stored) : 0;
+        while(checked < stored && valid(checked))
+            checked++;
+        if(checked < stored)
+            System.err.println("Dropping torn records " + checked + " to " + (stored - 1) + " of " + new File(dir, DATA_FILE) + ".");
+        count = checked;
+        index.putLong(0, count);
+
+        end = 0;
+        if(count > 0) {
+            end = index.getLong(entry(count - 1)) + HEADER_BYTES + length(count - 1);
+            lastTime = index.getLong(entry(count - 1) + 8);
+        }
+
+        board = new MappedBoard(count);
+        return board.view(0, count);
+    }
+
+    @Override
+    public Board board() {
+        return board;
+    }
+
+    @Override
+    public synchronized void append(Message message) throws IOException {
+        appendAll(List.of(message));
+    }
+
+    /**
+     * Writes a record and an index entry per message, then counts them all at once.
+     * Until they are counted they are past the end of the board; if writing them fails
+     * they are left there uncounted and written over by the next batch.
+     * @param messages messages to store.
+     */
+    @Override
+    public synchronized void appendAll(List<Message> messages) throws IOException {
+        long stored = end;
+        long storedTime = lastTime;
+        try {
+            int seq = count;
+            for(Message n : messages) {
+                byte[] payload = n.serialize().getBytes(StandardCharsets.UTF_8);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+
+                ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+                record.putInt(payload.length);
+                record.putInt((int) crc.getValue());
+                record.put(payload);
+                data.write(end, record.array());
+
+                lastTime = BoardSnapshot.timeKey(n, lastTime);
+                index.putLong(entry(seq), end);
+                index.putLong(entry(seq) + 8, lastTime);
+                end += record.capacity();
+                seq++;
+            }
+            index.putLong(0, seq);
+            count = seq;
+        } catch (IOException e) {
+            end = stored;
+            lastTime = storedTime;
+            throw new NotStoredException("Could not append to " + new File(dir, DATA_FILE) + ".", e);
+        }
+    }
+
+    /**
+     * Forces the records, then the index that counts them, then notes how many are forced.
+     * The note itself reaches disk with a later sync or whenever the OS writes it, until
+     * then load checks more records than it needs to.
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+        data.force();
+        index.force();
+        synced.write(ByteBuffer.allocate(8).putLong(0, count), 0);
+    }
+
+    /**
+     * @return offset of the index entry of a record.
+     */
+    private static long entry(int seq) {
+        return INDEX_HEADER_BYTES + (long) seq * ENTRY_BYTES;
+    }
+
+    private int length(int seq) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        data.read(index.getLong(entry(seq)), header);
+        return ByteBuffer.wrap(header).getInt();
+    }
+
+    /**
+     * @return the payload of a stored record.
+     * @throws UncheckedIOException if the record fails its checksum.
+     */
+    private byte[] payload(int seq) {
+        try {
+            long offset = index.getLong(entry(seq));
+            byte[] header = new byte[HEADER_BYTES];
+            data.read(offset, header);
+            ByteBuffer buf = ByteBuffer.wrap(header);
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if(length < 0 || offset + HEADER_BYTES + length > data.size)
+                throw new IOException("Corrupt record " + seq + " in " + new File(dir, DATA_FILE) + ".");
+
+            byte[] payload = new byte[length];
+            data.read(offset + HEADER_BYTES, payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if((int) crc.getValue() != checksum)
+                throw new IOException("Corrupt record " + seq + " in " + new File(dir, DATA_FILE) + ".");
+            return payload;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Message decode(int seq) {
+        try {
+            return new Message(JsonIO.readObject(new String(payload(seq), StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return true if a record follows the one before it and passes its checksum.
+     */
+    private boolean valid(int seq) throws IOException {
+        long expected = seq > 0 ? index.getLong(entry(seq - 1)) + HEADER_BYTES + length(seq - 1) : 0;
+        if(index.getLong(entry(seq)) != expected)
+            return false;
+
+        try {
+            decode(seq);
+            return true;
+        } catch (UncheckedIOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Forces and closes the files. The mappings themselves go once they are collected.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(data != null) {
+            sync();
+            synced.force(false);
+            data.close();
+            index.close();
+            synced.close();
+        }
+    }
+}
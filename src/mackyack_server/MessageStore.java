@@ -0,0 +1,70 @@
+package mackyack_server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import mackyack_messages.Message;
+
+/**
+ * Where the board is persisted. Messages keeps the board in memory, unless the store
+ * reads it in place, and hands every new message to its store, in board order, from
+ * a single writer thread. Messages go on the board only once the store has them.
+ *
+ * A store that fails to persist messages throws NotStoredException if it is left as it
+ * was, so the messages can be dropped and later ones appended after the earlier ones.
+ * Any other IOException may leave some of them stored.
+ */
+public interface MessageStore extends Closeable {
+
+    /**
+     * Reads the board back, recovering from a crash if needed.
+     * @return every message that was stored, oldest first.
+     * @throws IOException if the store could not be read.
+     */
+    List<Message> load() throws IOException;
+
+    /**
+     * Persists a message added to the end of the board.
+     * @param message message to store.
+     * @throws NotStoredException if the message could not be stored and the store is as it was.
+     * @throws IOException if the message could not be stored, it may be partly stored.
+     */
+    void append(Message message) throws IOException;
+
+    /**
+     * Persists messages added to the end of the board, in order, all of them or none.
+     * @param messages messages to store.
+     * @throws NotStoredException if the messages could not be stored and the store is as it was.
+     * @throws IOException if the messages could not be stored, some of them may be stored.
+     */
+    void appendAll(List<Message> messages) throws IOException;
+
+    /**
+     * Forces everything appended so far to disk.
+     * @throws IOException if the store could not be synced.
+     */
+    void sync() throws IOException;
+
+    /**
+     * @return a board reading the stored messages in place, valid after load(),
+     * or null to keep the board on the heap.
+     */
+    default Board board() {
+        return null;
+    }
+
+    /**
+     * Forces a directory's entries to disk, so a file created or renamed in it survives a crash.
+     * @param dir the directory.
+     * @throws IOException if the directory could not be synced.
+     */
+    static void syncDirectory(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
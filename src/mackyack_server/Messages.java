@@ -1,59 +1,208 @@
 package mackyack_server;
 
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InvalidObjectException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
-import mackyack_client.Router;
 import mackyack_messages.Message;
 import merrimackutil.json.JSONSerializable;
-import merrimackutil.json.JsonIO;
 import merrimackutil.json.types.JSONArray;
 import merrimackutil.json.types.JSONObject;
 import merrimackutil.json.types.JSONType;
 
+/**
+ * The message board. Kept in memory unless the store reads the board in place,
+ * every new message is handed to a MessageStore.
+ */
 public class Messages implements JSONSerializable {
 
-    private String path;
+    private MessageStore store;
+    private GroupCommitter committer;
+    private LatencyRecorder putLatency = new LatencyRecorder(10000);
 
-    private List<Message> messages = new ArrayList<>();
+    // Reads go through a snapshot, so request threads never see a board that is being appended to.
+    // Nothing on the read path locks: the writer thread puts messages on the board once they are
+    // stored, so board and store are in the same order.
+    private volatile Board board = new HeapBoard(new ArrayList<>());
+    private volatile String epoch = newEpoch(); // Tells versions of this board from those of a board loaded before it, see BoardSnapshot.getETag.
 
-    public Messages(String path) throws FileNotFoundException, InvalidObjectException {
-        this.path = path;
+    private AtomicReference<BoardSnapshot> snapshot = new AtomicReference<>(); // Latest snapshot, stale once the board grows past it.
+    private Map<CompletableFuture<Void>, Integer> waiting = new ConcurrentHashMap<>(); // Subscribers by the version they wait to see passed.
 
-        // Construct file
-        File file = new File(path);
+    /**
+     * Loads the board from a messages.json file.
+     * @param path path of the messages.json file.
+     */
+    public Messages(String path) throws IOException {
+        this(new JsonMessageStore(path));
+    }
 
-        if (file == null || !file.exists()) {
-            throw new FileNotFoundException(
-                    "File from path for Config does not point to a valid configuration json file.");
-        }
+    /**
+     * Loads the board from a store, puts are synced before they are acknowledged.
+     * @param store where the board is persisted.
+     * @throws IOException if the store could not be read.
+     */
+    public Messages(MessageStore store) throws IOException {
+        this(store, GroupCommitter.FSYNC_PER_BATCH, 1000);
+    }
 
-        // Construct JSON Object and load configuration
-        JSONObject obj = JsonIO.readObject(file);
-        deserialize(obj);
+    /**
+     * Loads the board from a store.
+     * @param store where the board is persisted.
+     * @param durability when a put is acknowledged, see GroupCommitter.
+     * @param fsyncIntervalMs longest time a put stays unsynced with GroupCommitter.FSYNC_INTERVAL.
+     * @throws IOException if the store could not be read.
+     */
+    public Messages(MessageStore store, String durability, long fsyncIntervalMs) throws IOException {
+        this.store = store;
+        List<Message> loaded = store.load();
+        this.board = store.board() != null ? store.board() : new HeapBoard(loaded);
+        this.committer = new GroupCommitter(store, durability, fsyncIntervalMs, this::publish);
     }
 
     /**
-     * Adds a message to the messages list,
-     * then updates the messages.json file.
+     * Adds a message to the messages list once the store has it as durably as configured,
+     * then waits until it is there.
+     * Safe to call from many request threads at once; puts waiting together share one write.
      * @param message
-     * @throws FileNotFoundException 
+     * @throws IOException see addMessages.
+     */
+    public void addMessage(Message message) throws IOException {
+        addMessages(List.of(message));
+    }
+
+    /**
+     * Adds messages to the messages list together: GETs and subscribers see all of them
+     * or none, and the store gets them in one write. They go on the board only once the
+     * store has them as durably as configured, this waits until they are there (with
+     * GroupCommitter.ASYNC only until they are queued).
+     * @param messages messages in the order they are added.
+     * @throws NotStoredException if the messages were dropped: not stored and not on the board.
+     * @throws IOException if the store failed otherwise: the messages are not on the board
+     * but may be in the store. An InterruptedIOException means they may still be added.
+     */
+    public void addMessages(List<Message> messages) throws IOException {
+        long start = System.nanoTime();
+
+        CompletableFuture<Void> published = committer.appendAll(messages);
+        try {
+            published.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on the store.");
+        }
+
+        putLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Waits until every put made so far is on the board or dropped. Only needed with
+     * GroupCommitter.ASYNC, where puts return before that.
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    public void flush() throws InterruptedIOException {
+        try {
+            committer.flush().get();
+        } catch (ExecutionException e) {
+            // flush never fails.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on the store.");
+        }
+    }
+
+    /**
+     * Puts a batch the store has on the board, called by the writer thread in store order.
+     * @param messages messages in the order they were stored.
+     */
+    private void publish(List<Message> messages) {
+        synchronized(this) {
+            board.addAll(messages);
+        }
+
+        // Subscribers see the messages as soon as GETs do. One that registers after this
+        // sees the new size instead, see changedAfter.
+        int size = board.size();
+        for(Map.Entry<CompletableFuture<Void>, Integer> n : waiting.entrySet()) {
+            if(size > n.getValue())
+                n.getKey().complete(null);
+        }
+    }
+
+    /**
+     * @return the board at its current version. Built at most once per version.
+     */
+    public BoardSnapshot getSnapshot() {
+        while(true) {
+            // Read before the size, so a snapshot published meanwhile is never replaced by an older one.
+            BoardSnapshot current = snapshot.get();
+            Board board = this.board;
+            int version = board.size();
+            if(current != null && current.getVersion() == version && current.getBoard() == board && current.getEpoch() == epoch)
+                return current;
+
+            // Taking a snapshot is cheap, its JSON is only built by the one that gets published.
+            BoardSnapshot next = new BoardSnapshot(version, board, epoch);
+            if(snapshot.compareAndSet(current, next))
+                return next;
+        }
+    }
+
+    /**
+     * @param version a version of the board.
+     * @return future completed once the board has more than {@code version} messages.
+     */
+    public CompletableFuture<Void> changedAfter(int version) {
+        if(board.size() > version)
+            return CompletableFuture.completedFuture(null);
+
+        // Registered before checking again, so a put either sees it or is seen.
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        waiting.put(future, version);
+        future.whenComplete((res, ex) -> waiting.remove(future));
+        if(board.size() > version)
+            future.complete(null);
+        return future;
+    }
+
+    /**
+     * Takes the epoch of the board this is a copy of, so ETags and cursors from either board
+     * are good on both. Only for a replica, whose board is always a prefix of the primary's.
+     * @param epoch epoch of the primary's board, see BoardSnapshot.getETag.
      */
-    public void addMessage(Message message) throws FileNotFoundException {
-        messages.add(message);
-        writeToFile();
+    public synchronized void setEpoch(String epoch) {
+        this.epoch = epoch;
     }
 
-    private void writeToFile() throws FileNotFoundException {
-        JsonIO.writeSerializedObject(this, new File(path));
+    /**
+     * @return a new random epoch. Every start of the server gets one, since the board it loads
+     * may not be the one it served before.
+     */
+    private static String newEpoch() {
+        return UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    /**
+     * Writes and syncs pending puts, then closes the store.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        committer.close();
+        store.close();
     }
 
     @Override
     public void deserialize(JSONType arg0) throws InvalidObjectException {
-        messages = new ArrayList<>(); // new List since this file can be written to
         if(!(arg0 instanceof JSONObject)) {
             throw new InvalidObjectException("Messages is not an instance of JSONObject");
         }
@@ -64,6 +213,7 @@ public class Messages implements JSONSerializable {
             throw new InvalidObjectException("Messages array not present");
         }
 
+        List<Message> messages = new ArrayList<>(); // new List since this file can be written to
         JSONArray arr = obj.getArray("messages");
         for(Object n : arr) {
 
@@ -71,9 +221,14 @@ public class Messages implements JSONSerializable {
                 throw new InvalidObjectException("Array element is not an instance of JSONObject");
             }
 
-            JSONObject e = (JSONObject) n;
+            messages.add(new Message((JSONObject) n));
+        }
 
-            messages.add(new Message(e.getString("data"), e.getString("timestamp")));
+        // Puts go to one board or the other, never half to each. The epoch changes first,
+        // so a snapshot of the new board never carries the old one's.
+        synchronized(this) {
+            this.epoch = newEpoch();
+            this.board = new HeapBoard(messages);
         }
     }
 
@@ -90,7 +245,7 @@ public class Messages implements JSONSerializable {
         JSONObject o = new JSONObject();
 
         JSONArray arr = new JSONArray();
-        for(Message n : messages) {
+        for(Message n : getMessages()) {
                 arr.add(n.toJSONType());
         }
 
@@ -103,7 +258,18 @@ public class Messages implements JSONSerializable {
      * Accessors
      */
 
+    /**
+     * @return the messages on the board, safe to iterate while messages are added.
+     */
     public List<Message> getMessages() {
-        return messages;
+        Board board = this.board;
+        return board.view(0, board.size());
+    }
+
+    /**
+     * @return latency of recent puts, from being handed to the board to being acknowledged.
+     */
+    public LatencyRecorder getPutLatency() {
+        return putLatency;
     }
 }
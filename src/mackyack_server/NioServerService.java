@@ -0,0 +1,340 @@
+package mackyack_server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import mackyack_messages.MessageCodec;
+
+/**
+ * Selector driven transport for the MackYack server.
+ * One thread reads request frames (one line of JSON or one binary frame each, see
+ * MessageCodec) and writes responses without
+ * blocking, a worker pool runs the requests against the board. A connection costs a buffer
+ * until it sends a frame, so many exit ORs can keep connections open at once.
+ */
+public class NioServerService {
+
+    private final static int MAX_FRAME_BYTES = 1 << 20; // Longest request frame accepted before the connection is dropped.
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private RequestHandler handler;
+    private ThreadPoolExecutor workers;
+    private Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>(); // Work the selector thread picks up after a wakeup.
+
+    /**
+     * State of one open connection. Only touched by the selector thread.
+     */
+    private static class Connection {
+        SocketChannel channel;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(); // Current request frame, a line without its newline.
+        Queue<byte[]> frames = new ArrayDeque<>();                 // Complete request frames not handled yet.
+        boolean binary;     // The current frame is a binary one.
+        boolean sized;      // The length of the binary frame has been read.
+        long length;        // Length of the binary frame, in whole once sized.
+        int shift;          // Bits of the length read so far.
+        Queue<ResponseFrame> out = new ArrayDeque<>();             // Responses not fully written yet.
+        long written;                                              // Bytes of the first response written.
+        boolean busy;   // A worker is handling a frame, frames are answered in order.
+        boolean eof;    // The peer will not send any more frames.
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Serves the boards from the server config until the process exits.
+     * @throws IOException
+     */
+    public NioServerService() throws IOException {
+        this(MackYackServer.getConf().getPort(), MackYackServer.getConf().getWorkerThreads(), MackYackServer.getConf().getMaxQueuedRequests(), MackYackServer.getBoards(), MackYackServer.getDedup());
+        poll();
+    }
+
+    /**
+     * Binds the server without accepting connections yet, see {@link #poll()}.
+     * @param port port to accept requests on, 0 for any free port.
+     * @param workerThreads threads handling requests at once.
+     * @param maxQueuedRequests requests that may wait for a worker.
+     * @param messages board the requests read and write.
+     * @throws IOException
+     */
+    public NioServerService(int port, int workerThreads, int maxQueuedRequests, Messages messages) throws IOException {
+        this(port, workerThreads, maxQueuedRequests, messages, null);
+    }
+
+    /**
+     * Binds the server without accepting connections yet, see {@link #poll()}.
+     * @param port port to accept requests on, 0 for any free port.
+     * @param workerThreads threads handling requests at once.
+     * @param maxQueuedRequests requests that may wait for a worker.
+     * @param messages board the requests read and write.
+     * @param spool spool full-board GETs are sent from with transferTo, null to send them from memory.
+     * @throws IOException
+     */
+    public NioServerService(int port, int workerThreads, int maxQueuedRequests, Messages messages, SnapshotSpool spool) throws IOException {
+        this(port, workerThreads, maxQueuedRequests, messages, spool, new DedupCache(DedupCache.DEFAULT_KEYS, DedupCache.DEFAULT_TTL_SECONDS));
+    }
+
+    /**
+     * Binds the server without accepting connections yet, see {@link #poll()}.
+     * @param port port to accept requests on, 0 for any free port.
+     * @param workerThreads threads handling requests at once.
+     * @param maxQueuedRequests requests that may wait for a worker.
+     * @param messages board the requests read and write.
+     * @param spool spool full-board GETs are sent from with transferTo, null to send them from memory.
+     * @param dedup responses of puts by idempotency key.
+     * @throws IOException
+     */
+    public NioServerService(int port, int workerThreads, int maxQueuedRequests, Messages messages, SnapshotSpool spool, DedupCache dedup) throws IOException {
+        this(port, workerThreads, maxQueuedRequests, new Boards(messages, spool), dedup);
+    }
+
+    /**
+     * Binds the server without accepting connections yet, see {@link #poll()}.
+     * @param port port to accept requests on, 0 for any free port.
+     * @param workerThreads threads handling requests at once.
+     * @param maxQueuedRequests requests that may wait for a worker.
+     * @param boards boards the requests read and write.
+     * @param dedup responses of puts by idempotency key.
+     * @throws IOException
+     */
+    public NioServerService(int port, int workerThreads, int maxQueuedRequests, Boards boards, DedupCache dedup) throws IOException {
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port));
+        this.server.configureBlocking(false);
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+        this.handler = new RequestHandler(boards, dedup);
+
+        // Once the queue is full a request is rejected and its connection closed, the selector
+        // thread never runs a request itself.
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(maxQueuedRequests));
+    }
+
+    /**
+     * Runs the selector loop until the server is closed.
+     * @throws IOException
+     */
+    public void poll() throws IOException {
+        while(server.isOpen()) {
+            selector.select();
+
+            Runnable task;
+            while((task = selectorTasks.poll()) != null)
+                task.run();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                try {
+                    if(!key.isValid())
+                        continue;
+                    if(key.isAcceptable())
+                        accept();
+                    else {
+                        if(key.isReadable())
+                            read(key);
+                        if(key.isValid() && key.isWritable())
+                            write(key);
+                    }
+                } catch (IOException e) {
+                    close(key);
+                }
+            }
+        }
+
+        for(SelectionKey key : selector.keys())
+            close(key);
+        selector.close();
+    }
+
+    /**
+     * Accepts every pending connection.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+        }
+    }
+
+    /**
+     * Reads what the peer sent and splits it into request frames.
+     */
+    private void read(SelectionKey key) throws IOException {
+        Connection conn = (Connection) key.attachment();
+
+        int read = conn.channel.read(conn.in);
+        if(read < 0) {
+            conn.eof = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        conn.in.flip();
+        while(conn.in.hasRemaining()) {
+            byte b = conn.in.get();
+            if(conn.binary) {
+                conn.frame.write(b);
+                if(!conn.sized) {
+                    // Still in the varint length.
+                    conn.length |= (long) (b & 0x7F) << conn.shift;
+                    conn.shift += 7;
+                    if(conn.length > MAX_FRAME_BYTES || (conn.shift > 28 && (b & 0x80) != 0))
+                        throw new IOException("Request frame too long.");
+                    if((b & 0x80) == 0) {
+                        conn.sized = true;
+                        conn.length += conn.frame.size(); // Now the length of the whole frame.
+                    }
+                }
+                if(conn.sized && conn.frame.size() == conn.length) {
+                    conn.frames.add(conn.frame.toByteArray());
+                    conn.frame.reset();
+                    conn.binary = false;
+                }
+            } else if(conn.frame.size() == 0 && (b & 0xFF) == MessageCodec.MAGIC) {
+                conn.frame.write(b);
+                conn.binary = true;
+                conn.sized = false;
+                conn.length = 0;
+                conn.shift = 0;
+            } else if(b == '\n') {
+                conn.frames.add(conn.frame.toByteArray());
+                conn.frame.reset();
+            } else if(b != '\r') {
+                conn.frame.write(b);
+            }
+        }
+        conn.in.clear();
+
+        if(conn.frame.size() > MAX_FRAME_BYTES)
+            throw new IOException("Request frame too long.");
+
+        dispatch(key);
+    }
+
+    /**
+     * Hands the next frame of a connection to a worker if none is being handled.
+     */
+    private void dispatch(SelectionKey key) {
+        Connection conn = (Connection) key.attachment();
+        if(conn.busy)
+            return;
+
+        byte[] frame = conn.frames.poll();
+        if(frame == null) {
+            // Nothing left to answer for a peer that is done sending.
+            if(conn.eof && conn.out.isEmpty())
+                close(key);
+            return;
+        }
+
+        // A subscription completes later, the worker moves on meanwhile.
+        conn.busy = true;
+        try {
+            workers.execute(() -> handler.respondAsync(frame, workers).whenComplete((response, ex) -> {
+                // Failed requests are answered with an ErrorResponse, so this is a bug in the handler.
+                if(ex != null)
+                    System.err.println("Could not handle request: " + ex);
+
+                selectorTasks.add(() -> {
+                    conn.busy = false;
+                    if(!key.isValid()) {
+                        if(response != null)
+                            response.release();
+                        return;
+                    }
+
+                    // A connection whose request got no response would wait for it forever.
+                    if(response == null) {
+                        close(key);
+                        return;
+                    }
+
+                    conn.out.add(response);
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    dispatch(key);
+                });
+                selector.wakeup();
+            }));
+        } catch (RejectedExecutionException e) {
+            // Saturated, or shutting down. The exit OR sees the connection closed.
+            System.err.println("Too many requests, closing connection.");
+            close(key);
+        }
+    }
+
+    /**
+     * Writes as much of the queued responses as the socket takes without blocking.
+     */
+    private void write(SelectionKey key) throws IOException {
+        Connection conn = (Connection) key.attachment();
+
+        while(!conn.out.isEmpty()) {
+            ResponseFrame frame = conn.out.peek();
+            conn.written += frame.writeTo(conn.channel, conn.written);
+            if(conn.written < frame.size())
+                return;
+
+            conn.out.poll().release();
+            conn.written = 0;
+        }
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+        if(conn.eof && !conn.busy && conn.frames.isEmpty())
+            close(key);
+    }
+
+    private void close(SelectionKey key) {
+        // Responses that will not be sent let go of their spooled files.
+        if(key.attachment() instanceof Connection) {
+            Connection conn = (Connection) key.attachment();
+            ResponseFrame frame;
+            while((frame = conn.out.poll()) != null)
+                frame.release();
+        }
+
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) { }
+    }
+
+    /**
+     * Stops accepting connections and lets the workers finish the requests they have.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        server.close();
+        workers.shutdown();
+        selector.wakeup();
+    }
+
+    /**
+     * @return the port the server accepts requests on.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+}
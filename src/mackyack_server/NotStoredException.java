@@ -0,0 +1,22 @@
+package mackyack_server;
+
+import java.io.IOException;
+
+/**
+ * A put that failed without leaving anything behind: none of its messages were stored or
+ * put on the board, so it can be retried as if it had never been sent.
+ *
+ * Any other IOException from a put means its messages may have been stored.
+ */
+public class NotStoredException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public NotStoredException(String message) {
+        super(message);
+    }
+
+    public NotStoredException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,149 @@
+package mackyack_server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import mackyack_messages.Message;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Keeps a replica's copy of one board by tailing the primary's ChangeStream.
+ *
+ * The copy is eventually consistent: it is always a prefix of the primary's board, and
+ * catches up as the primary's puts arrive. Each version's messages are added at once, so a
+ * GET of the replica never sees half of a batch. The copy takes the primary's epoch, so
+ * ETags and cursors are good on the primary and all of its replicas.
+ *
+ * A dropped stream is reconnected from the messages the copy has. A copy that is not a
+ * prefix of the primary's board is left alone and no longer replicated.
+ */
+public class Replicator {
+
+    private final static int RETRY_MS = 1000; // Wait before reconnecting to the primary.
+
+    private String host;
+    private int port;
+    private String board;      // Board name, null for the default board.
+    private Messages messages; // The copy.
+
+    private volatile boolean closed;
+    private volatile Socket socket;
+    private Thread thread;
+
+    /**
+     * @param primary change stream of the primary as "host:port".
+     * @param board board to copy, null for the default board.
+     * @param messages the replica's board, added to by nothing else.
+     */
+    public Replicator(String primary, String board, Messages messages) {
+        int colon = primary.lastIndexOf(':');
+        this.host = primary.substring(0, colon);
+        this.port = Integer.parseInt(primary.substring(colon + 1));
+        this.board = board;
+        this.messages = messages;
+    }
+
+    /**
+     * Starts following the primary in the background.
+     */
+    public void start() {
+        thread = new Thread(this::run, "replicator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while(!closed) {
+            try {
+                if(!follow())
+                    return;
+            } catch (IOException e) {
+                if(!closed)
+                    System.err.println("Lost the primary of board " + name() + ", reconnecting: " + e);
+            }
+
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Follows the primary's stream until it ends.
+     * @return false if the copy cannot follow the primary any more.
+     */
+    private boolean follow() throws IOException {
+        try (Socket sock = new Socket(host, port)) {
+            socket = sock;
+            if(closed)
+                return false;
+            sock.setSoTimeout(ChangeStream.HEARTBEAT_MS * 3);
+
+            BufferedReader input = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter output = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream(), StandardCharsets.UTF_8));
+
+            // Puts still queued from the last stream would be asked for again.
+            messages.flush();
+            BoardSnapshot snapshot = messages.getSnapshot();
+            JSONObject hello = new JSONObject();
+            if(board != null)
+                hello.put("board", board);
+            hello.put("since", snapshot.getVersion());
+            if(snapshot.getVersion() > 0)
+                hello.put("last", snapshot.getMessages().get(snapshot.getVersion() - 1).toJSONType());
+            output.write(hello.toJSON());
+            output.newLine();
+            output.flush();
+
+            String line = input.readLine();
+            if(line == null)
+                return true;
+            JSONObject header = JsonIO.readObject(line);
+            if(header.containsKey("error")) {
+                System.err.println("Stopped replicating board " + name() + ": " + header.getString("error"));
+                return false;
+            }
+            messages.setEpoch(header.getString("epoch"));
+
+            List<Message> pending = new ArrayList<>();
+            while((line = input.readLine()) != null) {
+                JSONObject obj = JsonIO.readObject(line);
+                for(Object n : obj.getArray("messages"))
+                    pending.add(new Message((JSONObject) n));
+                if(obj.containsKey("more") || pending.isEmpty())
+                    continue;
+
+                messages.addMessages(pending);
+                pending = new ArrayList<>();
+            }
+            return true;
+        }
+    }
+
+    private String name() {
+        return board == null ? "(default)" : board;
+    }
+
+    /**
+     * Stops following the primary.
+     */
+    public void close() {
+        closed = true;
+        try {
+            if(socket != null)
+                socket.close();
+        } catch (IOException e) { }
+        if(thread != null)
+            thread.interrupt();
+    }
+}
@@ -0,0 +1,305 @@
+package mackyack_server;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import mackyack_messages.ErrorResponse;
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.Message;
+import mackyack_messages.MessageCodec;
+import mackyack_messages.PutBatchRequest;
+import mackyack_messages.PutBatchResponse;
+import mackyack_messages.PutRequest;
+import mackyack_messages.PutResponse;
+import mackyack_messages.SubscribeRequest;
+import mackyack_messages.SubscribeResponse;
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Performs application requests against the boards. Shared by every transport,
+ * safe to call from many threads at once. A request's "id" is echoed back in its
+ * response, so clients can match responses to requests. A request sent as a binary
+ * frame is answered with one if its response has a binary form, see MessageCodec.
+ */
+public class RequestHandler {
+
+    public final static int MAX_ID_LENGTH = 64; // Longest request id echoed back.
+    private final static Pattern REQUEST_ID = Pattern.compile("[A-Za-z0-9_-]{1," + MAX_ID_LENGTH + "}");
+
+    private Boards boards;       // Boards by name, each with its own spool.
+    private DedupCache dedup;    // Responses of puts by board and idempotency key.
+
+    public RequestHandler(Messages messages) {
+        this(messages, null);
+    }
+
+    /**
+     * @param messages board the requests read and write.
+     * @param spool spool for full-board GETs, null to send them from memory.
+     */
+    public RequestHandler(Messages messages, SnapshotSpool spool) {
+        this(messages, spool, new DedupCache(DedupCache.DEFAULT_KEYS, DedupCache.DEFAULT_TTL_SECONDS));
+    }
+
+    /**
+     * @param messages board the requests read and write.
+     * @param spool spool for full-board GETs, null to send them from memory.
+     * @param dedup responses of puts by idempotency key.
+     */
+    public RequestHandler(Messages messages, SnapshotSpool spool, DedupCache dedup) {
+        this(new Boards(messages, spool), dedup);
+    }
+
+    /**
+     * @param boards boards the requests read and write.
+     * @param dedup responses of puts by idempotency key.
+     */
+    public RequestHandler(Boards boards, DedupCache dedup) {
+        this.boards = boards;
+        this.dedup = dedup;
+    }
+
+    /**
+     * Constructs a message object to be sent
+     * @param data
+     * @return
+     */
+    private Message createMessage(String data) {
+
+        LocalDateTime now = LocalDateTime.now();
+        return new Message(data, Message.TIMESTAMP_FORMAT.format(now));
+    }
+
+    /**
+     * Performs a request against the board it names.
+     * @param obj request received.
+     * @return the response line, to be released once sent, or null if the request is not supported.
+     * @throws IOException
+     */
+    public ResponseFrame handle(JSONObject obj) throws IOException {
+        return handle(obj, false);
+    }
+
+    /**
+     * Performs a request against the board it names.
+     * @param obj request received.
+     * @param binary true to answer with a binary frame if the response has a binary form.
+     * @return the response, to be released once sent, or null if the request is not supported.
+     * @throws IOException
+     */
+    public ResponseFrame handle(JSONObject obj, boolean binary) throws IOException {
+        JSONSerializable ret = null;
+        switch(obj.getString("messagetype")) {
+            case "getrequest": {
+                GetRequest req = new GetRequest(obj);
+                Boards.Entry board = boards.get(req.getBoard());
+                // Every full GET between two puts shares one serialized response.
+                return encode(board.getMessages().getSnapshot().read(req), board.getSpool(), binary);
+            }
+            case "putrequest": {
+                // Deserialize the message
+                PutRequest req = new PutRequest(obj);
+                checkWritable();
+                Messages messages = boards.get(req.getBoard()).getMessages();
+                // A retry of a put that is already on the board gets the same response.
+                ret = dedup.apply(dedupKey(req.getBoard(), req.getKey()), () -> {
+                    // Create a new message and append to Messages array.
+                    Message putMessage = createMessage(req.getData());
+                    messages.addMessage(putMessage);
+                    // Send a PutResponse
+                    return new PutResponse();
+                });
+            }; break;
+            case "putbatchrequest": {
+                PutBatchRequest req = new PutBatchRequest(obj);
+                checkWritable();
+                Messages messages = boards.get(req.getBoard()).getMessages();
+                ret = dedup.apply(dedupKey(req.getBoard(), req.getKey()), () -> {
+                    // Every message of the batch is stamped with the same time and added at once.
+                    String timestamp = Message.TIMESTAMP_FORMAT.format(LocalDateTime.now());
+                    List<Message> batch = new ArrayList<>(req.getData().size());
+                    for(String n : req.getData())
+                        batch.add(new Message(n, timestamp));
+                    messages.addMessages(batch);
+                    return new PutBatchResponse(batch.size());
+                });
+            }; break;
+        }
+        return encode(ret, null, binary);
+    }
+
+    /**
+     * @throws InvalidObjectException if the boards are a replica's copy.
+     */
+    private void checkWritable() throws InvalidObjectException {
+        if(boards.isReadOnly())
+            throw new InvalidObjectException("Puts go to the primary, this server is a replica.");
+    }
+
+    /**
+     * @return key a put is remembered by, so boards do not share keys. null for a put without one.
+     */
+    private static String dedupKey(String board, String key) {
+        if(key == null)
+            return null;
+        return (board == null ? "" : board) + "/" + key;
+    }
+
+    /**
+     * Performs a request frame against the board without holding the calling thread
+     * while a subscription waits for new messages.
+     * A request that is not supported or fails is answered with an ErrorResponse.
+     * @param frame one line of JSON.
+     * @param executor runs the response of a subscription once it is woken up.
+     * @return future completed with the response line, to be released once sent. It never fails.
+     */
+    public CompletableFuture<ResponseFrame> respondAsync(String frame, Executor executor) {
+        return respondAsync(frame.getBytes(StandardCharsets.UTF_8), executor);
+    }
+
+    /**
+     * Performs a request frame against the board without holding the calling thread
+     * while a subscription waits for new messages.
+     * A request that is not supported or fails is answered with an ErrorResponse, which
+     * has no binary form.
+     * @param frame one line of JSON without its newline, or a binary frame.
+     * @param executor runs the response of a subscription once it is woken up.
+     * @return future completed with the response, to be released once sent. It never fails.
+     */
+    public CompletableFuture<ResponseFrame> respondAsync(byte[] frame, Executor executor) {
+        boolean binary = MessageCodec.isFrame(frame);
+        String text = binary ? "Binary frame of " + frame.length + " bytes." : new String(frame, StandardCharsets.UTF_8);
+        String id = null;
+        CompletableFuture<ResponseFrame> ret;
+        try {
+            JSONObject obj = binary ? MessageCodec.decode(frame) : JsonIO.readObject(text);
+            id = requestId(obj);
+            ret = respondAsync(obj, binary, executor);
+        } catch (Exception e) {
+            ret = CompletableFuture.failedFuture(e);
+        }
+
+        // A request whose id could not be read is answered without one.
+        String echo = id;
+        return ret.handle((res, ex) -> ResponseFrame.withId(res != null ? res : error(text, ex), echo));
+    }
+
+    /**
+     * @param frame the request.
+     * @param ex why the request failed, null if it is not supported.
+     * @return an ErrorResponse telling whether a put may have been stored.
+     */
+    private static ResponseFrame error(String frame, Throwable ex) {
+        if(ex instanceof CompletionException && ex.getCause() != null)
+            ex = ex.getCause();
+
+        ErrorResponse ret;
+        if(ex == null) {
+            System.out.println("Invalid message received: ");
+            System.out.println(frame);
+            ret = new ErrorResponse("Unsupported request.", true);
+        } else {
+            System.err.println("Could not handle request: " + ex);
+            // Only a put that failed while it was being stored may have left something behind.
+            boolean notStored = !(ex instanceof IOException) || ex instanceof NotStoredException || ex instanceof InvalidObjectException;
+            ret = new ErrorResponse(ex.getMessage() == null ? ex.toString() : ex.getMessage(), notStored);
+        }
+        return ResponseFrame.of((ret.serialize() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private CompletableFuture<ResponseFrame> respondAsync(JSONObject obj, boolean binary, Executor executor) {
+        try {
+            if(!"subscriberequest".equals(obj.getString("messagetype")))
+                return CompletableFuture.completedFuture(handle(obj, binary));
+
+            SubscribeRequest req = new SubscribeRequest(obj);
+            Messages messages = boards.get(req.getBoard()).getMessages();
+
+            // A cursor the board never reached (e.g. from before a restart) is answered with the whole board.
+            // A replica's board is a prefix of the primary's, so there the cursor is one the replica
+            // has yet to reach: it waits to catch up rather than send the client back.
+            int since = Math.max(req.getSince(), 0);
+            if(since > messages.getMessages().size() && !boards.isReadOnly())
+                since = 0;
+            int from = since;
+            int wait = Math.min(Math.max(req.getWait(), 0), SubscribeRequest.MAX_WAIT_MS);
+
+            // Woken up by a put, so the response is built on the executor rather than the put's thread.
+            return messages.changedAfter(from)
+                .completeOnTimeout(null, wait, TimeUnit.MILLISECONDS)
+                .thenApplyAsync(n -> {
+                    BoardSnapshot snapshot = messages.getSnapshot();
+                    try {
+                        // A replica still behind the cursor answers with nothing new.
+                        if(snapshot.getVersion() < from)
+                            return encode(new SubscribeResponse(List.of(), from, from), null, false);
+                        return encode(new SubscribeResponse(snapshot.getMessages().subList(from, snapshot.getVersion()), from, snapshot.getVersion()), null, false);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, executor);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Takes the request id off a request, it is not part of the message itself.
+     * @param obj a request.
+     * @return the id to echo back in the response, null if the request has none.
+     * @throws InvalidObjectException if the id is not 1 to MAX_ID_LENGTH letters, digits, '-' or '_'.
+     */
+    private static String requestId(JSONObject obj) throws InvalidObjectException {
+        Object id = obj.remove("id");
+        if(id == null)
+            return null;
+        if(!(id instanceof String) || !REQUEST_ID.matcher((String) id).matches())
+            throw new InvalidObjectException("Request id must be 1 to " + MAX_ID_LENGTH + " letters, digits, '-' or '_'.");
+        return (String) id;
+    }
+
+    /**
+     * @param ret the response.
+     * @param spool spool of the board a snapshot is of, null to send it from memory.
+     * @param binary true to send the response as a binary frame if it has a binary form.
+     * @return a response as one UTF-8 line or a binary frame, null for no response.
+     */
+    private static ResponseFrame encode(JSONSerializable ret, SnapshotSpool spool, boolean binary) throws IOException {
+        if(ret == null)
+            return null;
+
+        if(binary) {
+            if(ret instanceof BoardSnapshot)
+                return ResponseFrame.binary(MessageCodec.GET_RESPONSE, ((BoardSnapshot) ret).getBinary());
+            // Binary GetRequests carry no encoding, so this is a not modified response.
+            if(ret instanceof BoardSnapshot.Encoded)
+                ret = new GetResponse((JSONObject) ret.toJSONType());
+            int type = MessageCodec.type(ret);
+            if(type > 0)
+                return ResponseFrame.binary(type, MessageCodec.fields(ret));
+        }
+
+        // Snapshots keep their encoded bytes or are spooled, everything else is encoded here.
+        if(ret instanceof BoardSnapshot) {
+            if(spool != null)
+                return spool.frame((BoardSnapshot) ret);
+            return ResponseFrame.of(((BoardSnapshot) ret).getFrame());
+        }
+        if(ret instanceof BoardSnapshot.Encoded)
+            return ResponseFrame.of(((BoardSnapshot.Encoded) ret).getFrame());
+        return ResponseFrame.of((ret.serialize() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,124 @@
+package mackyack_server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import mackyack_messages.MessageCodec;
+
+/**
+ * One response line or binary frame on its way to a socket, either in memory or in a spooled file.
+ * Frames may be shared between connections, each connection keeps its own position.
+ */
+public abstract class ResponseFrame {
+
+    /**
+     * @return length of the line in bytes, including its newline.
+     */
+    public abstract long size();
+
+    /**
+     * Writes as much of the frame as the channel takes.
+     * @param out socket to write to.
+     * @param position bytes of the frame already written.
+     * @return bytes written, 0 if a non-blocking channel is full.
+     * @throws IOException
+     */
+    public abstract long writeTo(WritableByteChannel out, long position) throws IOException;
+
+    /**
+     * Called once the frame is written, or will not be.
+     */
+    public void release() {
+    }
+
+    /**
+     * @param bytes a response line.
+     * @return a frame sending it from memory.
+     */
+    public static ResponseFrame of(byte[] bytes) {
+        return new ResponseFrame() {
+            @Override
+            public long size() {
+                return bytes.length;
+            }
+
+            @Override
+            public long writeTo(WritableByteChannel out, long position) throws IOException {
+                return out.write(ByteBuffer.wrap(bytes, (int) position, bytes.length - (int) position));
+            }
+        };
+    }
+
+    /**
+     * A binary frame, its head built for the request id it answers, see MessageCodec.
+     */
+    private static class Binary extends ResponseFrame {
+        private final int type;
+        private final byte[] head;
+        private final byte[] fields; // May be shared, it is never written to.
+
+        Binary(int type, String id, byte[] fields) {
+            this.type = type;
+            this.head = MessageCodec.head(type, id, fields.length);
+            this.fields = fields;
+        }
+
+        @Override
+        public long size() {
+            return head.length + fields.length;
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel out, long position) throws IOException {
+            if(position < head.length)
+                return out.write(ByteBuffer.wrap(head, (int) position, head.length - (int) position));
+            int start = (int) position - head.length;
+            return out.write(ByteBuffer.wrap(fields, start, fields.length - start));
+        }
+    }
+
+    /**
+     * @param type MessageCodec type of the response.
+     * @param fields the response's fields, see MessageCodec.fields.
+     * @return a frame sending the response as a binary frame.
+     */
+    public static ResponseFrame binary(int type, byte[] fields) {
+        return new Binary(type, null, fields);
+    }
+
+    /**
+     * @param frame a response line holding one JSON object, or a binary frame.
+     * @param id request id to echo back, null for none.
+     * @return a frame sending the response with "id" as its first field. The frame itself
+     * is not copied, so a shared or spooled frame stays shared.
+     */
+    public static ResponseFrame withId(ResponseFrame frame, String id) {
+        if(frame == null || id == null)
+            return frame;
+        if(frame instanceof Binary)
+            return new Binary(((Binary) frame).type, id, ((Binary) frame).fields);
+
+        // Takes the place of the frame's opening brace.
+        byte[] prefix = ("{\"id\":\"" + id + "\",").getBytes(StandardCharsets.UTF_8);
+        return new ResponseFrame() {
+            @Override
+            public long size() {
+                return prefix.length + frame.size() - 1;
+            }
+
+            @Override
+            public long writeTo(WritableByteChannel out, long position) throws IOException {
+                if(position < prefix.length)
+                    return out.write(ByteBuffer.wrap(prefix, (int) position, prefix.length - (int) position));
+                return frame.writeTo(out, position - prefix.length + 1);
+            }
+
+            @Override
+            public void release() {
+                frame.release();
+            }
+        };
+    }
+}
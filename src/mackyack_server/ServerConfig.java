@@ -2,8 +2,16 @@ package mackyack_server;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mackyack_messages.GetRequest;
 import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONArray;
 import merrimackutil.json.types.JSONObject;
 import merrimackutil.json.types.JSONType;
 
@@ -19,6 +27,22 @@ public class ServerConfig implements JSONSerializable {
     private String privKey;
     private int port;
     private String messagesPath;
+    private int workerThreads = Runtime.getRuntime().availableProcessors() * 2; // Threads handling requests.
+    private int maxQueuedRequests = 256; // Accepted connections waiting on a worker before accept slows down.
+    private String transport = "blocking"; // "blocking" for ServerService, "nio" for NioServerService.
+    private String store = "json";         // "json" for a messages.json file, "log" for a segmented log directory, "mapped" for a memory-mapped board directory at messagesPath.
+    private int segmentBytes = LogMessageStore.DEFAULT_SEGMENT_BYTES; // Size at which a log segment is sealed.
+    private String durability = GroupCommitter.FSYNC_PER_BATCH; // When a put is acknowledged, see GroupCommitter.
+    private int fsyncIntervalMs = 1000;    // Longest time a put stays unsynced with "fsync-interval".
+    private String responseMode = "memory"; // "memory" to send full-board GETs from the heap, "transfer" to send them from spoolPath with transferTo.
+    private String spoolPath = System.getProperty("java.io.tmpdir"); // Directory full-board GETs are spooled to with "transfer".
+    private int dedupKeys = DedupCache.DEFAULT_KEYS;              // Put idempotency keys remembered, 0 to remember none.
+    private int dedupTtlSeconds = DedupCache.DEFAULT_TTL_SECONDS; // How long a put idempotency key is remembered.
+    private Map<String, String> boards = new LinkedHashMap<>();   // Named boards and where each is stored, in the same kind of store as messagesPath.
+    private List<String> shards = new ArrayList<>(); // Servers as "host:port" to route requests to by board, empty to serve the boards here.
+    private Map<String, List<String>> replicas = new LinkedHashMap<>(); // Read replicas as "host:port" of each shard, GETs are spread over a shard and its replicas.
+    private int replicationPort;  // Loopback port replicas tail the puts from, 0 to have no replicas.
+    private String primary;       // Replication port of the primary as "host:port", null unless this server is a replica.
 
     public ServerConfig(String path) throws FileNotFoundException, InvalidObjectException {
         this.path = path;
@@ -62,11 +86,129 @@ public class ServerConfig implements JSONSerializable {
             throw new InvalidObjectException("Expected a Config object -- port expected.");
         }
 
+        // A shard router stores no boards, so it needs no messagesPath.
+        if (obj.containsKey("shards")) {
+            for (Object n : obj.getArray("shards")) {
+                if (!(n instanceof String) || !((String) n).matches(".+:[0-9]{1,5}"))
+                    throw new InvalidObjectException("Expected a Config object -- shards must be \"host:port\" strings.");
+                this.shards.add((String) n);
+            }
+        }
+
+        if (obj.containsKey("replicas")) {
+            JSONObject byShard = obj.getObject("replicas");
+            for (String shard : byShard.keySet()) {
+                if (!shards.contains(shard))
+                    throw new InvalidObjectException("Expected a Config object -- replicas of " + shard + " must be of one of the shards.");
+                if (!(byShard.get(shard) instanceof JSONArray))
+                    throw new InvalidObjectException("Expected a Config object -- replicas of " + shard + " must be an array.");
+                List<String> addrs = new ArrayList<>();
+                for (Object n : byShard.getArray(shard)) {
+                    if (!(n instanceof String) || !((String) n).matches(".+:[0-9]{1,5}"))
+                        throw new InvalidObjectException("Expected a Config object -- replicas must be \"host:port\" strings.");
+                    addrs.add((String) n);
+                }
+                this.replicas.put(shard, addrs);
+            }
+        }
+
         if (obj.containsKey("messagesPath")) {
             this.messagesPath = obj.getString("messagesPath");
-        } else {
+        } else if (shards.isEmpty()) {
             throw new InvalidObjectException("Expected a Config object -- messagesPath expected.");
         }
+
+        // Worker settings are optional.
+        if (obj.containsKey("workerThreads")) {
+            this.workerThreads = obj.getInt("workerThreads");
+            if (this.workerThreads < 1)
+                throw new InvalidObjectException("Expected a Config object -- workerThreads must be at least 1.");
+        }
+
+        if (obj.containsKey("maxQueuedRequests")) {
+            this.maxQueuedRequests = obj.getInt("maxQueuedRequests");
+            if (this.maxQueuedRequests < 1)
+                throw new InvalidObjectException("Expected a Config object -- maxQueuedRequests must be at least 1.");
+        }
+
+        if (obj.containsKey("transport")) {
+            this.transport = obj.getString("transport");
+            if (!this.transport.equals("blocking") && !this.transport.equals("nio"))
+                throw new InvalidObjectException("Expected a Config object -- transport must be \"blocking\" or \"nio\".");
+        }
+
+        // Store settings are optional.
+        if (obj.containsKey("store")) {
+            this.store = obj.getString("store");
+            if (!this.store.equals("json") && !this.store.equals("log") && !this.store.equals("mapped"))
+                throw new InvalidObjectException("Expected a Config object -- store must be \"json\", \"log\" or \"mapped\".");
+        }
+
+        if (obj.containsKey("segmentBytes")) {
+            this.segmentBytes = obj.getInt("segmentBytes");
+            if (this.segmentBytes < 1)
+                throw new InvalidObjectException("Expected a Config object -- segmentBytes must be at least 1.");
+        }
+
+        if (obj.containsKey("durability")) {
+            this.durability = obj.getString("durability");
+            if (!this.durability.equals(GroupCommitter.FSYNC_PER_BATCH) && !this.durability.equals(GroupCommitter.FSYNC_INTERVAL) && !this.durability.equals(GroupCommitter.ASYNC))
+                throw new InvalidObjectException("Expected a Config object -- durability must be \"fsync-per-batch\", \"fsync-interval\" or \"async\".");
+        }
+
+        if (obj.containsKey("fsyncIntervalMs")) {
+            this.fsyncIntervalMs = obj.getInt("fsyncIntervalMs");
+            if (this.fsyncIntervalMs < 1)
+                throw new InvalidObjectException("Expected a Config object -- fsyncIntervalMs must be at least 1.");
+        }
+
+        // Response settings are optional.
+        if (obj.containsKey("responseMode")) {
+            this.responseMode = obj.getString("responseMode");
+            if (!this.responseMode.equals("memory") && !this.responseMode.equals("transfer"))
+                throw new InvalidObjectException("Expected a Config object -- responseMode must be \"memory\" or \"transfer\".");
+        }
+
+        if (obj.containsKey("spoolPath"))
+            this.spoolPath = obj.getString("spoolPath");
+
+        // Dedup settings are optional.
+        if (obj.containsKey("dedupKeys")) {
+            this.dedupKeys = obj.getInt("dedupKeys");
+            if (this.dedupKeys < 0)
+                throw new InvalidObjectException("Expected a Config object -- dedupKeys must not be negative.");
+        }
+
+        if (obj.containsKey("dedupTtlSeconds")) {
+            this.dedupTtlSeconds = obj.getInt("dedupTtlSeconds");
+            if (this.dedupTtlSeconds < 1)
+                throw new InvalidObjectException("Expected a Config object -- dedupTtlSeconds must be at least 1.");
+        }
+
+        // Named boards are optional, requests without a board go to messagesPath.
+        if (obj.containsKey("boards")) {
+            JSONObject named = obj.getObject("boards");
+            for (String name : named.keySet()) {
+                if (!GetRequest.isBoardName(name))
+                    throw new InvalidObjectException("Expected a Config object -- board names must be 1 to " + GetRequest.MAX_BOARD_LENGTH + " letters, digits, '-' or '_'.");
+                if (!(named.get(name) instanceof String))
+                    throw new InvalidObjectException("Expected a Config object -- board " + name + " needs a path.");
+                this.boards.put(name, named.getString(name));
+            }
+        }
+
+        // Replication settings are optional.
+        if (obj.containsKey("replicationPort")) {
+            this.replicationPort = obj.getInt("replicationPort");
+            if (this.replicationPort < 0)
+                throw new InvalidObjectException("Expected a Config object -- replicationPort must not be negative.");
+        }
+
+        if (obj.containsKey("primary")) {
+            this.primary = obj.getString("primary");
+            if (!this.primary.matches(".+:[0-9]{1,5}"))
+                throw new InvalidObjectException("Expected a Config object -- primary must be a \"host:port\" string.");
+        }
     }
 
     @Override
@@ -74,7 +216,32 @@ public class ServerConfig implements JSONSerializable {
         JSONObject obj = new JSONObject();
         obj.put("privKey", this.privKey);
         obj.put("port", this.port);
-        obj.put("messagesPath", messagesPath);
+        if (messagesPath != null)
+            obj.put("messagesPath", messagesPath);
+        obj.put("workerThreads", workerThreads);
+        obj.put("maxQueuedRequests", maxQueuedRequests);
+        obj.put("transport", transport);
+        obj.put("store", store);
+        obj.put("segmentBytes", segmentBytes);
+        obj.put("durability", durability);
+        obj.put("fsyncIntervalMs", fsyncIntervalMs);
+        obj.put("responseMode", responseMode);
+        obj.put("spoolPath", spoolPath);
+        obj.put("dedupKeys", dedupKeys);
+        obj.put("dedupTtlSeconds", dedupTtlSeconds);
+        if (!boards.isEmpty())
+            obj.put("boards", new JSONObject(boards));
+        if (!shards.isEmpty())
+            obj.put("shards", new JSONArray(shards));
+        if (!replicas.isEmpty()) {
+            JSONObject byShard = new JSONObject();
+            for (Map.Entry<String, List<String>> n : replicas.entrySet())
+                byShard.put(n.getKey(), new JSONArray(n.getValue()));
+            obj.put("replicas", byShard);
+        }
+        obj.put("replicationPort", replicationPort);
+        if (primary != null)
+            obj.put("primary", primary);
         return obj; // We are never reading this file to JSON.
     }
 
@@ -93,6 +260,82 @@ public class ServerConfig implements JSONSerializable {
     public String getMessagesPath() {
         return messagesPath;
     }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public String getStore() {
+        return store;
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public String getDurability() {
+        return durability;
+    }
+
+    public int getFsyncIntervalMs() {
+        return fsyncIntervalMs;
+    }
+
+    public String getResponseMode() {
+        return responseMode;
+    }
+
+    public String getSpoolPath() {
+        return spoolPath;
+    }
+
+    public int getDedupKeys() {
+        return dedupKeys;
+    }
+
+    public int getDedupTtlSeconds() {
+        return dedupTtlSeconds;
+    }
+
+    public Map<String, String> getBoards() {
+        return Collections.unmodifiableMap(boards);
+    }
+
+    /**
+     * @return servers as "host:port" requests are routed to by board, empty if this server serves the boards itself.
+     */
+    public List<String> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * @return read replicas as "host:port" by shard, shards without replicas are absent.
+     */
+    public Map<String, List<String>> getReplicas() {
+        return Collections.unmodifiableMap(replicas);
+    }
+
+    /**
+     * @return loopback port replicas tail this server's puts from, 0 if it has none.
+     */
+    public int getReplicationPort() {
+        return replicationPort;
+    }
+
+    /**
+     * @return replication port of the primary as "host:port", null unless this server is a replica.
+     */
+    public String getPrimary() {
+        return primary;
+    }
     
     /**
      * Modifiers
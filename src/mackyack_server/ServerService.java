@@ -1,81 +1,217 @@
 package mackyack_server;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import mackyack_messages.GetResponse;
-import mackyack_messages.Message;
-import mackyack_messages.PutRequest;
-import mackyack_messages.PutResponse;
-import merrimackutil.json.JSONSerializable;
-import merrimackutil.json.JsonIO;
-import merrimackutil.json.types.JSONObject;
+import mackyack_messages.MessageCodec;
 
 public class ServerService {
-    
+
+    public final static int READ_TIMEOUT_MS = 5000; // Longest wait for a connection's request from when it was accepted.
+    private final static int MAX_FRAME_BYTES = 1 << 20; // Longest binary request frame accepted.
+
+    private ServerSocket server;
+    private RequestHandler handler;
+    private ThreadPoolExecutor workers;
+
+    /**
+     * Serves the boards from the server config until the process exits.
+     * @throws IOException
+     */
     public ServerService() throws IOException {
+        this(MackYackServer.getConf().getPort(), MackYackServer.getConf().getWorkerThreads(), MackYackServer.getConf().getMaxQueuedRequests(), MackYackServer.getBoards(), MackYackServer.getDedup());
         poll();
     }
 
-    private DateTimeFormatter dtf = DateTimeFormatter.ofPattern("uuuu/MM/dd HH:mm:ss");
     /**
-     * Constructs a message object to be sent
-     * @param data
-     * @return
+     * Binds the server without accepting connections yet, see {@link #poll()}.
+     * @param port port to accept requests on, 0 for any free port.
+     * @param workerThreads threads handling requests at once.
+     * @param maxQueuedRequests accepted connections that may wait for a worker.
+     * @param messages board the requests read and write.
+     * @throws IOException
+     */
+    public ServerService(int port, int workerThreads, int maxQueuedRequests, Messages messages) throws IOException {
+        this(port, workerThreads, maxQueuedRequests, messages, null);
+    }
+
+    /**
+     * Binds the server without accepting connections yet, see {@link #poll()}.
+     * @param port port to accept requests on, 0 for any free port.
+     * @param workerThreads threads handling requests at once.
+     * @param maxQueuedRequests accepted connections that may wait for a worker.
+     * @param messages board the requests read and write.
+     * @param spool spool full-board GETs are sent from with transferTo, null to send them from memory.
+     * @throws IOException
+     */
+    public ServerService(int port, int workerThreads, int maxQueuedRequests, Messages messages, SnapshotSpool spool) throws IOException {
+        this(port, workerThreads, maxQueuedRequests, messages, spool, new DedupCache(DedupCache.DEFAULT_KEYS, DedupCache.DEFAULT_TTL_SECONDS));
+    }
+
+    /**
+     * Binds the server without accepting connections yet, see {@link #poll()}.
+     * @param port port to accept requests on, 0 for any free port.
+     * @param workerThreads threads handling requests at once.
+     * @param maxQueuedRequests accepted connections that may wait for a worker.
+     * @param messages board the requests read and write.
+     * @param spool spool full-board GETs are sent from with transferTo, null to send them from memory.
+     * @param dedup responses of puts by idempotency key.
+     * @throws IOException
      */
-    private Message createMessage(String data) {
-        
-        LocalDateTime now = LocalDateTime.now();
-        return new Message(data, dtf.format(now));
+    public ServerService(int port, int workerThreads, int maxQueuedRequests, Messages messages, SnapshotSpool spool, DedupCache dedup) throws IOException {
+        this(port, workerThreads, maxQueuedRequests, new Boards(messages, spool), dedup);
     }
 
-    private void poll() throws IOException {
-        ServerSocket server = new ServerSocket(MackYackServer.getConf().getPort());
-
-        while(true) {
-            Socket sock = server.accept();
-            BufferedReader input = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            BufferedWriter output = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream()));
-
-            String msg = input.readLine();
-
-            // Read msg as a JSONObject
-            JSONObject obj = JsonIO.readObject(msg);
-
-            JSONSerializable ret = null;
-            switch(obj.getString("messagetype")) {
-                case "getrequest": {
-                    ret = new GetResponse(MackYackServer.getMessages().getMessages());
-                }; break;
-                case "putrequest": {
-                    // Deserialize the message
-                    PutRequest req = new PutRequest(obj);
-                    // Create a new message and append to Messages array. 
-                    Message putMessage = createMessage(req.getData());
-                    MackYackServer.getMessages().addMessage(putMessage);
-                    // Send a PutResponse
-                    ret = new PutResponse();
-                }; break;
+    /**
+     * Binds the server without accepting connections yet, see {@link #poll()}.
+     * @param port port to accept requests on, 0 for any free port.
+     * @param workerThreads threads handling requests at once.
+     * @param maxQueuedRequests accepted connections that may wait for a worker.
+     * @param boards boards the requests read and write.
+     * @param dedup responses of puts by idempotency key.
+     * @throws IOException
+     */
+    public ServerService(int port, int workerThreads, int maxQueuedRequests, Boards boards, DedupCache dedup) throws IOException {
+        // Opened as a channel so accepted sockets have channels to transfer responses to.
+        this.server = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
+        this.handler = new RequestHandler(boards, dedup);
+
+        // Once the queue is full new connections are closed unanswered, see poll.
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(maxQueuedRequests));
+    }
+
+    /**
+     * Accepts connections and hands each one to a worker until the server is closed.
+     * A connection that finds every worker busy and the queue full is closed unanswered.
+     * @throws IOException
+     */
+    public void poll() throws IOException {
+        while(!server.isClosed()) {
+            Socket sock;
+            try {
+                sock = server.accept();
+            } catch (IOException e) {
+                // Closing the server unblocks accept, that is not an error.
+                if(server.isClosed())
+                    return;
+                throw e;
             }
 
-            // If the message received was not supported, report and move along.
-            if(ret == null) {
-                System.out.println("Invalid message received: ");
-                System.out.println(msg);
-                continue;
+            // The accept loop never reads a request itself, so a stalled peer cannot hold it up.
+            long accepted = System.nanoTime();
+            try {
+                workers.execute(() -> handle(sock, accepted));
+            } catch (RejectedExecutionException e) {
+                try {
+                    sock.close();
+                } catch (IOException ex) { }
             }
+        }
+    }
+
+    /**
+     * Reads one request from a connection and answers it. A subscription is answered
+     * once it is woken up, the worker moves on meanwhile and the connection stays open.
+     * @param sock connection from an exit OR.
+     * @param accepted System.nanoTime() when the connection was accepted.
+     */
+    private void handle(Socket sock, long accepted) {
+        try {
+            // Counted from the accept, so stalled connections that waited in the queue
+            // do not hold a worker for the whole timeout each.
+            long left = READ_TIMEOUT_MS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - accepted);
+            if(left <= 0)
+                throw new SocketTimeoutException("No request within " + READ_TIMEOUT_MS + "ms.");
+            sock.setSoTimeout((int) left);
 
-            output.write(ret.serialize());
-            output.newLine();
-            output.close();
+            // A binary frame is told from a JSON line by its first byte.
+            BufferedInputStream input = new BufferedInputStream(sock.getInputStream());
+            input.mark(1);
+            int first = input.read();
+            input.reset();
+
+            byte[] msg;
+            if(first == MessageCodec.MAGIC) {
+                msg = MessageCodec.readFrame(input, MAX_FRAME_BYTES);
+            } else {
+                String line = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8)).readLine();
+                msg = line == null ? null : line.getBytes(StandardCharsets.UTF_8);
+            }
+            if(msg == null) {
+                sock.close(); // Closed without sending a request.
+                return;
+            }
+
+            handler.respondAsync(msg, this::respond).thenAccept(ret -> reply(sock, ret, null));
+        } catch (Exception e) {
+            reply(sock, null, e);
+        }
+    }
+
+    /**
+     * Builds the response of a subscription that was woken up on a worker, or on the waking
+     * thread if the queue is full: the subscriber is already connected and waiting for it.
+     */
+    private void respond(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Writes the response to a request and closes the connection.
+     * Requests that fail are answered with an ErrorResponse by the handler.
+     * @param sock connection from an exit OR.
+     * @param ret the response.
+     * @param ex why no request could be read, null if one was.
+     */
+    private void reply(Socket sock, ResponseFrame ret, Throwable ex) {
+        try (sock) {
+            if(ex != null) {
+                System.err.println("Could not read request: " + ex);
+                return;
+            }
+
+            try {
+                long written = 0;
+                while(written < ret.size())
+                    written += ret.writeTo(sock.getChannel(), written);
+            } finally {
+                ret.release();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not send response: " + e);
         }
     }
 
+    /**
+     * Stops accepting connections and lets the workers finish the requests they have.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        server.close();
+        workers.shutdown();
+    }
+
+    /**
+     * @return the port the server accepts requests on.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
 }
@@ -0,0 +1,334 @@
+package mackyack_server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mackyack_messages.ErrorResponse;
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.MessageCodec;
+import mackyack_messages.SubscribeRequest;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * Front end for several MackYack servers (shards) that each serve some of the boards.
+ * Exit ORs send requests here as they would to a single server. Each request is passed
+ * on to the shard that owns its board on a HashRing, and the shard's response is
+ * passed back unchanged.
+ *
+ * A board is stored only on its shard. The router does not move boards' messages between
+ * shards, so it refuses to change the shards if a board with messages would move, see
+ * {@link #setShards(Collection, Collection)}.
+ *
+ * A shard can have read replicas that copy its boards, see Replicator. Reads (GETs and
+ * subscriptions) are spread over the shard and its replicas in turn, puts go to the shard.
+ */
+public class ShardRouter {
+
+    public final static int DEFAULT_MAX_CONNECTIONS = 1024; // Connections forwarded at once, more are closed unanswered.
+    public final static int DEFAULT_SHARD_TIMEOUT_MS = 10000; // Longest wait to connect to a shard, or for its response beyond a subscription's wait.
+    private final static int MAX_FRAME_BYTES = 1 << 20; // Longest binary request frame accepted.
+
+    private ServerSocket server;
+    private int shardTimeoutMs;
+    private volatile HashRing ring = new HashRing();
+    private Map<String, List<String>> readers = new ConcurrentHashMap<>(); // Each shard and its replicas, by shard.
+    private AtomicInteger nextReader = new AtomicInteger();
+
+    private ThreadPoolExecutor connections;
+
+    /**
+     * Binds the router without accepting connections yet, see {@link #poll()}.
+     * @param port port to accept requests on, 0 for any free port.
+     * @param shards shards as "host:port".
+     * @throws IOException
+     */
+    public ShardRouter(int port, Collection<String> shards) throws IOException {
+        this(port, shards, DEFAULT_MAX_CONNECTIONS, DEFAULT_SHARD_TIMEOUT_MS);
+    }
+
+    /**
+     * Binds the router without accepting connections yet, see {@link #poll()}.
+     * @param port port to accept requests on, 0 for any free port.
+     * @param shards shards as "host:port".
+     * @param maxConnections connections forwarded at once.
+     * @param shardTimeoutMs longest wait to connect to a shard, or for its response beyond a subscription's wait.
+     * @throws IOException
+     */
+    public ShardRouter(int port, Collection<String> shards, int maxConnections, int shardTimeoutMs) throws IOException {
+        this.shardTimeoutMs = shardTimeoutMs;
+
+        // A subscription holds its connection until the shard answers, so every connection gets
+        // a thread. Past maxConnections a connection is closed rather than queued behind them.
+        this.connections = new ThreadPoolExecutor(0, maxConnections, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), n -> {
+            Thread thread = new Thread(n, "shard-router");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.server = new ServerSocket();
+        this.server.bind(new InetSocketAddress(port));
+        for(String n : shards)
+            ring.add(n);
+    }
+
+    /**
+     * Changes the shards, refused if a board with messages would move to another shard.
+     * Only the shards the boards would leave are asked, once, before the change: puts
+     * that arrive meanwhile are not seen.
+     * @param shards shards as "host:port".
+     * @param boards names of the boards the shards serve, the default board is always checked.
+     * @throws IOException if a board with messages would move, or its shard could not be asked.
+     */
+    public synchronized void setShards(Collection<String> shards, Collection<String> boards) throws IOException {
+        HashRing next = new HashRing();
+        for(String n : shards)
+            next.add(n);
+
+        List<String> names = new ArrayList<>(boards);
+        names.add(null);
+        for(String board : names) {
+            String from = shardOf(board);
+            String to = next.get(board == null ? "" : board);
+            if(from != null && !from.equals(to) && hasMessages(from, board))
+                throw new IOException("Board " + (board == null ? "(default)" : board) + " has messages on " + from + " and would move to " + to + ".");
+        }
+        ring = next;
+    }
+
+    /**
+     * @param shard shard as "host:port".
+     * @param board board name, null for the default board.
+     * @return true if the board has messages on the shard.
+     * @throws IOException if the shard did not answer.
+     */
+    private boolean hasMessages(String shard, String board) throws IOException {
+        try (Socket out = connect(shard, shardTimeoutMs)) {
+            OutputStream output = out.getOutputStream();
+            output.write((new GetRequest(0, 1, null, null, null, null, board).serialize() + "\n").getBytes(StandardCharsets.UTF_8));
+            output.flush();
+            out.shutdownOutput();
+
+            String line = new BufferedReader(new InputStreamReader(out.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            if(line == null)
+                throw new IOException("Shard " + shard + " did not answer for board " + (board == null ? "(default)" : board) + ".");
+            return !new GetResponse(JsonIO.readObject(line)).getMessages().isEmpty();
+        }
+    }
+
+    /**
+     * @param shard shard as "host:port".
+     * @param timeoutMs how long to wait for the connection, and for each read from it.
+     * @return a connection to the shard.
+     */
+    private Socket connect(String shard, int timeoutMs) throws IOException {
+        int colon = shard.lastIndexOf(':');
+        Socket ret = new Socket();
+        try {
+            ret.connect(new InetSocketAddress(shard.substring(0, colon), Integer.parseInt(shard.substring(colon + 1))), shardTimeoutMs);
+            ret.setSoTimeout(timeoutMs);
+        } catch (IOException e) {
+            ret.close();
+            throw e;
+        }
+        return ret;
+    }
+
+    /**
+     * Spreads the reads of a shard's boards over the shard and its replicas.
+     * @param shard shard as "host:port".
+     * @param replicas replicas of the shard as "host:port", empty for none.
+     */
+    public void setReplicas(String shard, List<String> replicas) {
+        if(replicas.isEmpty()) {
+            readers.remove(shard);
+            return;
+        }
+
+        List<String> all = new ArrayList<>();
+        all.add(shard);
+        all.addAll(replicas);
+        readers.put(shard, List.copyOf(all));
+    }
+
+    /**
+     * @param shard shard as "host:port".
+     * @return the shard or one of its replicas, in turn.
+     */
+    private String readerOf(String shard) {
+        List<String> all = readers.get(shard);
+        if(all == null)
+            return shard;
+        return all.get(Math.floorMod(nextReader.getAndIncrement(), all.size()));
+    }
+
+    /**
+     * @param board board name, null for the default board.
+     * @return shard the board's requests go to, null if there are no shards.
+     */
+    public String shardOf(String board) {
+        return ring.get(board == null ? "" : board);
+    }
+
+    /**
+     * @return the shards requests are sent to.
+     */
+    public Set<String> getShards() {
+        return ring.shards();
+    }
+
+    /**
+     * Accepts connections and forwards the request of each one until the router is closed.
+     * @throws IOException
+     */
+    public void poll() throws IOException {
+        while(!server.isClosed()) {
+            Socket sock;
+            try {
+                sock = server.accept();
+            } catch (IOException e) {
+                // Closing the router unblocks accept, that is not an error.
+                if(server.isClosed())
+                    return;
+                throw e;
+            }
+
+            try {
+                connections.execute(() -> forward(sock));
+            } catch (RejectedExecutionException e) {
+                System.err.println("Too many connections, closing connection.");
+                sock.close();
+            }
+        }
+    }
+
+    /**
+     * Reads one request from a connection, sends it to its board's shard and copies the
+     * response back. A request no shard answered in time is answered with an ErrorResponse.
+     * A binary frame is decoded to find its board and passed on as it came.
+     * @param sock connection from an exit OR.
+     */
+    private void forward(Socket sock) {
+        String shard = null;
+        JSONObject obj = null;
+        boolean sent = false;     // The shard has the request.
+        boolean answered = false; // Some of the shard's response went back to the exit OR.
+        try (sock) {
+            try {
+                // Like a server, the router does not wait on a connection that sends nothing.
+                sock.setSoTimeout(ServerService.READ_TIMEOUT_MS);
+                BufferedInputStream input = new BufferedInputStream(sock.getInputStream());
+                input.mark(1);
+                int first = input.read();
+                input.reset();
+
+                byte[] msg;
+                if(first == MessageCodec.MAGIC) {
+                    msg = MessageCodec.readFrame(input, MAX_FRAME_BYTES);
+                    obj = MessageCodec.decode(msg);
+                } else {
+                    String line = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8)).readLine();
+                    if(line == null)
+                        return; // Closed without sending a request.
+                    obj = JsonIO.readObject(line);
+                    msg = (line + "\n").getBytes(StandardCharsets.UTF_8);
+                }
+                shard = shardOf(obj.containsKey("board") ? obj.getString("board") : null);
+                if(shard == null)
+                    throw new IOException("No shard to send the request to.");
+
+                // A replica may be behind its shard, puts still go to the shard itself.
+                // A subscription is held by the shard for up to its wait before it is answered.
+                String type = obj.getString("messagetype");
+                int timeout = shardTimeoutMs;
+                if("subscriberequest".equals(type))
+                    timeout += Math.min(Math.max(obj.containsKey("wait") ? obj.getInt("wait") : SubscribeRequest.DEFAULT_WAIT_MS, 0), SubscribeRequest.MAX_WAIT_MS);
+                if("getrequest".equals(type) || "subscriberequest".equals(type))
+                    shard = readerOf(shard);
+
+                try (Socket out = connect(shard, timeout)) {
+                    OutputStream output = out.getOutputStream();
+                    output.write(msg);
+                    output.flush();
+                    sent = true;
+
+                    // The shard answers one request per connection, then closes it.
+                    out.shutdownOutput();
+                    InputStream response = out.getInputStream();
+                    byte[] buf = new byte[8192];
+                    int read;
+                    while((read = response.read(buf)) >= 0) {
+                        sock.getOutputStream().write(buf, 0, read);
+                        answered = true;
+                    }
+                    if(!answered)
+                        throw new IOException("Shard closed the connection without a response.");
+                }
+            } catch (Exception e) {
+                System.err.println("Could not forward request" + (shard == null ? "" : " to " + shard) + ": " + e);
+                if(obj != null && !answered)
+                    error(sock, obj, e, sent);
+            }
+        } catch (IOException e) {
+            // Closing the connection failed, nothing is left to tell the exit OR.
+        }
+    }
+
+    /**
+     * Answers a request the router could not forward, as the shard would a request it could not perform.
+     * @param sock connection from an exit OR.
+     * @param request the request, whose id is echoed.
+     * @param ex why it could not be forwarded.
+     * @param sent true if the request reached the shard, so a put may have been stored.
+     */
+    private static void error(Socket sock, JSONObject request, Exception ex, boolean sent) {
+        try {
+            String type = request.getString("messagetype");
+            boolean put = "putrequest".equals(type) || "putbatchrequest".equals(type);
+            JSONObject obj = (JSONObject) new ErrorResponse("Shard unavailable: " + ex.getMessage(), !sent || !put).toJSONType();
+            if(request.containsKey("id"))
+                obj.put("id", request.getString("id"));
+            OutputStream output = sock.getOutputStream();
+            output.write((obj.toJSON() + "\n").getBytes(StandardCharsets.UTF_8));
+            output.flush();
+        } catch (Exception e) {
+            // The exit OR is gone, it sees the connection closed.
+        }
+    }
+
+    /**
+     * Stops accepting connections, requests being forwarded are finished.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        server.close();
+        connections.shutdown();
+    }
+
+    /**
+     * @return the port the router accepts requests on.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+}
@@ -0,0 +1,117 @@
+package mackyack_server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the full-board GetResponse of each board version to a file once, then sends it to
+ * every GET of that version with FileChannel.transferTo. The kernel copies the response from
+ * the page cache to the socket, the server neither keeps it on the heap nor copies it.
+ *
+ * The file is unlinked as soon as it is written, its channel keeps it alive until the next
+ * version, or a board of another epoch, replaces it and the last transfer from it is done.
+ */
+public class SnapshotSpool {
+
+    private File dir;
+    private Spooled current;
+
+    /**
+     * A spooled response. Holds one reference for the spool while it is current and
+     * one for every connection sending it; the file goes once all are released.
+     */
+    private static class Spooled extends ResponseFrame {
+        private final String epoch;   // Board the response was read from, versions of other boards are not comparable.
+        private final int version;
+        private final FileChannel channel;
+        private final long size;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Spooled(String epoch, int version, FileChannel channel) throws IOException {
+            this.epoch = epoch;
+            this.version = version;
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        /**
+         * @return false if the file is already gone.
+         */
+        boolean acquire() {
+            int n;
+            do {
+                n = refs.get();
+                if(n == 0)
+                    return false;
+            } while(!refs.compareAndSet(n, n + 1));
+            return true;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel out, long position) throws IOException {
+            return channel.transferTo(position, size - position, out);
+        }
+
+        @Override
+        public void release() {
+            if(refs.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    /**
+     * @param dir directory the responses are written to, created if missing.
+     * @throws IOException if the directory could not be created.
+     */
+    public SnapshotSpool(String dir) throws IOException {
+        this.dir = new File(dir);
+
+        Files.createDirectories(this.dir.toPath());
+    }
+
+    /**
+     * @param snapshot the board to send.
+     * @return the snapshot's GetResponse as a spooled frame, to be released once sent.
+     * @throws IOException if the response could not be spooled.
+     */
+    public synchronized ResponseFrame frame(BoardSnapshot snapshot) throws IOException {
+        // A newer version of the same board is as good an answer. A board loaded in its
+        // place starts a new epoch, whose versions say nothing about the spooled one.
+        if(current != null && current.epoch.equals(snapshot.getEpoch()) && current.version >= snapshot.getVersion() && current.acquire())
+            return current;
+
+        Path file = Files.createTempFile(dir.toPath(), "getresponse-", ".json");
+        FileChannel channel;
+        try {
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                snapshot.writeTo(out);
+            }
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        // A GET for an older version that is still running keeps the older file until it is done.
+        Spooled spooled = new Spooled(snapshot.getEpoch(), snapshot.getVersion(), channel);
+        if(current != null)
+            current.release();
+        current = spooled;
+
+        spooled.acquire();
+        return spooled;
+    }
+}
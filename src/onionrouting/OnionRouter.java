@@ -44,6 +44,7 @@ public class OnionRouter
     private static ConcurrentHashMap<String, String> askTable;   // Outgoing circID -> This.circID. Used to lookup the path back to Alice.
     private static ConcurrentHashMap<String, String> inTable;     // This.circID -> SRC OR IP/port combo.
     private static ConcurrentHashMap<String, String> outTable;    // Outgoing circID -> Outgoing OR IP/port combo.
+    private static ConcurrentHashMap<String, String> streamTable; // This.circID:streamID -> Server IP/port combo. Only filled on the exit OR.
     private static PrivateKey privKey;                             // Private key for this OR
 
     /**
@@ -215,6 +216,7 @@ public class OnionRouter
         askTable = new ConcurrentHashMap<>();
         inTable = new ConcurrentHashMap<>();
         outTable = new ConcurrentHashMap<>();
+        streamTable = new ConcurrentHashMap<>();
 
         // Initialize the router's "Server" capability (AKA allow for incoming connections)
         ServerSocket server = new ServerSocket(conf.getPort());
@@ -291,6 +293,13 @@ public class OnionRouter
         return outTable;
     }
 
+    /**
+     * @return static reference to streamTable (<String, String>; this.circID:streamID -> Server IP/port combo for a particular stream).
+     */
+    public static ConcurrentHashMap<String, String> getStreamTable() {
+        return streamTable;
+    }
+
     /**
      * @return Private Key object representation of the OR's private key.
      */
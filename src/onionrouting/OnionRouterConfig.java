@@ -18,6 +18,7 @@ public class OnionRouterConfig implements JSONSerializable {
     private String addr;
     private int port;
     private boolean verbose;
+    private int serverTimeout = 70; // Seconds the exit OR waits for a server's response, past the longest a server holds a request.
 
     public OnionRouterConfig(String path) throws FileNotFoundException, InvalidObjectException {
         // Construct file
@@ -70,6 +71,12 @@ public class OnionRouterConfig implements JSONSerializable {
         } else {
             throw new InvalidObjectException("Expected a Config object -- verbose expected.");
         }
+
+        if (obj.containsKey("serverTimeout")) {
+            this.serverTimeout = obj.getInt("serverTimeout");
+            if (this.serverTimeout <= 0)
+                throw new InvalidObjectException("Expected a Config object -- serverTimeout must be positive.");
+        }
     }
 
     @Override
@@ -79,6 +86,7 @@ public class OnionRouterConfig implements JSONSerializable {
         obj.put("addr", this.addr);
         obj.put("port", this.port);
         obj.put("verbose", verbose);
+        obj.put("serverTimeout", serverTimeout);
         return obj; // We are never reading this file to JSON.
     }
 
@@ -103,6 +111,13 @@ public class OnionRouterConfig implements JSONSerializable {
         return verbose;
     }
 
+    /**
+     * @return seconds the exit OR waits to reach a server and for its response.
+     */
+    public int getServerTimeout() {
+        return serverTimeout;
+    }
+
     /**
      * Modifiers
      */
@@ -10,7 +10,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.InvalidObjectException;
 import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.HashSet;
 import java.util.Map;
@@ -109,11 +111,21 @@ public class OnionRouterService implements Runnable {
 
                         doDestroy(destroyCell);
                         break;
+                    case "PING":
+                        PingCell pingCell = new PingCell(obj);
+
+                        doPing(pingCell);
+                        break;
+                    case "TRUNCATE":
+                        TruncateCell truncateCell = new TruncateCell(obj);
+
+                        doTruncate(truncateCell);
+                        break;
                     case "DATA":
                         DataCell dataCell = new DataCell(obj);
 
                         // 1. Send it to the server. No CircID needed (THIS IS TEST CODE)
-                        sendToServer(dataCell.getChild().toJSON(), dataCell.getServerAddr(), dataCell.getServerPort(), "");
+                        sendToServer(dataCell.getChild(), dataCell.getServerAddr(), dataCell.getServerPort(), "", null);
 
                         break;
                     default:
@@ -190,13 +202,38 @@ public class OnionRouterService implements Runnable {
                         addr = dataCell.getServerAddr();
                         port = dataCell.getServerPort();
 
-                        sendToServer(dataCell.getChild().toJSON(), addr, port, circID);
+                        sendToServer(dataCell.getChild(), addr, port, circID, null);
                         return;
                     } catch (InvalidObjectException e) {
                         // TODO Auto-generated catch block
                         e.printStackTrace();
                     }
                 }
+                else if(child.getString("type").equals("BEGIN")) {
+                    try {
+                        doBegin(new BeginCell(child), circID);
+                    } catch (InvalidObjectException e) {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
+                else if(child.getString("type").equals("STREAM_DATA")) {
+                    try {
+                        doStreamData(new StreamDataCell(child), circID);
+                    } catch (InvalidObjectException e) {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
+                else if(child.getString("type").equals("END")) {
+                    try {
+                        EndCell endCell = new EndCell(child);
+                        OnionRouter.getStreamTable().remove(circID + ":" + endCell.getStreamID());
+                    } catch (InvalidObjectException e) {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
                     
             }
 
@@ -221,6 +258,36 @@ public class OnionRouterService implements Runnable {
         // c. Else, drop it
     }
 
+    /**
+     * Opens a stream on this (exit) OR. The stream's server is remembered in the
+     * streamTable and a Connected cell is sent back to Alice.
+     * 
+     * @param cell Begin cell naming the stream and its server.
+     * @param circID circID of this OR for the circuit the stream is on.
+     */
+    private void doBegin(BeginCell cell, String circID) {
+        OnionRouter.getStreamTable().put(circID + ":" + cell.getStreamID(), cell.getServerAddr() + ":" + cell.getServerPort());
+
+        sendBack((JSONObject) new ConnectedCell(cell.getStreamID()).toJSONType(), circID);
+    }
+
+    /**
+     * Sends the child of a StreamData cell to the server of its stream.
+     * 
+     * @param cell StreamData cell to deliver.
+     * @param circID circID of this OR for the circuit the stream is on.
+     */
+    private void doStreamData(StreamDataCell cell, String circID) {
+        String addrPortCombo = OnionRouter.getStreamTable().get(circID + ":" + cell.getStreamID());
+        if(addrPortCombo == null) {
+            System.err.println("Unknown stream " + cell.getStreamID() + ". Cell will be dropped.");
+            return;
+        }
+
+        String[] segments = addrPortCombo.split(":");
+        sendToServer(cell.getChild(), segments[0], Integer.parseInt(segments[1]), circID, cell.getStreamID());
+    }
+
     /**
      * Performs all the operations to be done on a Create cell when received.
      * 
@@ -309,6 +376,60 @@ public class OnionRouterService implements Runnable {
          sendToDestination(retCell.serialize(), addr, port);
     }
 
+    /**
+     * Answers a health probe with a Pong cell back along the circuit.
+     * Probes for circuits this OR does not know are dropped, so they time out at Alice.
+     * 
+     * @param cell cell we're performing the operation on.
+     */
+    private void doPing(PingCell cell) {
+        if (!OnionRouter.getKeyTable().containsKey(cell.getCircID())) {
+            System.err.println("Ping for an unknown circuit. Cell will be dropped.");
+            return;
+        }
+
+        OnionRouter.getIVTable().put(cell.getCircID(), cell.getIV());
+        sendBack((JSONObject) new PongCell(cell.getCircID()).toJSONType(), cell.getCircID());
+    }
+
+    /**
+     * Drops every hop after this OR on a circuit and answers with a Truncated cell.
+     * The next OR gets a Destroy cell if it is still up, this OR stays on the circuit
+     * with its key so Alice can extend it with a fresh router.
+     * 
+     * @param cell cell we're performing the operation on.
+     */
+    private void doTruncate(TruncateCell cell) {
+        String circID = cell.getCircID();
+        if (!OnionRouter.getKeyTable().containsKey(circID)) {
+            System.err.println("Truncate for an unknown circuit. Cell will be dropped.");
+            return;
+        }
+
+        Set<String> outCircIdsToRemove = new HashSet<>();
+        for(Map.Entry<String,String> entry : OnionRouter.getAskTable().entrySet()) {
+            if(entry.getValue().equalsIgnoreCase(circID))
+                outCircIdsToRemove.add(entry.getKey());
+        }
+
+        for(String outId : outCircIdsToRemove) {
+            String addrPortCombo = OnionRouter.getOutTable().remove(outId);
+            OnionRouter.getAskTable().remove(outId);
+
+            // The next OR is usually the one that failed, so this is best effort.
+            if(addrPortCombo != null) {
+                String[] segments = addrPortCombo.split(":");
+                sendToDestination(new DestroyCell(outId).serialize(), segments[0], Integer.parseInt(segments[1]));
+            }
+        }
+
+        // This OR may have been the exit, its streams are reopened on the new exit.
+        OnionRouter.getStreamTable().keySet().removeIf(n -> n.startsWith(circID + ":"));
+
+        OnionRouter.getIVTable().put(circID, cell.getIV());
+        sendBack((JSONObject) new TruncatedCell(circID).toJSONType(), circID);
+    }
+
     /**
      * Performs all the operations to be done on a Destroy cell when received.
      * 
@@ -363,6 +484,7 @@ public class OnionRouterService implements Runnable {
         OnionRouter.getAskTable().remove(cell.getCircID());
         OnionRouter.getInTable().remove(cell.getCircID());
         outCircIdsToRemove.forEach(n -> OnionRouter.getOutTable().remove(n));
+        OnionRouter.getStreamTable().keySet().removeIf(n -> n.startsWith(cell.getCircID() + ":"));
     }
 
     /*
@@ -552,47 +674,126 @@ public class OnionRouterService implements Runnable {
         }
     }
 
+    /**
+     * Packages a message in a RelayCell for this OR and sends it back towards Alice.
+     * 
+     * @param obj message to send back.
+     * @param circID circID of this OR.
+     */
+    private void sendBack(JSONObject obj, String circID) {
+        // The circuit may have been torn down while a held request waited on the server.
+        String addrPortCombo = OnionRouter.getInTable().get(circID);
+        if(addrPortCombo == null) {
+            System.err.println("Circuit " + circID + " is gone. Response will be dropped.");
+            return;
+        }
+
+        RelayCell cell = packageInRelayCell(obj, circID);
+
+        // Get the address and port using the circID
+        String[] segments = addrPortCombo.split(":");
+        String retAddr = segments[0];
+        int retPort = Integer.parseInt(segments[1]);
+        sendToDestination(cell.serialize(), retAddr, retPort);
+    }
+
     /**
      * Sends a message to a particular server (based on IP/port combo) and expects a result.
+     * A server that cannot be reached or does not answer within the configured serverTimeout
+     * is answered for, with an ErrorResponse, so Alice does not wait out her own deadline.
+     * A BinaryFrame is sent as its bytes and the response wrapped in another one, unless the
+     * server answered with JSON.
      * 
      * @param msg Message to send.
      * @param addr Address to send to.
      * @param port Port to send to.
+     * @param circID circID of this OR the result is returned on.
+     * @param streamID stream the message was sent on, or null if it was sent in a Data cell.
      */
-    private void sendToServer(String msg, String addr, int port, String circID) {
-        try {
-            // Create a socket and bind it to the specified port
-            Socket socket = new Socket(addr, port);
+    private void sendToServer(JSONObject msg, String addr, int port, String circID, String streamID) {
+        int timeout = OnionRouter.getConf().getServerTimeout() * 1000;
+        boolean sent = false; // The server has the message, a put may have been stored.
+        // Create a socket and connect it to the server
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(addr, port), timeout);
+            socket.setSoTimeout(timeout);
+
+            if(BinaryFrame.isFrame(msg)) {
+                // The server answers a binary frame and closes the connection.
+                BinaryFrame frame = new BinaryFrame(msg);
+                socket.getOutputStream().write(frame.getFrame());
+                socket.getOutputStream().flush();
+                socket.shutdownOutput();
+                sent = true;
+
+                if(OnionRouter.getConf().isVerbose()) {
+                    System.out.println("[Frame Sent] to host: " + addr +":"+port);
+                }
+
+                byte[] res = socket.getInputStream().readAllBytes();
+                if(res.length == 0)
+                    throw new IOException("Closed without a response.");
+                if(res[0] == '{')
+                    sendBack(onStream(JsonIO.readObject(new String(res, StandardCharsets.UTF_8)), streamID), circID);
+                else
+                    sendBack(onStream((JSONObject) new BinaryFrame(res, frame.getId()).toJSONType(), streamID), circID);
+                return;
+            }
 
             // Send it out
             BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             BufferedWriter output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            output.write(msg);
+            output.write(msg.toJSON());
             output.newLine();
             output.flush();
+            sent = true;
 
             if(OnionRouter.getConf().isVerbose()) {
                 System.out.println("[Cell Sent] to host: " + addr +":"+port);
             }
 
-            // Wait for the response
-            String res = input.readLine();
+            // Wait for the response. A subscription is held by the server until there are new
+            // messages, this thread keeps the circuit's back path for it until then.
+            String line = input.readLine();
+            if(line == null)
+                throw new IOException("Closed without a response.");
 
             // Package it in a RelayCell and send it off!
-            RelayCell cell = packageInRelayCell(JsonIO.readObject(res), circID);
-
-            // Get the address and port using the circID
-            String[] segments = OnionRouter.getInTable().get(circID).split(":");
-            String retAddr = segments[0];
-            int retPort = Integer.parseInt(segments[1]);
-            sendToDestination(cell.serialize(), retAddr, retPort);
-            
-            // Close the socket when done
-            socket.close();
+            sendBack(onStream(JsonIO.readObject(line), streamID), circID);
         } catch (IOException e) {
-            System.err.println("Could not send message to: [" + addr + ":" + port + "].");
-            e.printStackTrace();
+            System.err.println("Could not send message to: [" + addr + ":" + port + "]: " + e);
+            sendBack(onStream(error(msg, "Server unavailable: " + e.getMessage(), !sent), streamID), circID);
         }
     }
 
+    /**
+     * @param res a server's response.
+     * @param streamID stream the request was sent on, or null.
+     * @return the response, tagged with its stream if it was sent on one.
+     */
+    private static JSONObject onStream(JSONObject res, String streamID) {
+        if(streamID == null)
+            return res;
+        return (JSONObject) new StreamDataCell(streamID, res).toJSONType();
+    }
+
+    /**
+     * Answers a message the server did not, with the Error Response of PROTOCOL.md. The OR
+     * ships without the MackYack message classes, so it is built here.
+     * 
+     * @param msg the message, whose id is echoed. A BinaryFrame carries it outside the frame.
+     * @param error what went wrong.
+     * @param notStored true if the message never reached the server.
+     * @return the Error Response.
+     */
+    private static JSONObject error(JSONObject msg, String error, boolean notStored) {
+        JSONObject res = new JSONObject();
+        res.put("messagetype", "errorresponse");
+        res.put("error", error.replaceAll("[\"\\\\\\p{Cntrl}]", "'")); // merrimackutil writes strings as they are.
+        res.put("notstored", notStored);
+        if(msg.containsKey("id"))
+            res.put("id", msg.getString("id"));
+        return res;
+    }
+
 }
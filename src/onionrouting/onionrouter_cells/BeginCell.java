@@ -0,0 +1,117 @@
+package onionrouting.onionrouter_cells;
+
+import java.io.InvalidObjectException;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Client -> Last OR in Circuit
+ * Opens a new stream on an existing circuit. The exit OR remembers which server
+ * the stream talks to, so following StreamData cells only need the stream id.
+ */
+public class BeginCell implements JSONSerializable {
+
+    private final String type = "BEGIN";
+    private String streamID;    // Id of the stream, unique within the circuit.
+    private String serverAddr;  // Address of the server this stream talks to.
+    private int serverPort;     // Port of the server this stream talks to.
+
+    /**
+     * Constructor
+     * @param streamID
+     * @param serverAddr
+     * @param serverPort
+     */
+    public BeginCell(String streamID, String serverAddr, int serverPort) {
+        this.streamID = streamID;
+        this.serverAddr = serverAddr;
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * Construct a Begin cell from the corresponding JSON object.
+     * 
+     * @param obj a JSON object representing a Begin cell.
+     */
+    public BeginCell(JSONObject obj) throws InvalidObjectException {
+        deserialize(obj);
+    }
+
+    /**
+     * Coverts json data to an object of this type.
+     * 
+     * @param obj a JSON type to deserialize.
+     * @throws InvalidObjectException the type does not match this object.
+     */
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        JSONObject message;
+        if (obj instanceof JSONObject) {
+            message = (JSONObject) obj;
+
+            if (!message.containsKey("type"))
+                throw new InvalidObjectException("Begin needs a type.");
+            else if(!message.getString("type").equals(type))
+                throw new InvalidObjectException("Type is incorrectly specified for Begin cell.");
+
+            if (!message.containsKey("streamID"))
+                throw new InvalidObjectException("Begin needs a streamID.");
+            else
+                streamID = message.getString("streamID");
+
+            if (!message.containsKey("serverAddr"))
+                throw new InvalidObjectException("Begin needs a serverAddr.");
+            else
+                serverAddr = message.getString("serverAddr");
+
+            if (!message.containsKey("serverPort"))
+                throw new InvalidObjectException("Begin needs a serverPort.");
+            else
+                serverPort = message.getInt("serverPort");
+
+            if (message.size() > 4)
+                throw new InvalidObjectException("Superflous fields");
+        }
+    }
+
+    /**
+     * Serializes the object into a JSON encoded string.
+     * 
+     * @return a string representing the JSON form of the object.
+     */
+    @Override
+    public String serialize() {
+        return toJSONType().toJSON();
+    }
+
+    /**
+     * Converts the object to a JSON type.
+     * 
+     * @return a JSON type of JSONObject
+     */
+    @Override
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+
+        obj.put("type", type);
+        obj.put("streamID", streamID);
+        obj.put("serverAddr", serverAddr);
+        obj.put("serverPort", serverPort);
+
+        return obj;
+    }
+
+    public String getStreamID() {
+        return streamID;
+    }
+
+    public String getServerAddr() {
+        return serverAddr;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+}
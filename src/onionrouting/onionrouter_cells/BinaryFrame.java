@@ -0,0 +1,129 @@
+package onionrouting.onionrouter_cells;
+
+import java.io.InvalidObjectException;
+import java.util.Base64;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Client -> Server && Server -> Client, as the child of a Data or StreamData cell
+ * Carries an application message in its binary form through the circuit. The exit OR
+ * sends the frame to the server as it is and wraps the server's binary response in
+ * another one. The request id is kept out here as well, so the exit OR can answer for
+ * a server it could not reach without reading the frame.
+ */
+public class BinaryFrame implements JSONSerializable {
+
+    private final static int CHUNK = 256;   // Base64 characters per string, merrimackutil parses long strings slowly.
+
+    private final String type = "BINARY_FRAME";
+    private byte[] frame;   // The message as the server reads or writes it.
+    private String id;      // Request id, null for none.
+
+    /**
+     * Constructor
+     * @param frame the message in its binary form.
+     * @param id request id, null for none.
+     */
+    public BinaryFrame(byte[] frame, String id) {
+        this.frame = frame;
+        this.id = id;
+    }
+
+    /**
+     * Construct a BinaryFrame from the corresponding JSON object.
+     *
+     * @param obj a JSON object representing a BinaryFrame.
+     */
+    public BinaryFrame(JSONObject obj) throws InvalidObjectException {
+        deserialize(obj);
+    }
+
+    /**
+     * @param obj child of a Data or StreamData cell.
+     * @return true if it is a BinaryFrame rather than a JSON message.
+     */
+    public static boolean isFrame(JSONObject obj) {
+        return obj.containsKey("type") && "BINARY_FRAME".equals(obj.getString("type"));
+    }
+
+    /**
+     * Coverts json data to an object of this type.
+     *
+     * @param obj a JSON type to deserialize.
+     * @throws InvalidObjectException the type does not match this object.
+     */
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        JSONObject message;
+        if (obj instanceof JSONObject) {
+            message = (JSONObject) obj;
+
+            if (!message.containsKey("type"))
+                throw new InvalidObjectException("BinaryFrame needs a type.");
+            else if(!message.getString("type").equals(type))
+                throw new InvalidObjectException("Type is incorrectly specified for BinaryFrame.");
+
+            if (!message.containsKey("frame"))
+                throw new InvalidObjectException("BinaryFrame needs a frame.");
+            StringBuilder b64 = new StringBuilder();
+            for(Object n : message.getArray("frame")) {
+                if(!(n instanceof String))
+                    throw new InvalidObjectException("Frame must be an array of strings.");
+                b64.append((String) n);
+            }
+            try {
+                frame = Base64.getDecoder().decode(b64.toString());
+            } catch (IllegalArgumentException e) {
+                throw new InvalidObjectException("Corrupt frame: " + e.getMessage());
+            }
+
+            id = message.containsKey("id") ? message.getString("id") : null;
+
+            if (message.size() > (id == null ? 2 : 3))
+                throw new InvalidObjectException("Superflous fields");
+        }
+    }
+
+    /**
+     * Serializes the object into a JSON encoded string.
+     *
+     * @return a string representing the JSON form of the object.
+     */
+    @Override
+    public String serialize() {
+        return toJSONType().toJSON();
+    }
+
+    /**
+     * Converts the object to a JSON type.
+     *
+     * @return a JSON type of JSONObject
+     */
+    @Override
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+
+        obj.put("type", type);
+        String b64 = Base64.getEncoder().encodeToString(frame);
+        JSONArray chunks = new JSONArray();
+        for(int i = 0; i < b64.length() || i == 0; i += CHUNK)
+            chunks.add(b64.substring(i, Math.min(i + CHUNK, b64.length())));
+        obj.put("frame", chunks);
+        if (id != null)
+            obj.put("id", id);
+
+        return obj;
+    }
+
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    public String getId() {
+        return id;
+    }
+}
@@ -0,0 +1,90 @@
+package onionrouting.onionrouter_cells;
+
+import java.io.InvalidObjectException;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Last OR in Circuit -> Client
+ * Sent back by the exit OR once it has opened the stream named in a Begin cell.
+ */
+public class ConnectedCell implements JSONSerializable {
+
+    private final String type = "CONNECTED";
+    private String streamID;    // Id of the stream that was opened.
+
+    /**
+     * Constructor
+     * @param streamID
+     */
+    public ConnectedCell(String streamID) {
+        this.streamID = streamID;
+    }
+
+    /**
+     * Construct a Connected cell from the corresponding JSON object.
+     * 
+     * @param obj a JSON object representing a Connected cell.
+     */
+    public ConnectedCell(JSONObject obj) throws InvalidObjectException {
+        deserialize(obj);
+    }
+
+    /**
+     * Coverts json data to an object of this type.
+     * 
+     * @param obj a JSON type to deserialize.
+     * @throws InvalidObjectException the type does not match this object.
+     */
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        JSONObject message;
+        if (obj instanceof JSONObject) {
+            message = (JSONObject) obj;
+
+            if (!message.containsKey("type"))
+                throw new InvalidObjectException("Connected needs a type.");
+            else if(!message.getString("type").equals(type))
+                throw new InvalidObjectException("Type is incorrectly specified for Connected cell.");
+
+            if (!message.containsKey("streamID"))
+                throw new InvalidObjectException("Connected needs a streamID.");
+            else
+                streamID = message.getString("streamID");
+
+            if (message.size() > 2)
+                throw new InvalidObjectException("Superflous fields");
+        }
+    }
+
+    /**
+     * Serializes the object into a JSON encoded string.
+     * 
+     * @return a string representing the JSON form of the object.
+     */
+    @Override
+    public String serialize() {
+        return toJSONType().toJSON();
+    }
+
+    /**
+     * Converts the object to a JSON type.
+     * 
+     * @return a JSON type of JSONObject
+     */
+    @Override
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+
+        obj.put("type", type);
+        obj.put("streamID", streamID);
+
+        return obj;
+    }
+
+    public String getStreamID() {
+        return streamID;
+    }
+}
@@ -0,0 +1,90 @@
+package onionrouting.onionrouter_cells;
+
+import java.io.InvalidObjectException;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Client -> Last OR in Circuit
+ * Closes a stream. The exit OR forgets the stream; the circuit stays up.
+ */
+public class EndCell implements JSONSerializable {
+
+    private final String type = "END";
+    private String streamID;    // Id of the stream to close.
+
+    /**
+     * Constructor
+     * @param streamID
+     */
+    public EndCell(String streamID) {
+        this.streamID = streamID;
+    }
+
+    /**
+     * Construct a End cell from the corresponding JSON object.
+     * 
+     * @param obj a JSON object representing a End cell.
+     */
+    public EndCell(JSONObject obj) throws InvalidObjectException {
+        deserialize(obj);
+    }
+
+    /**
+     * Coverts json data to an object of this type.
+     * 
+     * @param obj a JSON type to deserialize.
+     * @throws InvalidObjectException the type does not match this object.
+     */
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        JSONObject message;
+        if (obj instanceof JSONObject) {
+            message = (JSONObject) obj;
+
+            if (!message.containsKey("type"))
+                throw new InvalidObjectException("End needs a type.");
+            else if(!message.getString("type").equals(type))
+                throw new InvalidObjectException("Type is incorrectly specified for End cell.");
+
+            if (!message.containsKey("streamID"))
+                throw new InvalidObjectException("End needs a streamID.");
+            else
+                streamID = message.getString("streamID");
+
+            if (message.size() > 2)
+                throw new InvalidObjectException("Superflous fields");
+        }
+    }
+
+    /**
+     * Serializes the object into a JSON encoded string.
+     * 
+     * @return a string representing the JSON form of the object.
+     */
+    @Override
+    public String serialize() {
+        return toJSONType().toJSON();
+    }
+
+    /**
+     * Converts the object to a JSON type.
+     * 
+     * @return a JSON type of JSONObject
+     */
+    @Override
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+
+        obj.put("type", type);
+        obj.put("streamID", streamID);
+
+        return obj;
+    }
+
+    public String getStreamID() {
+        return streamID;
+    }
+}
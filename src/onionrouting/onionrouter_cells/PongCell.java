@@ -0,0 +1,85 @@
+package onionrouting.onionrouter_cells;
+
+import java.io.InvalidObjectException;
+
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Any OR in Circuit -> Client
+ * Answer to a Ping cell, proving the hop that owns circID is alive and still
+ * knows the circuit.
+ */
+public class PongCell extends Cell {
+
+    private final String type = "PONG";
+
+    /**
+     * Constructor
+     * @param circID circuit ID of the hop that was probed.
+     */
+    public PongCell(String circID) {
+        this.circID = circID;
+    }
+
+    /**
+     * Construct a Pong cell from the corresponding JSON object.
+     * 
+     * @param obj a JSON object representing a Pong cell.
+     */
+    public PongCell(JSONObject obj) throws InvalidObjectException {
+        deserialize(obj);
+    }
+
+    /**
+     * Coverts json data to an object of this type.
+     * 
+     * @param obj a JSON type to deserialize.
+     * @throws InvalidObjectException the type does not match this object.
+     */
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        JSONObject message;
+        if (obj instanceof JSONObject) {
+            message = (JSONObject) obj;
+
+            if (!message.containsKey("type"))
+                throw new InvalidObjectException("Pong needs a type.");
+            else if(!message.getString("type").equals(type))
+                throw new InvalidObjectException("Type is incorrectly specified for Pong cell.");
+
+            if (!message.containsKey("circID"))
+                throw new InvalidObjectException("Pong needs a circID.");
+            else
+                circID = message.getString("circID");
+
+            if (message.size() > 2)
+                throw new InvalidObjectException("Superflous fields");
+        }
+    }
+
+    /**
+     * Serializes the object into a JSON encoded string.
+     * 
+     * @return a string representing the JSON form of the object.
+     */
+    @Override
+    public String serialize() {
+        return toJSONType().toJSON();
+    }
+
+    /**
+     * Converts the object to a JSON type.
+     * 
+     * @return a JSON type of JSONObject
+     */
+    @Override
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+
+        obj.put("type", type);
+        obj.put("circID", circID);
+
+        return obj;
+    }
+}
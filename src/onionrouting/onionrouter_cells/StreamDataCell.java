@@ -0,0 +1,105 @@
+package onionrouting.onionrouter_cells;
+
+import java.io.InvalidObjectException;
+
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Client -> Last OR in Circuit && Last OR in Circuit -> Client
+ * Carries a message, in the child field, on a stream opened with a Begin cell.
+ * Going out the exit OR sends the child to the stream's server, coming back it
+ * wraps the server's response so the client knows which stream it belongs to.
+ */
+public class StreamDataCell implements JSONSerializable {
+
+    private final String type = "STREAM_DATA";
+    private String streamID;    // Id of the stream this data belongs to.
+    private JSONObject child;   // Message for the server, or the server's response.
+
+    /**
+     * Constructor
+     * @param streamID
+     * @param child
+     */
+    public StreamDataCell(String streamID, JSONObject child) {
+        this.streamID = streamID;
+        this.child = child;
+    }
+
+    /**
+     * Construct a StreamData cell from the corresponding JSON object.
+     * 
+     * @param obj a JSON object representing a StreamData cell.
+     */
+    public StreamDataCell(JSONObject obj) throws InvalidObjectException {
+        deserialize(obj);
+    }
+
+    /**
+     * Coverts json data to an object of this type.
+     * 
+     * @param obj a JSON type to deserialize.
+     * @throws InvalidObjectException the type does not match this object.
+     */
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        JSONObject message;
+        if (obj instanceof JSONObject) {
+            message = (JSONObject) obj;
+
+            if (!message.containsKey("type"))
+                throw new InvalidObjectException("StreamData needs a type.");
+            else if(!message.getString("type").equals(type))
+                throw new InvalidObjectException("Type is incorrectly specified for StreamData cell.");
+
+            if (!message.containsKey("streamID"))
+                throw new InvalidObjectException("StreamData needs a streamID.");
+            else
+                streamID = message.getString("streamID");
+
+            if (!message.containsKey("child"))
+                throw new InvalidObjectException("StreamData needs a child.");
+            else
+                child = message.getObject("child");
+
+            if (message.size() > 3)
+                throw new InvalidObjectException("Superflous fields");
+        }
+    }
+
+    /**
+     * Serializes the object into a JSON encoded string.
+     * 
+     * @return a string representing the JSON form of the object.
+     */
+    @Override
+    public String serialize() {
+        return toJSONType().toJSON();
+    }
+
+    /**
+     * Converts the object to a JSON type.
+     * 
+     * @return a JSON type of JSONObject
+     */
+    @Override
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+
+        obj.put("type", type);
+        obj.put("streamID", streamID);
+        obj.put("child", child);
+
+        return obj;
+    }
+
+    public String getStreamID() {
+        return streamID;
+    }
+
+    public JSONObject getChild() {
+        return child;
+    }
+}
@@ -0,0 +1,98 @@
+package onionrouting.onionrouter_cells;
+
+import java.io.InvalidObjectException;
+
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.json.types.JSONType;
+
+/**
+ * Client -> Any OR in Circuit
+ * Asks the hop that owns circID to drop every hop after it, so Alice can extend
+ * the circuit again from there. Answered with a Truncated cell.
+ */
+public class TruncateCell extends Cell {
+
+    private final String type = "TRUNCATE";
+    private String base64_IV;   // IV the OR uses to encrypt its Truncated cell on the way back.
+
+    /**
+     * Constructor
+     * @param circID circuit ID of the hop that becomes the last hop.
+     * @param base64_IV IV the OR uses to encrypt its Truncated cell on the way back.
+     */
+    public TruncateCell(String circID, String base64_IV) {
+        this.circID = circID;
+        this.base64_IV = base64_IV;
+    }
+
+    /**
+     * Construct a Truncate cell from the corresponding JSON object.
+     * 
+     * @param obj a JSON object representing a Truncate cell.
+     */
+    public TruncateCell(JSONObject obj) throws InvalidObjectException {
+        deserialize(obj);
+    }
+
+    /**
+     * Coverts json data to an object of this type.
+     * 
+     * @param obj a JSON type to deserialize.
+     * @throws InvalidObjectException the type does not match this object.
+     */
+    @Override
+    public void deserialize(JSONType obj) throws InvalidObjectException {
+        JSONObject message;
+        if (obj instanceof JSONObject) {
+            message = (JSONObject) obj;
+
+            if (!message.containsKey("type"))
+                throw new InvalidObjectException("Truncate needs a type.");
+            else if(!message.getString("type").equals(type))
+                throw new InvalidObjectException("Type is incorrectly specified for Truncate cell.");
+
+            if (!message.containsKey("circID"))
+                throw new InvalidObjectException("Truncate needs a circID.");
+            else
+                circID = message.getString("circID");
+
+            if (!message.containsKey("base64_IV"))
+                throw new InvalidObjectException("Truncate needs a base64_IV.");
+            else
+                base64_IV = message.getString("base64_IV");
+
+            if (message.size() > 3)
+                throw new InvalidObjectException("Superflous fields");
+        }
+    }
+
+    /**
+     * Serializes the object into a JSON encoded string.
+     * 
+     * @return a string representing the JSON form of the object.
+     */
+    @Override
+    public String serialize() {
+        return toJSONType().toJSON();
+    }
+
+    /**
+     * Converts the object to a JSON type.
+     * 
+     * @return a JSON type of JSONObject
+     */
+    @Override
+    public JSONType toJSONType() {
+        JSONObject obj = new JSONObject();
+
+        obj.put("type", type);
+        obj.put("circID", circID);
+        obj.put("base64_IV", base64_IV);
+
+        return obj;
+    }
+
+    public String getIV() {
+        return base64_IV;
+    }
+}
@@ -0,0 +1,301 @@
+package tests;
+
+import org.junit.Test;
+
+import mackyack_client.BoardCache;
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.Message;
+import mackyack_messages.PutRequest;
+import mackyack_messages.SubscribeRequest;
+import mackyack_messages.SubscribeResponse;
+import mackyack_server.BoardSnapshot;
+import mackyack_server.GroupCommitter;
+import mackyack_server.Messages;
+import mackyack_server.RequestHandler;
+import mackyack_server.ResponseFrame;
+import mackyack_server.SnapshotSpool;
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidObjectException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads of the board: snapshots, cursors, ranges, subscriptions and ETags.
+ */
+public class BoardReadTest {
+
+    @Test
+    public void getsShareOneSnapshotPerVersion() throws Exception {
+        Messages messages = TestBoards.log(GroupCommitter.FSYNC_PER_BATCH);
+        assertEquals(0, new GetResponse(JsonIO.readObject(messages.getSnapshot().serialize())).getMessages().size());
+
+        TestBoards.puts(messages, 4, 50);
+        BoardSnapshot snapshot = messages.getSnapshot();
+        assertSame(snapshot, messages.getSnapshot());
+        assertSame(snapshot.getFrame(), messages.getSnapshot().getFrame());
+
+        // The cached JSON reads back as the board.
+        GetResponse resp = new GetResponse(JsonIO.readObject(snapshot.serialize()));
+        assertEquals(200, snapshot.getVersion());
+        assertEquals(messages.getMessages().size(), resp.getMessages().size());
+        for(int i = 0; i < resp.getMessages().size(); i++)
+            assertEquals(messages.getMessages().get(i).getData(), resp.getMessages().get(i).getData());
+
+        // A put makes the next GET see a new version.
+        messages.addMessage(new Message("one more", "now"));
+        assertNotSame(snapshot, messages.getSnapshot());
+        assertEquals(201, messages.getSnapshot().getVersion());
+        assertEquals(200, snapshot.getMessages().size());
+
+        // A spooled response stands in for older versions of its own board only, not for
+        // a board of another epoch that is behind it.
+        SnapshotSpool spool = new SnapshotSpool(Files.createTempDirectory("spool").toString());
+        Messages other = TestBoards.log(GroupCommitter.FSYNC_PER_BATCH);
+        other.addMessage(new Message("other board", "now"));
+        assertEquals(201, new GetResponse(JsonIO.readObject(spooled(spool.frame(messages.getSnapshot())))).getMessages().size());
+        GetResponse fromOther = new GetResponse(JsonIO.readObject(spooled(spool.frame(other.getSnapshot()))));
+        assertEquals(other.getSnapshot().getETag(), fromOther.getETag());
+        assertEquals("other board", fromOther.getMessages().get(0).getData());
+        other.close();
+        messages.close();
+    }
+
+    /**
+     * @return the bytes of a response frame, which is released.
+     */
+    private static String spooled(ResponseFrame frame) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        for(long written = 0; written < frame.size(); )
+            written += frame.writeTo(channel, written);
+        frame.release();
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void incrementalGetsOnlyCarryNewMessages() throws Exception {
+        Messages messages = TestBoards.log(GroupCommitter.FSYNC_PER_BATCH);
+        TestServer service = TestServer.start(2, true, messages);
+
+        BoardCache board = new BoardCache();
+        TestBoards.puts(messages, 1, 10);
+        GetResponse full = new GetResponse(service.request(board.request()));
+        assertEquals(10, full.getMessages().size());
+        assertEquals(10, board.merge(full).getMessages().size());
+
+        // Only the new messages cross the wire, the cache has the whole board.
+        TestBoards.puts(messages, 1, 3);
+        GetResponse delta = new GetResponse(service.request(board.request()));
+        assertEquals(10, delta.getSince());
+        assertEquals(3, delta.getMessages().size());
+        GetResponse merged = board.merge(delta);
+        assertEquals(13, merged.getCursor());
+        assertEquals(messages.getMessages().get(12).getData(), merged.getMessages().get(12).getData());
+
+        // Nothing new is an empty response, a late duplicate changes nothing.
+        assertEquals(0, new GetResponse(service.request(board.request())).getMessages().size());
+        assertEquals(13, board.merge(delta).getMessages().size());
+
+        // A late whole board older than the cache is dropped too, one from another epoch replaces it.
+        assertEquals(13, board.merge(full).getCursor());
+        GetResponse restarted = new GetResponse(full.getMessages().subList(0, 2), 0, 2, null, "other:2");
+        assertEquals(2, board.merge(restarted).getMessages().size());
+
+        // A cursor the board never reached gets the whole board back.
+        GetResponse reset = new GetResponse(service.request(new GetRequest(100)));
+        assertEquals(0, reset.getSince());
+        assertEquals(13, reset.getMessages().size());
+
+        service.close();
+        messages.close();
+    }
+
+    @Test
+    public void rangedReadsUseTheIndex() throws Exception {
+        Messages messages = TestBoards.log();
+
+        // One message a minute, the last one racing behind its predecessor.
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 12, 0, 0);
+        for(int i = 0; i < 1000; i++)
+            messages.addMessage(new Message("m" + i, Message.TIMESTAMP_FORMAT.format(start.plusMinutes(i))));
+        messages.addMessage(new Message("late", Message.TIMESTAMP_FORMAT.format(start.plusMinutes(998))));
+
+        // Pages follow each other through the cursor.
+        GetResponse page = (GetResponse) messages.getSnapshot().read(new GetRequest(0, 100, null, null));
+        assertEquals(100, page.getMessages().size());
+        assertEquals(0, page.getSince());
+        page = (GetResponse) messages.getSnapshot().read(new GetRequest(page.getCursor(), 100, null, null));
+        assertEquals("m100", page.getMessages().get(0).getData());
+        assertEquals(200, page.getCursor());
+
+        // From is inclusive, until is exclusive.
+        String from = Message.TIMESTAMP_FORMAT.format(start.plusMinutes(500));
+        String until = Message.TIMESTAMP_FORMAT.format(start.plusMinutes(510));
+        GetResponse range = (GetResponse) messages.getSnapshot().read(new GetRequest(0, 0, from, until));
+        assertEquals(10, range.getMessages().size());
+        assertEquals("m500", range.getMessages().get(0).getData());
+        assertEquals(500, range.getSince());
+
+        // A limited range, and a range starting after the cursor of a previous page.
+        range = (GetResponse) messages.getSnapshot().read(new GetRequest(505, 3, from, until));
+        assertEquals("m505", range.getMessages().get(0).getData());
+        assertEquals(508, range.getCursor());
+
+        // The late message is indexed at the time of the one before it.
+        range = (GetResponse) messages.getSnapshot().read(new GetRequest(0, 0, Message.TIMESTAMP_FORMAT.format(start.plusMinutes(999)), null));
+        assertEquals(2, range.getMessages().size());
+        assertEquals("late", range.getMessages().get(1).getData());
+
+        // Nothing in range is an empty page.
+        range = (GetResponse) messages.getSnapshot().read(new GetRequest(0, 0, until, from));
+        assertEquals(0, range.getMessages().size());
+        messages.close();
+
+        // Bounds that are not timestamps and negative page sizes are refused when the request is read.
+        for(String bad : new String[] { "{\"messagetype\":\"getrequest\",\"from\":\"yesterday\"}",
+                "{\"messagetype\":\"getrequest\",\"until\":\"2024/13/01 00:00:00\"}",
+                "{\"messagetype\":\"getrequest\",\"limit\":-1}" }) {
+            try {
+                new GetRequest(JsonIO.readObject(bad));
+                fail("Read " + bad);
+            } catch (InvalidObjectException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void subscribersWaitWithoutHoldingWorkers() throws Exception {
+        for(boolean nio : new boolean[] { false, true }) {
+            Messages messages = TestBoards.log(GroupCommitter.FSYNC_PER_BATCH);
+            TestBoards.puts(messages, 1, 5);
+
+            // One worker, so a held subscription would keep the put below from running.
+            TestServer service = TestServer.start(1, nio, messages);
+
+            ExecutorService subscribers = Executors.newFixedThreadPool(16);
+            List<Future<JSONObject>> woken = new ArrayList<>();
+            for(int i = 0; i < 16; i++)
+                woken.add(subscribers.submit(() -> service.request(new SubscribeRequest(5, 30000))));
+            Thread.sleep(500);
+            for(Future<JSONObject> n : woken)
+                assertFalse(n.isDone());
+
+            assertEquals("putresponse", service.request(new PutRequest("wake up")).getString("messagetype"));
+            for(Future<JSONObject> n : woken) {
+                SubscribeResponse resp = new SubscribeResponse(n.get());
+                assertEquals(5, resp.getSince());
+                assertEquals(6, resp.getCursor());
+                assertEquals("wake up", resp.getMessages().get(0).getData());
+            }
+
+            // Nothing posted before the wait runs out is an empty response.
+            SubscribeResponse idle = new SubscribeResponse(service.request(new SubscribeRequest(6, 200)));
+            assertEquals(0, idle.getMessages().size());
+            assertEquals(6, idle.getCursor());
+
+            subscribers.shutdown();
+            service.close();
+            messages.close();
+        }
+    }
+
+    @Test
+    public void responsesEchoTheRequestId() throws Exception {
+        Messages messages = TestBoards.log();
+        TestBoards.postWords(messages, 10, LocalDateTime.of(2024, 1, 1, 12, 0, 0));
+
+        for(boolean nio : new boolean[] { false, true }) {
+            // Shared and spooled snapshots get the id without being copied.
+            TestServer service = TestServer.start(2, nio, messages, new SnapshotSpool(Files.createTempDirectory("spool").toString()));
+            for(JSONSerializable req : new JSONSerializable[] { new GetRequest(), new GetRequest(4), new SubscribeRequest(0, 0), new PutRequest("tagged") }) {
+                JSONObject obj = (JSONObject) req.toJSONType();
+                String plain = service.requestLine(req);
+                obj.put("id", "req-7");
+                JSONObject tagged = JsonIO.readObject(TestServer.requestLine(service.getPort(), obj.toJSON()));
+
+                assertEquals("req-7", tagged.remove("id"));
+                if(!(req instanceof PutRequest))
+                    assertEquals(JsonIO.readObject(plain), tagged);
+            }
+
+            // Ids are bounded, like the rest of the request. The refusal carries no id.
+            JSONObject obj = (JSONObject) new GetRequest().toJSONType();
+            obj.put("id", "k".repeat(RequestHandler.MAX_ID_LENGTH + 1));
+            String refused = TestServer.requestLine(service.getPort(), obj.toJSON());
+            assertFalse(JsonIO.readObject(refused).containsKey("id"));
+            assertTrue(TestServer.error(refused).isNotStored());
+            service.close();
+        }
+        messages.close();
+    }
+
+    @Test
+    public void unchangedPollsAreAnsweredNotModified() throws Exception {
+        Messages messages = TestBoards.log();
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 12, 0, 0);
+        TestBoards.postWords(messages, 2000, start);
+
+        TestServer service = TestServer.start(4, false, messages);
+
+        BoardCache cache = new BoardCache();
+        String full = service.requestLine(cache.request());
+        cache.merge(new GetResponse(JsonIO.readObject(full)));
+
+        // Polls of an unchanged board come back as a few bytes, however large the board is.
+        String poll = null;
+        long polled = System.nanoTime();
+        for(int i = 0; i < 500; i++)
+            poll = service.requestLine(cache.request());
+        polled = System.nanoTime() - polled;
+        GetResponse resp = new GetResponse(JsonIO.readObject(poll));
+        assertTrue(resp.isNotModified());
+        assertEquals(2000, cache.merge(resp).getMessages().size());
+
+        String plain = null;
+        long fetched = System.nanoTime();
+        for(int i = 0; i < 500; i++)
+            plain = service.requestLine(new GetRequest());
+        fetched = System.nanoTime() - fetched;
+        System.out.printf("poll bytes not modified=%d full=%d, 500 polls ms not modified=%d full=%d%n",
+            poll.length(), plain.length(), polled / 1000000, fetched / 1000000);
+        assertTrue(poll, poll.length() < 100);
+        assertTrue("Not modified " + polled + "ns, full " + fetched + "ns", polled < fetched);
+
+        // A put changes the ETag, the next poll carries the new message.
+        messages.addMessage(new Message("one more", Message.TIMESTAMP_FORMAT.format(start.plusDays(2))));
+        resp = new GetResponse(JsonIO.readObject(service.requestLine(cache.request())));
+        assertFalse(resp.isNotModified());
+        assertEquals(1, resp.getMessages().size());
+        assertEquals("one more", cache.merge(resp).getMessages().get(2000).getData());
+        assertTrue(new GetResponse(JsonIO.readObject(service.requestLine(cache.request()))).isNotModified());
+
+        service.close();
+        messages.close();
+
+        // After a restart the old ETag no longer matches, even with a board of the same size,
+        // and its cursor is not trusted.
+        Messages other = TestBoards.log();
+        for(int i = 0; i < 2001; i++)
+            other.addMessage(new Message("other " + i, "now"));
+        resp = new GetResponse(JsonIO.readObject(other.getSnapshot().read(cache.request()).serialize()));
+        assertEquals(0, resp.getSince());
+        assertEquals("other 0", cache.merge(resp).getMessages().get(0).getData());
+        other.close();
+    }
+}
@@ -0,0 +1,71 @@
+package tests;
+
+import org.junit.Test;
+
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.PutRequest;
+import mackyack_server.Boards;
+import mackyack_server.DedupCache;
+import mackyack_server.Messages;
+import merrimackutil.json.types.JSONObject;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Named boards, each with its own store, writer and spool.
+ */
+public class BoardsTest {
+
+    @Test(timeout = 60000)
+    public void boardsDoNotWaitOnEachOther() throws Exception {
+        Messages main = TestBoards.log();
+        Messages news = TestBoards.log();
+        Messages busy = TestBoards.log();
+        Boards boards = new Boards(main, null);
+        boards.add("news", news, null);
+        boards.add("busy", busy, null);
+
+        TestServer service = TestServer.start(4, false, boards, new DedupCache(DedupCache.DEFAULT_KEYS, DedupCache.DEFAULT_TTL_SECONDS));
+
+        // Each board has its own messages, requests without a board go to the default one.
+        service.request(new PutRequest("hello main"));
+        service.request(new PutRequest("hello news", null, "news"));
+        GetResponse got = new GetResponse(service.request(new GetRequest(0, 0, null, null, null, null, "news")));
+        assertEquals(1, got.getMessages().size());
+        assertEquals("hello news", got.getMessages().get(0).getData());
+        assertEquals("hello main", new GetResponse(service.request(new GetRequest())).getMessages().get(0).getData());
+
+        // The same idempotency key on two boards is two puts.
+        service.request(new PutRequest("keyed", "key-1", "news"));
+        service.request(new PutRequest("keyed", "key-1", "busy"));
+        assertEquals(2, news.getSnapshot().getVersion());
+        assertEquals(1, busy.getSnapshot().getVersion());
+
+        // Boards the server does not have are refused.
+        assertTrue(TestServer.error(service.requestLine(new PutRequest("lost", null, "nope"))).isNotStored());
+
+        // A board held up in the middle of a put holds up no other board.
+        ExecutorService clients = Executors.newSingleThreadExecutor();
+        Future<JSONObject> stuck;
+        synchronized(busy) {
+            stuck = clients.submit(() -> service.request(new PutRequest("stuck", null, "busy")));
+            long start = System.nanoTime();
+            service.request(new PutRequest("meanwhile", null, "news"));
+            got = new GetResponse(service.request(new GetRequest(0, 0, null, null, null, null, "news")));
+            System.out.printf("news put and get while busy is held ms=%d%n", (System.nanoTime() - start) / 1000000);
+            assertEquals("meanwhile", got.getMessages().get(2).getData());
+            assertFalse(stuck.isDone());
+        }
+        assertEquals("putresponse", stuck.get().getString("messagetype"));
+        assertEquals("stuck", busy.getMessages().get(1).getData());
+        clients.shutdown();
+
+        service.close();
+        boards.close();
+    }
+}
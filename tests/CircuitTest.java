@@ -0,0 +1,564 @@
+package tests;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import mackyack_client.CircuitPool;
+import mackyack_client.ClientConfig;
+import mackyack_client.OnionProxy;
+import mackyack_client.OnionStream;
+import mackyack_client.RoutersConfig;
+import mackyack_client.ServerErrorException;
+import mackyack_messages.ErrorResponse;
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.Message;
+import mackyack_messages.MessageCodec;
+import mackyack_messages.PutBatchResponse;
+import mackyack_messages.PutRequest;
+import mackyack_messages.PutResponse;
+import mackyack_messages.SubscribeResponse;
+import mackyack_server.Messages;
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.util.Pair;
+import onionrouting.OnionRouterCrypto;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The client side of circuits: streams, response matching, deadlines and repair.
+ * Onion routers keep their tables in statics, so each runs in a process of its own.
+ */
+public class CircuitTest {
+
+    private final static int ROUTERS = 4;
+    private final static int SERVER_TIMEOUT_S = 2; // Exit ORs give up on a silent server well within a request's deadline.
+
+    private static Path dir;
+    private static int[] ports = new int[ROUTERS];
+    private static Process[] routers = new Process[ROUTERS];
+    private static Messages messages;
+    private static TestServer server;
+
+    @BeforeClass
+    public static void startRouters() throws Exception {
+        dir = Files.createTempDirectory("circuit");
+        JSONArray table = new JSONArray();
+        for(int i = 0; i < ROUTERS; i++) {
+            Pair<String> keys = OnionRouterCrypto.generateAsymKeys();
+            ports[i] = freePort();
+
+            JSONObject conf = new JSONObject();
+            conf.put("privKey", keys.getSecond());
+            conf.put("port", ports[i]);
+            conf.put("addr", "127.0.0.1");
+            conf.put("verbose", false);
+            conf.put("serverTimeout", SERVER_TIMEOUT_S);
+            Files.writeString(dir.resolve("router-" + i + ".json"), conf.toJSON());
+
+            JSONObject router = new JSONObject();
+            router.put("addr", "127.0.0.1");
+            router.put("port", ports[i]);
+            router.put("pubKey", keys.getFirst());
+            table.add(router);
+
+            startRouter(i);
+        }
+
+        JSONObject routersJson = new JSONObject();
+        routersJson.put("routers", table);
+        Files.writeString(dir.resolve("routers.json"), routersJson.toJSON());
+
+        messages = TestBoards.log();
+        server = TestServer.start(4, false, messages);
+    }
+
+    @AfterClass
+    public static void stopRouters() throws Exception {
+        for(Process router : routers)
+            router.destroyForcibly().waitFor();
+        server.close();
+        messages.close();
+    }
+
+    @Test(timeout = 60000)
+    public void streamsShareTheCircuitUntilClosed() throws Exception {
+        OnionProxy proxy = proxy(server.getPort());
+        try {
+            OnionStream first = proxy.openStream().get(10, TimeUnit.SECONDS);
+            OnionStream second = proxy.openStream().get(10, TimeUnit.SECONDS);
+            assertNotEquals(first.getStreamID(), second.getStreamID());
+
+            // Puts on both streams and outside of any stream go out over the one circuit at once.
+            List<CompletableFuture<?>> puts = new ArrayList<>();
+            for(int i = 0; i < 5; i++) {
+                puts.add(first.put("first " + i));
+                puts.add(second.put("second " + i));
+                puts.add(proxy.put("circuit " + i));
+            }
+            for(CompletableFuture<?> put : puts)
+                put.get(10, TimeUnit.SECONDS);
+
+            List<String> board = new ArrayList<>();
+            first.get().get(10, TimeUnit.SECONDS).getMessages().forEach(n -> board.add(n.getData()));
+            assertTrue(board.contains("first 4") && board.contains("second 4") && board.contains("circuit 4"));
+
+            // Closing a stream fails what waits on it, and the exit OR forgets it.
+            CompletableFuture<GetResponse> waiting = first.subscribe(30, TimeUnit.SECONDS);
+            first.close();
+            assertFailsWith(IOException.class, waiting);
+            assertFailsWith(TimeoutException.class, first.get(1, TimeUnit.SECONDS));
+
+            // The other stream and the circuit are left up.
+            assertEquals(board.size(), second.get().get(10, TimeUnit.SECONDS).getMessages().size());
+            assertEquals(board.size(), proxy.get().get(10, TimeUnit.SECONDS).getMessages().size());
+            assertEquals(0, proxy.getMetrics().getRebuilds());
+        } finally {
+            proxy.destroy();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void responsesAreMatchedByTheirId() throws Exception {
+        try (ServerSocket fake = new ServerSocket(0)) {
+            OnionProxy proxy = proxy(fake.getLocalPort());
+            try {
+                OnionStream stream = proxy.openStream().get(10, TimeUnit.SECONDS);
+
+                // Every request is held until all have arrived, then answered in reverse order.
+                List<CompletableFuture<GetResponse>> pages = new ArrayList<>();
+                for(int i = 0; i < 4; i++)
+                    pages.add(stream.get(new GetRequest(i * 10, 10, null, null), 10, TimeUnit.SECONDS));
+                CompletableFuture<JSONObject> put = proxy.request(new PutRequest("put"), "putresponse", 10, TimeUnit.SECONDS);
+
+                List<Socket> held = new ArrayList<>();
+                List<JSONObject> requests = new ArrayList<>();
+                for(int i = 0; i < 5; i++) {
+                    held.add(fake.accept());
+                    requests.add(read(held.get(i)));
+                }
+
+                for(int i = requests.size() - 1; i >= 0; i--) {
+                    JSONObject request = requests.get(i);
+                    if(request.getString("messagetype").equals("getrequest")) {
+                        int since = request.containsKey("since") ? request.getInt("since") : 0;
+                        answer(held.get(i), withId(new GetResponse(List.of(), since, since + 10), request.getString("id")));
+                    } else
+                        answer(held.get(i), withId(new PutResponse(), request.getString("id")));
+                }
+
+                for(int i = 0; i < pages.size(); i++)
+                    assertEquals(i * 10 + 10, pages.get(i).get(10, TimeUnit.SECONDS).getCursor());
+                assertEquals("putresponse", put.get(10, TimeUnit.SECONDS).getString("messagetype"));
+
+                // A response of the wrong type fails only the request it carries the id of.
+                CompletableFuture<GetResponse> mismatched = stream.get(new GetRequest(), 10, TimeUnit.SECONDS);
+                try (Socket sock = fake.accept()) {
+                    answer(sock, withId(new PutResponse(), read(sock).getString("id")));
+                }
+                assertFailsWith(IOException.class, mismatched);
+
+                // A put the server refused fails at once, it is not sent again.
+                CompletableFuture<PutResponse> refused = proxy.put("refused", 10, TimeUnit.SECONDS);
+                try (Socket sock = fake.accept()) {
+                    answer(sock, withId(new ErrorResponse("No board named nope.", true), read(sock).getString("id")));
+                }
+                assertFailsWith(ServerErrorException.class, refused);
+                fake.setSoTimeout(1000);
+                try {
+                    fake.accept().close();
+                    fail("A refused put was sent again.");
+                } catch (SocketTimeoutException e) {
+                }
+            } finally {
+                proxy.destroy();
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void streamsUseTheConfiguredBoardAndBatchPuts() throws Exception {
+        try (ServerSocket fake = new ServerSocket(0)) {
+            OnionProxy proxy = proxy(fake.getLocalPort(), "news", 200);
+            try {
+                OnionStream stream = proxy.openStream().get(10, TimeUnit.SECONDS);
+
+                // Puts made together go out as one keyed batch to the configured board.
+                CompletableFuture<PutResponse> first = stream.put("first");
+                CompletableFuture<PutResponse> second = stream.put("second");
+                try (Socket sock = fake.accept()) {
+                    JSONObject batch = read(sock);
+                    assertEquals("putbatchrequest", batch.getString("messagetype"));
+                    assertEquals("news", batch.getString("board"));
+                    assertTrue(batch.containsKey("key"));
+                    answer(sock, withId(new PutBatchResponse(2), batch.getString("id")));
+                }
+                first.get(10, TimeUnit.SECONDS);
+                second.get(10, TimeUnit.SECONDS);
+
+                // Reads of the stream's board name it too.
+                CompletableFuture<GetResponse> get = stream.get();
+                try (Socket sock = fake.accept()) {
+                    JSONObject request = read(sock);
+                    assertEquals("news", request.getString("board"));
+                    answer(sock, withId(new GetResponse(List.of(), 0, 2), request.getString("id")));
+                }
+                assertEquals(2, get.get(10, TimeUnit.SECONDS).getCursor());
+
+                CompletableFuture<GetResponse> subscribed = stream.subscribe(1, TimeUnit.SECONDS);
+                try (Socket sock = fake.accept()) {
+                    JSONObject request = read(sock);
+                    assertEquals("subscriberequest", request.getString("messagetype"));
+                    assertEquals("news", request.getString("board"));
+                    answer(sock, withId(new SubscribeResponse(List.of(), 2, 2), request.getString("id")));
+                }
+                assertEquals(2, subscribed.get(10, TimeUnit.SECONDS).getCursor());
+            } finally {
+                proxy.destroy();
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void exitRouterAnswersForUnresponsiveServers() throws Exception {
+        try (ServerSocket fake = new ServerSocket(0)) {
+            OnionProxy proxy = proxy(fake.getLocalPort());
+            try {
+                OnionStream stream = proxy.openStream().get(10, TimeUnit.SECONDS);
+
+                // The server takes the requests and never answers, the exit OR gives up on it first.
+                CompletableFuture<GetResponse> onStream = stream.get(new GetRequest(), 30, TimeUnit.SECONDS);
+                CompletableFuture<PutResponse> onCircuit = proxy.put("unanswered", 30, TimeUnit.SECONDS);
+                List<Socket> held = new ArrayList<>();
+                for(int i = 0; i < 2; i++)
+                    held.add(fake.accept());
+                try {
+                    assertFailsWith(ServerErrorException.class, onStream);
+                    assertFailsWith(ServerErrorException.class, onCircuit);
+                } finally {
+                    for(Socket sock : held)
+                        sock.close();
+                }
+                assertEquals(0, proxy.getMetrics().getTimeouts());
+            } finally {
+                proxy.destroy();
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void binaryCodecCrossesTheCircuit() throws Exception {
+        OnionProxy proxy = proxy(server.getPort(), null, 0, "binary");
+        try {
+            OnionStream stream = proxy.openStream().get(10, TimeUnit.SECONDS);
+            proxy.put("binary on the circuit").get(10, TimeUnit.SECONDS);
+            stream.put("binary on a stream").get(10, TimeUnit.SECONDS);
+
+            List<String> data = new ArrayList<>();
+            for(Message n : stream.get().get(10, TimeUnit.SECONDS).getMessages())
+                data.add(n.getData());
+            assertTrue(data.contains("binary on the circuit"));
+            assertTrue(data.contains("binary on a stream"));
+
+            // Later reads send the cursor and ETag back, the cache merges what is new.
+            assertEquals(data.size(), stream.get().get(10, TimeUnit.SECONDS).getMessages().size());
+            proxy.put("binary after").get(10, TimeUnit.SECONDS);
+            List<Message> after = stream.get().get(10, TimeUnit.SECONDS).getMessages();
+            assertEquals("binary after", after.get(after.size() - 1).getData());
+        } finally {
+            proxy.destroy();
+        }
+
+        // The exit OR answers for a silent server with the id kept outside the frame.
+        try (ServerSocket fake = new ServerSocket(0)) {
+            OnionProxy silent = proxy(fake.getLocalPort(), null, 0, "binary");
+            try {
+                CompletableFuture<PutResponse> put = silent.put("unanswered", 30, TimeUnit.SECONDS);
+                try (Socket sock = fake.accept()) {
+                    assertEquals(MessageCodec.MAGIC, sock.getInputStream().read());
+                    assertFailsWith(ServerErrorException.class, put);
+                }
+            } finally {
+                silent.destroy();
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void failedPoolTearsDownItsCircuits() throws Exception {
+        ClientConfig conf = config(server.getPort(), null, 0);
+        ServerSocket taken = new ServerSocket(conf.getPort() + conf.getCircuitPoolSize() - 1);
+        try {
+            new CircuitPool(new RoutersConfig(conf.getRoutersPath()), conf);
+            fail("Built a pool without its last circuit.");
+        } catch (IOException e) {
+            // Expected, the last circuit cannot listen.
+        } finally {
+            taken.close();
+        }
+
+        // The circuits built before it were destroyed, nothing listens for their cells.
+        for(int i = 0; i < conf.getCircuitPoolSize() - 1; i++) {
+            try {
+                new Socket("127.0.0.1", conf.getPort() + i).close();
+                fail("Circuit " + i + " is still listening.");
+            } catch (ConnectException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void requestsMissingTheirDeadlineFail() throws Exception {
+        try (ServerSocket fake = new ServerSocket(0)) {
+            OnionProxy proxy = proxy(fake.getLocalPort());
+            try {
+                OnionStream stream = proxy.openStream().get(10, TimeUnit.SECONDS);
+
+                CompletableFuture<GetResponse> late = stream.get(new GetRequest(), 500, TimeUnit.MILLISECONDS);
+                try (Socket sock = fake.accept()) {
+                    JSONObject request = read(sock);
+                    assertFailsWith(TimeoutException.class, late);
+
+                    // The response that finally comes is dropped, the next request gets its own.
+                    CompletableFuture<GetResponse> next = stream.get(new GetRequest(5), 10, TimeUnit.SECONDS);
+                    answer(sock, withId(new GetResponse(List.of(), 0, 1), request.getString("id")));
+
+                    try (Socket nextSock = fake.accept()) {
+                        JSONObject nextRequest = read(nextSock);
+                        assertNotEquals(request.getString("id"), nextRequest.getString("id"));
+                        answer(nextSock, withId(new GetResponse(List.of(), 5, 7), nextRequest.getString("id")));
+                    }
+                    assertEquals(7, next.get(10, TimeUnit.SECONDS).getCursor());
+                }
+
+                // The timeout was counted and made the proxy probe the circuit, which was found healthy.
+                long deadline = System.currentTimeMillis() + 10000;
+                while(proxy.getMetrics().getProbes() == 0 && System.currentTimeMillis() < deadline)
+                    Thread.sleep(50);
+                assertEquals(1, proxy.getMetrics().getTimeouts());
+                assertEquals(0, proxy.getMetrics().getFailedProbes());
+                assertEquals(0, proxy.getMetrics().getRebuilds());
+            } finally {
+                proxy.destroy();
+            }
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void failedHopIsReplacedBehindTheEntrance() throws Exception {
+        OnionProxy proxy = proxy(server.getPort());
+        int killed = -1;
+        try {
+            OnionStream stream = proxy.openStream().get(10, TimeUnit.SECONDS);
+            stream.put("before").get(10, TimeUnit.SECONDS);
+            int entry = proxy.getCircuit().get(0).getPort();
+            String entryCircuit = proxy.getCircuit().get(0).getCircuitId();
+
+            killed = indexOf(proxy.getCircuit().get(1).getPort());
+            routers[killed].destroyForcibly().waitFor();
+            assertEquals(1, proxy.checkHealth());
+
+            // The entrance truncates after itself and the circuit is extended with the routers left.
+            proxy.checkAndRepair();
+            assertTrue(proxy.isHealthy());
+            assertEquals(1, proxy.getMetrics().getRepairs());
+            assertEquals(entry, proxy.getCircuit().get(0).getPort());
+            assertEquals(entryCircuit, proxy.getCircuit().get(0).getCircuitId());
+            for(int i = 1; i < proxy.getCircuit().size(); i++)
+                assertNotEquals(ports[killed], proxy.getCircuit().get(i).getPort());
+            assertEquals(-1, proxy.checkHealth());
+
+            // The stream was opened again at the new exit OR.
+            stream.put("after").get(10, TimeUnit.SECONDS);
+            List<String> board = new ArrayList<>();
+            stream.get().get(10, TimeUnit.SECONDS).getMessages().forEach(n -> board.add(n.getData()));
+            assertTrue(board.contains("before") && board.contains("after"));
+        } finally {
+            proxy.destroy();
+            if(killed >= 0)
+                startRouter(killed);
+        }
+    }
+
+    /**
+     * Builds a circuit to the server on {@code serverPort} with health checks left to the test.
+     */
+    private static OnionProxy proxy(int serverPort) throws Exception {
+        return proxy(serverPort, null, 0);
+    }
+
+    /**
+     * @param board board requests go to, null for the server's default board.
+     * @param putBatchWindowMs window puts are batched in, 0 for none.
+     */
+    private static OnionProxy proxy(int serverPort, String board, int putBatchWindowMs) throws Exception {
+        return proxy(serverPort, board, putBatchWindowMs, "json");
+    }
+
+    /**
+     * @param board board requests go to, null for the server's default board.
+     * @param putBatchWindowMs window puts are batched in, 0 for none.
+     * @param codec form gets and puts are sent in, "json" or "binary".
+     */
+    private static OnionProxy proxy(int serverPort, String board, int putBatchWindowMs, String codec) throws Exception {
+        ClientConfig clientConfig = config(serverPort, board, putBatchWindowMs, codec);
+        return new OnionProxy(new RoutersConfig(clientConfig.getRoutersPath()), clientConfig);
+    }
+
+    private static ClientConfig config(int serverPort, String board, int putBatchWindowMs) throws Exception {
+        return config(serverPort, board, putBatchWindowMs, "json");
+    }
+
+    /**
+     * @param board board requests go to, null for the server's default board.
+     * @param putBatchWindowMs window puts are batched in, 0 for none.
+     * @param codec form gets and puts are sent in, "json" or "binary".
+     * @return a client configuration returning cells on a free port.
+     */
+    private static ClientConfig config(int serverPort, String board, int putBatchWindowMs, String codec) throws Exception {
+        JSONObject conf = new JSONObject();
+        conf.put("addr", "127.0.0.1");
+        conf.put("port", freePorts(3)); // A circuit pool listens on the ports after it.
+        conf.put("serverAddr", "127.0.0.1");
+        conf.put("serverPort", serverPort);
+        conf.put("serverPubKey", "");
+        conf.put("routersPath", dir.resolve("routers.json").toString());
+        conf.put("verbose", false);
+        conf.put("healthCheckInterval", 0);
+        conf.put("putBatchWindowMs", putBatchWindowMs);
+        conf.put("codec", codec);
+        if(board != null)
+            conf.put("board", board);
+        Path path = Files.createTempFile(dir, "client", ".json");
+        Files.writeString(path, conf.toJSON());
+
+        return new ClientConfig(path.toString());
+    }
+
+    /**
+     * Starts router {@code i} and waits until it accepts cells.
+     */
+    private static void startRouter(int i) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            "onionrouting.OnionRouter", "--config", dir.resolve("router-" + i + ".json").toString());
+        builder.redirectErrorStream(true);
+        routers[i] = builder.start();
+
+        // The router's output is drained for as long as it runs, so it never blocks on a full pipe.
+        CountDownLatch started = new CountDownLatch(1);
+        Process router = routers[i];
+        Thread drain = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(router.getInputStream()))) {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    if(line.startsWith("Onion Router started"))
+                        started.countDown();
+                }
+            } catch (IOException e) {
+                // The router was stopped.
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+
+        if(!started.await(30, TimeUnit.SECONDS))
+            throw new IOException("Router " + i + " did not start.");
+    }
+
+    private static int indexOf(int port) {
+        for(int i = 0; i < ROUTERS; i++) {
+            if(ports[i] == port)
+                return i;
+        }
+        throw new IllegalArgumentException("No router on port " + port);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket sock = new ServerSocket(0)) {
+            return sock.getLocalPort();
+        }
+    }
+
+    /**
+     * @return the first of {@code count} free ports in a row, below the ephemeral range so no
+     * outgoing connection takes one of them meanwhile.
+     */
+    private static int freePorts(int count) throws IOException {
+        Random random = new Random();
+        while(true) {
+            int first = 20000 + random.nextInt(10000);
+            boolean free = true;
+            for(int i = 0; i < count && free; i++) {
+                try {
+                    new ServerSocket(first + i).close();
+                } catch (IOException e) {
+                    free = false;
+                }
+            }
+            if(free)
+                return first;
+        }
+    }
+
+    private static JSONObject withId(JSONSerializable response, String id) {
+        JSONObject obj = (JSONObject) response.toJSONType();
+        obj.put("id", id);
+        return obj;
+    }
+
+    /**
+     * Reads the request an exit OR sent to a fake server.
+     */
+    private static JSONObject read(Socket sock) throws IOException {
+        return JsonIO.readObject(new BufferedReader(new InputStreamReader(sock.getInputStream())).readLine());
+    }
+
+    /**
+     * Answers a request held by a fake server the way a MackYack server does.
+     */
+    private static void answer(Socket sock, JSONObject response) throws IOException {
+        BufferedWriter output = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream()));
+        output.write(response.toJSON());
+        output.newLine();
+        output.flush();
+        sock.close();
+    }
+
+    private static void assertFailsWith(Class<? extends Throwable> cause, CompletableFuture<?> future) throws InterruptedException {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Expected " + cause.getSimpleName());
+        } catch (ExecutionException e) {
+            assertTrue("Failed with " + e.getCause(), cause.isInstance(e.getCause()));
+        } catch (TimeoutException e) {
+            fail("Still waiting instead of failing with " + cause.getSimpleName());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package tests;
+
+import org.junit.Test;
+
+import mackyack_client.BoardCache;
+import mackyack_messages.ErrorResponse;
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.Message;
+import mackyack_messages.MessageCodec;
+import mackyack_messages.PutRequest;
+import mackyack_messages.PutResponse;
+import mackyack_server.Messages;
+import mackyack_server.ShardRouter;
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+
+import static org.junit.Assert.*;
+
+import java.io.InvalidObjectException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodings GETs can ask for the messages in, and the binary codec.
+ */
+public class EncodingTest {
+
+    @Test
+    public void deflatedGetsCarryFewerBytes() throws Exception {
+        Messages messages = TestBoards.log();
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 12, 0, 0);
+        TestBoards.postWords(messages, 2000, start);
+
+        TestServer service = TestServer.start(4, false, messages);
+
+        // The exit OR encrypts and Base64 expands every byte of the line at every hop.
+        String plain = service.requestLine(new GetRequest());
+        String deflated = service.requestLine(new GetRequest(0, 0, null, null, GetResponse.DEFLATE));
+        System.out.printf("getresponse plain=%dKB deflated=%dKB%n", plain.length() / 1024, deflated.length() / 1024);
+        assertTrue("Deflated " + deflated.length() + " of " + plain.length(), deflated.length() < plain.length() / 3);
+
+        GetResponse resp = new GetResponse(JsonIO.readObject(deflated));
+        assertEquals(GetResponse.DEFLATE, resp.getEncoding());
+        assertEquals(2000, resp.getCursor());
+        assertEquals(new GetResponse(JsonIO.readObject(plain)).getMessages().toString(), resp.getMessages().toString());
+
+        // Reads from a cursor are deflated per response, the cache merges them as usual.
+        BoardCache cache = new BoardCache(GetResponse.DEFLATE);
+        cache.merge(resp);
+        messages.addMessage(new Message("one more", Message.TIMESTAMP_FORMAT.format(start.plusDays(2))));
+        JSONObject delta = JsonIO.readObject(service.requestLine(cache.request()));
+        assertEquals(GetResponse.DEFLATE, delta.getString("encoding"));
+        assertEquals("one more", cache.merge(new GetResponse(delta)).getMessages().get(2000).getData());
+
+        // Servers answer encodings they do not know with plain JSON.
+        assertTrue(JsonIO.readObject(service.requestLine(new GetRequest(0, 0, null, null, "brotli"))).containsKey("messages"));
+
+        service.close();
+        messages.close();
+    }
+
+    @Test
+    public void binaryFramesRoundTrip() throws Exception {
+        // Timestamps out of order or not in the timestamp format come back as they were.
+        List<Message> board = List.of(
+            new Message("first", "2024/01/01 12:00:00"),
+            new Message("earlier, then later \u2713", "2024/01/01 11:59:58"),
+            new Message("", "not a timestamp"),
+            new Message("last", "2024/01/02 00:00:00"));
+        JSONSerializable[] messages = {
+            new GetRequest(),
+            new GetRequest(3, 10, "2024/01/01 00:00:00", "2024/02/30 00:00:00", null, "epoch:4", "news"),
+            new PutRequest("h\u00e9llo w\u00f6rld", "key-1", "news"),
+            new PutRequest("plain"),
+            new PutResponse(),
+            new GetResponse(board, 0, 4, null, "epoch:4"),
+            new GetResponse(board.subList(1, 4), 1, 4),
+            new GetResponse(List.of()),
+            GetResponse.notModified(4, "epoch:4"),
+        };
+        for(JSONSerializable n : messages) {
+            JSONObject json = (JSONObject) n.toJSONType();
+            json.put("id", "req-7");
+            byte[] frame = MessageCodec.encode(json);
+            assertTrue(MessageCodec.isFrame(frame));
+            assertEquals(JsonIO.readObject(json.toJSON()), MessageCodec.decode(frame));
+
+            // A frame cut short, or with bytes after it, is refused.
+            try {
+                MessageCodec.decode(Arrays.copyOf(frame, frame.length - 1));
+                fail("Decoded a truncated " + json.getString("messagetype"));
+            } catch (InvalidObjectException e) {
+                // Expected.
+            }
+            try {
+                MessageCodec.decode(Arrays.copyOf(frame, frame.length + 1));
+                fail("Decoded a " + json.getString("messagetype") + " with a trailing byte");
+            } catch (InvalidObjectException e) {
+                // Expected.
+            }
+        }
+
+        // Subscriptions and errors stay JSON.
+        assertFalse(MessageCodec.isEncodable((JSONObject) new ErrorResponse("no", true).toJSONType()));
+    }
+
+    @Test
+    public void binaryRequestsAreAnsweredInBinary() throws Exception {
+        for(boolean nio : new boolean[] { false, true }) {
+            Messages messages = TestBoards.log();
+            TestBoards.postWords(messages, 2000, LocalDateTime.of(2024, 1, 1, 12, 0, 0));
+            TestServer service = TestServer.start(4, nio, messages);
+
+            // A put is answered in binary, with its id.
+            JSONObject put = (JSONObject) new PutRequest("binary").toJSONType();
+            put.put("id", "p1");
+            JSONObject res = MessageCodec.decode(service.requestFrame(MessageCodec.encode(put)));
+            assertEquals("putresponse", res.getString("messagetype"));
+            assertEquals("p1", res.getString("id"));
+
+            // The whole board matches its JSON form. Each message's field names, quotes and
+            // timestamp text give way to a few bytes, its data is the same.
+            String json = service.requestLine(new GetRequest());
+            byte[] binary = service.requestFrame(MessageCodec.encode((JSONObject) new GetRequest().toJSONType()));
+            GetResponse plain = new GetResponse(JsonIO.readObject(json));
+            GetResponse full = new GetResponse(MessageCodec.decode(binary));
+            assertEquals(plain.getMessages().toString(), full.getMessages().toString());
+            assertEquals(plain.getETag(), full.getETag());
+            assertEquals(2001, full.getCursor());
+            assertTrue("Binary " + binary.length + " of " + json.length(), binary.length < json.length() * 2 / 3);
+
+            // A poll with the current ETag is not modified, a page reads from its cursor.
+            GetRequest poll = new GetRequest(full.getCursor(), 0, null, null, null, full.getETag());
+            assertTrue(new GetResponse(MessageCodec.decode(service.requestFrame(MessageCodec.encode((JSONObject) poll.toJSONType())))).isNotModified());
+            GetRequest page = new GetRequest(1990, 5, null, null);
+            GetResponse paged = new GetResponse(MessageCodec.decode(service.requestFrame(MessageCodec.encode((JSONObject) page.toJSONType()))));
+            assertEquals(1995, paged.getCursor());
+            assertEquals(plain.getMessages().subList(1990, 1995).toString(), paged.getMessages().toString());
+
+            // A frame the server cannot read is answered with a JSON ErrorResponse.
+            byte[] unknown = MessageCodec.encode(put);
+            unknown[2] = 99;
+            assertTrue(TestServer.error(new String(service.requestFrame(unknown), StandardCharsets.UTF_8).trim()).isNotStored());
+
+            // The router finds the board of a binary request and passes the frame on as it is.
+            ShardRouter router = new ShardRouter(0, List.of("127.0.0.1:" + service.getPort()));
+            Thread routing = TestServer.poll(router::poll);
+            res = MessageCodec.decode(TestServer.requestFrame(router.getPort(), MessageCodec.encode(put)));
+            assertEquals("putresponse", res.getString("messagetype"));
+            assertEquals("p1", res.getString("id"));
+            router.close();
+            routing.join();
+
+            service.close();
+            messages.close();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package tests;
+
+import org.junit.Test;
+
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.Message;
+import mackyack_server.LogMessageStore;
+import mackyack_server.MappedMessageStore;
+import mackyack_server.Messages;
+import merrimackutil.json.JsonIO;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores the board is kept in, and reading it back after a restart.
+ */
+public class MessageStoreTest {
+
+    @Test
+    public void mappedStoreReadsTheBoardInPlace() throws Exception {
+        File dir = Files.createTempDirectory("messages-mapped").toFile();
+        Messages messages = new Messages(new MappedMessageStore(dir.getPath()));
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 12, 0, 0);
+        for(int i = 0; i < 2000; i++)
+            messages.addMessage(new Message("m" + i, Message.TIMESTAMP_FORMAT.format(start.plusMinutes(i))));
+        String json = TestBoards.boardJson(messages);
+        messages.close();
+
+        // Nothing is loaded onto the heap, messages are read from the mapped files on access.
+        messages = new Messages(new MappedMessageStore(dir.getPath()));
+        assertEquals(2000, messages.getMessages().size());
+        assertEquals("m1234", messages.getMessages().get(1234).getData());
+        assertEquals(json, TestBoards.boardJson(messages));
+
+        GetResponse range = (GetResponse) messages.getSnapshot().read(new GetRequest(0, 5, Message.TIMESTAMP_FORMAT.format(start.plusMinutes(1500)), null));
+        assertEquals("m1500", range.getMessages().get(0).getData());
+        assertEquals(1505, range.getCursor());
+
+        // Puts are readable as soon as the writer stores them.
+        TestBoards.puts(messages, 4, 50);
+        assertEquals(2200, messages.getMessages().size());
+        assertEquals(2200, new GetResponse(JsonIO.readObject(messages.getSnapshot().serialize())).getMessages().size());
+        messages.close();
+
+        // A torn record at the end is dropped on load.
+        try (RandomAccessFile idx = new RandomAccessFile(new File(dir, "board.idx"), "rw")) {
+            idx.writeLong(2201);
+        }
+        assertEquals(2200, new Messages(new MappedMessageStore(dir.getPath())).getMessages().size());
+    }
+
+    @Test
+    public void mappedStoreChecksEveryUnsyncedRecord() throws Exception {
+        File dir = Files.createTempDirectory("messages-mapped").toFile();
+        MappedMessageStore store = new MappedMessageStore(dir.getPath());
+        store.load();
+        List<Message> written = new ArrayList<>();
+        for(int i = 0; i < 150; i++)
+            written.add(new Message("m" + i, "2024/01/01 12:00:00"));
+        store.appendAll(written.subList(0, 100));
+        store.sync();
+        store.appendAll(written.subList(100, 150));
+
+        // A crash before the next sync tears a record in the middle of the unsynced ones, the last one made it.
+        try (RandomAccessFile idx = new RandomAccessFile(new File(dir, "board.idx"), "r");
+             RandomAccessFile dat = new RandomAccessFile(new File(dir, "board.dat"), "rw")) {
+            idx.seek(8 + 120 * 16);
+            dat.seek(idx.readLong() + 8);
+            dat.write("torn".getBytes());
+        }
+
+        // The board ends before the torn record, even though the records after it check out.
+        List<Message> loaded = new MappedMessageStore(dir.getPath()).load();
+        assertEquals(120, loaded.size());
+        assertEquals("m119", loaded.get(119).getData());
+    }
+
+    @Test(timeout = 60000)
+    public void logStoreCompactsSealedSegmentsIntoSnapshots() throws Exception {
+        File dir = Files.createTempDirectory("messages-log").toFile();
+        LogMessageStore store = new LogMessageStore(dir.getPath(), 1024);
+        store.load();
+        List<Message> written = words(1000);
+        for(Message n : written)
+            store.append(n);
+
+        // The compactor keeps folding until fewer sealed segments are left than trigger it.
+        long deadline = System.currentTimeMillis() + 30000;
+        while((files(dir, ".snap").length == 0 || files(dir, ".log").length > 4 || files(dir, ".tmp").length > 0) && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        store.close();
+        assertEquals(1, files(dir, ".snap").length);
+        assertTrue(files(dir, ".log").length <= 4);
+
+        // The snapshot and the segments after it read back as the board that was written.
+        store = new LogMessageStore(dir.getPath(), 1024);
+        assertEquals(written.toString(), store.load().toString());
+        store.append(new Message("after", "2024/01/02 12:00:00"));
+        store.close();
+
+        List<Message> loaded = new LogMessageStore(dir.getPath(), 1024).load();
+        assertEquals(1001, loaded.size());
+        assertEquals("after", loaded.get(1000).getData());
+    }
+
+    @Test
+    public void logStoreRecoversAcrossSegments() throws Exception {
+        File dir = Files.createTempDirectory("messages-log").toFile();
+        LogMessageStore store = new LogMessageStore(dir.getPath(), 1024);
+        store.load();
+        List<Message> written = words(45);
+        store.appendAll(written.subList(0, 20));
+        for(Message n : written.subList(20, 45))
+            store.append(n);
+        store.close();
+
+        // Too few sealed segments for a compaction, the board is replayed from the segments alone.
+        // A snapshot a crashed compaction left half written is not read, and is deleted.
+        assertEquals(0, files(dir, ".snap").length);
+        assertTrue(files(dir, ".log").length >= 3);
+        Files.writeString(new File(dir, "snapshot-00000000000000000001.tmp").toPath(), "half");
+        store = new LogMessageStore(dir.getPath(), 1024);
+        assertEquals(written.toString(), store.load().toString());
+        assertEquals(0, files(dir, ".tmp").length);
+
+        // Appends after a restart continue the last segment.
+        store.append(new Message("after", "2024/01/02 12:00:00"));
+        store.close();
+        List<Message> loaded = new LogMessageStore(dir.getPath(), 1024).load();
+        assertEquals(46, loaded.size());
+        assertEquals("after", loaded.get(45).getData());
+
+        // A bad record in a sealed segment is corruption, not a torn put, and fails the load.
+        try (RandomAccessFile segment = new RandomAccessFile(files(dir, ".log")[0], "rw")) {
+            segment.seek(20);
+            segment.write("torn".getBytes());
+        }
+        try {
+            new LogMessageStore(dir.getPath(), 1024).load();
+            fail("Loaded a corrupt segment");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void logStoreCutsOffATornTail() throws Exception {
+        File dir = Files.createTempDirectory("messages-log").toFile();
+        LogMessageStore store = new LogMessageStore(dir.getPath(), 1024);
+        store.load();
+        List<Message> written = words(30);
+        store.appendAll(written);
+        store.close();
+
+        // A crash mid-put leaves the start of a record at the end of the active segment.
+        File[] segments = files(dir, ".log");
+        File last = segments[segments.length - 1];
+        long length = last.length();
+        try (RandomAccessFile segment = new RandomAccessFile(last, "rw")) {
+            segment.seek(length);
+            segment.writeInt(100);
+            segment.writeInt(0);
+            segment.write("{\"data\":".getBytes());
+        }
+
+        store = new LogMessageStore(dir.getPath(), 1024);
+        assertEquals(written.toString(), store.load().toString());
+        assertEquals(length, last.length());
+
+        // The next put follows the last whole record.
+        store.append(new Message("after", "2024/01/02 12:00:00"));
+        store.close();
+        List<Message> loaded = new LogMessageStore(dir.getPath(), 1024).load();
+        assertEquals(31, loaded.size());
+        assertEquals("after", loaded.get(30).getData());
+    }
+
+    @Test
+    public void jsonStoreServesBeforeParsingTheBoard() throws Exception {
+        File file = File.createTempFile("messages", ".json");
+        file.deleteOnExit();
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 12, 0, 0);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write("{\"messages\":[");
+            for(int i = 0; i < 200000; i++)
+                writer.write((i > 0 ? "," : "") + new Message("m" + i + " " + "x".repeat(100), Message.TIMESTAMP_FORMAT.format(start.plusSeconds(i))).serialize());
+            writer.write("]}");
+        }
+
+        // Loading only finds where the messages are, it allocates far less than the file's size.
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        long loadStart = System.nanoTime();
+        Messages messages = new Messages(file.getPath());
+        long elapsed = System.nanoTime() - loadStart;
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+        System.out.printf("json load messages=200000 file=%dMB ms=%d allocated=%dMB%n", file.length() >> 20, elapsed / 1000000, allocated >> 20);
+        assertTrue("Load allocated " + allocated + " bytes", allocated < file.length() / 2);
+
+        assertEquals(200000, messages.getMessages().size());
+        assertEquals("m123456 " + "x".repeat(100), messages.getMessages().get(123456).getData());
+        GetResponse range = (GetResponse) messages.getSnapshot().read(new GetRequest(0, 2, Message.TIMESTAMP_FORMAT.format(start.plusSeconds(150000)), null));
+        assertEquals(150000, range.getSince());
+        assertEquals("m150001 " + "x".repeat(100), range.getMessages().get(1).getData());
+
+        // A put rewrites the file from the loaded one, the loaded messages are still read from it.
+        // The next put copies the earlier put from the board.
+        messages.addMessage(new Message("new", Message.TIMESTAMP_FORMAT.format(start.plusSeconds(200000))));
+        messages.addMessage(new Message("newer", Message.TIMESTAMP_FORMAT.format(start.plusSeconds(200001))));
+        assertEquals("m199999 " + "x".repeat(100), messages.getMessages().get(199999).getData());
+        String json = TestBoards.boardJson(messages);
+        assertEquals(200002, new GetResponse(JsonIO.readObject(json)).getMessages().size());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        messages.close();
+
+        messages = new Messages(file.getPath());
+        assertEquals(json, TestBoards.boardJson(messages));
+        messages.close();
+    }
+
+    /**
+     * @return messages m0 to m{count - 1}, a minute apart.
+     */
+    private static List<Message> words(int count) {
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 12, 0, 0);
+        List<Message> ret = new ArrayList<>();
+        for(int i = 0; i < count; i++)
+            ret.add(new Message("m" + i, Message.TIMESTAMP_FORMAT.format(start.plusMinutes(i))));
+        return ret;
+    }
+
+    /**
+     * @return files in {@code dir} ending in {@code suffix}, sorted by name.
+     */
+    private static File[] files(File dir, String suffix) {
+        File[] ret = dir.listFiles((d, n) -> n.endsWith(suffix));
+        Arrays.sort(ret);
+        return ret;
+    }
+}
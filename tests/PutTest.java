@@ -0,0 +1,221 @@
+package tests;
+
+import org.junit.Test;
+
+import mackyack_messages.Message;
+import mackyack_messages.PutBatchRequest;
+import mackyack_messages.PutBatchResponse;
+import mackyack_messages.PutRequest;
+import mackyack_messages.PutResponse;
+import mackyack_server.DedupCache;
+import mackyack_server.LogMessageStore;
+import mackyack_server.MessageStore;
+import mackyack_server.Messages;
+import mackyack_server.NotStoredException;
+import merrimackutil.json.types.JSONObject;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batched and retried puts.
+ */
+public class PutTest {
+
+    @Test
+    public void batchedPutsAreAppliedTogether() throws Exception {
+        File dir = Files.createTempDirectory("messages-log").toFile();
+        Messages messages = new Messages(new LogMessageStore(dir.getPath(), LogMessageStore.DEFAULT_SEGMENT_BYTES));
+        TestServer service = TestServer.start(4, false, messages);
+
+        // Readers never see part of a batch.
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        Future<Integer> reads = reader.submit(() -> {
+            int count = 0;
+            while(writing.get()) {
+                assertEquals(0, messages.getSnapshot().getVersion() % 100);
+                count++;
+                Thread.yield();
+            }
+            return count;
+        });
+
+        long start = System.nanoTime();
+        for(int i = 0; i < 20; i++) {
+            List<String> batch = new ArrayList<>();
+            for(int j = 0; j < 100; j++)
+                batch.add("batch " + i + " " + j);
+            JSONObject resp = service.request(new PutBatchRequest(batch));
+            assertEquals(100, new PutBatchResponse(resp).getCount());
+        }
+        long batched = System.nanoTime() - start;
+        writing.set(false);
+        System.out.printf("put batches=20x100 ms=%d snapshot reads=%d%n", batched / 1000000, reads.get());
+        reader.shutdown();
+
+        // A tenth as many messages one request each, every one waiting on its own fsync.
+        start = System.nanoTime();
+        for(int i = 0; i < 200; i++)
+            assertEquals("putresponse", service.request(new PutRequest("single " + i)).getString("messagetype"));
+        long single = System.nanoTime() - start;
+        System.out.printf("single puts=200 ms=%d%n", single / 1000000);
+        assertTrue("Batched " + batched + "ns, single " + single + "ns", batched < single * 2);
+
+        // Batches over the limit are refused as a whole.
+        List<String> tooMany = new ArrayList<>();
+        for(int i = 0; i <= PutBatchRequest.MAX_MESSAGES; i++)
+            tooMany.add("too many " + i);
+        assertTrue(TestServer.error(service.requestLine(new PutBatchRequest(tooMany))).isNotStored());
+
+        service.close();
+        messages.close();
+
+        List<Message> stored = new Messages(new LogMessageStore(dir.getPath(), LogMessageStore.DEFAULT_SEGMENT_BYTES)).getMessages();
+        assertEquals(2200, stored.size());
+        assertEquals("batch 19 99", stored.get(1999).getData());
+        assertEquals(stored.get(0).getTimestamp(), stored.get(99).getTimestamp());
+    }
+
+    @Test
+    public void retriedPutsAreAppliedOnce() throws Exception {
+        Messages messages = TestBoards.log();
+        TestServer service = TestServer.start(8, false, messages, null, new DedupCache(4, 600));
+
+        // A retry with the key of a put that was applied gets the first response again.
+        String first = service.requestLine(new PutRequest("once", "key-1"));
+        assertEquals(first, service.requestLine(new PutRequest("once", "key-1")));
+        assertEquals(1, messages.getSnapshot().getVersion());
+
+        assertEquals(2, new PutBatchResponse(service.request(new PutBatchRequest(List.of("a", "b"), "key-2"))).getCount());
+        assertEquals(2, new PutBatchResponse(service.request(new PutBatchRequest(List.of("a", "b"), "key-2"))).getCount());
+        assertEquals(3, messages.getSnapshot().getVersion());
+
+        // Retries that arrive together wait for the one that got there first.
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        List<Future<JSONObject>> retries = new ArrayList<>();
+        for(int i = 0; i < 8; i++)
+            retries.add(clients.submit(() -> service.request(new PutRequest("together", "key-3"))));
+        for(Future<JSONObject> n : retries)
+            assertEquals("putresponse", n.get().getString("messagetype"));
+        clients.shutdown();
+        assertEquals(4, messages.getSnapshot().getVersion());
+
+        // Puts without a key are applied every time.
+        service.request(new PutRequest("twice"));
+        service.request(new PutRequest("twice"));
+        assertEquals(6, messages.getSnapshot().getVersion());
+
+        // Once more keys than the cache holds come in, the oldest is forgotten.
+        for(int i = 0; i < 4; i++)
+            service.request(new PutRequest("filler " + i, "filler-" + i));
+        service.request(new PutRequest("once", "key-1"));
+        assertEquals(11, messages.getSnapshot().getVersion());
+
+        // Keys are bounded, like the rest of the request.
+        assertTrue(TestServer.error(service.requestLine(new PutRequest("long", "k".repeat(PutRequest.MAX_KEY_LENGTH + 1)))).isNotStored());
+
+        service.close();
+        messages.close();
+    }
+
+    @Test
+    public void failedPutsAreNotOnTheBoard() throws Exception {
+        File dir = Files.createTempDirectory("messages-log").toFile();
+        FailingStore store = new FailingStore(new LogMessageStore(dir.getPath(), LogMessageStore.DEFAULT_SEGMENT_BYTES));
+        Messages messages = new Messages(store);
+        messages.addMessage(new Message("a", "2024/01/01 12:00:00"));
+        CompletableFuture<Void> changed = messages.changedAfter(1);
+
+        // A put the store dropped is neither served nor waited on, and later puts go on as usual.
+        store.failure = new NotStoredException("dropped");
+        assertThrows(NotStoredException.class, () -> messages.addMessage(new Message("b", "2024/01/01 12:00:00")));
+        assertEquals(1, messages.getSnapshot().getVersion());
+        assertFalse(changed.isDone());
+
+        store.failure = null;
+        messages.addMessage(new Message("c", "2024/01/01 12:00:00"));
+        assertTrue(changed.isDone());
+        assertEquals(List.of("a", "c"), messages.getMessages().stream().map(Message::getData).toList());
+
+        // Once the store may hold a put the board does not, every later put is refused.
+        store.failure = new IOException("half written");
+        IOException e = assertThrows(IOException.class, () -> messages.addMessage(new Message("d", "2024/01/01 12:00:00")));
+        assertFalse(e instanceof NotStoredException);
+        store.failure = null;
+        assertThrows(NotStoredException.class, () -> messages.addMessage(new Message("e", "2024/01/01 12:00:00")));
+        assertEquals(2, messages.getSnapshot().getVersion());
+        messages.close();
+    }
+
+    @Test
+    public void failedPutsAreRetriedOnlyIfNothingWasStored() throws Exception {
+        DedupCache dedup = new DedupCache(4, 600);
+        AtomicInteger applied = new AtomicInteger();
+
+        // A put that left nothing behind is applied again on retry.
+        assertThrows(NotStoredException.class, () -> dedup.apply("dropped", () -> { throw new NotStoredException("dropped"); }));
+        dedup.apply("dropped", () -> { applied.incrementAndGet(); return new PutResponse(); });
+        assertEquals(1, applied.get());
+
+        // One that may be on the board is not, its retries get its error.
+        IOException failed = new IOException("half written");
+        assertSame(failed, assertThrows(IOException.class, () -> dedup.apply("failed", () -> { throw failed; })));
+        assertSame(failed, assertThrows(IOException.class, () -> dedup.apply("failed", () -> { applied.incrementAndGet(); return new PutResponse(); })));
+        assertEquals(1, applied.get());
+    }
+
+    /**
+     * Stores messages in a log, failing appends while failure is set.
+     */
+    private static class FailingStore implements MessageStore {
+
+        private MessageStore log;
+        private volatile IOException failure;
+
+        FailingStore(MessageStore log) {
+            this.log = log;
+        }
+
+        @Override
+        public List<Message> load() throws IOException {
+            return log.load();
+        }
+
+        @Override
+        public void append(Message message) throws IOException {
+            appendAll(List.of(message));
+        }
+
+        @Override
+        public void appendAll(List<Message> messages) throws IOException {
+            IOException failure = this.failure;
+            if(failure instanceof NotStoredException)
+                throw failure;
+            log.appendAll(messages);
+            if(failure != null)
+                throw failure;
+        }
+
+        @Override
+        public void sync() throws IOException {
+            log.sync();
+        }
+
+        @Override
+        public void close() throws IOException {
+            log.close();
+        }
+    }
+}
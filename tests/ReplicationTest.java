@@ -0,0 +1,147 @@
+package tests;
+
+import org.junit.Test;
+
+import mackyack_client.BoardCache;
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.Message;
+import mackyack_messages.PutRequest;
+import mackyack_messages.SubscribeRequest;
+import mackyack_messages.SubscribeResponse;
+import mackyack_server.Boards;
+import mackyack_server.ChangeStream;
+import mackyack_server.Messages;
+import mackyack_server.Replicator;
+import mackyack_server.ShardRouter;
+import merrimackutil.json.types.JSONObject;
+
+import static org.junit.Assert.*;
+
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replicas that copy a primary's boards from its ChangeStream.
+ */
+public class ReplicationTest {
+
+    @Test(timeout = 60000)
+    public void replicasFollowThePrimary() throws Exception {
+        Boards primary = new Boards(TestBoards.log(), null);
+        primary.add("news", TestBoards.log(), null);
+        Boards replica = new Boards(TestBoards.log(), null);
+        replica.add("news", TestBoards.log(), null);
+        replica.setReadOnly(true);
+        Messages news = primary.get("news").getMessages();
+        Messages copy = replica.get("news").getMessages();
+        TestBoards.postWords(news, 2000, LocalDateTime.of(2024, 1, 1, 12, 0, 0));
+
+        TestServer primaryServer = TestServer.start(4, false, primary);
+        TestServer replicaServer = TestServer.start(4, false, replica);
+        ChangeStream stream = new ChangeStream(0, primary);
+        Thread streaming = TestServer.poll(stream::poll);
+        int primaryPort = primaryServer.getPort();
+        int replicaPort = replicaServer.getPort();
+
+        // The replica catches up with the board it missed, then follows the puts as they come.
+        String addr = "127.0.0.1:" + stream.getPort();
+        Replicator following = new Replicator(addr, "news", copy);
+        Replicator main = new Replicator(addr, null, replica.getMessages());
+        following.start();
+        main.start();
+        TestServer.request(primaryPort, new PutRequest("breaking", null, "news"));
+        TestServer.request(primaryPort, new PutRequest("on the default board", null, null));
+        awaitVersion(copy, 2001);
+        awaitVersion(replica.getMessages(), 1);
+        assertEquals(TestBoards.boardJson(news), TestBoards.boardJson(copy));
+        assertEquals(TestBoards.boardJson(primary.getMessages()), TestBoards.boardJson(replica.getMessages()));
+
+        // Both serve the same board under the same ETag, so a client may poll either.
+        GetResponse fromPrimary = new GetResponse(TestServer.request(primaryPort, new GetRequest(0, 0, null, null, null, null, "news")));
+        GetResponse fromReplica = new GetResponse(TestServer.request(replicaPort, new GetRequest(0, 0, null, null, null, null, "news")));
+        assertEquals(fromPrimary.getETag(), fromReplica.getETag());
+        assertEquals(2001, fromReplica.getMessages().size());
+
+        // Puts are refused by the replica.
+        assertTrue(TestServer.error(TestServer.requestLine(replicaPort, new PutRequest("lost", null, "news"))).isNotStored());
+        assertEquals(2001, copy.getSnapshot().getVersion());
+
+        // A router sends puts to the primary and spreads reads over it and its replica.
+        ShardRouter router = new ShardRouter(0, List.of("127.0.0.1:" + primaryPort));
+        router.setReplicas("127.0.0.1:" + primaryPort, List.of("127.0.0.1:" + replicaPort));
+        Thread routing = TestServer.poll(router::poll);
+
+        // With the replica stopped, reads through the router see both the primary and the lagging replica.
+        following.close();
+        assertEquals("putresponse", TestServer.request(router.getPort(), new PutRequest("while away", null, "news")).getString("messagetype"));
+        assertEquals(2002, news.getSnapshot().getVersion());
+        Set<Integer> seen = new HashSet<>();
+        for(int i = 0; i < 4; i++)
+            seen.add(new GetResponse(TestServer.request(router.getPort(), new GetRequest(0, 0, null, null, null, null, "news"))).getCursor());
+        assertEquals(Set.of(2001, 2002), seen);
+
+        // A client that has seen the primary's newer board gets nothing older from the replica.
+        BoardCache cache = new BoardCache(null, "news");
+        cache.merge(new GetResponse(TestServer.request(primaryPort, cache.request())));
+        assertTrue(new GetResponse(TestServer.request(replicaPort, cache.request())).isNotModified());
+
+        // A subscriber whose cursor is ahead of the replica keeps it, and is answered once the replica catches up.
+        SubscribeResponse behind = new SubscribeResponse(TestServer.request(replicaPort, new SubscribeRequest(2002, 200, "news")));
+        assertEquals(0, behind.getMessages().size());
+        assertEquals(2002, behind.getCursor());
+        ExecutorService subscriber = Executors.newSingleThreadExecutor();
+        Future<JSONObject> next = subscriber.submit(() -> TestServer.request(replicaPort, new SubscribeRequest(2002, SubscribeRequest.MAX_WAIT_MS, "news")));
+
+        // A new replicator picks up where the old one stopped.
+        following = new Replicator(addr, "news", copy);
+        following.start();
+        awaitVersion(copy, 2002);
+        assertEquals(TestBoards.boardJson(news), TestBoards.boardJson(copy));
+        GetResponse caughtUp = new GetResponse(TestServer.request(replicaPort, cache.request()));
+        assertTrue(caughtUp.isNotModified());
+
+        TestServer.request(primaryPort, new PutRequest("after", null, "news"));
+        SubscribeResponse after = new SubscribeResponse(next.get());
+        assertEquals(2002, after.getSince());
+        assertEquals(2003, after.getCursor());
+        assertEquals("after", after.getMessages().get(0).getData());
+        subscriber.shutdown();
+
+        // A board that is not a copy of the primary's is left alone.
+        Messages stray = TestBoards.log();
+        stray.addMessage(new Message("not from the primary", "now"));
+        Replicator refused = new Replicator(addr, "news", stray);
+        refused.start();
+        Thread.sleep(500);
+        assertEquals(1, stray.getSnapshot().getVersion());
+
+        refused.close();
+        following.close();
+        main.close();
+        router.close();
+        routing.join();
+        stream.close();
+        streaming.join();
+        primaryServer.close();
+        replicaServer.close();
+        stray.close();
+        primary.close();
+        replica.close();
+    }
+
+    /**
+     * Waits for a replica's board to reach a version.
+     */
+    private static void awaitVersion(Messages messages, int version) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(messages.getSnapshot().getVersion() < version && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(version, messages.getSnapshot().getVersion());
+    }
+}
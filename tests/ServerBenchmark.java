@@ -0,0 +1,103 @@
+package tests;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+import mackyack_server.GroupCommitter;
+import mackyack_server.LogMessageStore;
+import mackyack_server.MappedMessageStore;
+import mackyack_server.Messages;
+import mackyack_server.SnapshotSpool;
+import mackyack_messages.Message;
+
+/**
+ * Throughput of the MackYack server, printed as tables. Not part of the test suite: the numbers
+ * depend on the machine and on what else runs on it, ServerLoadTest checks the outcomes.
+ * Run with the test classpath: {@code java tests.ServerBenchmark}.
+ */
+public class ServerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        workers();
+        stalledConnections();
+        groupCommit();
+        transferTo();
+        System.exit(0);
+    }
+
+    /**
+     * Requests per second of each transport, by worker count.
+     */
+    private static void workers() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // Warm up the JIT so the first measurement is not penalized.
+        ServerLoadTest.run(cores, false, 0);
+
+        for(int workers = 1; workers <= Math.max(8, cores * 2); workers *= 2)
+            System.out.printf("blocking workers=%d cores=%d requests/sec=%.0f%n", workers, cores, ServerLoadTest.run(workers, false, 0).requestsPerSecond);
+        for(int workers = 1; workers <= Math.max(8, cores * 2); workers *= 2)
+            System.out.printf("nio workers=%d cores=%d requests/sec=%.0f%n", workers, cores, ServerLoadTest.run(workers, true, 0).requestsPerSecond);
+    }
+
+    /**
+     * Requests per second of each transport while connections that never send a request are open.
+     */
+    private static void stalledConnections() throws Exception {
+        System.out.printf("blocking workers=8 with %d stalled connections requests/sec=%.0f%n", ServerLoadTest.STALLED_CONNECTIONS,
+            ServerLoadTest.run(8, false, ServerLoadTest.STALLED_CONNECTIONS).requestsPerSecond);
+        System.out.printf("nio workers=1 with %d stalled connections requests/sec=%.0f%n", ServerLoadTest.IDLE_CONNECTIONS,
+            ServerLoadTest.run(1, true, ServerLoadTest.IDLE_CONNECTIONS).requestsPerSecond);
+    }
+
+    /**
+     * Puts per second and put latency of each durability, by concurrent writers.
+     */
+    private static void groupCommit() throws Exception {
+        for(String durability : new String[] { GroupCommitter.FSYNC_PER_BATCH, GroupCommitter.FSYNC_INTERVAL, GroupCommitter.ASYNC }) {
+            for(int writers = 1; writers <= 16; writers *= 4) {
+                File dir = Files.createTempDirectory("messages-log").toFile();
+                Messages messages = new Messages(new LogMessageStore(dir.getPath(), LogMessageStore.DEFAULT_SEGMENT_BYTES), durability, 50);
+
+                double putsPerSecond = TestBoards.puts(messages, writers, 200);
+                System.out.printf("%s writers=%d puts/sec=%.0f latency %s%n", durability, writers, putsPerSecond, messages.getPutLatency());
+                messages.close();
+            }
+        }
+    }
+
+    /**
+     * Full-board GETs of a large board answered from memory and from a spooled file.
+     */
+    private static void transferTo() throws Exception {
+        File dir = Files.createTempDirectory("messages-mapped").toFile();
+        Messages messages = new Messages(new MappedMessageStore(dir.getPath()), GroupCommitter.FSYNC_INTERVAL, 1000);
+        String data = "x".repeat(1000);
+        for(int i = 0; i < 2000; i++)
+            messages.addMessage(new Message(data + i, "2024/01/01 12:00:00"));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        for(int round = 0; round < 2; round++) {  // The first round warms up the JIT.
+            for(int mode = 0; mode < 2; mode++) {
+                SnapshotSpool spool = mode == 1 ? new SnapshotSpool(Files.createTempDirectory("spool").toString()) : null;
+                TestServer service = TestServer.start(4, false, messages, spool);
+
+                long bytesBefore = ServerLoadTest.allocatedBytes(threads);
+                long cpuBefore = os.getProcessCpuTime();
+                long start = System.nanoTime();
+                long received = ServerLoadTest.fullGets(messages, service, round);
+                long elapsed = System.nanoTime() - start;
+                long cpu = os.getProcessCpuTime() - cpuBefore;
+                long allocated = ServerLoadTest.allocatedBytes(threads) - bytesBefore;
+                if(round == 1)
+                    System.out.printf("%s GETs=200 board=%dKB MB/sec=%.0f cpu=%dms allocated=%dMB%n", mode == 1 ? "transferTo" : "memory",
+                        received / 200 / 1024, received / 1048576.0 / (elapsed / 1e9), cpu / 1000000, allocated / 1048576);
+
+                service.close();
+            }
+        }
+        messages.close();
+    }
+}
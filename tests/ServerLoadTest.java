@@ -0,0 +1,374 @@
+package tests;
+
+import org.junit.Test;
+
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.Message;
+import mackyack_messages.PutRequest;
+import mackyack_server.BoardSnapshot;
+import mackyack_server.Boards;
+import mackyack_server.DedupCache;
+import mackyack_server.GroupCommitter;
+import mackyack_server.LogMessageStore;
+import mackyack_server.MappedMessageStore;
+import mackyack_server.Messages;
+import mackyack_server.ServerService;
+import mackyack_server.SnapshotSpool;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test for the MackYack server. Clients behave like exit ORs: one request per connection.
+ * Stalled connections model exit ORs that connect and never send their request.
+ * Only outcomes are checked here, ServerBenchmark measures throughput.
+ */
+public class ServerLoadTest {
+
+    private static final int CLIENTS = 32;
+    private static final int REQUESTS_PER_CLIENT = 25;
+    private static final int PUT_EVERY = 5;          // One request in PUT_EVERY is a put, the rest are gets.
+    static final int STALLED_CONNECTIONS = 3;  // Stalled connections for the blocking transport, fewer than its workers.
+    static final int IDLE_CONNECTIONS = 1000;  // Stalled connections for the NIO transport.
+
+    /**
+     * Result of one load run.
+     */
+    static class Result {
+        double requestsPerSecond;
+        int puts;
+        Messages messages;
+        File file;
+    }
+
+    /**
+     * Log store counting its syncs.
+     */
+    private static class CountingStore extends LogMessageStore {
+        private final AtomicInteger syncs = new AtomicInteger();
+
+        CountingStore(String path) throws IOException {
+            super(path, LogMessageStore.DEFAULT_SEGMENT_BYTES);
+        }
+
+        @Override
+        public synchronized void sync() throws IOException {
+            syncs.incrementAndGet();
+            super.sync();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void stalledConnectionsDoNotBlockOthers() throws Exception {
+        // The old accept loop would wait on the first stalled connection forever.
+        run(8, false, STALLED_CONNECTIONS);
+
+        // The selector only keeps a buffer per stalled connection, one worker is enough.
+        run(1, true, IDLE_CONNECTIONS);
+    }
+
+    @Test(timeout = 60000)
+    public void saturatedNioServerRefusesRequests() throws Exception {
+        Messages messages = TestBoards.log();
+        TestServer service = TestServer.start(1, 1, true, new Boards(messages, null), new DedupCache(DedupCache.DEFAULT_KEYS, DedupCache.DEFAULT_TTL_SECONDS));
+
+        // With the board held, one put holds the only worker and one waits in the queue.
+        // Whichever comes third is refused by closing its connection, not run on the selector thread.
+        ExecutorService clients = Executors.newFixedThreadPool(3);
+        List<Future<String>> puts = new ArrayList<>();
+        synchronized(messages) {
+            for(int i = 0; i < 3; i++) {
+                String data = "put " + i;
+                puts.add(clients.submit(() -> {
+                    try {
+                        return service.requestLine(new PutRequest(data));
+                    } catch (SocketException e) {
+                        return null; // Closed with the request unread, which may reset the connection.
+                    }
+                }));
+            }
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while(puts.stream().noneMatch(Future::isDone) && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(1, puts.stream().filter(Future::isDone).count());
+            for(Future<String> put : puts)
+                if(put.isDone())
+                    assertNull(put.get());
+        }
+
+        // The other two are answered once the board is let go.
+        int answered = 0;
+        for(Future<String> put : puts)
+            if(put.get() != null && JsonIO.readObject(put.get()).getString("messagetype").equals("putresponse"))
+                answered++;
+        assertEquals(2, answered);
+        assertEquals(2, messages.getSnapshot().getVersion());
+        clients.shutdown();
+
+        service.close();
+        messages.close();
+    }
+
+    @Test(timeout = 60000)
+    public void saturatedServerKeepsAccepting() throws Exception {
+        Messages messages = TestBoards.log();
+        TestServer service = TestServer.start(1, 1, false, new Boards(messages, null), new DedupCache(DedupCache.DEFAULT_KEYS, DedupCache.DEFAULT_TTL_SECONDS));
+
+        // One stalled connection holds the only worker and one waits in the queue. Connections
+        // are accepted in order, so by the time the request's is, both are there.
+        List<Socket> stalled = new ArrayList<>();
+        for(int i = 0; i < 2; i++)
+            stalled.add(new Socket("127.0.0.1", service.getPort()));
+
+        // Still accepting: the request is turned away rather than left waiting in the queue.
+        assertNull(requestLineOrNull(service, new GetRequest()));
+
+        // The stalled connections time out together, then requests are answered again.
+        long deadline = System.currentTimeMillis() + 3 * ServerService.READ_TIMEOUT_MS;
+        String answered = null;
+        while(answered == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            answered = requestLineOrNull(service, new GetRequest());
+        }
+        assertNotNull("Never answered once the stalled connections timed out.", answered);
+        assertEquals("getresponse", JsonIO.readObject(answered).getString("messagetype"));
+
+        for(Socket n : stalled)
+            n.close();
+        service.close();
+        messages.close();
+    }
+
+    @Test
+    public void concurrentPutsAreNotLost() throws Exception {
+        for(boolean nio : new boolean[] { false, true }) {
+            Result result = run(8, nio, 0);
+
+            assertEquals(result.puts, result.messages.getMessages().size());
+            // The file is rewritten by many threads, it must still hold every message.
+            assertEquals(result.puts, new Messages(result.file.getPath()).getMessages().size());
+        }
+    }
+
+    @Test
+    public void groupCommitSharesSyncsBetweenWriters() throws Exception {
+        for(String durability : new String[] { GroupCommitter.FSYNC_PER_BATCH, GroupCommitter.FSYNC_INTERVAL, GroupCommitter.ASYNC }) {
+            File dir = Files.createTempDirectory("messages-log").toFile();
+            CountingStore store = new CountingStore(dir.getPath());
+            Messages messages = new Messages(store, durability, 50);
+
+            TestBoards.puts(messages, 16, 200);
+            // Writers waiting on the same fsync share it, whatever the speed of the disk.
+            if(durability.equals(GroupCommitter.FSYNC_PER_BATCH))
+                assertTrue("Group commit did not share syncs: " + store.syncs.get(), store.syncs.get() < 16 * 200 / 2);
+
+            messages.close();
+            // Every acknowledged put is in the log after a restart.
+            assertEquals(16 * 200, new Messages(new LogMessageStore(dir.getPath(), LogMessageStore.DEFAULT_SEGMENT_BYTES)).getMessages().size());
+        }
+    }
+
+    @Test
+    public void readersSeeConsistentSnapshotsWhilePutsGoOn() throws Exception {
+        Messages messages = TestBoards.log();
+
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        AtomicInteger reads = new AtomicInteger();
+        List<Future<?>> done = new ArrayList<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        for(int i = 0; i < 4; i++) {
+            done.add(readers.submit(() -> {
+                int last = 0;
+                while(writing.get()) {
+                    BoardSnapshot snapshot = messages.getSnapshot();
+                    assertTrue(snapshot.getVersion() >= last);
+                    last = snapshot.getVersion();
+
+                    // Every message below the version is there, however far the writers got.
+                    List<Message> board = snapshot.getMessages();
+                    assertEquals(last, board.size());
+                    if(last > 0)
+                        assertNotNull(board.get(last - 1).getData());
+                    if(reads.incrementAndGet() % 100 == 0)
+                        assertEquals(last, new GetResponse(JsonIO.readObject(snapshot.serialize())).getMessages().size());
+                }
+                return null;
+            }));
+        }
+
+        TestBoards.puts(messages, 4, 5000);
+        writing.set(false);
+        for(Future<?> n : done)
+            n.get();
+        readers.shutdown();
+
+        assertEquals(20000, messages.getSnapshot().getVersion());
+        assertEquals(20000, messages.getMessages().stream().map(Message::getData).distinct().count());
+        messages.close();
+    }
+
+    @Test
+    public void transferToCutsCopiesForLargeBoards() throws Exception {
+        File dir = Files.createTempDirectory("messages-mapped").toFile();
+        Messages messages = new Messages(new MappedMessageStore(dir.getPath()), GroupCommitter.FSYNC_INTERVAL, 1000);
+        String data = "x".repeat(1000);
+        for(int i = 0; i < 2000; i++)
+            messages.addMessage(new Message(data + i, "2024/01/01 12:00:00"));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        long[] allocated = new long[2];
+        for(int round = 0; round < 2; round++) {  // The first round warms up the JIT.
+            for(int mode = 0; mode < 2; mode++) {
+                SnapshotSpool spool = mode == 1 ? new SnapshotSpool(Files.createTempDirectory("spool").toString()) : null;
+                TestServer service = TestServer.start(4, false, messages, spool);
+
+                long bytesBefore = allocatedBytes(threads);
+                fullGets(messages, service, round);
+                allocated[mode] = allocatedBytes(threads) - bytesBefore;
+
+                service.close();
+            }
+        }
+        messages.close();
+
+        // Spooled responses are copied file to file and file to socket by the kernel.
+        assertTrue("transferTo allocated " + allocated[1] + " >= " + allocated[0] / 2, allocated[1] < allocated[0] / 2);
+    }
+
+    /**
+     * Sends 200 full-board GETs, with a new version of the board every 20, like a busy board.
+     * @param round told apart in the messages put.
+     * @return bytes received.
+     */
+    static long fullGets(Messages messages, TestServer service, int round) throws Exception {
+        long received = 0;
+        byte[] buf = new byte[64 * 1024];
+        for(int version = 0; version < 10; version++) {
+            messages.addMessage(new Message("put " + round + " " + version, "2024/01/01 12:00:00"));
+            for(int i = 0; i < 20; i++)
+                received += fullGet(service.getPort(), buf);
+        }
+        return received;
+    }
+
+    /**
+     * @return bytes allocated by every live thread so far.
+     */
+    static long allocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long ret = 0;
+        for(long n : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+            ret += Math.max(n, 0);
+        return ret;
+    }
+
+    /**
+     * Sends a request on a connection the server may turn away.
+     * @return the response line, or null if the connection was closed with the request unread.
+     */
+    private static String requestLineOrNull(TestServer service, GetRequest request) throws Exception {
+        try {
+            return service.requestLine(request);
+        } catch (SocketException e) {
+            return null; // Closing with the request unread may reset the connection.
+        }
+    }
+
+    /**
+     * Sends a full-board GET and reads the response without keeping it.
+     * @return bytes received.
+     */
+    private static long fullGet(int port, byte[] buf) throws Exception {
+        try (Socket sock = new Socket("127.0.0.1", port)) {
+            sock.getOutputStream().write((new GetRequest().serialize() + "\n").getBytes());
+            InputStream input = sock.getInputStream();
+
+            long received = 0;
+            int n;
+            while((n = input.read(buf)) > 0) {
+                received += n;
+                if(buf[n - 1] == '\n')
+                    break;
+            }
+            return received;
+        }
+    }
+
+    /**
+     * Runs CLIENTS clients against a server with the given worker count.
+     * @param workers worker threads of the server.
+     * @param nio true to use NioServerService instead of ServerService.
+     * @param idle stalled connections opened before the run that never send anything.
+     * @return throughput and the board after the run.
+     */
+    static Result run(int workers, boolean nio, int idle) throws Exception {
+        Result result = new Result();
+        result.file = File.createTempFile("messages", ".json");
+        result.file.deleteOnExit();
+        try (FileWriter writer = new FileWriter(result.file)) {
+            writer.write("{\"messages\":[]}");
+        }
+        result.messages = new Messages(result.file.getPath());
+
+        TestServer service = TestServer.start(workers, nio, result.messages);
+
+        List<Socket> idleSockets = new ArrayList<>();
+        for(int i = 0; i < idle; i++)
+            idleSockets.add(new Socket("127.0.0.1", service.getPort()));
+        // Let the stalled connections reach the workers before the clients start.
+        Thread.sleep(100);
+
+        AtomicInteger puts = new AtomicInteger();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<?>> done = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for(int i = 0; i < CLIENTS; i++) {
+            int client = i;
+            done.add(clients.submit(() -> {
+                for(int j = 0; j < REQUESTS_PER_CLIENT; j++) {
+                    if((client * REQUESTS_PER_CLIENT + j) % PUT_EVERY == 0) {
+                        JSONObject resp = service.request(new PutRequest("load " + client + " " + j));
+                        assertEquals("putresponse", resp.getString("messagetype"));
+                        puts.incrementAndGet();
+                    } else {
+                        JSONObject resp = service.request(new GetRequest());
+                        assertEquals("getresponse", resp.getString("messagetype"));
+                    }
+                }
+                return null;
+            }));
+        }
+        for(Future<?> n : done)
+            n.get();
+        long elapsed = System.nanoTime() - start;
+
+        clients.shutdown();
+        for(Socket n : idleSockets)
+            n.close();
+        service.close();
+
+        result.requestsPerSecond = CLIENTS * REQUESTS_PER_CLIENT / (elapsed / 1e9);
+        result.puts = puts.get();
+        return result;
+    }
+}
@@ -0,0 +1,182 @@
+package tests;
+
+import org.junit.Test;
+
+import mackyack_messages.GetRequest;
+import mackyack_messages.GetResponse;
+import mackyack_messages.PutRequest;
+import mackyack_messages.SubscribeRequest;
+import mackyack_messages.SubscribeResponse;
+import mackyack_server.Boards;
+import mackyack_server.HashRing;
+import mackyack_server.ShardRouter;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shards that each serve some of the boards, behind a ShardRouter.
+ */
+public class ShardRouterTest {
+
+    @Test(timeout = 60000)
+    public void boardsAreShardedAcrossServers() throws Exception {
+        // Few keys move when a shard joins a ring, and keys spread evenly across shards.
+        HashRing ring = new HashRing();
+        for(int i = 0; i < 3; i++)
+            ring.add("shard-" + i);
+        String[] before = new String[10000];
+        int[] owned = new int[3];
+        for(int i = 0; i < before.length; i++) {
+            before[i] = ring.get("board-" + i);
+            owned[before[i].charAt(6) - '0']++;
+        }
+        ring.add("shard-3");
+        int moved = 0;
+        for(int i = 0; i < before.length; i++) {
+            String now = ring.get("board-" + i);
+            if(!now.equals(before[i])) {
+                assertEquals("shard-3", now);
+                moved++;
+            }
+        }
+        System.out.printf("ring keys per shard=%s moved on join=%d of %d%n", Arrays.toString(owned), moved, before.length);
+        for(int n : owned)
+            assertTrue(Arrays.toString(owned), n > before.length / 5 && n < before.length / 2);
+        assertTrue("Moved " + moved, moved > before.length / 8 && moved < before.length / 3);
+
+        // Three shards on loopback behind a router, each configured with every board.
+        List<Boards> shardBoards = new ArrayList<>();
+        List<TestServer> shards = new ArrayList<>();
+        List<String> addrs = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            Boards boards = new Boards(TestBoards.log(), null);
+            for(int j = 0; j < 8; j++)
+                boards.add("b" + j, TestBoards.log(), null);
+            TestServer shard = TestServer.start(4, i == 2, boards);
+            shardBoards.add(boards);
+            shards.add(shard);
+            addrs.add("127.0.0.1:" + shard.getPort());
+        }
+
+        ShardRouter router = new ShardRouter(0, addrs);
+        Thread routing = TestServer.poll(router::poll);
+        List<String> names = new ArrayList<>();
+        for(int j = 0; j < 8; j++)
+            names.add("b" + j);
+
+        // Shards may come and go while the boards that move are empty.
+        router.setShards(addrs.subList(0, 2), names);
+        assertEquals(Set.copyOf(addrs.subList(0, 2)), router.getShards());
+        router.setShards(addrs, names);
+        assertEquals(Set.copyOf(addrs), router.getShards());
+
+        // Every board is written and read on its own shard only, and the boards spread over the shards.
+        Set<String> used = new HashSet<>();
+        for(int j = 0; j < 8; j++) {
+            String board = "b" + j;
+            assertEquals("putresponse", TestServer.request(router.getPort(), new PutRequest("hello " + board, null, board)).getString("messagetype"));
+            GetResponse got = new GetResponse(TestServer.request(router.getPort(), new GetRequest(0, 0, null, null, null, null, board)));
+            assertEquals("hello " + board, got.getMessages().get(0).getData());
+
+            int owner = addrs.indexOf(router.shardOf(board));
+            used.add(router.shardOf(board));
+            for(int i = 0; i < 3; i++)
+                assertEquals(i == owner ? 1 : 0, shardBoards.get(i).get(board).getMessages().getSnapshot().getVersion());
+        }
+        assertTrue(used.toString(), used.size() > 1);
+
+        // Subscriptions are held by the shard and passed back when it answers.
+        SubscribeResponse waited = new SubscribeResponse(TestServer.request(router.getPort(), new SubscribeRequest(1, 100, "b0")));
+        assertEquals(1, waited.getCursor());
+
+        // A shard whose boards have messages cannot leave, they would be served empty elsewhere.
+        String gone = router.shardOf("b0");
+        Map<String, String> owners = new HashMap<>();
+        for(int j = 0; j < 8; j++)
+            owners.put("b" + j, router.shardOf("b" + j));
+        List<String> rest = new ArrayList<>(addrs);
+        rest.remove(gone);
+        try {
+            router.setShards(rest, names);
+            fail("b0 moved with its messages left behind.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(gone));
+        }
+        assertEquals(Set.copyOf(addrs), router.getShards());
+        for(int j = 0; j < 8; j++)
+            assertEquals(owners.get("b" + j), router.shardOf("b" + j));
+        TestServer.request(router.getPort(), new PutRequest("stayed", null, "b0"));
+        assertEquals(2, shardBoards.get(addrs.indexOf(gone)).get("b0").getMessages().getSnapshot().getVersion());
+
+        router.close();
+        routing.join();
+        for(int i = 0; i < 3; i++) {
+            shards.get(i).close();
+            shardBoards.get(i).close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void unresponsiveShardsAreAnsweredWithAnError() throws Exception {
+        // A shard that takes connections and never answers them.
+        ServerSocket stuck = new ServerSocket(0);
+        List<Socket> held = new ArrayList<>();
+        Thread accepting = TestServer.poll(() -> {
+            try {
+                while(true)
+                    held.add(stuck.accept());
+            } catch (SocketException e) {
+                // Closed at the end of the test.
+            }
+        });
+
+        ShardRouter router = new ShardRouter(0, List.of("127.0.0.1:" + stuck.getLocalPort()), 4, 500);
+        Thread routing = TestServer.poll(router::poll);
+
+        // Once the shard times out the exit OR is told, a put that reached it may have been stored.
+        long start = System.nanoTime();
+        assertFalse(TestServer.error(TestServer.requestLine(router.getPort(), new PutRequest("lost"))).isNotStored());
+        assertTrue(TestServer.error(TestServer.requestLine(router.getPort(), new GetRequest())).isNotStored());
+        assertTrue(System.nanoTime() - start < 5000000000L);
+
+        // The stuck shard cannot be asked about its boards, so it is not replaced.
+        try {
+            router.setShards(List.of("127.0.0.1:" + freePort()), List.of());
+            fail("Left a shard it could not ask.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        router.close();
+        routing.join();
+
+        // A shard that is down has nothing of the request.
+        router = new ShardRouter(0, List.of("127.0.0.1:" + freePort()), 4, 500);
+        routing = TestServer.poll(router::poll);
+        assertTrue(TestServer.error(TestServer.requestLine(router.getPort(), new PutRequest("lost"))).isNotStored());
+        router.close();
+        routing.join();
+
+        stuck.close();
+        accepting.join();
+        for(Socket n : held)
+            n.close();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket sock = new ServerSocket(0)) {
+            return sock.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package tests;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mackyack_messages.Message;
+import mackyack_server.GroupCommitter;
+import mackyack_server.LogMessageStore;
+import mackyack_server.Messages;
+
+/**
+ * Boards for tests, and ways of filling them.
+ */
+class TestBoards {
+
+    /**
+     * @return an empty board in a new log directory, acknowledging puts once written.
+     */
+    static Messages log() throws IOException {
+        return log(GroupCommitter.FSYNC_INTERVAL);
+    }
+
+    /**
+     * @param durability when puts are acknowledged, see GroupCommitter.
+     * @return an empty board in a new log directory.
+     */
+    static Messages log(String durability) throws IOException {
+        return new Messages(new LogMessageStore(Files.createTempDirectory("messages-log").toFile().getPath(), LogMessageStore.DEFAULT_SEGMENT_BYTES), durability, 1000);
+    }
+
+    /**
+     * Posts messages of random words, a minute or so apart.
+     */
+    static void postWords(Messages messages, int count, LocalDateTime start) throws IOException {
+        String[] words = { "board", "circuit", "onion", "router", "meeting", "tonight", "anyone", "seen", "the", "new", "post", "about", "keys", "exit", "relay" };
+        Random random = new Random(42);
+        for(int i = 0; i < count; i++) {
+            StringBuilder data = new StringBuilder();
+            for(int j = 0; j < 12; j++)
+                data.append(words[random.nextInt(words.length)]).append(' ');
+            messages.addMessage(new Message(data.toString().trim(), Message.TIMESTAMP_FORMAT.format(start.plusSeconds(random.nextInt(60) + i * 60))));
+        }
+    }
+
+    /**
+     * @return the full-board GetResponse without its ETag, which changes with every start.
+     */
+    static String boardJson(Messages messages) {
+        return messages.getSnapshot().serialize().replaceFirst(",\"etag\":\"[^\"]*\"}$", "}");
+    }
+
+    /**
+     * Puts from many threads straight into the board.
+     * @return puts per second.
+     */
+    static double puts(Messages messages, int writers, int putsPerWriter) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        List<Future<?>> done = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for(int i = 0; i < writers; i++) {
+            int writer = i;
+            done.add(pool.submit(() -> {
+                for(int j = 0; j < putsPerWriter; j++)
+                    messages.addMessage(new Message("put " + writer + " " + j, "now"));
+                return null;
+            }));
+        }
+        for(Future<?> n : done)
+            n.get();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        return writers * putsPerWriter / (elapsed / 1e9);
+    }
+}
@@ -0,0 +1,193 @@
+package tests;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InvalidObjectException;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+
+import mackyack_messages.ErrorResponse;
+import mackyack_server.Boards;
+import mackyack_server.DedupCache;
+import mackyack_server.Messages;
+import mackyack_server.NioServerService;
+import mackyack_server.ServerService;
+import mackyack_server.SnapshotSpool;
+import merrimackutil.json.JSONSerializable;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONObject;
+
+/**
+ * A MackYack server under test on a free loopback port, either transport, accepting
+ * connections on its own thread until closed.
+ */
+class TestServer implements AutoCloseable {
+
+    /**
+     * An accept loop, which returns once whatever it accepts for is closed.
+     */
+    interface Poller {
+        void poll() throws IOException;
+    }
+
+    /**
+     * The transport, either ServerService or NioServerService.
+     */
+    private interface Service extends Poller {
+        void close() throws IOException;
+        int getPort();
+    }
+
+    private final Service service;
+    private final Thread acceptor;
+
+    private TestServer(Service service) {
+        this.service = service;
+        this.acceptor = poll(service);
+    }
+
+    /**
+     * Runs an accept loop, e.g. of a ShardRouter or ChangeStream, on its own thread.
+     * @return the thread, which ends once the loop returns.
+     */
+    static Thread poll(Poller poller) {
+        Thread thread = new Thread(() -> {
+            try {
+                poller.poll();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    static TestServer start(int workers, boolean nio, Messages messages) throws IOException {
+        return start(workers, nio, messages, null);
+    }
+
+    static TestServer start(int workers, boolean nio, Messages messages, SnapshotSpool spool) throws IOException {
+        return start(workers, nio, messages, spool, new DedupCache(DedupCache.DEFAULT_KEYS, DedupCache.DEFAULT_TTL_SECONDS));
+    }
+
+    static TestServer start(int workers, boolean nio, Messages messages, SnapshotSpool spool, DedupCache dedup) throws IOException {
+        return start(workers, nio, new Boards(messages, spool), dedup);
+    }
+
+    static TestServer start(int workers, boolean nio, Boards boards) throws IOException {
+        return start(workers, nio, boards, new DedupCache(DedupCache.DEFAULT_KEYS, DedupCache.DEFAULT_TTL_SECONDS));
+    }
+
+    static TestServer start(int workers, boolean nio, Boards boards, DedupCache dedup) throws IOException {
+        return start(workers, 256, nio, boards, dedup);
+    }
+
+    static TestServer start(int workers, int maxQueuedRequests, boolean nio, Boards boards, DedupCache dedup) throws IOException {
+        if(nio) {
+            NioServerService service = new NioServerService(0, workers, maxQueuedRequests, boards, dedup);
+            return new TestServer(new Service() {
+                public void poll() throws IOException { service.poll(); }
+                public void close() throws IOException { service.close(); }
+                public int getPort() { return service.getPort(); }
+            });
+        }
+
+        ServerService service = new ServerService(0, workers, maxQueuedRequests, boards, dedup);
+        return new TestServer(new Service() {
+            public void poll() throws IOException { service.poll(); }
+            public void close() throws IOException { service.close(); }
+            public int getPort() { return service.getPort(); }
+        });
+    }
+
+    int getPort() {
+        return service.getPort();
+    }
+
+    JSONObject request(JSONSerializable message) throws Exception {
+        return request(getPort(), message);
+    }
+
+    String requestLine(JSONSerializable message) throws Exception {
+        return requestLine(getPort(), message);
+    }
+
+    byte[] requestFrame(byte[] frame) throws Exception {
+        return requestFrame(getPort(), frame);
+    }
+
+    /**
+     * Stops accepting connections and waits for the accept thread to end.
+     * An interrupted wait leaves the interrupt set for the test to see.
+     */
+    @Override
+    public void close() throws IOException {
+        service.close();
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends one request the way an exit OR does.
+     */
+    static JSONObject request(int port, JSONSerializable message) throws Exception {
+        return JsonIO.readObject(requestLine(port, message));
+    }
+
+    /**
+     * Sends one request the way an exit OR does.
+     * @return the response line as it was received, null if the connection was closed without one.
+     */
+    static String requestLine(int port, JSONSerializable message) throws Exception {
+        return requestLine(port, message.serialize());
+    }
+
+    /**
+     * @param line a response line.
+     * @return the ErrorResponse it holds.
+     * @throws InvalidObjectException if it is some other response.
+     */
+    static ErrorResponse error(String line) throws Exception {
+        JSONObject obj = JsonIO.readObject(line);
+        obj.remove("id");
+        if(!"errorresponse".equals(obj.getString("messagetype")))
+            throw new InvalidObjectException("Expected an errorresponse but got a " + obj.getString("messagetype") + ".");
+        return new ErrorResponse(obj);
+    }
+
+    /**
+     * Sends one request line the way an exit OR does.
+     * @return the response line as it was received, null if the connection was closed without one.
+     */
+    static String requestLine(int port, String line) throws Exception {
+        try (Socket sock = new Socket("127.0.0.1", port)) {
+            BufferedReader input = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            BufferedWriter output = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream()));
+
+            output.write(line);
+            output.newLine();
+            output.flush();
+
+            return input.readLine();
+        }
+    }
+
+    /**
+     * Sends one binary frame the way an exit OR does.
+     * @return every byte of the response, none if the connection was closed without one.
+     */
+    static byte[] requestFrame(int port, byte[] frame) throws Exception {
+        try (Socket sock = new Socket("127.0.0.1", port)) {
+            sock.getOutputStream().write(frame);
+            sock.getOutputStream().flush();
+            sock.shutdownOutput();
+
+            return sock.getInputStream().readAllBytes();
+        }
+    }
+}